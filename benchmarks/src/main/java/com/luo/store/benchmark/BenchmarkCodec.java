@@ -0,0 +1,84 @@
+package com.luo.store.benchmark;
+
+import com.luo.store.IRingBufferCodec;
+import com.luo.store.IRingBufferFactory;
+import com.luo.store.IRingBufferOrderedKey;
+import com.luo.store.RingBufferKey;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Created by luohui on 17/7/4.
+ * 直接在mmap的buffer上编解码，key保序编码，索引直接比较字节
+ */
+public class BenchmarkCodec implements IRingBufferFactory<RingBufferKey, BenchmarkPayload>, IRingBufferCodec<RingBufferKey, BenchmarkPayload>, IRingBufferOrderedKey {
+    @Override
+    public RingBufferKey newRingBufferKey() {
+        return new RingBufferKey();
+    }
+
+    @Override
+    public BenchmarkPayload newRingBufferData() {
+        return new BenchmarkPayload(0);
+    }
+
+    @Override
+    public int fixedKeyLength() {
+        return 16;
+    }
+
+    @Override
+    public byte[] encodeKey(RingBufferKey key) {
+        ByteBuffer byteBuffer = ByteBuffer.allocate(this.fixedKeyLength());
+        RingBufferKey.ringBufferEncode(key, byteBuffer, 0);
+        return byteBuffer.array();
+    }
+
+    @Override
+    public byte[] encodeData(BenchmarkPayload data) {
+        return Arrays.copyOf(data.bytes, data.length);
+    }
+
+    @Override
+    public void decodeKey(byte[] bytes, RingBufferKey key) {
+        RingBufferKey.ringBufferDecode(ByteBuffer.wrap(bytes), 0, key);
+    }
+
+    @Override
+    public void decodeData(byte[] bytes, BenchmarkPayload data) {
+        data.bytes = bytes;
+        data.length = bytes.length;
+    }
+
+    @Override
+    public int dataLength(BenchmarkPayload data) {
+        return data.length;
+    }
+
+    @Override
+    public void encodeKey(RingBufferKey key, ByteBuffer target, int offset) {
+        RingBufferKey.ringBufferEncode(key, target, offset);
+    }
+
+    @Override
+    public void encodeData(BenchmarkPayload data, ByteBuffer target, int offset) {
+        ByteBuffer view = target.duplicate();
+        view.position(offset);
+        view.put(data.bytes, 0, data.length);
+    }
+
+    @Override
+    public void decodeKey(ByteBuffer source, int offset, RingBufferKey key) {
+        RingBufferKey.ringBufferDecode(source, offset, key);
+    }
+
+    @Override
+    public void decodeData(ByteBuffer source, int offset, int length, BenchmarkPayload data) {
+        if (data.bytes.length < length) data.bytes = new byte[length];
+        ByteBuffer view = source.duplicate();
+        view.position(offset);
+        view.get(data.bytes, 0, length);
+        data.length = length;
+    }
+}
@@ -0,0 +1,18 @@
+package com.luo.store.benchmark;
+
+/**
+ * Created by luohui on 17/7/4.
+ * 基准测试用的data：length个字节，解码时复用bytes
+ */
+public class BenchmarkPayload {
+    byte[] bytes;
+    int length;
+
+    public BenchmarkPayload(int length) {
+        this.bytes = new byte[length];
+        this.length = length;
+        for (int i = 0; i < length; i++) {
+            this.bytes[i] = (byte) ('A' + i % 26);
+        }
+    }
+}
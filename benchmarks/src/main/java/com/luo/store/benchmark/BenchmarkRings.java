@@ -0,0 +1,58 @@
+package com.luo.store.benchmark;
+
+import com.luo.store.MappedRingBuffer;
+import com.luo.store.RingBufferKey;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Created by luohui on 17/7/4.
+ * 基准测试共用的ring：建在临时目录里，测完删掉
+ */
+public class BenchmarkRings {
+    //key长16，frame = 1 + 16 + 4 + payload + 4
+    public static final int FRAME_OVERHEAD = 25;
+
+    public static File newDir() throws IOException {
+        return Files.createTempDirectory("mappedStore-bench").toFile();
+    }
+
+    public static MappedRingBuffer<RingBufferKey, BenchmarkPayload> newRing(File dir, long slotSize, short slotCount, int indexSliceSize, int payloadSize) {
+        MappedRingBuffer<RingBufferKey, BenchmarkPayload> ring = new MappedRingBuffer<>();
+        ring.setFactory(new BenchmarkCodec());
+        ring.setDataFileDir(dir.getAbsolutePath());
+        ring.setDataFileCount(slotCount);
+        ring.setDataFileSize(slotSize);
+        ring.setIndexSliceSize(indexSliceSize);
+        //小记录时一条索引记录（key + 14字节）超过数据的1/5，索引文件按记录数放大
+        ring.setIndexFileSize(Math.max(slotSize / 5, slotSize / (payloadSize + FRAME_OVERHEAD) * (16 + 16) + 4096));
+        return ring;
+    }
+
+    //能放下count条记录的slot数，再多留一个写slot
+    public static short slotCount(long count, int payloadSize, long slotSize) {
+        long perSlot = (slotSize - 8) / (payloadSize + FRAME_OVERHEAD);
+        return (short) Math.max(2, (count + perSlot - 1) / perSlot + 1);
+    }
+
+    public static void fill(MappedRingBuffer<RingBufferKey, BenchmarkPayload> ring, long count, int payloadSize) {
+        BenchmarkPayload payload = new BenchmarkPayload(payloadSize);
+        //索引的heap部分会引用key，每条记录一个新的key
+        for (long n = 1; n <= count; n++) {
+            ring.put(new RingBufferKey(0, 0, n), payload);
+        }
+    }
+
+    public static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (null != files) {
+            for (File file : files) {
+                if (file.isDirectory()) deleteDir(file);
+                else file.delete();
+            }
+        }
+        dir.delete();
+    }
+}
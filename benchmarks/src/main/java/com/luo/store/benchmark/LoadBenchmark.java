@@ -0,0 +1,91 @@
+package com.luo.store.benchmark;
+
+import com.luo.store.MappedRingBuffer;
+import com.luo.store.RingBufferKey;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by luohui on 17/7/4.
+ * 重启load()的耗时：有checkpoint过的索引文件时只扫描数据尾部，没有时从数据文件重建全部索引
+ * 每次调用前关闭上一次打开的ring，没有索引的情况每次都先删掉索引文件
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoadBenchmark {
+    @Param({"500000"})
+    long records;
+    @Param({"1024"})
+    int payloadSize;
+    @Param({"16777216", "134217728"})
+    long slotSize;
+    @Param({"300"})
+    int indexSliceSize;
+    @Param({"true", "false"})
+    boolean withIndexFiles;
+
+    File dir;
+    short slotCount;
+    MappedRingBuffer<RingBufferKey, BenchmarkPayload> ring;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.dir = BenchmarkRings.newDir();
+        this.slotCount = BenchmarkRings.slotCount(this.records, this.payloadSize, this.slotSize);
+        MappedRingBuffer<RingBufferKey, BenchmarkPayload> ring = this.newRing();
+        ring.load();
+        BenchmarkRings.fill(ring, this.records, this.payloadSize);
+        ring.close();
+    }
+
+    @Setup(Level.Invocation)
+    public void deleteIndexFiles() {
+        if (this.withIndexFiles) return;
+        File[] files = this.dir.listFiles();
+        if (null == files) return;
+        for (File file : files) {
+            if (file.getName().contains("index-")) file.delete();
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeRing() throws IOException {
+        this.ring.close();
+        this.ring = null;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkRings.deleteDir(this.dir);
+    }
+
+    private MappedRingBuffer<RingBufferKey, BenchmarkPayload> newRing() {
+        return BenchmarkRings.newRing(this.dir, this.slotSize, this.slotCount, this.indexSliceSize, this.payloadSize);
+    }
+
+    @Benchmark
+    public MappedRingBuffer<RingBufferKey, BenchmarkPayload> load() {
+        this.ring = this.newRing();
+        this.ring.load();
+        return this.ring;
+    }
+}
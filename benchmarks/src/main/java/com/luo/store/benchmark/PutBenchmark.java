@@ -0,0 +1,94 @@
+package com.luo.store.benchmark;
+
+import com.luo.store.MappedRingBuffer;
+import com.luo.store.RingBufferKey;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Created by luohui on 17/7/4.
+ * 单生产者和多生产者put的吞吐，按payload大小、slot大小和indexSliceSize参数化
+ * slot写满后环会绕回来覆盖最老的slot，测量中包含切换slot的开销
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PutBenchmark {
+    private static final short SLOT_COUNT = 4;
+
+    @State(Scope.Benchmark)
+    public static class Ring {
+        @Param({"128", "1024", "4096"})
+        int payloadSize;
+        @Param({"16777216", "134217728"})
+        long slotSize;
+        @Param({"300"})
+        int indexSliceSize;
+
+        File dir;
+        MappedRingBuffer<RingBufferKey, BenchmarkPayload> ring;
+        BenchmarkPayload payload;
+        final AtomicLong sequence = new AtomicLong();
+        final Supplier<RingBufferKey> nextKey = () -> new RingBufferKey(0, 0, this.sequence.incrementAndGet());
+
+        boolean multiProducer() {
+            return false;
+        }
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            this.dir = BenchmarkRings.newDir();
+            this.ring = BenchmarkRings.newRing(this.dir, this.slotSize, SLOT_COUNT, this.indexSliceSize, this.payloadSize);
+            this.ring.setMultiProducer(this.multiProducer());
+            this.ring.load();
+            this.payload = new BenchmarkPayload(this.payloadSize);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            this.ring.close();
+            BenchmarkRings.deleteDir(this.dir);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class ConcurrentRing extends Ring {
+        @Override
+        boolean multiProducer() {
+            return true;
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void put(Ring state) {
+        state.ring.put(new RingBufferKey(0, 0, state.sequence.incrementAndGet()), state.payload);
+    }
+
+    //多个生产者：putNext在锁内取key并CAS领取空间，编码和发布并行，key总是按领取的顺序递增，不会被拒绝或者回写
+    @Benchmark
+    @Threads(4)
+    public void putConcurrent(ConcurrentRing state) {
+        state.ring.putNext(state.nextKey, state.payload);
+    }
+}
@@ -0,0 +1,113 @@
+package com.luo.store.benchmark;
+
+import com.luo.store.IRingBufferCursor;
+import com.luo.store.MappedRingBuffer;
+import com.luo.store.RingBufferKey;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by luohui on 17/7/4.
+ * 点查和正反向扫描，数据在trial开始时写好，按slot大小和indexSliceSize参数化
+ * 扫描每次从随机位置开始读SCAN_LENGTH条，结果按每条记录计
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReadBenchmark {
+    private static final int SCAN_LENGTH = 1000;
+
+    @Param({"200000"})
+    long records;
+    @Param({"1024"})
+    int payloadSize;
+    @Param({"16777216", "134217728"})
+    long slotSize;
+    @Param({"100", "300", "1000"})
+    int indexSliceSize;
+
+    File dir;
+    MappedRingBuffer<RingBufferKey, BenchmarkPayload> ring;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.dir = BenchmarkRings.newDir();
+        short slotCount = BenchmarkRings.slotCount(this.records, this.payloadSize, this.slotSize);
+        this.ring = BenchmarkRings.newRing(this.dir, this.slotSize, slotCount, this.indexSliceSize, this.payloadSize);
+        this.ring.load();
+        BenchmarkRings.fill(this.ring, this.records, this.payloadSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        this.ring.close();
+        BenchmarkRings.deleteDir(this.dir);
+    }
+
+    private RingBufferKey randomKey(long bound) {
+        return new RingBufferKey(0, 0, 1 + ThreadLocalRandom.current().nextLong(bound));
+    }
+
+    //零拷贝读
+    @Benchmark
+    public ByteBuffer getRawBuffer() {
+        return this.ring.getRawBuffer(this.randomKey(this.records));
+    }
+
+    //读出并解码成对象
+    @Benchmark
+    public BenchmarkPayload get() {
+        return this.ring.get(this.randomKey(this.records));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SCAN_LENGTH)
+    public void scanForward(Blackhole blackhole) {
+        IRingBufferCursor<RingBufferKey, BenchmarkPayload> cursor = this.ring.cursor(this.randomKey(this.records - SCAN_LENGTH), null, false);
+        try {
+            for (int i = 0; i < SCAN_LENGTH && cursor.next(); i++) {
+                blackhole.consume(cursor.key());
+                blackhole.consume(cursor.rawValue());
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SCAN_LENGTH)
+    public void scanBackward(Blackhole blackhole) {
+        RingBufferKey from = new RingBufferKey(0, 0, SCAN_LENGTH + 1 + ThreadLocalRandom.current().nextLong(this.records - SCAN_LENGTH));
+        IRingBufferCursor<RingBufferKey, BenchmarkPayload> cursor = this.ring.cursor(null, from, true);
+        try {
+            for (int i = 0; i < SCAN_LENGTH && cursor.next(); i++) {
+                blackhole.consume(cursor.key());
+                blackhole.consume(cursor.rawValue());
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
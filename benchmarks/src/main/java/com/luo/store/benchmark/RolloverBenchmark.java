@@ -0,0 +1,73 @@
+package com.luo.store.benchmark;
+
+import com.luo.store.MappedRingBuffer;
+import com.luo.store.RingBufferKey;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by luohui on 17/7/4.
+ * 跨越switchNextSlot的写入：每次调用写满一个slot，一定经过一次切换
+ * 和PutBenchmark对比看切换的摊销开销；SampleTime模式下的长尾就是切换时的停顿，backgroundRoller可以把它挪到后台
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RolloverBenchmark {
+    private static final int PAYLOAD_SIZE = 1000;
+    private static final int RECORDS_PER_INVOCATION = 1024;
+
+    @Param({"300"})
+    int indexSliceSize;
+    @Param({"false", "true"})
+    boolean backgroundRoller;
+
+    File dir;
+    MappedRingBuffer<RingBufferKey, BenchmarkPayload> ring;
+    BenchmarkPayload payload;
+    long sequence;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        //slot正好放RECORDS_PER_INVOCATION条记录
+        long slotSize = 4 + (long) RECORDS_PER_INVOCATION * (PAYLOAD_SIZE + BenchmarkRings.FRAME_OVERHEAD);
+        this.dir = BenchmarkRings.newDir();
+        this.ring = BenchmarkRings.newRing(this.dir, slotSize, (short) 8, this.indexSliceSize, PAYLOAD_SIZE);
+        this.ring.setBackgroundRoller(this.backgroundRoller);
+        this.ring.load();
+        this.payload = new BenchmarkPayload(PAYLOAD_SIZE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        this.ring.close();
+        BenchmarkRings.deleteDir(this.dir);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS_PER_INVOCATION)
+    public void putAcrossSlots() {
+        for (int i = 0; i < RECORDS_PER_INVOCATION; i++) {
+            this.ring.put(new RingBufferKey(0, 0, ++this.sequence), this.payload);
+        }
+    }
+}
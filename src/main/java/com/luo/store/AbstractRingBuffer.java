@@ -2,12 +2,19 @@ package com.luo.store;
 
 import lombok.Getter;
 
+import java.nio.ByteBuffer;
+import java.util.Map;
+
 /**
  * Created by luohui on 17/7/4.
  */
 public abstract class AbstractRingBuffer<K,V> implements IRingBuffer<K,V> {
     @Getter
     private IRingBufferFactory<K, V> factory;
+    @Getter
+    private IRingBufferCodec<K, V> codec;
+    @Getter
+    private boolean orderedKey;//编码后的key可以直接按字节比较，见IRingBufferOrderedKey
 
     @Override
     public void put(K k, V v) {
@@ -20,18 +27,33 @@ public abstract class AbstractRingBuffer<K,V> implements IRingBuffer<K,V> {
         }
     }
 
+    @Override
+    public void putAll(Map<K, V> batch) {
+        for (Map.Entry<K, V> entry : batch.entrySet()) {
+            this.put(entry.getKey(), entry.getValue());
+        }
+    }
+
     abstract void writeData(K k, V v);
 
     abstract void overrideData(K k, V v);
 
     @Override
     public V get(K k) {
-        return null;
+        ByteBuffer buffer = this.getRawBuffer(k);
+        if (null == buffer) return null;
+        V data = this.codec.newRingBufferData();
+        this.codec.decodeData(buffer, buffer.position(), buffer.remaining(), data);
+        return data;
     }
 
     @Override
     public byte[] getRaw(K key) {
-        return new byte[0];
+        ByteBuffer buffer = this.getRawBuffer(key);
+        if (null == buffer) return null;
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
     }
 
     @Override
@@ -57,6 +79,10 @@ public abstract class AbstractRingBuffer<K,V> implements IRingBuffer<K,V> {
     @Override
     public IRingBuffer<K, V> setFactory(IRingBufferFactory<K, V> factory) {
         this.factory = factory;
+        //工厂自己实现了IRingBufferCodec就直接用，否则包一层适配
+        this.codec = factory instanceof IRingBufferCodec ? (IRingBufferCodec<K, V>) factory : new RingBufferFactoryCodec<>(factory);
+        //适配器用的也是工厂的encodeKey，保序的能力跟着工厂走
+        this.orderedKey = factory instanceof IRingBufferOrderedKey;
         return this;
     }
 
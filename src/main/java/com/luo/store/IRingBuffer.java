@@ -1,19 +1,37 @@
 package com.luo.store;
 
+import java.nio.ByteBuffer;
+import java.util.Map;
+
 /**
  * Created by luohui on 17/7/4.
  */
 public interface IRingBuffer<K, V> {
+    /**
+     * 写入一条记录；k不大于lastKey时回写：丢掉所有key >= k的记录再追加，上游failover后重发的一段记录会覆盖掉旧的
+     * 多生产者模式下只有k不大于已经发布的lastKey时才回写，回写之前等所有已经领取了空间的记录都写完；
+     * k大于已经发布的key、只是比其他生产者正在写的key小（抢输了领取）时不回写，抛IllegalStateException，
+     * 记录没有写入，计入metrics的rejectedPuts；每次回写都计入metrics的overrides
+     */
     void put(K k, V v);
 
+    //按batch的迭代顺序批量写入
+    void putAll(Map<K, V> batch);
+
     V get(K k);
 
     byte[] getRaw(K key);
 
+    //零拷贝读取，返回的只读buffer直接指向存储的内存
+    ByteBuffer getRawBuffer(K key);
+
     V next(K from , K nextKey);
 
     V previous(K from , K previousKey);
 
+    //遍历[fromKey, toKey)，null表示不限
+    IRingBufferCursor<K, V> cursor(K fromKey, K toKey, boolean descending);
+
     K firstKey();
 
     K lastKey();
@@ -0,0 +1,27 @@
+package com.luo.store;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Created by luohui on 17/7/4.
+ * 直接在目标ByteBuffer上编解码，不产生中间的byte[]
+ * 所有方法都使用绝对位置读写，不修改target/source的position和limit
+ */
+public interface IRingBufferCodec<K, V> {
+    K newRingBufferKey();
+
+    V newRingBufferData();
+
+    int fixedKeyLength();
+
+    //data编码后的字节数，slot根据它预留空间
+    int dataLength(V data);
+
+    void encodeKey(K key, ByteBuffer target, int offset);
+
+    void encodeData(V data, ByteBuffer target, int offset);
+
+    void decodeKey(ByteBuffer source, int offset, K key);
+
+    void decodeData(ByteBuffer source, int offset, int length, V data);
+}
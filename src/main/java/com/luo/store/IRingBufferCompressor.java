@@ -0,0 +1,19 @@
+package com.luo.store;
+
+/**
+ * Created by luohui on 17/7/4.
+ * slot中记录block的压缩算法，见MappedRingBuffer.setCompressor
+ * 实现需要线程安全：writer压缩的同时，多个读者在解压
+ */
+public interface IRingBufferCompressor {
+    byte NONE = 0;//block没有压缩，保留给不压缩的block
+
+    //写在每个block header里的编号，不能是NONE
+    byte id();
+
+    //压缩src[0, length)到dst（dst至少length长），返回压缩后的长度；压缩后不比原来小返回-1
+    int compress(byte[] src, int length, byte[] dst);
+
+    //解压src[offset, offset + length)到dst，dst的长度就是原始长度
+    void decompress(byte[] src, int offset, int length, byte[] dst);
+}
@@ -0,0 +1,22 @@
+package com.luo.store;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Created by luohui on 17/7/4.
+ * 按key顺序遍历记录，key()/value()/rawValue()返回的对象由cursor复用，next()之后内容会被覆盖
+ */
+public interface IRingBufferCursor<K, V> {
+    //移动到下一条记录，没有了返回false
+    boolean next();
+
+    K key();
+
+    V value();
+
+    //当前记录的data，只读、不拷贝
+    ByteBuffer rawValue();
+
+    //提前结束遍历时调用，释放cursor占用的slot；next()返回false后会自动释放
+    void close();
+}
@@ -0,0 +1,12 @@
+package com.luo.store;
+
+/**
+ * Created by luohui on 17/7/4.
+ * 可选能力：工厂（或codec）实现这个接口，表示encodeKey编码出来的定长字节按无符号字典序比较，
+ * 和key的Comparable顺序完全一致
+ * 索引查找和恢复时就直接比较mmap中的字节，不再把key解码成对象
+ * <p>
+ * 有符号的整数要翻转符号位再按big-endian写入，例如RingBufferKey.ringBufferEncode
+ */
+public interface IRingBufferOrderedKey {
+}
@@ -0,0 +1,11 @@
+package com.luo.store;
+
+/**
+ * Created by luohui on 17/7/4.
+ * 可选能力：工厂（或codec）实现这个接口，从记录中提取一个long的二级key（比如表或者实体的id），
+ * MappedRingBuffer为它维护二级索引，secondaryCursor(secondaryKey)按主key的顺序遍历二级key相同的记录
+ * 同一条记录每次提取的结果必须一样，恢复时会从数据文件中解码记录重新提取
+ */
+public interface IRingBufferSecondaryKey<K, V> {
+    long secondaryKey(K key, V data);
+}
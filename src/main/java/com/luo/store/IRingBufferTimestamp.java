@@ -0,0 +1,10 @@
+package com.luo.store;
+
+/**
+ * Created by luohui on 17/7/4.
+ * 可选能力：工厂（或codec）实现这个接口，提供记录的时间戳（毫秒），按时间保留数据时使用
+ * 没有实现时，slot的时间取writer切换走的时间，重启后取数据文件的修改时间
+ */
+public interface IRingBufferTimestamp<K, V> {
+    long timestamp(K key, V data);
+}
@@ -0,0 +1,123 @@
+package com.luo.store;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Created by luohui on 17/7/4.
+ * MappedByteBuffer相关的工具方法
+ */
+public class MappedByteBufferUtil {
+    //jdk13开始才有MappedByteBuffer.force(int index, int length)
+    private static final Method FORCE_RANGE = findForceRange();
+    //jdk8开始有storeFence/loadFence，直接调用才能被JIT内联成屏障指令
+    private static final sun.misc.Unsafe UNSAFE = findUnsafe();
+
+    /**
+     * 按无符号字典序比较a中aOffset和b中bOffset开始的length个字节，两个buffer都要是big-endian
+     * 每次比较8个字节
+     */
+    public static int compareUnsigned(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset, int length) {
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            long x = a.getLong(aOffset + i);
+            long y = b.getLong(bOffset + i);
+            if (x != y) return Long.compareUnsigned(x, y);
+        }
+        for (; i < length; i++) {
+            int x = a.get(aOffset + i) & 0xFF;
+            int y = b.get(bOffset + i) & 0xFF;
+            if (x != y) return x - y;
+        }
+        return 0;
+    }
+
+    /**
+     * 把[from, to)这段脏数据刷到磁盘
+     * 没有force(int, int)的jdk上退化成整个buffer的force()，msync只会回写其中的脏页
+     */
+    public static void force(MappedByteBuffer buffer, int from, int to) {
+        if (to <= from) return;
+        if (null == FORCE_RANGE) {
+            buffer.force();
+            return;
+        }
+        try {
+            FORCE_RANGE.invoke(buffer, from, to - from);
+        } catch (Exception e) {
+            throw new IllegalStateException("force mapped buffer failed", e);
+        }
+    }
+
+    /**
+     * 之前的写不会重排到之后的写后面：和其他进程共享mmap时，先写记录和索引，storeFence之后再写header中的计数
+     */
+    public static void storeFence() {
+        UNSAFE.storeFence();
+    }
+
+    /**
+     * 之后的读不会重排到之前的读前面：只读进程先读header中的计数，loadFence之后再读计数之内的记录
+     */
+    public static void loadFence() {
+        UNSAFE.loadFence();
+    }
+
+    /**
+     * 立即释放mmap，不等GC回收
+     * 调用前必须确保没有任何线程还会访问这个buffer（以及它的slice/duplicate），否则会访问已经释放的内存
+     */
+    public static void unmap(MappedByteBuffer buffer) {
+        if (null == buffer) return;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = findMethod(unsafeClass, "invokeCleaner", ByteBuffer.class);
+            if (null != invokeCleaner) {
+                //jdk9+
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+                return;
+            }
+            //jdk8: ((DirectBuffer) buffer).cleaner().clean()
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (null != cleaner) {
+                Method clean = cleaner.getClass().getMethod("clean");
+                clean.setAccessible(true);
+                clean.invoke(cleaner);
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException("unmap mapped buffer failed", e);
+        }
+    }
+
+    private static Method findMethod(Class<?> clazz, String name, Class<?>... parameterTypes) {
+        try {
+            return clazz.getMethod(name, parameterTypes);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static sun.misc.Unsafe findUnsafe() {
+        try {
+            Field theUnsafe = sun.misc.Unsafe.class.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return (sun.misc.Unsafe) theUnsafe.get(null);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static Method findForceRange() {
+        try {
+            return MappedByteBuffer.class.getMethod("force", int.class, int.class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
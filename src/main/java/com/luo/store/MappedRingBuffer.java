@@ -1,78 +1,1052 @@
 package com.luo.store;
 
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
 
+import java.io.Closeable;
 import java.io.File;
-import java.io.UnsupportedEncodingException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
 
 /**
  * Created by luohui on 17/7/4.
  * use java mmap to persistence data,also is a ringBuffer with 40 slot which is a a direct byteBuffer
+ * <p>
+ * 写满最后一个slot后回到第一个slot，复用最老的slot之前先丢弃它（只重置header和索引计数）
+ * 每个slot有一个代数（generation），写slot切换时新slot的代数是旧写slot的代数+1，空闲的slot代数为0；
+ * 代数持久化在generations文件里（每个slot一个long），load时按代数确定最老的slot和写slot
+ * <p>
+ * 设置了compressor时，记录先在堆上攒成block（compressionBlockSize），压缩后作为一个frame写入slot；
+ * block写入slot之后（攒满、flushBlock、putAsync、回写或者close）其中的记录才能被读到，
+ * 读的时候解压后的block放在blockCacheSize个block的LRU中
+ * <p>
+ * 只读模式（readOnly）：另一个进程打开writer进程正在写的目录，数据和索引文件都映射成READ_ONLY，不加锁，
+ * 配置（dataFileCount、dataFileSize、indexFileSize、slotRegionSize、checksum、compressor）要和writer一样。
+ * generations文件中代数之后每个slot还有一个序号（seqlock）：writer清空、回写、重新使用slot之前把序号加成奇数，改完再加成偶数；
+ * 追加记录不改序号，记录和索引先写、storeFence之后才更新header中的计数，读者按计数读到的都是完整的记录。
+ * 只读进程调用refresh()跟上writer：序号没变的slot只补上新增记录的fence，变了的slot重新同步；
+ * get拷贝到堆上之后检查序号，变了就刷新重读；cursor读到的slot被改过时抛ConcurrentModificationException。
+ * writer进程重启后（可能新建了索引文件）只读进程要重新打开
  */
 @Data
-public class MappedRingBuffer<K, V> extends AbstractRingBuffer<K, V> {
+public class MappedRingBuffer<K, V> extends AbstractRingBuffer<K, V> implements Closeable {
     private String dataFileDir = "./data";
     private String dataFileNamePrefix = "data-ringBuffer-";
     private short dataFileCount = 40;//等于slotCount
     private long dataFileSize = 1073741824L;
+    private long slotRegionSize = 1L << 30;//超过这个大小的数据文件分成多个region映射，单个MappedByteBuffer最大2GB
     private List<MappedRingBufferSlot<K, V>> slotList = new ArrayList<>();
-    private int currentSlotIdx = 0;
+    private volatile int currentSlotIdx = 0;
     private MappedRingBufferMemoryIndex<K, V> memoryIndexer;
     private int indexSliceSize = 300;
+    private int bloomFilterBitsPerKey = 0;//slot摘要中每个key的Bloom filter位数，0表示不要Bloom filter，10大约1%误判，load之前设置
+    private long bloomFilterKeysPerSlot = 0;//每个slot按多少个key分配Bloom filter，0表示索引文件能放的记录数
+    private int secondaryIndexBuckets = 4096;//工厂实现了IRingBufferSecondaryKey时每个slot二级索引的bucket数，2的幂，load之前设置
+    private long indexFileSize = 0;//每个slot索引文件的大小，0表示dataFileSize的1/5（最大2GB）；一个slot能放的记录数受它限制
+    /**
+     * 允许多个线程同时put，load之前设置
+     * 生产者的key要按领取空间的顺序递增：各自取key再put时，后取到key的生产者可能先领取，先取到的小key领取时被拒绝
+     * （见IRingBuffer.put），已经不大于发布的key时还会被当成重发回写，丢掉其他生产者写入的记录；
+     * 用putNext在一把锁内取key并领取空间，编码和发布仍然并行
+     */
+    private boolean multiProducer = false;
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private final Object claimLock = new Object();//putNext取key和领取空间用的锁
+    private MappedRingBufferFlushPolicy flushPolicy = MappedRingBufferFlushPolicy.never();//putAsync的刷盘策略
+    private MappedRingBufferFlusher<K, V> flusher;
+    private int loadThreads = Runtime.getRuntime().availableProcessors();//并发加载slot的线程数
+    private ExecutorService loadExecutor;//加载slot用的线程池（ForkJoinPool或固定线程池），为空时按loadThreads临时创建
+    private long[] slotLoadMillis;//每个slot加载耗时
+    private boolean lazyMapping = false;//懒映射：只映射写slot和最近读过的maxMappedSlots个slot，load之前设置
+    private int maxMappedSlots = 2;//懒映射模式下除写slot之外最多保持映射的slot数
+    private MappedRingBufferSlotCache<K, V> slotCache;
+    private boolean verifyIndexOnLoad = false;//load时逐条检查checkpoint之前的索引记录，默认只校验header和最后一条
+    private MappedRingBufferChecksum checksum = MappedRingBufferChecksum.CRC32;//记录的checksum算法，重新打开时要和写入时一样
+    private boolean verifyChecksumOnRead = false;//读记录之前校验checksum，损坏抛IllegalStateException
+    private boolean verifyChecksumOnRecovery = false;//load时校验从数据文件扫描的记录，损坏的记录和之后的数据被截掉
+    private boolean latencyMetrics = true;//统计put、get、scan的延迟，每次操作多两次System.nanoTime()
+    private boolean jmxEnabled = true;//load时注册MXBean，见MappedRingBufferMXBean
+    @Setter(AccessLevel.NONE)
+    private MappedRingBufferMetrics metrics;
+    private boolean backgroundRoller = false;//后台提前准备下一个slot，load之前设置
+    private int rollerThresholdPercent = 75;//当前slot写过这个比例后开始准备下一个slot
+    private long rollerPreTouchBytes = 64L << 20;//准备slot时只读触碰数据文件开头的多少字节（索引文件按同样的比例），0表示不触碰
+    private MappedRingBufferRoller<K, V> roller;
+    private MappedRingBufferRetentionPolicy retentionPolicy = MappedRingBufferRetentionPolicy.never();
+    private IRingBufferCompressor compressor;//不为空时按block压缩写入，load之前设置，不能和multiProducer一起用
+    private int compressionBlockSize = 64 * 1024;//block解压后的大小，超过一条记录的block只放这一条
+    private int blockCacheSize = 16;//缓存多少个解压后的block
+    private MappedRingBufferBlockCache<K, V> blockCache;
+    private MappedRingBufferBlockWriter<K, V> blockWriter;
+    @Setter(AccessLevel.NONE)
+    private volatile short oldestSlotIdx = 0;//最老的slot，丢弃slot时向前移动
+    private RandomAccessFile generationFile;
+    private MappedByteBuffer generationBuffer;//每个slot的代数，slotIdx * 8处一个long
+    //回写次数和最近一次回写到的位置（MappedRingBufferMemoryIndex.toAddress），tailer据此跟着回退；只有writer修改
+    @Setter(AccessLevel.NONE)
+    private volatile int rewindsStarted = 0;
+    @Setter(AccessLevel.NONE)
+    private volatile int rewinds = 0;
+    @Setter(AccessLevel.NONE)
+    private volatile long rewindAddress = -1;
+    private boolean readOnly = false;//只读打开writer进程正在写的目录，见refresh，load之前设置
+    //只读模式下每个slot上次同步时的序号
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private AtomicLongArray syncedSequences;
+    private final static int MAX_SYNC_SPINS = 1 << 20;
+
+    @Override
+    public void put(K key, V data) {
+        this.checkWritable();
+        long start = this.metrics.startNanos();
+        if (this.multiProducer) {
+            this.putConcurrent(key, data);
+        } else {
+            super.put(key, data);
+        }
+        this.metrics.recordPut(start);
+    }
+
+    /**
+     * 写入mmap后返回一个future，按flushPolicy组提交force到磁盘后完成；
+     * flushPolicy为never时不做force，future直接完成
+     */
+    public CompletableFuture<Void> putAsync(K key, V data) {
+        this.put(key, data);
+        //压缩模式下记录要先写入slot才能刷盘
+        this.flushBlock();
+        if (null == this.flusher) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return this.flusher.register();
+    }
+
+    /**
+     * 多生产者写入：在当前slot上CAS领取空间（同时保证key递增），并行写入后按领取顺序发布；
+     * slot满了由第一个发现的生产者封住当前slot并切换，其他生产者跟着切换后重试
+     * key不大于已经领取的最大key时：不大于已经发布的lastKey是重发旧数据，和单生产者一样回写，见overrideConcurrent；
+     * 否则只是和其他生产者抢领取抢输了，回写会丢掉其他生产者已经写入成功的记录，拒绝这条记录
+     */
+    private void putConcurrent(K key, V data) {
+        this.putConcurrent(key, data, false);
+    }
+
+    //overriding为true时是回写之后重新领取，又被更大的key抢先时继续回写
+    private void putConcurrent(K key, V data, boolean overriding) {
+        int dataLength = this.getCodec().dataLength(data);
+        long address = this.claimConcurrent(key, dataLength);
+        if (-1 != address) {
+            this.writeClaimed(address, key, data, dataLength);
+            return;
+        }
+        K published = this.lastKey();
+        if (!overriding && (null == published || ((Comparable) key).compareTo(published) > 0)) {
+            this.metrics.recordRejectedPut();
+            throw new IllegalStateException("key " + key + " lost the claim to a larger key of another producer, draw keys in claim order");
+        }
+        this.overrideConcurrent(key, data);
+    }
+
+    /**
+     * 多生产者模式下在一把锁内调用nextKey取key并领取空间，锁外编码、写入和发布，返回写入的key
+     * 各个生产者的key按领取的顺序递增，不会因为抢领取被拒绝；nextKey要比之前所有的key都大，否则和put一样回写
+     * 单生产者模式下等于put(nextKey.get(), data)
+     */
+    public K putNext(Supplier<K> nextKey, V data) {
+        if (!this.multiProducer) {
+            K key = nextKey.get();
+            this.put(key, data);
+            return key;
+        }
+        this.checkWritable();
+        long start = this.metrics.startNanos();
+        int dataLength = this.getCodec().dataLength(data);
+        K key;
+        long address;
+        synchronized (this.claimLock) {
+            key = nextKey.get();
+            address = this.claimConcurrent(key, dataLength);
+        }
+        if (-1 == address) {
+            this.putConcurrent(key, data);
+        } else {
+            this.writeClaimed(address, key, data, dataLength);
+        }
+        this.metrics.recordPut(start);
+        return key;
+    }
+
+    //在当前slot上领取一条记录的空间，slot满了切换后重试；返回slot index + position（见MappedRingBufferMemoryIndex.toAddress），key乱序时返回-1
+    private long claimConcurrent(K key, int dataLength) {
+        int frameLength = MappedRingBufferSlot.frameLength(this.getCodec().fixedKeyLength(), dataLength);
+        while (true) {
+            MappedRingBufferSlot<K, V> slot = this.getCurrentSlot();
+            long position = slot.claimDataPosition(key, frameLength);
+            if (position >= 0) return MappedRingBufferMemoryIndex.toAddress(slot.getSlotIdx(), position);
+            if (MappedRingBufferSlot.CLAIM_OUT_OF_ORDER == position) return -1;
+            if (frameLength > slot.getRegions().maxFrameLength()) {
+                throw new IllegalArgumentException("record is larger than slot, key " + key);
+            }
+            this.switchNextSlot(slot);
+        }
+    }
+
+    private void writeClaimed(long address, K key, V data, int dataLength) {
+        MappedRingBufferSlot<K, V> slot = this.slotList.get(MappedRingBufferMemoryIndex.slotOf(address));
+        slot.writeDataConcurrent(MappedRingBufferMemoryIndex.positionOf(address), key, data, dataLength);
+    }
+
+    /**
+     * 多生产者模式下的回写：先封住写slot，之后的生产者领取不到空间，在switchNextSlot上等这把锁；
+     * 等所有已经领取了空间的记录都发布完，再和单生产者一样丢掉所有key >= key的记录（重发的旧数据覆盖之前写入的记录），
+     * 最后在锁内重新领取空间写入这条记录。回写重新打开写slot之后，等锁的生产者回来重试领取
+     */
+    private synchronized void overrideConcurrent(K key, V data) {
+        this.getCurrentSlot().sealClaims();
+        for (int i = 0; i < this.liveSlotCount(); i++) {
+            MappedRingBufferSlot<K, V> slot = this.slotList.get(this.slotIdxAt(i));
+            while (!slot.isPublishComplete()) {
+                Thread.yield();
+            }
+        }
+        this.metrics.recordOverride();
+        //领取过的更大的key已经不在环中（比如被truncateBefore丢掉了），没有要丢掉的记录
+        if (!this.rewind(key)) this.getCurrentSlot().reopenClaims(this.lastKey());
+        this.putConcurrent(key, data, true);
+    }
+
+    @Override
+    public void putAll(Map<K, V> batch) {
+        this.checkWritable();
+        //多生产者模式下逐条领取空间，压缩模式下逐条攒进block
+        if (this.multiProducer || null != this.blockWriter) {
+            super.putAll(batch);
+            return;
+        }
+        this.putBatch(batch);
+    }
 
     @Override
     void writeData(K key, V data) {
         MappedRingBufferSlot<K, V> currentSlot = this.getCurrentSlot();
-        byte[] keyBuffer = this.getFactory().encodeKey(key);
-        byte[] dataBuffer;
-        try {
-            dataBuffer = this.getFactory().encodeData(data);
-        } catch (UnsupportedEncodingException e) {
-            throw new IllegalStateException(e);
+        int keyLength = this.getCodec().fixedKeyLength();
+        int dataLength = this.getCodec().dataLength(data);
+        if (null != this.blockWriter) {
+            //先写掉放不下这条记录的block，攒满了马上写入slot，读者尽早看到
+            if (this.blockWriter.isFull(MappedRingBufferSlot.frameLength(keyLength, dataLength))) this.writeBlock();
+            this.blockWriter.append(key, data, dataLength);
+            if (this.blockWriter.isFull(0)) this.writeBlock();
+            return;
         }
 
-        int oldPosition = currentSlot.nextDataPosition(keyBuffer.length, dataBuffer.length);
-        //current slot buffer is full, switch to next
+        long oldPosition = currentSlot.nextDataPosition(keyLength, dataLength);
+        //current slot buffer (or its index) is full, switch to next
         if (-1 == oldPosition) {
             currentSlot = this.switchNextSlot();
-            oldPosition = currentSlot.nextDataPosition(keyBuffer.length, dataBuffer.length);
+            oldPosition = currentSlot.nextDataPosition(keyLength, dataLength);
+            if (-1 == oldPosition) {
+                throw new IllegalArgumentException("record is larger than slot, key " + key);
+            }
+        }
+        currentSlot.writeData(oldPosition, key, data, dataLength);
+    }
+
+    /**
+     * 批量写入：按slot一次性预留空间、写完整批记录后只更新一次slot header，索引也只加一次锁；
+     * batch跨slot时自动切分。key必须按迭代顺序递增，不大于lastKey的记录走put的覆盖逻辑
+     */
+    private void putBatch(Map<K, V> batch) {
+        int size = batch.size();
+        K[] keys = (K[]) new Object[size];
+        V[] values = (V[]) new Object[size];
+        int[] dataLengths = new int[size];
+        int count = 0;
+        K lastKey = this.lastKey();
+        for (Map.Entry<K, V> entry : batch.entrySet()) {
+            K key = entry.getKey();
+            if (null != lastKey && ((Comparable) key).compareTo(lastKey) <= 0) {
+                //乱序的记录：先把攒下的写掉，再单独覆盖
+                this.writeBatch(keys, values, dataLengths, count);
+                count = 0;
+                this.put(key, entry.getValue());
+                lastKey = this.lastKey();
+                continue;
+            }
+            keys[count] = key;
+            values[count] = entry.getValue();
+            dataLengths[count] = this.getCodec().dataLength(entry.getValue());
+            count++;
+            lastKey = key;
+        }
+        this.writeBatch(keys, values, dataLengths, count);
+    }
+
+    private void writeBatch(K[] keys, V[] values, int[] dataLengths, int count) {
+        int from = 0;
+        while (from < count) {
+            int written = this.getCurrentSlot().writeBatch(keys, values, dataLengths, from, count);
+            //current slot buffer is full, switch to next
+            if (0 == written) {
+                written = this.switchNextSlot().writeBatch(keys, values, dataLengths, from, count);
+                if (0 == written) {
+                    throw new IllegalArgumentException("record is larger than slot, key " + keys[from]);
+                }
+            }
+            from += written;
+        }
+    }
+
+    /**
+     * 压缩模式下把攒下的记录压缩写入slot，之后才能被读到；只能由writer调用
+     */
+    public void flushBlock() {
+        if (null == this.blockWriter || this.blockWriter.isEmpty()) return;
+        this.writeBlock();
+    }
+
+    private void writeBlock() {
+        if (this.blockWriter.writeTo(this.getCurrentSlot())) return;
+        //写slot放不下这个block，切换到下一个slot
+        if (!this.blockWriter.writeTo(this.switchNextSlot())) {
+            throw new IllegalArgumentException("block is larger than slot, lastKey " + this.blockWriter.getLastKey());
         }
-        currentSlot.writeData(oldPosition, key, keyBuffer, dataBuffer);
     }
 
     private MappedRingBufferSlot<K, V> switchNextSlot() {
-        MappedRingBufferSlot<K, V> slot = slotList.get(++currentSlotIdx);
-        slot.clean();
+        return this.switchNextSlot(this.getCurrentSlot());
+    }
+
+    //多个生产者可能同时发现full满了，只有第一个真正切换，其余的直接拿到新的current slot
+    private synchronized MappedRingBufferSlot<K, V> switchNextSlot(MappedRingBufferSlot<K, V> full) {
+        MappedRingBufferSlot<K, V> current = this.getCurrentSlot();
+        if (current != full) return current;
+        //多生产者回写时封住的slot，回写之后又重新打开了，生产者重试领取
+        if (this.multiProducer && !full.isClaimSealed()) return current;
+        short nextSlotIdx = this.nextWriteSlotIdx();
+        //环已经写满，复用最老的slot
+        if (nextSlotIdx == this.oldestSlotIdx) this.dropOldestSlot();
+        MappedRingBufferSlot<K, V> slot = slotList.get(nextSlotIdx);
+        this.metrics.recordRollover();
+        //writer一直pin住写slot，切换后放掉旧的写slot，让它可以被LRU淘汰
+        slot.pin();
+        //有roller时下一个slot通常已经准备好了，这里只剩下重置领取状态和换currentSlotIdx
+        if (null != this.roller) this.roller.awaitPrepared(nextSlotIdx);
+        this.beginSlotChange(nextSlotIdx);
+        slot.clean(full.getClaimedKey());
+        this.setGeneration(nextSlotIdx, full.getGeneration() + 1);
+        this.endSlotChange(nextSlotIdx);
+        this.currentSlotIdx = nextSlotIdx;
+        if (null != this.roller) this.roller.rolled(nextSlotIdx);
+        if (this.retentionPolicy.getMaxAgeMillis() > 0) {
+            full.setNewestTimestamp(this.newestTimestamp(full, System.currentTimeMillis()));
+        }
+        full.unpin();
+        this.applyRetention();
         return slot;
     }
 
+    //写满当前slot后要切换到的slot，写到最后一个slot后回到第一个
+    short nextWriteSlotIdx() {
+        return (short) ((this.currentSlotIdx + 1) % this.dataFileCount);
+    }
+
+    /**
+     * roller提前准备slotIdx之前调用：环已经写满时slotIdx就是最老的slot，提前丢弃它
+     */
+    synchronized void releaseOldestSlot(short slotIdx) {
+        if (slotIdx == this.oldestSlotIdx && slotIdx == this.nextWriteSlotIdx()) this.dropOldestSlot();
+    }
+
+    /**
+     * 回写：key不大于lastKey时，丢掉所有key >= k的记录再追加，上游failover后重发的一段记录会覆盖掉旧的
+     */
     @Override
     void overrideData(K k, V v) {
+        //攒下的记录先写入slot，统一通过索引回退
+        this.flushBlock();
+        this.metrics.recordOverride();
+        this.rewind(k);
+        this.writeData(k, v);
+    }
+
+    /**
+     * 通过索引二分找到第一条key >= k的记录，回退到它之前
+     *
+     * @return 没有key >= k的记录时返回false
+     */
+    private boolean rewind(K k) {
+        long address = this.memoryIndexer.lowerBound(k);
+        if (-1 == address) return false;
+        this.rewindTo(MappedRingBufferMemoryIndex.slotOf(address), (int) MappedRingBufferMemoryIndex.positionOf(address));
+        return true;
+    }
+
+    /**
+     * 把第indexRecIndex条记录所在slot的last position和索引回退到它之前，
+     * 这个slot之后直到写slot的所有slot清空，写slot退回到这个slot。和切换slot用同一把锁
+     * 压缩模式下还没写入slot的记录都丢掉；回退到block中间时，block中之前的记录重新放回blockWriter
+     */
+    synchronized void rewindTo(short slotIdx, int indexRecIndex) {
+        short current = (short) this.currentSlotIdx;
+        this.rewindsStarted++;
+        MappedRingBufferSlot<K, V> target = this.slotList.get(slotIdx);
+        //writer的pin从写slot移到目标slot
+        if (slotIdx != current) target.pin();
+        //从写slot往前清空，读者先看到新的slot变空
+        for (short idx = current; idx != slotIdx; idx = this.previousSlotIdx(idx)) {
+            this.emptySlot(idx);
+        }
+        this.beginSlotChange(slotIdx);
+        ByteBuffer prefix;
+        try {
+            prefix = target.rewind(indexRecIndex);
+        } finally {
+            this.endSlotChange(slotIdx);
+        }
+        if (null != this.blockWriter) {
+            this.blockWriter.reset();
+            if (null != prefix) this.blockWriter.appendFrames(prefix, this.lastFrameKey(prefix));
+        }
+        this.currentSlotIdx = slotIdx;
+        if (slotIdx != current) this.slotList.get(current).unpin();
+        this.rewindAddress = MappedRingBufferMemoryIndex.toAddress(slotIdx, target.getPublishedPosition());
+        this.rewinds = this.rewindsStarted;
+    }
+
+    //frames中最后一条记录的key
+    private K lastFrameKey(ByteBuffer frames) {
+        int offset = 0;
+        int last = 0;
+        while (offset < frames.limit()) {
+            last = offset;
+            offset += MappedRingBufferSlot.frameLength(frames, offset);
+        }
+        K key = this.getCodec().newRingBufferKey();
+        this.getCodec().decodeKey(frames, last + 1, key);
+        return key;
+    }
+
+    /**
+     * 清空一个slot：先把代数置0（崩溃后不会再被当成有效的slot），再重置header和索引计数，不扫描也不改写记录
+     * 清空的slot要封住：多生产者可能还拿着回写之前的写slot，领取失败后回到新的写slot重试
+     */
+    private void emptySlot(short slotIdx) {
+        this.beginSlotChange(slotIdx);
+        this.setGeneration(slotIdx, 0);
+        MappedRingBufferSlot<K, V> slot = this.slotList.get(slotIdx);
+        slot.pin();
+        try {
+            slot.rewind(1);
+            slot.sealClaims();
+        } finally {
+            slot.unpin();
+            this.endSlotChange(slotIdx);
+        }
+    }
+
+    /**
+     * 复制模式下follower跟着leader换到slotIdx，slot的代数和leader一样，resume时能确认是同一个slot：
+     * slotIdx是写满后的下一个slot时和writer切换slot一样（环满了丢掉最老的slot）；follower还没有数据时直接从slotIdx开始
+     */
+    synchronized void followSlot(short slotIdx, long generation) {
+        if (slotIdx == this.nextWriteSlotIdx()) {
+            this.switchNextSlot();
+        } else {
+            MappedRingBufferSlot<K, V> current = this.getCurrentSlot();
+            MappedRingBufferSlot<K, V> slot = this.slotList.get(slotIdx);
+            //writer的pin从写slot移到新的slot
+            slot.pin();
+            this.emptySlot(current.getSlotIdx());
+            this.emptySlot(slotIdx);
+            this.oldestSlotIdx = slotIdx;
+            this.currentSlotIdx = slotIdx;
+            current.unpin();
+        }
+        this.beginSlotChange(slotIdx);
+        this.setGeneration(slotIdx, generation);
+        this.endSlotChange(slotIdx);
+    }
+
+    /**
+     * 清空所有数据，写slot退回到最老的slot，tailer跟着退回
+     */
+    @Override
+    public void truncate() {
+        this.checkWritable();
+        this.rewindTo(this.oldestSlotIdx, 1);
+    }
+
+    /**
+     * 按key保留：丢掉所有key都小于key的最老的slot，不会丢掉写slot，所以firstKey()可能仍然小于key
+     */
+    public synchronized void truncateBefore(K key) {
+        this.checkWritable();
+        while (this.oldestSlotIdx != this.currentSlotIdx) {
+            K maxKey = this.slotList.get(this.oldestSlotIdx).getMaxKey();
+            if (null != maxKey && ((Comparable) maxKey).compareTo(key) >= 0) return;
+            this.dropOldestSlot();
+        }
+    }
+
+    /**
+     * 按retentionPolicy丢掉最老的slot，writer每次切换slot时调用
+     */
+    public synchronized void applyRetention() {
+        if (this.retentionPolicy.isNever()) return;
+        this.checkWritable();
+        long liveBytes = 0;
+        for (int i = 0; i < this.liveSlotCount(); i++) {
+            MappedRingBufferSlot<K, V> slot = this.slotList.get(this.slotIdxAt(i));
+            liveBytes += slot.getPublishedPosition() - slot.getDataStart();
+        }
+        long now = System.currentTimeMillis();
+        while (this.oldestSlotIdx != this.currentSlotIdx) {
+            MappedRingBufferSlot<K, V> oldest = this.slotList.get(this.oldestSlotIdx);
+            long bytes = oldest.getPublishedPosition() - oldest.getDataStart();
+            long maxBytes = this.retentionPolicy.getMaxBytes();
+            long maxAgeMillis = this.retentionPolicy.getMaxAgeMillis();
+            boolean overSize = maxBytes > 0 && liveBytes - bytes >= maxBytes;
+            boolean expired = maxAgeMillis > 0 && now - oldest.getNewestTimestamp() > maxAgeMillis;
+            if (!overSize && !expired) return;
+            this.dropOldestSlot();
+            liveBytes -= bytes;
+        }
+    }
+
+    //先移动oldestSlotIdx再清空，读者不会再从这个slot开始找
+    private void dropOldestSlot() {
+        short oldest = this.oldestSlotIdx;
+        this.oldestSlotIdx = this.nextSlotIdx(oldest);
+        this.emptySlot(oldest);
+        this.metrics.recordDroppedSlot();
+    }
+
+    /**
+     * slot中最新记录的时间戳：工厂实现了IRingBufferTimestamp就取最后一条记录的时间戳，否则返回fallback
+     * 调用方需要pin住slot
+     */
+    private long newestTimestamp(MappedRingBufferSlot<K, V> slot, long fallback) {
+        int count = this.memoryIndexer.getRecordCount(slot.getSlotIdx());
+        if (!(this.getFactory() instanceof IRingBufferTimestamp) || 0 == count) return fallback;
+        K key = this.getCodec().newRingBufferKey();
+        this.memoryIndexer.decodeKey(slot.getSlotIdx(), count, key);
+        ByteBuffer buffer = slot.readData(this.memoryIndexer.getDataPosition(slot.getSlotIdx(), count));
+        V data = this.getCodec().newRingBufferData();
+        this.getCodec().decodeData(buffer, buffer.position(), buffer.remaining(), data);
+        return ((IRingBufferTimestamp<K, V>) this.getFactory()).timestamp(key, data);
+    }
+
+    //slot中的记录数，O(slot数)，不需要映射slot
+    @Override
+    public long size() {
+        long size = 0;
+        for (int i = 0; i < this.liveSlotCount(); i++) {
+            size += this.memoryIndexer.getRecordCount(this.slotIdxAt(i));
+        }
+        return size;
+    }
+
+    /**
+     * 先通过跳表+索引buffer定位记录，再返回slot中data部分的只读slice
+     * 懒映射模式下slot随时可能被解除映射，返回的是堆上的拷贝
+     */
+    @Override
+    public ByteBuffer getRawBuffer(K key) {
+        long start = this.metrics.startNanos();
+        try {
+            return this.readRawBuffer(key);
+        } finally {
+            this.metrics.recordGet(start);
+        }
+    }
+
+    private ByteBuffer readRawBuffer(K key) {
+        if (this.readOnly) return this.readRawBufferCopy(key);
+        long address = this.memoryIndexer.search(key);
+        if (-1 == address) return null;
+        short slotIdx = MappedRingBufferMemoryIndex.slotOf(address);
+        int indexRecIndex = (int) MappedRingBufferMemoryIndex.positionOf(address);
+        MappedRingBufferSlot<K, V> slot = this.slotList.get(slotIdx);
+        if (!this.lazyMapping) return slot.readData(this.memoryIndexer.getDataPosition(slotIdx, indexRecIndex));
+        slot.pin();
+        try {
+            ByteBuffer data = slot.readData(this.memoryIndexer.getDataPosition(slotIdx, indexRecIndex));
+            ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+            copy.put(data).flip();
+            return copy.asReadOnlyBuffer();
+        } finally {
+            slot.unpin();
+        }
+    }
+
+    /**
+     * 只读模式：writer进程可能正在改写读到的slot，拷贝到堆上之后再检查slot的序号，
+     * slot在上次refresh之后被清空、回写或者重新使用过，就刷新后重读
+     */
+    private ByteBuffer readRawBufferCopy(K key) {
+        while (true) {
+            long address = this.memoryIndexer.search(key);
+            if (-1 == address) return null;
+            short slotIdx = MappedRingBufferMemoryIndex.slotOf(address);
+            int indexRecIndex = (int) MappedRingBufferMemoryIndex.positionOf(address);
+            ByteBuffer copy = null;
+            try {
+                ByteBuffer data = this.slotList.get(slotIdx).readData(this.memoryIndexer.getDataPosition(slotIdx, indexRecIndex));
+                copy = ByteBuffer.allocate(data.remaining());
+                copy.put(data).flip();
+            } catch (RuntimeException e) {
+                //改写到一半的长度字段可能越界
+                if (this.isSlotSynced(slotIdx)) throw e;
+            }
+            if (null != copy && this.isSlotSynced(slotIdx)) return copy.asReadOnlyBuffer();
+            this.refresh();
+        }
+    }
+
+    //第一条key大于from的记录，key填充到nextKey中
+    @Override
+    public V next(K from, K nextKey) {
+        IRingBufferCursor<K, V> cursor = new MappedRingBufferCursor<>(this, from, null, false, nextKey);
+        try {
+            while (cursor.next()) {
+                if (((Comparable) cursor.key()).compareTo(from) > 0) return cursor.value();
+            }
+            return null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    //最后一条key小于from的记录，key填充到previousKey中
+    @Override
+    public V previous(K from, K previousKey) {
+        IRingBufferCursor<K, V> cursor = new MappedRingBufferCursor<>(this, null, from, true, previousKey);
+        try {
+            return cursor.next() ? cursor.value() : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public IRingBufferCursor<K, V> cursor(K fromKey, K toKey, boolean descending) {
+        return new MappedRingBufferCursor<>(this, fromKey, toKey, descending);
+    }
+
+    /**
+     * 二级key等于secondaryKey的所有记录，按主key的顺序遍历；工厂要实现IRingBufferSecondaryKey
+     */
+    public IRingBufferCursor<K, V> secondaryCursor(long secondaryKey) {
+        if (!this.memoryIndexer.hasSecondaryIndex()) {
+            throw new IllegalStateException("factory does not implement IRingBufferSecondaryKey");
+        }
+        return new MappedRingBufferSecondaryCursor<>(this, secondaryKey);
+    }
+
+    //名为consumerName的消费者，从它上次commit的位置继续消费
+    public MappedRingBufferTailer<K, V> tailer(String consumerName) throws IOException {
+        //tailer跟随的是同一进程内writer的发布和回写，而且要写消费位置文件
+        this.checkWritable();
+        return new MappedRingBufferTailer<>(this, consumerName);
+    }
+
+    /**
+     * 复制的leader端：从position（slot index + offset，取follower的MappedRingBufferReceiver.position()）开始
+     * 把原始frame发给follower，0表示从最老的数据开始
+     */
+    public MappedRingBufferShipper<K, V> shipper(long position) {
+        //shipper跟随的是同一进程内writer的发布和回写
+        this.checkWritable();
+        return new MappedRingBufferShipper<>(this, position);
+    }
+
+    //复制的follower端：接收leader发来的原始frame，follower只接收复制的数据，不要再put
+    public MappedRingBufferReceiver<K, V> receiver() {
+        this.checkWritable();
+        if (this.multiProducer) throw new IllegalStateException("receiver can not be used with multiProducer");
+        return new MappedRingBufferReceiver<>(this);
+    }
+
+    //环中的下一个slot，已经是最新的slot时返回-1
+    short nextSlotIdx(short slotIdx) {
+        return slotIdx == this.currentSlotIdx ? -1 : (short) ((slotIdx + 1) % this.dataFileCount);
+    }
+
+    //环中的上一个slot，已经是最老的slot时返回-1
+    short previousSlotIdx(short slotIdx) {
+        return slotIdx == this.oldestSlotIdx() ? -1 : (short) ((slotIdx - 1 + this.dataFileCount) % this.dataFileCount);
+    }
+
+    //slot在环中的顺序，最老的slot是0
+    int ringOrder(short slotIdx) {
+        return (slotIdx - this.oldestSlotIdx() + this.dataFileCount) % this.dataFileCount;
+    }
+
+    short oldestSlotIdx() {
+        return this.oldestSlotIdx;
+    }
+
+    //从最老的slot到写slot一共有几个slot
+    int liveSlotCount() {
+        return this.ringOrder((short) this.currentSlotIdx) + 1;
+    }
 
+    //从最老的slot开始数第i个slot
+    short slotIdxAt(int i) {
+        return (short) ((this.oldestSlotIdx() + i) % this.dataFileCount);
     }
 
+    /**
+     * 并发加载所有slot：每个slot的打开、映射和索引构建互不依赖，在loadExecutor上并行执行
+     * loadExecutor为null时使用loadThreads个线程的临时线程池，加载完关闭
+     */
     public void load() {
         this.checkLoad();
-        this.memoryIndexer = new MappedRingBufferMemoryIndex<K, V>(this, dataFileCount, (int) (dataFileSize / 5), dataFileDir, dataFileNamePrefix, indexSliceSize);
-        K tempKey = this.getFactory().newRingBufferKey();
+        this.metrics = new MappedRingBufferMetrics(this, this.latencyMetrics);
+        this.blockCache = new MappedRingBufferBlockCache<>(this, this.blockCacheSize);
+        if (null != this.compressor && !this.readOnly) {
+            this.blockWriter = new MappedRingBufferBlockWriter<>(this, this.compressor, this.compressionBlockSize);
+        }
+        this.memoryIndexer = new MappedRingBufferMemoryIndex<K, V>(this, dataFileCount, this.indexBufferSize(), dataFileDir, dataFileNamePrefix, indexSliceSize);
+        this.slotLoadMillis = new long[dataFileCount];
         for (short fileNo = 0; fileNo < dataFileCount; fileNo++) {
-            MappedRingBufferSlot<K, V> slot = new MappedRingBufferSlot<K, V>(dataFileDir, dataFileNamePrefix + fileNo, dataFileSize, fileNo, memoryIndexer, this);
-            K lastKey = slot.load();
-            System.out.println("load slot" + fileNo + " ,lastKey " + lastKey);
-            slotList.add(slot);
-            //寻找上次运行最后使用的slot
-            if (null != lastKey && ((Comparable) lastKey).compareTo(tempKey) > 0) {
-                this.currentSlotIdx = fileNo;//一直会覆盖
-                tempKey = lastKey;//一直会覆盖
+            slotList.add(new MappedRingBufferSlot<K, V>(dataFileDir, dataFileNamePrefix + fileNo, dataFileSize, fileNo, memoryIndexer, this));
+        }
+        this.loadGenerations();
+
+        ExecutorService executor = this.loadExecutor;
+        if (null == executor) {
+            executor = Executors.newFixedThreadPool(Math.max(1, Math.min(this.loadThreads, this.dataFileCount)));
+        }
+        List<Future<K>> futures = new ArrayList<>(dataFileCount);
+        try {
+            for (final MappedRingBufferSlot<K, V> slot : slotList) {
+                futures.add(executor.submit(new Callable<K>() {
+                    @Override
+                    public K call() {
+                        long start = System.currentTimeMillis();
+                        K lastKey = slot.load();
+                        slotLoadMillis[slot.getSlotIdx()] = System.currentTimeMillis() - start;
+                        return lastKey;
+                    }
+                }));
+            }
+
+            if (this.readOnly) {
+                //只读模式不恢复也不分配代数，按writer进程的代数和header同步
+                for (Future<K> future : futures) future.get();
+                this.refresh();
+            } else {
+                K tempKey = this.getCodec().newRingBufferKey();
+                for (short fileNo = 0; fileNo < dataFileCount; fileNo++) {
+                    K lastKey = futures.get(fileNo).get();
+                    //寻找上次运行最后使用的slot
+                    if (null != lastKey && ((Comparable) lastKey).compareTo(tempKey) > 0) {
+                        this.currentSlotIdx = fileNo;//一直会覆盖
+                        tempKey = lastKey;//一直会覆盖
+                    }
+                }
+                this.loadOldestSlot();
+                if (this.lazyMapping) this.unmapColdSlots();
+                this.applyRetention();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("load interrupted", e);
+        } catch (ExecutionException e) {
+            IllegalStateException failure = new IllegalStateException("load slot failed", e.getCause());
+            this.releaseAfterFailedLoad(futures, failure);
+            throw failure;
+        } finally {
+            if (null == this.loadExecutor) executor.shutdown();
+        }
+        if (!this.flushPolicy.isNever() && !this.readOnly) {
+            this.flusher = new MappedRingBufferFlusher<>(this, this.flushPolicy);
+            this.flusher.start();
+        }
+        if (this.backgroundRoller && !this.readOnly) {
+            this.roller = new MappedRingBufferRoller<>(this, this.rollerThresholdPercent);
+            this.roller.start();
+        }
+        if (this.jmxEnabled) this.metrics.register(this.dataFileDir, this.dataFileNamePrefix, this.readOnly);
+    }
+
+    /**
+     * 代数最大的slot是写slot，代数不为0的最小的是最老的slot；
+     * 所有slot的代数都是0（新建的或者还没有generations文件的旧数据），按lastKey找到的写slot往前找连续有数据的slot，
+     * 再依次分配代数
+     * 按时间保留时顺便恢复各slot的时间戳（此时所有slot都还映射着）
+     */
+    private void loadOldestSlot() {
+        if (!this.followGenerations()) {
+            this.oldestSlotIdx = (short) this.currentSlotIdx;
+            for (short fileNo = (short) (this.currentSlotIdx - 1); fileNo >= 0; fileNo--) {
+                if (0 == this.memoryIndexer.getRecordCount(fileNo)) break;
+                this.oldestSlotIdx = fileNo;
+            }
+            for (int i = 0; i < this.liveSlotCount(); i++) {
+                this.setGeneration(this.slotIdxAt(i), i + 1);
+            }
+        }
+        if (this.retentionPolicy.getMaxAgeMillis() <= 0) return;
+        for (int i = 0; i < this.liveSlotCount() - 1; i++) {
+            MappedRingBufferSlot<K, V> slot = this.slotList.get(this.slotIdxAt(i));
+            long modified = new File(this.dataFileDir, this.dataFileNamePrefix + slot.getSlotIdx()).lastModified();
+            slot.setNewestTimestamp(this.newestTimestamp(slot, modified));
+        }
+    }
+
+    //按各slot的代数确定写slot和最老的slot，所有slot的代数都是0时返回false
+    private boolean followGenerations() {
+        short newest = -1;
+        short oldest = -1;
+        for (short fileNo = 0; fileNo < this.dataFileCount; fileNo++) {
+            long generation = this.slotList.get(fileNo).getGeneration();
+            if (0 == generation) continue;
+            if (-1 == newest || generation > this.slotList.get(newest).getGeneration()) newest = fileNo;
+            if (-1 == oldest || generation < this.slotList.get(oldest).getGeneration()) oldest = fileNo;
+        }
+        if (-1 == newest) return false;
+        this.oldestSlotIdx = oldest;
+        this.currentSlotIdx = newest;
+        return true;
+    }
+
+    /**
+     * 映射generations文件，读出每个slot的代数；代数之后是每个slot的序号，见beginSlotChange
+     * writer在修改slot的过程中崩溃时序号停在奇数，重新打开时恢复成偶数
+     */
+    private void loadGenerations() {
+        File file = new File(this.dataFileDir, this.dataFileNamePrefix + "generations");
+        try {
+            if (this.readOnly) {
+                this.generationFile = new RandomAccessFile(file, "r");
+                this.generationBuffer = this.generationFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, 16L * this.dataFileCount);
+            } else {
+                this.generationFile = new RandomAccessFile(file, "rw");
+                this.generationBuffer = this.generationFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 16L * this.dataFileCount);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("map generation file failed " + file, e);
+        }
+        this.syncedSequences = new AtomicLongArray(this.dataFileCount);
+        for (short fileNo = 0; fileNo < this.dataFileCount; fileNo++) {
+            this.slotList.get(fileNo).setGeneration(this.generationBuffer.getLong(fileNo * 8));
+            //-1不会是序号，只读模式第一次refresh时所有slot都重新同步
+            this.syncedSequences.set(fileNo, -1);
+            int offset = this.sequenceOffset(fileNo);
+            if (!this.readOnly && 0 != (this.generationBuffer.getLong(offset) & 1)) {
+                this.generationBuffer.putLong(offset, this.generationBuffer.getLong(offset) + 1);
+            }
+        }
+    }
+
+    /**
+     * writer清空、回写或者重新使用slot之前调用：slot的序号加成奇数，和endSlotChange成对调用
+     * 只读进程读到奇数，或者读之前和读之后的序号不一样，就丢掉读到的结果重新同步
+     */
+    void beginSlotChange(short slotIdx) {
+        int offset = this.sequenceOffset(slotIdx);
+        this.generationBuffer.putLong(offset, this.generationBuffer.getLong(offset) + 1);
+        MappedByteBufferUtil.storeFence();
+    }
+
+    //slot改完之后序号加回偶数
+    void endSlotChange(short slotIdx) {
+        int offset = this.sequenceOffset(slotIdx);
+        MappedByteBufferUtil.storeFence();
+        this.generationBuffer.putLong(offset, this.generationBuffer.getLong(offset) + 1);
+    }
+
+    //slot的序号在generations文件中的位置，在所有slot的代数之后
+    private int sequenceOffset(short slotIdx) {
+        return (this.dataFileCount + slotIdx) * 8;
+    }
+
+    //读序号之后再读slot的数据
+    private long readSequence(short slotIdx) {
+        long sequence = this.generationBuffer.getLong(this.sequenceOffset(slotIdx));
+        MappedByteBufferUtil.loadFence();
+        return sequence;
+    }
+
+    /**
+     * 只读模式下跟上writer进程：逐个slot读序号，同步代数、索引和发布位置，再读一次序号，前后一样才算同步完成；
+     * 序号和上次同步时一样的slot只补上新增记录的fence，不一样的（被清空、回写或者重新使用过）从头同步。
+     * 最后按代数重新确定最老的slot和写slot。两次refresh之间读到的是上一次refresh时的slot范围
+     */
+    public synchronized void refresh() {
+        if (!this.readOnly) throw new IllegalStateException("refresh is only for read only ring buffer");
+        for (short slotIdx = 0; slotIdx < this.dataFileCount; slotIdx++) {
+            MappedRingBufferSlot<K, V> slot = this.slotList.get(slotIdx);
+            for (int spins = 0; ; spins++) {
+                if (spins == MAX_SYNC_SPINS) {
+                    throw new IllegalStateException("slot " + slotIdx + " is being changed by the writer, or the writer crashed while changing it");
+                }
+                long sequence = this.readSequence(slotIdx);
+                //writer正在修改这个slot
+                if (0 != (sequence & 1)) {
+                    Thread.yield();
+                    continue;
+                }
+                slot.setGeneration(this.generationBuffer.getLong(slotIdx * 8));
+                slot.follow(sequence != this.syncedSequences.get(slotIdx));
+                MappedByteBufferUtil.loadFence();
+                if (sequence == this.generationBuffer.getLong(this.sequenceOffset(slotIdx))) {
+                    this.syncedSequences.set(slotIdx, sequence);
+                    break;
+                }
+                //同步的过程中slot被修改了，下一轮从头同步
+                this.syncedSequences.set(slotIdx, -1);
+            }
+        }
+        if (!this.followGenerations()) {
+            this.oldestSlotIdx = 0;
+            this.currentSlotIdx = 0;
+        }
+    }
+
+    //只读模式下slot从上次refresh到现在没有被writer修改过，读到的数据可以用
+    boolean isSlotSynced(short slotIdx) {
+        MappedByteBufferUtil.loadFence();
+        return this.generationBuffer.getLong(this.sequenceOffset(slotIdx)) == this.syncedSequences.get(slotIdx);
+    }
+
+    private void checkWritable() {
+        if (this.readOnly) throw new IllegalStateException("ring buffer is opened read only, dir " + this.dataFileDir);
+    }
+
+    private void setGeneration(short slotIdx, long generation) {
+        this.slotList.get(slotIdx).setGeneration(generation);
+        this.generationBuffer.putLong(slotIdx * 8, generation);
+    }
+
+    //懒映射模式：writer pin住写slot，其余slot加载（构建索引）完就解除映射，用到时再映射
+    private void unmapColdSlots() {
+        this.slotCache = new MappedRingBufferSlotCache<>(this, this.maxMappedSlots);
+        MappedRingBufferSlot<K, V> current = this.getCurrentSlot();
+        current.pin();
+        for (MappedRingBufferSlot<K, V> slot : this.slotList) {
+            if (slot != current) slot.unmapIfUnpinned();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.flushBlock();
+        if (null != this.metrics) this.metrics.unregister();
+        if (null != this.flusher) {
+            try {
+                this.flusher.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            this.flusher = null;
+        }
+        if (null != this.roller) {
+            try {
+                this.roller.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            this.roller = null;
+        }
+        for (MappedRingBufferSlot<K, V> slot : this.slotList) {
+            slot.close();
+        }
+        if (null != this.generationBuffer) {
+            if (!this.readOnly) this.generationBuffer.force();
+            MappedByteBufferUtil.unmap(this.generationBuffer);
+            this.generationBuffer = null;
+            this.generationFile.close();
+        }
+    }
+
+    //load失败时等其他slot加载完，再关掉所有已经打开的文件、释放文件锁，同一个进程里可以修好后重新load
+    private void releaseAfterFailedLoad(List<Future<K>> futures, IllegalStateException failure) {
+        for (Future<K> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                //第一个失败已经在failure里
             }
         }
-        System.out.println("load all slot complete! current slotIndex " + this.currentSlotIdx + " ,lastKey " + tempKey);
+        try {
+            this.close();
+        } catch (IOException | RuntimeException e) {
+            failure.addSuppressed(e);
+        }
+    }
+
+    /**
+     * 每个slot索引文件的大小：没有设置indexFileSize时是dataFileSize的1/5，
+     * 索引文件映射成一个MappedByteBuffer，最大2GB，超过10GB的slot默认的索引文件也只有2GB
+     */
+    int indexBufferSize() {
+        return (int) (this.indexFileSize > 0 ? this.indexFileSize : Math.min(this.dataFileSize / 5, Integer.MAX_VALUE));
     }
 
     private void checkLoad() {
+        if (this.dataFileCount < 2) {
+            throw new IllegalArgumentException("dataFileCount must be at least 2");
+        }
+        if (this.slotRegionSize <= 0 || this.slotRegionSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("slotRegionSize must be in (0, " + Integer.MAX_VALUE + "]");
+        }
+        if (this.indexFileSize < 0 || this.indexFileSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("indexFileSize must be in [0, " + Integer.MAX_VALUE + "]");
+        }
+        if (this.rollerPreTouchBytes < 0) {
+            throw new IllegalArgumentException("rollerPreTouchBytes must not be negative");
+        }
+        if (this.bloomFilterBitsPerKey < 0 || this.bloomFilterKeysPerSlot < 0) {
+            throw new IllegalArgumentException("bloomFilterBitsPerKey and bloomFilterKeysPerSlot must not be negative");
+        }
+        if (this.secondaryIndexBuckets <= 0 || 0 != (this.secondaryIndexBuckets & (this.secondaryIndexBuckets - 1))) {
+            throw new IllegalArgumentException("secondaryIndexBuckets must be a power of two");
+        }
+        if (null != this.compressor) {
+            if (this.multiProducer) {
+                throw new IllegalArgumentException("compressor can not be used with multiProducer");
+            }
+            long maxFrameLength = Math.min(this.slotRegionSize, this.dataFileSize) - MappedRingBufferRegions.headerSize(this.dataFileSize, this.slotRegionSize);
+            if (this.compressionBlockSize <= 0 || this.compressionBlockSize > MappedRingBufferMemoryIndex.MAX_BLOCK_SIZE
+                    || MappedRingBufferBlockCache.blockFrameLength(this.compressionBlockSize) > maxFrameLength) {
+                throw new IllegalArgumentException("compressionBlockSize must be positive, at most " + MappedRingBufferMemoryIndex.MAX_BLOCK_SIZE + " and fit in a slot region");
+            }
+        }
+        if (this.readOnly) {
+            //只读模式不写文件，懒映射淘汰slot时要checkpoint，roller和flusher都要写
+            if (this.lazyMapping || this.backgroundRoller) {
+                throw new IllegalArgumentException("readOnly can not be used with lazyMapping or backgroundRoller");
+            }
+            if (!new File(this.dataFileDir, this.dataFileNamePrefix + "generations").exists()) {
+                throw new IllegalArgumentException("no ring buffer in " + this.dataFileDir + ", open the writer first");
+            }
+            return;
+        }
         File dir = new File(dataFileDir);
         if (!dir.exists()) dir.mkdirs();
     }
@@ -83,7 +1057,12 @@ public class MappedRingBuffer<K, V> extends AbstractRingBuffer<K, V> {
 
 
     int getSlotPosition(int slotIdx) {
-        return this.slotList.get(slotIdx).getDataByteBuffer().getInt(0);//为什么不是getInt?
+        MappedRingBufferSlot<K, V> slot = this.slotList.get(slotIdx);
+        try {
+            return Math.toIntExact(slot.pin().getLastPosition());
+        } finally {
+            slot.unpin();
+        }
     }
 
     @Override
@@ -97,6 +1076,9 @@ public class MappedRingBuffer<K, V> extends AbstractRingBuffer<K, V> {
 
     @Override
     public K lastKey() {
+        //压缩模式下还没写入slot的记录也算，put据此判断是追加还是回写
+        K pending = null == this.blockWriter ? null : this.blockWriter.getLastKey();
+        if (null != pending) return pending;
         try {
             return this.memoryIndexer.lastKey();
         } catch (NoSuchElementException e) {
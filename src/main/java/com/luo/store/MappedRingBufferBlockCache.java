@@ -0,0 +1,113 @@
+package com.luo.store;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Created by luohui on 17/7/4.
+ * 压缩block的格式，以及解压后block的LRU，顺序扫描和重复查找同一个block时不用每次都解压
+ * <p>
+ * block在slot中和普通记录一样是一个frame，第一个字节是BLOCK_MARKER（普通记录是key length，region尾部的填充是0）
+ * / marker(1 byte) | compressor id(1 byte) | raw length(4 bytes) | stored length(4 bytes) | stored(N bytes) | checkSum(4 bytes) |
+ * checkSum覆盖marker到stored，block中每条记录还有自己的checkSum
+ * 解压后的raw是连续的普通记录frame，索引按(block的位置, 记录在block中的位置)定位，见MappedRingBufferMemoryIndex.blockAddress
+ * <p>
+ * 缓存按(slotIdx, block的位置)存放，slot被清空或者回写后blockEpoch会变，之前缓存的block不再使用
+ */
+public class MappedRingBufferBlockCache<K, V> {
+    public final static byte BLOCK_MARKER = -1;
+    public final static int BLOCK_HEADER_SIZE = 10;
+    private final MappedRingBuffer<K, V> ringBuffer;
+    private final int capacity;
+    private final Lru blocks;
+
+    public MappedRingBufferBlockCache(MappedRingBuffer<K, V> ringBuffer, int capacity) {
+        this.ringBuffer = ringBuffer;
+        this.capacity = capacity;
+        this.blocks = new Lru(capacity);
+    }
+
+    /**
+     * 返回slot中position处block解压后的内容（只读，从0开始），调用方需要pin住slot
+     */
+    public ByteBuffer get(MappedRingBufferSlot<K, V> slot, MappedRingBufferRegions regions, long position) {
+        int epoch = slot.getBlockEpoch();
+        Long key = MappedRingBufferMemoryIndex.toAddress(slot.getSlotIdx(), position);
+        if (this.capacity > 0) {
+            synchronized (this) {
+                Entry entry = this.blocks.get(key);
+                if (null != entry && entry.epoch == epoch) return entry.raw.duplicate();
+            }
+        }
+        slot.checkFrame(regions, position);
+        ByteBuffer raw = decode(regions.region(position), regions.offset(position), this.ringBuffer.getCompressor());
+        if (this.capacity > 0) {
+            synchronized (this) {
+                this.blocks.put(key, new Entry(epoch, raw));
+            }
+        }
+        return raw.duplicate();
+    }
+
+    public static boolean isBlock(ByteBuffer region, int offset) {
+        return BLOCK_MARKER == region.get(offset);
+    }
+
+    //offset处block frame的总长度
+    public static int frameLength(ByteBuffer region, int offset) {
+        return blockFrameLength(region.getInt(offset + 6));
+    }
+
+    static int blockFrameLength(int storedLength) {
+        return BLOCK_HEADER_SIZE + storedLength + 4;
+    }
+
+    /**
+     * 解压offset处的block，返回只读的heap buffer
+     */
+    public static ByteBuffer decode(ByteBuffer region, int offset, IRingBufferCompressor compressor) {
+        byte id = region.get(offset + 1);
+        int rawLength = region.getInt(offset + 2);
+        int storedLength = region.getInt(offset + 6);
+        byte[] stored = new byte[storedLength];
+        ByteBuffer view = region.duplicate();
+        view.position(offset + BLOCK_HEADER_SIZE);
+        view.get(stored);
+        if (IRingBufferCompressor.NONE == id) {
+            return ByteBuffer.wrap(stored).asReadOnlyBuffer();
+        }
+        if (null == compressor || compressor.id() != id) {
+            throw new IllegalStateException("block is compressed by compressor " + id + ", but configured compressor is " + (null == compressor ? null : compressor.id()));
+        }
+        byte[] raw = new byte[rawLength];
+        compressor.decompress(stored, 0, storedLength, raw);
+        return ByteBuffer.wrap(raw).asReadOnlyBuffer();
+    }
+
+    //按访问顺序淘汰，超过capacity时丢掉最久没用的block
+    private static class Lru extends LinkedHashMap<Long, Entry> {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+
+        private Lru(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+            return this.size() > this.capacity;
+        }
+    }
+
+    private static class Entry {
+        private final int epoch;
+        private final ByteBuffer raw;
+
+        private Entry(int epoch, ByteBuffer raw) {
+            this.epoch = epoch;
+            this.raw = raw;
+        }
+    }
+}
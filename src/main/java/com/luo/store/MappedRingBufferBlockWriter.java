@@ -0,0 +1,127 @@
+package com.luo.store;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Created by luohui on 17/7/4.
+ * 压缩模式下writer正在攒的block：记录先按普通frame编码到堆上的raw中，攒够blockSize后压缩成一个block写入写slot，
+ * block的格式见MappedRingBufferBlockCache
+ * 只有writer使用；block写入slot之后，其中的记录才对读者可见
+ */
+public class MappedRingBufferBlockWriter<K, V> {
+    private final MappedRingBuffer<K, V> ringBuffer;
+    private final IRingBufferCompressor compressor;
+    private final int blockSize;
+    private byte[] raw;
+    private ByteBuffer rawBuffer;
+    private byte[] stored;
+    private int length = 0;
+    private int[] offsets = new int[64];//每条记录在raw中的位置
+    private int count = 0;
+    private volatile K lastKey;
+
+    public MappedRingBufferBlockWriter(MappedRingBuffer<K, V> ringBuffer, IRingBufferCompressor compressor, int blockSize) {
+        this.ringBuffer = ringBuffer;
+        this.compressor = compressor;
+        this.blockSize = blockSize;
+        this.raw = new byte[blockSize];
+        this.rawBuffer = ByteBuffer.wrap(this.raw);
+        this.stored = new byte[blockSize];
+    }
+
+    //再加一条frameLength长的记录就超过blockSize，需要先把攒下的写掉
+    public boolean isFull(int frameLength) {
+        return this.count > 0 && this.length + frameLength > this.blockSize;
+    }
+
+    public boolean isEmpty() {
+        return 0 == this.count;
+    }
+
+    //还没写入slot的最大key，没有返回null
+    public K getLastKey() {
+        return this.lastKey;
+    }
+
+    //key和data编码成普通的记录frame追加到raw中
+    public void append(K key, V data, int dataLength) {
+        IRingBufferCodec<K, V> codec = this.ringBuffer.getCodec();
+        int keyLength = codec.fixedKeyLength();
+        int frameLength = MappedRingBufferSlot.frameLength(keyLength, dataLength);
+        this.ensureCapacity(this.length + frameLength);
+        int temp = this.length;
+        this.rawBuffer.put(temp, (byte) keyLength);
+        temp++;
+        codec.encodeKey(key, this.rawBuffer, temp);
+        temp += keyLength;
+        this.rawBuffer.putInt(temp, dataLength);
+        temp += 4;
+        codec.encodeData(data, this.rawBuffer, temp);
+        temp += dataLength;
+        this.rawBuffer.putInt(temp, this.ringBuffer.getChecksum().checksum(this.raw, this.length, temp - this.length));
+        this.addOffset(this.length);
+        this.length += frameLength;
+        this.lastKey = key;
+    }
+
+    /**
+     * 回写到一个block中间时，block中回写位置之前的记录（frames是连续的记录frame）重新放回来，和之后的记录一起写成新的block
+     */
+    public void appendFrames(ByteBuffer frames, K lastKey) {
+        int size = frames.remaining();
+        this.ensureCapacity(this.length + size);
+        frames.duplicate().get(this.raw, this.length, size);
+        int end = this.length + size;
+        int position = this.length;
+        while (position < end) {
+            this.addOffset(position);
+            int keyLength = this.rawBuffer.get(position);
+            position += MappedRingBufferSlot.frameLength(keyLength, this.rawBuffer.getInt(position + 1 + keyLength));
+        }
+        this.length = end;
+        this.lastKey = lastKey;
+    }
+
+    /**
+     * 压缩攒下的记录写入slot，压缩后没有变小就原样存放
+     *
+     * @return false表示slot放不下这个block，攒下的记录保持不变
+     */
+    public boolean writeTo(MappedRingBufferSlot<K, V> slot) {
+        if (0 == this.count) return true;
+        byte id = this.compressor.id();
+        byte[] source = this.stored;
+        int storedLength = this.compressor.compress(this.raw, this.length, this.stored);
+        if (-1 == storedLength) {
+            id = IRingBufferCompressor.NONE;
+            source = this.raw;
+            storedLength = this.length;
+        }
+        ByteBuffer frames = this.rawBuffer.duplicate();
+        frames.limit(this.length);
+        if (!slot.writeBlock(id, source, storedLength, frames, this.offsets, this.count, this.lastKey)) return false;
+        this.reset();
+        return true;
+    }
+
+    //丢掉攒下的记录
+    public void reset() {
+        this.length = 0;
+        this.count = 0;
+        this.lastKey = null;
+    }
+
+    private void addOffset(int offset) {
+        if (this.count == this.offsets.length) this.offsets = Arrays.copyOf(this.offsets, this.count * 2);
+        this.offsets[this.count++] = offset;
+    }
+
+    //单条记录比blockSize大时，这条记录自己成为一个block
+    private void ensureCapacity(int capacity) {
+        if (capacity <= this.raw.length) return;
+        this.raw = Arrays.copyOf(this.raw, capacity);
+        this.rawBuffer = ByteBuffer.wrap(this.raw);
+        this.stored = new byte[capacity];
+    }
+}
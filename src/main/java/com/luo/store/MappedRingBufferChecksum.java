@@ -0,0 +1,87 @@
+package com.luo.store;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Created by luohui on 17/7/4.
+ * 记录frame的checksum算法，覆盖key length、key、data length和data（压缩block覆盖header和stored），见MappedRingBuffer.setChecksum
+ * 算法不写进数据文件，重新打开时要用写入时的算法
+ * 每个线程一个计算用的对象，记录写入时不分配内存
+ */
+public enum MappedRingBufferChecksum {
+    CRC32 {
+        private final ThreadLocal<java.util.zip.CRC32> crcs = new ThreadLocal<java.util.zip.CRC32>() {
+            @Override
+            protected java.util.zip.CRC32 initialValue() {
+                return new java.util.zip.CRC32();
+            }
+        };
+
+        @Override
+        int checksum(ByteBuffer view, int offset, int length) {
+            java.util.zip.CRC32 crc = this.crcs.get();
+            crc.reset();
+            view.limit(offset + length);
+            view.position(offset);
+            //direct buffer直接按地址计算，不拷贝
+            crc.update(view);
+            return (int) crc.getValue();
+        }
+
+        @Override
+        int checksum(byte[] src, int offset, int length) {
+            java.util.zip.CRC32 crc = this.crcs.get();
+            crc.reset();
+            crc.update(src, offset, length);
+            return (int) crc.getValue();
+        }
+    },
+    //jdk9以上用jdk的CRC32C（有硬件指令），jdk8用查表实现，见MappedRingBufferCrc32c
+    CRC32C {
+        @Override
+        int checksum(ByteBuffer view, int offset, int length) {
+            return MappedRingBufferCrc32c.checksum(view, offset, length);
+        }
+
+        @Override
+        int checksum(byte[] src, int offset, int length) {
+            return MappedRingBufferCrc32c.checksum(src, offset, length);
+        }
+    },
+    //不计算，checksum写0，也不校验
+    NONE {
+        @Override
+        int checksum(ByteBuffer view, int offset, int length) {
+            return 0;
+        }
+
+        @Override
+        int checksum(byte[] src, int offset, int length) {
+            return 0;
+        }
+    };
+
+    //view中[offset, offset + length)的checksum，会改动view的position和limit，调用方要传自己独占的视图
+    abstract int checksum(ByteBuffer view, int offset, int length);
+
+    abstract int checksum(byte[] src, int offset, int length);
+
+    /**
+     * 校验view中offset处的frame（普通记录或者压缩block），checksum是frame的最后4个字节
+     * 长度字段已经损坏、frame超出limit时也返回false
+     *
+     * @param limit frame不能超过的位置
+     */
+    boolean verify(ByteBuffer view, int offset, int limit) {
+        if (NONE == this) return true;
+        view.limit(view.capacity());
+        if (offset + 1 > limit) return false;
+        long frameLength = MappedRingBufferSlot.checkedFrameLength(view, offset, limit);
+        if (frameLength < 0 || offset + frameLength > limit) return false;
+        int length = (int) frameLength - 4;
+        int checksum = this.checksum(view, offset, length);
+        //checksum把limit改到了frame的checksum之前
+        view.limit(view.capacity());
+        return checksum == view.getInt(offset + length);
+    }
+}
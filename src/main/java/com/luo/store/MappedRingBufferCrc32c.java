@@ -0,0 +1,123 @@
+package com.luo.store;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.Checksum;
+
+/**
+ * Created by luohui on 17/7/4.
+ * CRC32C（Castagnoli），jdk9以上直接用java.util.zip.CRC32C，jdk8用slicing-by-8查表实现
+ * 查表实现用绝对位置读buffer，不改动position
+ */
+public class MappedRingBufferCrc32c {
+    private final static int POLY = 0x82F63B78;
+    private final static int[] TABLE = new int[8 * 256];
+    private final static MethodHandle JDK_CREATE;
+    private final static MethodHandle JDK_UPDATE;
+    private final static ThreadLocal<Checksum> JDK_CRCS;
+
+    static {
+        for (int n = 0; n < 256; n++) {
+            int crc = n;
+            for (int k = 0; k < 8; k++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLY : crc >>> 1;
+            }
+            TABLE[n] = crc;
+        }
+        for (int n = 0; n < 256; n++) {
+            for (int k = 1; k < 8; k++) {
+                int previous = TABLE[(k - 1) * 256 + n];
+                TABLE[k * 256 + n] = (previous >>> 8) ^ TABLE[previous & 0xFF];
+            }
+        }
+
+        MethodHandle create = null;
+        MethodHandle update = null;
+        try {
+            Class<?> type = Class.forName("java.util.zip.CRC32C");
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            create = lookup.findConstructor(type, MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(Checksum.class));
+            update = lookup.findVirtual(type, "update", MethodType.methodType(void.class, ByteBuffer.class))
+                    .asType(MethodType.methodType(void.class, Checksum.class, ByteBuffer.class));
+        } catch (ReflectiveOperationException e) {
+            //jdk8没有CRC32C，用查表实现
+            create = null;
+            update = null;
+        }
+        JDK_CREATE = create;
+        JDK_UPDATE = update;
+        JDK_CRCS = null == create ? null : new ThreadLocal<Checksum>() {
+            @Override
+            protected Checksum initialValue() {
+                try {
+                    return (Checksum) JDK_CREATE.invokeExact();
+                } catch (Throwable e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+    }
+
+    //view中[offset, offset + length)的CRC32C，jdk的实现会改动view的position和limit
+    public static int checksum(ByteBuffer view, int offset, int length) {
+        if (null != JDK_CRCS) {
+            Checksum crc = JDK_CRCS.get();
+            crc.reset();
+            view.limit(offset + length);
+            view.position(offset);
+            try {
+                JDK_UPDATE.invokeExact(crc, view);
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+            return (int) crc.getValue();
+        }
+        boolean littleEndian = ByteOrder.LITTLE_ENDIAN == view.order();
+        int crc = 0xFFFFFFFF;
+        int end = offset + length;
+        for (; offset + 8 <= end; offset += 8) {
+            long value = view.getLong(offset);
+            if (!littleEndian) value = Long.reverseBytes(value);
+            crc = update8(crc, (int) value, (int) (value >>> 32));
+        }
+        for (; offset < end; offset++) {
+            crc = (crc >>> 8) ^ TABLE[(crc ^ view.get(offset)) & 0xFF];
+        }
+        return ~crc;
+    }
+
+    public static int checksum(byte[] src, int offset, int length) {
+        if (null != JDK_CRCS) {
+            Checksum crc = JDK_CRCS.get();
+            crc.reset();
+            crc.update(src, offset, length);
+            return (int) crc.getValue();
+        }
+        int crc = 0xFFFFFFFF;
+        int end = offset + length;
+        for (; offset + 8 <= end; offset += 8) {
+            crc = update8(crc, littleEndianInt(src, offset), littleEndianInt(src, offset + 4));
+        }
+        for (; offset < end; offset++) {
+            crc = (crc >>> 8) ^ TABLE[(crc ^ src[offset]) & 0xFF];
+        }
+        return ~crc;
+    }
+
+    //一次处理8个字节，low是前4个字节（小端）
+    private static int update8(int crc, int low, int high) {
+        low ^= crc;
+        return TABLE[7 * 256 + (low & 0xFF)] ^ TABLE[6 * 256 + ((low >>> 8) & 0xFF)]
+                ^ TABLE[5 * 256 + ((low >>> 16) & 0xFF)] ^ TABLE[4 * 256 + (low >>> 24)]
+                ^ TABLE[3 * 256 + (high & 0xFF)] ^ TABLE[2 * 256 + ((high >>> 8) & 0xFF)]
+                ^ TABLE[256 + ((high >>> 16) & 0xFF)] ^ TABLE[high >>> 24];
+    }
+
+    private static int littleEndianInt(byte[] src, int offset) {
+        return (src[offset] & 0xFF) | (src[offset + 1] & 0xFF) << 8 | (src[offset + 2] & 0xFF) << 16 | (src[offset + 3] & 0xFF) << 24;
+    }
+}
@@ -0,0 +1,260 @@
+package com.luo.store;
+
+import java.nio.ByteBuffer;
+import java.util.ConcurrentModificationException;
+
+/**
+ * Created by luohui on 17/7/4.
+ * 遍历[fromKey, toKey)的cursor，fromKey/toKey为null表示不限
+ * 正向：在slot的数据文件中顺序读取记录（跳过region尾部的填充），遇到压缩block时解压后逐条读取，读到slot的last position后按环的顺序进入下一个slot
+ * 反向：数据记录没有向前的指针，按slot的索引记录倒序读取
+ * 整个cursor只用一个key和一个value对象，value在调用value()时才解码
+ * 懒映射模式下cursor pin住当前所在的slot，离开slot或者遍历结束时unpin
+ * 只读模式下每读一条记录都检查所在slot的序号，slot在上次refresh之后被writer进程修改过时抛ConcurrentModificationException，
+ * rawValue()返回堆上的拷贝
+ */
+public class MappedRingBufferCursor<K, V> implements IRingBufferCursor<K, V> {
+    private final MappedRingBuffer<K, V> ringBuffer;
+    private final MappedRingBufferMemoryIndex<K, V> memoryIndex;
+    private final IRingBufferCodec<K, V> codec;
+    private final K fromKey;
+    private final K toKey;
+    private final boolean descending;
+    private final K key;
+    private V value;
+    private boolean valueDecoded = false;
+    private ByteBuffer valueView;
+    private ByteBuffer valueViewSource;
+    private boolean done = false;
+    private MappedRingBufferSlot<K, V> pinnedSlot;
+    private MappedRingBufferRegions pinnedRegions;
+
+    private short slotIdx;
+    private long position;//正向：下一条记录（或者所在block）在slot中的位置
+    private ByteBuffer block;//正向：正在读的解压后的block
+    private int blockOffset;//正向：下一条记录在block中的位置
+    private int indexRecIndex;//反向：下一条记录的索引序号
+    private ByteBuffer dataBuffer;//记录所在的region
+    private int dataPosition;//data在region中的位置
+    private int dataLength;
+    private final long startNanos;
+    private long scanned = 0;
+    private boolean closed = false;
+
+    public MappedRingBufferCursor(MappedRingBuffer<K, V> ringBuffer, K fromKey, K toKey, boolean descending) {
+        this(ringBuffer, fromKey, toKey, descending, null);
+    }
+
+    public MappedRingBufferCursor(MappedRingBuffer<K, V> ringBuffer, K fromKey, K toKey, boolean descending, K keyHolder) {
+        this.ringBuffer = ringBuffer;
+        this.memoryIndex = ringBuffer.getMemoryIndexer();
+        this.codec = ringBuffer.getCodec();
+        this.fromKey = fromKey;
+        this.toKey = toKey;
+        this.descending = descending;
+        this.key = null == keyHolder ? this.codec.newRingBufferKey() : keyHolder;
+        this.startNanos = ringBuffer.getMetrics().startNanos();
+        if (descending) {
+            this.seekLast();
+        } else {
+            this.seekFirst();
+        }
+    }
+
+    private void seekFirst() {
+        if (null == this.fromKey) {
+            this.slotIdx = this.ringBuffer.oldestSlotIdx();
+            this.position = this.ringBuffer.getSlotList().get(this.slotIdx).getDataStart();
+            return;
+        }
+        long address = this.memoryIndex.lowerBound(this.fromKey);
+        if (-1 == address) {
+            this.done = true;
+            return;
+        }
+        this.slotIdx = MappedRingBufferMemoryIndex.slotOf(address);
+        this.pinSlot(this.slotIdx);
+        long dataPosition = this.memoryIndex.getDataPosition(this.slotIdx, (int) MappedRingBufferMemoryIndex.positionOf(address));
+        this.position = MappedRingBufferMemoryIndex.framePositionOf(dataPosition);
+        if (MappedRingBufferMemoryIndex.isBlockAddress(dataPosition)) this.blockOffset = MappedRingBufferMemoryIndex.blockOffsetOf(dataPosition);
+    }
+
+    private void seekLast() {
+        long address = null == this.toKey ? -1 : this.memoryIndex.lowerBound(this.toKey);
+        if (-1 == address) {
+            //比所有记录都大，从最后一条开始
+            this.slotIdx = (short) this.ringBuffer.getCurrentSlotIdx();
+            this.pinSlot(this.slotIdx);
+            this.indexRecIndex = this.memoryIndex.getIndexRecCount(this.slotIdx);
+            return;
+        }
+        this.slotIdx = MappedRingBufferMemoryIndex.slotOf(address);
+        this.indexRecIndex = (int) MappedRingBufferMemoryIndex.positionOf(address) - 1;
+    }
+
+    @Override
+    public boolean next() {
+        if (this.done) return false;
+        boolean found;
+        try {
+            found = this.descending ? this.previousRecord() : this.nextRecord();
+        } catch (RuntimeException e) {
+            //只读模式下writer进程改写到一半的长度字段可能越界
+            this.checkSynced();
+            throw e;
+        }
+        if (found) {
+            this.checkSynced();
+            this.scanned++;
+        }
+        if (!found) this.close();
+        this.valueDecoded = false;
+        return found;
+    }
+
+    private boolean nextRecord() {
+        MappedRingBufferRegions regions = this.pinSlot(this.slotIdx);
+        if (null == this.block) {
+            while (this.position >= regions.getLastPosition()) {
+                short next = this.ringBuffer.nextSlotIdx(this.slotIdx);
+                if (-1 == next) return false;
+                this.slotIdx = next;
+                regions = this.pinSlot(this.slotIdx);
+                this.position = regions.getHeaderSize();
+            }
+            this.position = regions.skipPadding(this.position);
+            ByteBuffer buffer = regions.region(this.position);
+            int offset = regions.offset(this.position);
+            if (!MappedRingBufferBlockCache.isBlock(buffer, offset)) {
+                this.pinnedSlot.checkFrame(regions, this.position);
+                if (!this.readFrame(buffer, offset)) return false;
+                this.position += MappedRingBufferSlot.frameLength(buffer, offset);
+                return true;
+            }
+            this.block = this.ringBuffer.getBlockCache().get(this.pinnedSlot, regions, this.position);
+        }
+        int offset = this.blockOffset;
+        if (!this.readFrame(this.block, offset)) return false;
+        this.blockOffset += MappedRingBufferSlot.frameLength(this.block, offset);
+        if (this.blockOffset >= this.block.limit()) {
+            //block读完，接着读slot中block之后的frame
+            this.position += MappedRingBufferSlot.frameLength(regions.region(this.position), regions.offset(this.position));
+            this.block = null;
+            this.blockOffset = 0;
+        }
+        return true;
+    }
+
+    //解码offset处记录的key，超出toKey返回false
+    private boolean readFrame(ByteBuffer buffer, int offset) {
+        int keyLen = buffer.get(offset);
+        this.codec.decodeKey(buffer, offset + 1, this.key);
+        if (null != this.toKey && ((Comparable) this.key).compareTo(this.toKey) >= 0) return false;
+
+        this.dataBuffer = buffer;
+        this.dataLength = buffer.getInt(offset + 1 + keyLen);
+        this.dataPosition = offset + 1 + keyLen + 4;
+        return true;
+    }
+
+    private boolean previousRecord() {
+        while (this.indexRecIndex < 1) {
+            short previous = this.ringBuffer.previousSlotIdx(this.slotIdx);
+            if (-1 == previous) return false;
+            this.slotIdx = previous;
+            this.pinSlot(this.slotIdx);
+            this.indexRecIndex = this.memoryIndex.getIndexRecCount(this.slotIdx);
+        }
+        MappedRingBufferRegions regions = this.pinSlot(this.slotIdx);
+        this.memoryIndex.decodeKey(this.slotIdx, this.indexRecIndex, this.key);
+        if (null != this.fromKey && ((Comparable) this.key).compareTo(this.fromKey) < 0) return false;
+
+        long recordPosition = this.memoryIndex.getDataPosition(this.slotIdx, this.indexRecIndex);
+        ByteBuffer buffer;
+        int offset;
+        if (MappedRingBufferMemoryIndex.isBlockAddress(recordPosition)) {
+            buffer = this.ringBuffer.getBlockCache().get(this.pinnedSlot, regions, MappedRingBufferMemoryIndex.framePositionOf(recordPosition));
+            offset = MappedRingBufferMemoryIndex.blockOffsetOf(recordPosition);
+        } else {
+            this.pinnedSlot.checkFrame(regions, recordPosition);
+            buffer = regions.region(recordPosition);
+            offset = regions.offset(recordPosition);
+        }
+        int keyLen = buffer.get(offset);
+        this.dataBuffer = buffer;
+        this.dataLength = buffer.getInt(offset + 1 + keyLen);
+        this.dataPosition = offset + 1 + keyLen + 4;
+        this.indexRecIndex--;
+        return true;
+    }
+
+    //pin住slotIdx对应的slot并放掉之前pin住的slot，返回slot的数据文件
+    private MappedRingBufferRegions pinSlot(short slotIdx) {
+        MappedRingBufferSlot<K, V> slot = this.ringBuffer.getSlotList().get(slotIdx);
+        if (slot != this.pinnedSlot) {
+            MappedRingBufferRegions regions = slot.pin();
+            if (null != this.pinnedSlot) this.pinnedSlot.unpin();
+            this.pinnedSlot = slot;
+            this.pinnedRegions = regions;
+        }
+        return this.pinnedRegions;
+    }
+
+    @Override
+    public void close() {
+        this.done = true;
+        if (!this.closed) {
+            this.closed = true;
+            this.ringBuffer.getMetrics().recordScan(this.startNanos, this.scanned);
+        }
+        if (null != this.pinnedSlot) {
+            this.pinnedSlot.unpin();
+            this.pinnedSlot = null;
+            this.pinnedRegions = null;
+        }
+    }
+
+    //只读模式下刚读到的记录所在的slot被writer进程修改过，结束遍历
+    private void checkSynced() {
+        if (!this.ringBuffer.isReadOnly() || this.ringBuffer.isSlotSynced(this.slotIdx)) return;
+        this.close();
+        throw new ConcurrentModificationException("slot " + this.slotIdx + " was changed by the writer process, refresh and reopen the cursor");
+    }
+
+    @Override
+    public K key() {
+        return this.key;
+    }
+
+    @Override
+    public V value() {
+        if (!this.valueDecoded) {
+            if (null == this.value) this.value = this.codec.newRingBufferData();
+            try {
+                this.codec.decodeData(this.dataBuffer, this.dataPosition, this.dataLength, this.value);
+            } catch (RuntimeException e) {
+                this.checkSynced();
+                throw e;
+            }
+            this.checkSynced();
+            this.valueDecoded = true;
+        }
+        return this.value;
+    }
+
+    @Override
+    public ByteBuffer rawValue() {
+        if (this.valueViewSource != this.dataBuffer) {
+            this.valueView = this.dataBuffer.asReadOnlyBuffer();
+            this.valueViewSource = this.dataBuffer;
+        }
+        this.valueView.clear();
+        this.valueView.position(this.dataPosition);
+        this.valueView.limit(this.dataPosition + this.dataLength);
+        if (!this.ringBuffer.isReadOnly()) return this.valueView;
+        ByteBuffer copy = ByteBuffer.allocate(this.dataLength);
+        copy.put(this.valueView).flip();
+        this.checkSynced();
+        return copy.asReadOnlyBuffer();
+    }
+}
@@ -0,0 +1,63 @@
+package com.luo.store;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Created by luohui on 17/7/4.
+ * 用jdk的Deflater压缩block，每个线程一个Deflater/Inflater
+ */
+public class MappedRingBufferDeflateCompressor implements IRingBufferCompressor {
+    public final static byte ID = 1;
+    private final ThreadLocal<Deflater> deflaters;
+    private final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    public MappedRingBufferDeflateCompressor() {
+        this(Deflater.BEST_SPEED);
+    }
+
+    public MappedRingBufferDeflateCompressor(final int level) {
+        this.deflaters = new ThreadLocal<Deflater>() {
+            @Override
+            protected Deflater initialValue() {
+                return new Deflater(level);
+            }
+        };
+    }
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    @Override
+    public int compress(byte[] src, int length, byte[] dst) {
+        Deflater deflater = this.deflaters.get();
+        deflater.reset();
+        deflater.setInput(src, 0, length);
+        deflater.finish();
+        int compressed = deflater.deflate(dst, 0, length);
+        return deflater.finished() ? compressed : -1;
+    }
+
+    @Override
+    public void decompress(byte[] src, int offset, int length, byte[] dst) {
+        Inflater inflater = this.inflaters.get();
+        inflater.reset();
+        inflater.setInput(src, offset, length);
+        try {
+            int inflated = inflater.inflate(dst);
+            if (inflated != dst.length || !inflater.finished()) {
+                throw new IllegalStateException("block is corrupted, inflated " + inflated + " expected " + dst.length);
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("block is corrupted", e);
+        }
+    }
+}
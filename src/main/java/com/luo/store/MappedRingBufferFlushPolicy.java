@@ -0,0 +1,40 @@
+package com.luo.store;
+
+import lombok.Data;
+
+/**
+ * Created by luohui on 17/7/4.
+ * 组提交的刷盘策略，三个条件任意一个满足就force一次；全部为0表示从不force，持久性交给操作系统
+ */
+@Data
+public class MappedRingBufferFlushPolicy {
+    private int everyRecords = 0;//攒够多少条记录刷一次
+    private long everyBytes = 0;//当前slot攒够多少脏字节刷一次
+    private long everyMillis = 0;//每隔多少毫秒刷一次
+
+    public static MappedRingBufferFlushPolicy never() {
+        return new MappedRingBufferFlushPolicy();
+    }
+
+    public static MappedRingBufferFlushPolicy everyRecords(int records) {
+        MappedRingBufferFlushPolicy policy = new MappedRingBufferFlushPolicy();
+        policy.setEveryRecords(records);
+        return policy;
+    }
+
+    public static MappedRingBufferFlushPolicy everyBytes(long bytes) {
+        MappedRingBufferFlushPolicy policy = new MappedRingBufferFlushPolicy();
+        policy.setEveryBytes(bytes);
+        return policy;
+    }
+
+    public static MappedRingBufferFlushPolicy everyMillis(long millis) {
+        MappedRingBufferFlushPolicy policy = new MappedRingBufferFlushPolicy();
+        policy.setEveryMillis(millis);
+        return policy;
+    }
+
+    public boolean isNever() {
+        return this.everyRecords <= 0 && this.everyBytes <= 0 && this.everyMillis <= 0;
+    }
+}
@@ -0,0 +1,202 @@
+package com.luo.store;
+
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Created by luohui on 17/7/4.
+ * 组提交刷盘线程：putAsync写完mmap后把future登记到这里，刷盘线程按MappedRingBufferFlushPolicy
+ * 把所有slot的数据和索引的脏区间force一次，然后一起完成这期间登记的future
+ * <p>
+ * 登记future时记录已经写入并发布，所以只要在取出future之后再force，就一定覆盖了这些记录
+ * slot的写位置往回移（回写、清空、重新使用）时writer调用rewound，下次从回退的位置开始刷，
+ * 重新写到旧的刷盘位置之后时，回退位置和旧的刷盘位置之间重新写入的数据也会刷到
+ * future在刷盘线程上完成，耗时的回调请用thenXxxAsync
+ */
+public class MappedRingBufferFlusher<K, V> implements Runnable {
+    private final static long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private final MappedRingBuffer<K, V> ringBuffer;
+    private final MappedRingBufferFlushPolicy policy;
+    private final ConcurrentLinkedQueue<CompletableFuture<Void>> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingRecords = new AtomicInteger();
+    private final long[] forcedDataPositions;//每个slot已经刷到的位置
+    private final int[] forcedIndexPositions;
+    //writer回退过的最低位置，刷盘线程取走后重置成MAX_VALUE
+    private final AtomicLongArray rewoundDataPositions;
+    private final AtomicIntegerArray rewoundIndexPositions;
+    private volatile boolean running = true;
+    private Thread thread;
+
+    public MappedRingBufferFlusher(MappedRingBuffer<K, V> ringBuffer, MappedRingBufferFlushPolicy policy) {
+        this.ringBuffer = ringBuffer;
+        this.policy = policy;
+        this.forcedDataPositions = new long[ringBuffer.getDataFileCount()];
+        this.forcedIndexPositions = new int[ringBuffer.getDataFileCount()];
+        this.rewoundDataPositions = new AtomicLongArray(ringBuffer.getDataFileCount());
+        this.rewoundIndexPositions = new AtomicIntegerArray(ringBuffer.getDataFileCount());
+        for (int slotIdx = 0; slotIdx < ringBuffer.getDataFileCount(); slotIdx++) {
+            this.rewoundDataPositions.set(slotIdx, Long.MAX_VALUE);
+            this.rewoundIndexPositions.set(slotIdx, Integer.MAX_VALUE);
+        }
+    }
+
+    public void start() {
+        //启动前已经存在的数据不再重复刷
+        for (short slotIdx = 0; slotIdx < this.forcedDataPositions.length; slotIdx++) {
+            MappedRingBufferSlot<K, V> slot = this.ringBuffer.getSlotList().get(slotIdx);
+            if (!slot.pinIfMapped()) {
+                //懒映射模式下没有映射的slot解除映射时已经force过，重新写入时从头开始刷
+                this.forcedDataPositions[slotIdx] = Long.MAX_VALUE;
+                this.forcedIndexPositions[slotIdx] = Integer.MAX_VALUE;
+                continue;
+            }
+            try {
+                this.forcedDataPositions[slotIdx] = slot.getRegions().getLastPosition();
+                this.forcedIndexPositions[slotIdx] = this.ringBuffer.getMemoryIndexer().getIndexEndPosition(slotIdx);
+            } finally {
+                slot.unpin();
+            }
+        }
+        this.thread = new Thread(this, "mappedRingBuffer-flusher-" + this.ringBuffer.getDataFileNamePrefix());
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * writer把slot的last position和索引回退到dataPosition、indexPosition之后调用，
+     * 刷盘位置降到不高于它们，之后写入的数据从这里开始刷
+     */
+    public void rewound(short slotIdx, long dataPosition, int indexPosition) {
+        this.rewoundDataPositions.accumulateAndGet(slotIdx, dataPosition, Math::min);
+        this.rewoundIndexPositions.accumulateAndGet(slotIdx, indexPosition, Math::min);
+    }
+
+    //slot的数据已经刷到的位置，包括还没被刷盘线程取走的回退
+    long getForcedDataPosition(short slotIdx) {
+        return Math.min(this.forcedDataPositions[slotIdx], this.rewoundDataPositions.get(slotIdx));
+    }
+
+    long getForcedIndexPosition(short slotIdx) {
+        return Math.min(this.forcedIndexPositions[slotIdx], this.rewoundIndexPositions.get(slotIdx));
+    }
+
+    //登记一条已经写入的记录，返回的future在记录刷盘后完成
+    public CompletableFuture<Void> register() {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        if (!this.running) {
+            future.completeExceptionally(new IllegalStateException("flusher is closed"));
+            return future;
+        }
+        this.pending.add(future);
+        int records = this.pendingRecords.incrementAndGet();
+        if ((this.policy.getEveryRecords() > 0 && records >= this.policy.getEveryRecords())
+                || (this.policy.getEveryBytes() > 0 && this.dirtyBytes() >= this.policy.getEveryBytes())) {
+            LockSupport.unpark(this.thread);
+        }
+        return future;
+    }
+
+    @Override
+    public void run() {
+        long parkNanos = this.policy.getEveryMillis() > 0 ? TimeUnit.MILLISECONDS.toNanos(this.policy.getEveryMillis()) : IDLE_PARK_NANOS;
+        long lastFlush = System.nanoTime();
+        while (this.running) {
+            LockSupport.parkNanos(this, parkNanos);
+            long now = System.nanoTime();
+            boolean timeout = this.policy.getEveryMillis() > 0 && now - lastFlush >= parkNanos;
+            boolean full = (this.policy.getEveryRecords() > 0 && this.pendingRecords.get() >= this.policy.getEveryRecords())
+                    || (this.policy.getEveryBytes() > 0 && this.dirtyBytes() >= this.policy.getEveryBytes());
+            if ((timeout || full) && !this.pending.isEmpty()) {
+                this.flush();
+                lastFlush = now;
+            }
+        }
+        //关闭前把剩下的都刷掉
+        this.flush();
+    }
+
+    public void close() throws InterruptedException {
+        this.running = false;
+        if (null != this.thread) {
+            LockSupport.unpark(this.thread);
+            this.thread.join();
+        }
+        //刷盘线程退出时正在登记的future
+        this.flush();
+    }
+
+    //取出当前所有登记的future，force所有slot的脏区间后完成它们
+    void flush() {
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        CompletableFuture<Void> future;
+        while (null != (future = this.pending.poll())) {
+            futures.add(future);
+        }
+        this.pendingRecords.addAndGet(-futures.size());
+        try {
+            this.forceDirtyRanges();
+        } catch (RuntimeException e) {
+            for (CompletableFuture<Void> f : futures) f.completeExceptionally(e);
+            return;
+        }
+        for (CompletableFuture<Void> f : futures) f.complete(null);
+    }
+
+    private void forceDirtyRanges() {
+        List<MappedRingBufferSlot<K, V>> slotList = this.ringBuffer.getSlotList();
+        MappedRingBufferMemoryIndex<K, V> memoryIndex = this.ringBuffer.getMemoryIndexer();
+        for (short slotIdx = 0; slotIdx < slotList.size(); slotIdx++) {
+            MappedRingBufferSlot<K, V> slot = slotList.get(slotIdx);
+            //没有映射的slot没有脏数据
+            if (!slot.pinIfMapped()) continue;
+            try {
+                this.forceDirtyRanges(slot, memoryIndex);
+            } finally {
+                slot.unpin();
+            }
+        }
+    }
+
+    private void forceDirtyRanges(MappedRingBufferSlot<K, V> slot, MappedRingBufferMemoryIndex<K, V> memoryIndex) {
+        short slotIdx = slot.getSlotIdx();
+        MappedRingBufferRegions regions = slot.getRegions();
+        //先取走回退位置再读last position，之后发生的回退留到下一次
+        long forced = Math.min(this.forcedDataPositions[slotIdx], this.rewoundDataPositions.getAndSet(slotIdx, Long.MAX_VALUE));
+        int indexForced = Math.min(this.forcedIndexPositions[slotIdx], this.rewoundIndexPositions.getAndSet(slotIdx, Integer.MAX_VALUE));
+        long lastPos = regions.getLastPosition();
+        if (lastPos != forced) {
+            //slot被clean过，从头开始刷
+            long from = forced < lastPos ? forced : 0;
+            regions.force(from, lastPos);
+            //数据落盘后再刷header
+            regions.force(0, regions.getHeaderSize());
+            forced = lastPos;
+        }
+        this.forcedDataPositions[slotIdx] = forced;
+
+        MappedByteBuffer indexBuffer = memoryIndex.getIndexRecordBuffer(slotIdx);
+        int indexEnd = memoryIndex.getIndexEndPosition(slotIdx);
+        if (indexEnd != indexForced) {
+            int from = indexForced < indexEnd ? indexForced : 0;
+            MappedByteBufferUtil.force(indexBuffer, from, indexEnd);
+            MappedByteBufferUtil.force(indexBuffer, 0, MappedRingBufferMemoryIndex.INDEX_HEADER_SIZE);
+            indexForced = indexEnd;
+        }
+        this.forcedIndexPositions[slotIdx] = indexForced;
+    }
+
+    //当前slot还没刷盘的字节数
+    private long dirtyBytes() {
+        MappedRingBufferSlot<K, V> slot = this.ringBuffer.getCurrentSlot();
+        long dirty = slot.getRegions().getLastPosition() - this.forcedDataPositions[slot.getSlotIdx()];
+        return dirty > 0 ? dirty : 0;
+    }
+}
@@ -10,10 +10,10 @@ import lombok.NoArgsConstructor;
 @NoArgsConstructor
 public class MappedRingBufferIndexData {
     private short slotIndex;//数据所在的slot
-    private int position;//数据在slot中的位置
+    private long position;//数据在slot中的位置
     private int indexRecIndex;//所在的索引
 
-    public MappedRingBufferIndexData(short slotIndex, int position) {
+    public MappedRingBufferIndexData(short slotIndex, long position) {
         this.slotIndex = slotIndex;
         this.position = position;
     }
@@ -0,0 +1,62 @@
+package com.luo.store;
+
+import lombok.Data;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Created by luohui on 17/7/4.
+ * 按2的幂分桶的延迟直方图：第i个桶放[2^(i-1), 2^i)纳秒，分位数取桶的上界，误差在2倍以内
+ * 记录时只做几次原子加，不加锁也不分配对象，多个线程可以同时记录
+ */
+public class MappedRingBufferLatencyHistogram {
+    private final static int BUCKETS = 64;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        this.buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(nanos));
+        this.totalNanos.addAndGet(nanos);
+        long max = this.maxNanos.get();
+        while (nanos > max && !this.maxNanos.compareAndSet(max, nanos)) {
+            max = this.maxNanos.get();
+        }
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = this.buckets.get(i);
+            count += counts[i];
+        }
+        long max = this.maxNanos.get();
+        return new Snapshot(count, 0 == count ? 0 : this.totalNanos.get() / count,
+                percentile(counts, count, 0.5, max), percentile(counts, count, 0.99, max), percentile(counts, count, 0.999, max), max);
+    }
+
+    //第一个累计数达到count * quantile的桶的上界，不超过max
+    private static long percentile(long[] counts, long count, double quantile, long max) {
+        long threshold = (long) Math.ceil(count * quantile);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= threshold && seen > 0) return Math.min(0 == i ? 0 : (1L << i) - 1, max);
+        }
+        return max;
+    }
+
+    //某一时刻的统计，JMX中是一个CompositeData
+    @Data
+    public static class Snapshot {
+        private final long count;
+        private final long meanNanos;
+        private final long p50Nanos;
+        private final long p99Nanos;
+        private final long p999Nanos;
+        private final long maxNanos;
+    }
+}
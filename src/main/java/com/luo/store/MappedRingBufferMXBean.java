@@ -0,0 +1,56 @@
+package com.luo.store;
+
+/**
+ * Created by luohui on 17/7/4.
+ * 每个ring一个MXBean，load时注册为com.luo.store:type=MappedRingBuffer,name="数据目录/文件名前缀"，close时注销
+ * 同样的属性也可以通过MappedRingBuffer.getMetrics().snapshot()拿到
+ */
+public interface MappedRingBufferMXBean {
+    //计数器，从load开始累计
+    long getRecordsWritten();
+
+    long getBytesWritten();//写入数据文件的字节数，压缩模式下是压缩后的
+
+    long getSlotRollovers();
+
+    long getOverrides();//回写的次数
+
+    long getRejectedPuts();//多生产者模式下抢输了领取、被拒绝的put
+
+    long getChecksumFailures();//读和恢复时发现的checksum错误
+
+    long getDroppedSlots();//按保留策略或者环绕回来丢掉的slot
+
+    long getScannedRecords();
+
+    long getSummarySkips();//查找时靠slot摘要（maxKey或者Bloom filter）跳过、没有碰索引的slot数
+
+    //load时的恢复情况
+    long getRecoveredRecords();//从数据文件扫描恢复的记录数
+
+    long getTruncatedBytes();//恢复时因为checksum错误截掉的字节数
+
+    long getIndexRebuilds();//索引文件不存在或者校验失败、从数据文件重建的slot数
+
+    long getMissingSlotFiles();
+
+    long[] getSlotLoadMillis();
+
+    //延迟
+    MappedRingBufferLatencyHistogram.Snapshot getPutLatency();
+
+    MappedRingBufferLatencyHistogram.Snapshot getGetLatency();
+
+    MappedRingBufferLatencyHistogram.Snapshot getScanLatency();//一个cursor从创建到结束
+
+    //当前状态
+    int getCurrentSlotIdx();
+
+    double getCurrentSlotFill();//写slot已经写了的比例
+
+    double getIndexBufferFill();//写slot的索引文件已经用了的比例
+
+    long getSliceIndexFences();//所有slot的稀疏索引中的fence数
+
+    long[] getRecordsPerSlot();
+}
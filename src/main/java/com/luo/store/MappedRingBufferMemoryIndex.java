@@ -6,26 +6,72 @@ import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.*;
-import java.util.concurrent.ConcurrentSkipListMap;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.CRC32;
 
 /**
  * Created by luohui on 17/7/4.
- * MappedRingBufferMemoryIndex是单例,基于skip list结构的内存索引数据
+ * MappedRingBufferMemoryIndex是单例：每个slot的全量索引放在一个mmap的索引buffer中，
+ * 内存中只有MappedRingBufferSliceIndex里每个slot的堆外fence表，没有堆上的key对象
+ * 查找时先在slot之间按第一条key二分，再在slot的fence表中二分，最后在一个slice的定长索引记录中二分
+ * 各slot的索引可以并发构建；每个slot只有一个写者，追加索引不加锁，读者也不加锁
+ * 工厂实现了IRingBufferOrderedKey时，要找的key只编码一次，之后直接和mmap中的字节比较，查找时不解码key也不分配对象
+ * <p>
+ * 索引文件数据结构
+ * / magic(4) | version(4) | count(4) | key length(4) | watermark(8) | crc(4) | checkpoint count(4) | [索引记录] | ......
+ * 索引记录是 key | slot index(2) | data position(8) | index_rec_idx(4)，data position是long，slot可以超过2GB；
+ * 压缩block中的记录的data position是(block的位置, 记录在block中的位置)，见blockAddress
+ * 版本1的data position和watermark是int，版本不一致时从数据文件重建
+ * count是已经写入的索引记录数，随写入更新；checkpoint count和watermark每隔一个slice、close和解除映射时更新，
+ * 表示前checkpoint count条索引记录覆盖了数据文件中watermark之前的所有记录；crc覆盖header（不含count）和最后一条checkpoint的索引记录
+ * 启动时校验header、crc以及最后一条checkpoint的索引记录和数据文件中的frame是否一致，通过后只需要从watermark开始扫描数据文件；
+ * 校验失败就新建下一代索引文件从头重建，旧的代删掉
+ * <p>
+ * 只读模式下映射writer进程当前代的索引文件（READ_ONLY），不校验、不重建也不checkpoint，
+ * 记录数和fence表由follow按header中的count同步；count之前先storeFence，读到的count之内的索引记录都是完整的
+ * <p>
+ * 每条索引记录追加时同时更新slot的摘要（min/max key和Bloom filter，见MappedRingBufferSlotSummary），
+ * 精确查找先看摘要：key比slot的maxKey大或者Bloom filter里没有，就不用碰slot的索引页；范围查找只看maxKey
+ * <p>
+ * 工厂实现了IRingBufferSecondaryKey时，每条索引记录追加时同时把记录的二级key加入slot的二级索引（见MappedRingBufferSecondaryIndex），
+ * 第n条索引记录对应二级索引的第n个entry；从数据文件恢复和压缩block中的记录要解码frame重新提取二级key
  */
 public class MappedRingBufferMemoryIndex<K, V> {
+    public final static int INDEX_HEADER_SIZE = 32;
+    private final static int INDEX_MAGIC = 0x52424958;//"RBIX"
+    private final static int INDEX_VERSION = 2;
+    private final static int COUNT_OFFSET = 8;
+    private final static int KEY_LENGTH_OFFSET = 12;
+    private final static int WATERMARK_OFFSET = 16;
+    private final static int CRC_OFFSET = 24;
+    private final static int CHECKPOINT_COUNT_OFFSET = 28;
+    private final static long POSITION_MASK = 0xFFFFFFFFFFFFL;
+    private final static long BLOCK_FLAG = Long.MIN_VALUE;
+    private final static int BLOCK_OFFSET_BITS = 24;
+    public final static int MAX_BLOCK_SIZE = 1 << BLOCK_OFFSET_BITS;
     private MappedRingBuffer<K, V> ringBuffer;
     private int slotCount = 0;
     private int indexBufferSize = 0;
     private String indexBufferDir;
     private String indexBufferNamePrefix;
     private int indexSliceSize = 0;
-    private List<MappedByteBuffer> indexRecordBufferList;//每个slot都有一个MappedByteBuffer存放全量索引
-    private List<Integer> indexBufferIdx;//每个slot对应的索引的id？
-    private ConcurrentSkipListMap<K, MappedRingBufferIndexData> indexSliceMap = new ConcurrentSkipListMap<>();
-    private ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
+    private int maxIndexRecords;//每个slot的索引文件能放的索引记录数
+    //每个slot都有一个MappedByteBuffer存放全量索引，按slotIdx存放，各slot可以并发加载
+    private AtomicReferenceArray<MappedByteBuffer> indexRecordBuffers;
+    private int[] indexBufferIdx;//每个slot对应的索引的id？
+    private MappedRingBufferSliceIndex sliceIndex;
+    private MappedRingBufferSlotSummary summary;
+    private MappedRingBufferSecondaryIndex secondaryIndex;//工厂没有实现IRingBufferSecondaryKey时为null
+    private IRingBufferSecondaryKey<K, V> secondaryKeys;
+    private ThreadLocal<K> frameKeys;//解码frame提取二级key时复用的key和data
+    private ThreadLocal<V> frameValues;
+    private ThreadLocal<ByteBuffer> searchKeyBuffer;//保序编码时存放编码后的要找的key
+    private CRC32[] checkpointCrcs;//每个slot只有一个写者做checkpoint
+    private AtomicIntegerArray recordCounts;//各slot索引记录数在堆上的副本，懒映射模式下不用映射索引文件也能统计size
 
 
 
@@ -37,130 +83,722 @@ public class MappedRingBufferMemoryIndex<K, V> {
         this.indexBufferNamePrefix = indexBufferNamePrefix;
         this.indexSliceSize = indexSliceSize;
 
-        this.indexRecordBufferList = new ArrayList<>(this.slotCount);
-        this.indexBufferIdx = new ArrayList<>(this.slotCount);
+        this.indexRecordBuffers = new AtomicReferenceArray<>(this.slotCount);
+        this.indexBufferIdx = new int[this.slotCount];
+        this.checkpointCrcs = new CRC32[this.slotCount];
+        this.recordCounts = new AtomicIntegerArray(this.slotCount);
+        for (int i = 0; i < this.slotCount; i++) {
+            this.checkpointCrcs[i] = new CRC32();
+        }
+        final int keyLength = ringBuffer.getCodec().fixedKeyLength();
+        this.searchKeyBuffer = new ThreadLocal<ByteBuffer>() {
+            @Override
+            protected ByteBuffer initialValue() {
+                return ByteBuffer.allocate(keyLength);
+            }
+        };
+        int maxIndexRecords = (indexBufferSize - INDEX_HEADER_SIZE) / this.getIndexRecSize();
+        if (maxIndexRecords < 1) {
+            throw new IllegalArgumentException("indexFileSize " + indexBufferSize + " can not hold an index record of " + this.getIndexRecSize() + " bytes");
+        }
+        this.maxIndexRecords = maxIndexRecords;
+        this.sliceIndex = new MappedRingBufferSliceIndex(this.slotCount, ringBuffer.getCodec().fixedKeyLength(), indexSliceSize, maxIndexRecords);
+        long bloomKeys = ringBuffer.getBloomFilterKeysPerSlot() > 0 ? ringBuffer.getBloomFilterKeysPerSlot() : maxIndexRecords;
+        this.summary = new MappedRingBufferSlotSummary(this.slotCount, keyLength, ringBuffer.getBloomFilterBitsPerKey(), bloomKeys);
+        if (ringBuffer.getFactory() instanceof IRingBufferSecondaryKey) {
+            this.secondaryKeys = (IRingBufferSecondaryKey<K, V>) ringBuffer.getFactory();
+            this.secondaryIndex = new MappedRingBufferSecondaryIndex(this.slotCount, ringBuffer.getSecondaryIndexBuckets(), maxIndexRecords);
+            final IRingBufferCodec<K, V> codec = ringBuffer.getCodec();
+            this.frameKeys = new ThreadLocal<K>() {
+                @Override
+                protected K initialValue() {
+                    return codec.newRingBufferKey();
+                }
+            };
+            this.frameValues = new ThreadLocal<V>() {
+                @Override
+                protected V initialValue() {
+                    return codec.newRingBufferData();
+                }
+            };
+        }
     }
 
-    //基于跳表
+    //最老的非空slot的第一条key，没有数据抛NoSuchElementException
     public K firstKey() {
-        return indexSliceMap.firstKey();
+        int first = this.firstNonEmpty();
+        if (-1 == first) throw new NoSuchElementException();
+        short slotIdx = this.ringBuffer.slotIdxAt(first);
+        K key = this.ringBuffer.getCodec().newRingBufferKey();
+        this.decodeFenceKey(slotIdx, 0, key);
+        return key;
     }
 
+    //最新的非空slot的最大key，直接取slot上记录的maxKey
     public K lastKey() {
-        return indexSliceMap.lastKey();
+        for (int i = this.ringBuffer.liveSlotCount() - 1; i >= 0; i--) {
+            K maxKey = this.ringBuffer.getSlotList().get(this.ringBuffer.slotIdxAt(i)).getMaxKey();
+            if (null != maxKey) return maxKey;
+        }
+        throw new NoSuchElementException();
     }
 
-    //追加一条索引记录，索引应该存什么？为什么每条数据都创建一个index？
-    public void writeIndexData(short slotIdx, K key, MappedRingBufferIndexData data) {
-        int position = this.nextIndexPosition(slotIdx);
-        ByteBuffer indexBuffer = this.indexRecordBufferList.get(slotIdx);
+    //追加一条索引记录：先写索引记录和fence，再更新header count，读者不会读到不完整的索引
+    public void writeIndexData(short slotIdx, K key, V data, long dataPosition) {
+        ByteBuffer indexBuffer = this.indexRecordBuffers.get(slotIdx);
+        int indexRecCount = this.getIndexRecCount(indexBuffer);
+        int position = this.recordOffset(indexRecCount + 1);
+        int indexRecIndex = indexRecCount + 1;//索引记录从1开始编号
+
+        this.putIndexRecord(indexBuffer, position, key, slotIdx, dataPosition, indexRecIndex);
+        this.addSecondaryKey(slotIdx, indexRecIndex, key, data);
+        boolean fence = this.sliceIndex.isFence(indexRecIndex);
+        if (fence) {
+            this.sliceIndex.append(slotIdx, indexRecIndex, indexBuffer, position);
+        }
+        this.setIndexRecCount(slotIdx, indexBuffer, indexRecIndex);
+        if (fence) this.checkpoint(slotIdx);
+    }
 
+    /**
+     * 批量追加索引记录，整批只更新一次header count
+     * keys和values的下标范围是[from, to)，positions[i - from]是第i条记录在slot中的位置
+     */
+    public void writeIndexData(short slotIdx, K[] keys, V[] values, long[] positions, int from, int to) {
+        if (from >= to) return;
+        ByteBuffer indexBuffer = this.indexRecordBuffers.get(slotIdx);
         int indexRecCount = this.getIndexRecCount(indexBuffer);
-        indexBuffer.putInt(0,indexRecCount+1);
+        int position = this.recordOffset(indexRecCount + 1);
+        boolean fence = false;
+        for (int i = from; i < to; i++) {
+            int indexRecIndex = indexRecCount + 1 + i - from;
+            int next = this.putIndexRecord(indexBuffer, position, keys[i], slotIdx, positions[i - from], indexRecIndex);
+            this.addSecondaryKey(slotIdx, indexRecIndex, keys[i], values[i]);
+            if (this.sliceIndex.isFence(indexRecIndex)) {
+                this.sliceIndex.append(slotIdx, indexRecIndex, indexBuffer, position);
+                fence = true;
+            }
+            position = next;
+        }
+        this.setIndexRecCount(slotIdx, indexBuffer, indexRecCount + to - from);
+        if (fence) this.checkpoint(slotIdx);
+    }
 
-        try {
-            readWriteLock.writeLock().lock();
-            byte[] keyBuf = this.ringBuffer.getFactory().encodeKey(key);
-            for (byte b : keyBuf) {
-                indexBuffer.put(position,b);
-                position++;
+    /**
+     * 从数据文件恢复索引时批量追加：key直接从slot的frame中拷贝编码后的字节，不解码
+     * framePositions[i]是第i条记录在slot中的位置，frame的key从position+1开始
+     */
+    public void writeIndexDataFromFrames(short slotIdx, MappedRingBufferRegions regions, long[] framePositions, int count) {
+        if (0 == count) return;
+        ByteBuffer indexBuffer = this.indexRecordBuffers.get(slotIdx);
+        int indexRecCount = this.getIndexRecCount(indexBuffer);
+        int position = this.recordOffset(indexRecCount + 1);
+        for (int i = 0; i < count; i++) {
+            int indexRecIndex = indexRecCount + 1 + i;
+            this.putIndexRecord(indexBuffer, position, regions.region(framePositions[i]), regions.offset(framePositions[i]) + 1, slotIdx, framePositions[i], indexRecIndex);
+            this.addSecondaryKey(slotIdx, indexRecIndex, regions.region(framePositions[i]), regions.offset(framePositions[i]));
+            if (this.sliceIndex.isFence(indexRecIndex)) {
+                this.sliceIndex.append(slotIdx, indexRecIndex, indexBuffer, position);
             }
+            position += this.getIndexRecSize();
+        }
+        this.setIndexRecCount(slotIdx, indexBuffer, indexRecCount + count);
+    }
 
-            indexBuffer.putShort(position,data.getSlotIndex());
-            position+=2;
-            indexBuffer.putInt(position, data.getPosition());
-            position+=4;
-            indexBuffer.putInt(position,data.getIndexRecIndex());
-
-            //等待所有索引数据都成功写入direct buffer后再更新header count，防止在direct buffer中读到不完整的索引数据
-            this.incrIndexRecCountHeader(indexBuffer);
-
-            //跳表中始终存放着第一条最后一条和没间隔slice=100的记录:[1,100,200,300...最后一个]
-            if(indexRecCount==1 || 0 == indexRecCount%indexSliceSize){
-                //nothing
-            }else{
-                //remove掉前面一个key，节省skList占用的heap内存？
-                K previousKey = this.getKey(indexBuffer,(position-this.ringBuffer.getFactory().fixedKeyLength()*2-10*2));
-                this.indexSliceMap.remove(previousKey);//不懂
+    /**
+     * 追加一个压缩block中所有记录的索引，key从block解压后的frame中拷贝
+     * offsets[i]是第i条记录在block中的位置，data position是blockAddress(blockPosition, offsets[i])
+     *
+     * @param checkpoint writer写入时经过fence要checkpoint，从数据文件恢复时不用
+     */
+    public void writeIndexDataFromBlock(short slotIdx, ByteBuffer block, int[] offsets, int count, long blockPosition, boolean checkpoint) {
+        if (0 == count) return;
+        ByteBuffer indexBuffer = this.indexRecordBuffers.get(slotIdx);
+        int indexRecCount = this.getIndexRecCount(indexBuffer);
+        int position = this.recordOffset(indexRecCount + 1);
+        boolean fence = false;
+        for (int i = 0; i < count; i++) {
+            int indexRecIndex = indexRecCount + 1 + i;
+            this.putIndexRecord(indexBuffer, position, block, offsets[i] + 1, slotIdx, blockAddress(blockPosition, offsets[i]), indexRecIndex);
+            this.addSecondaryKey(slotIdx, indexRecIndex, block, offsets[i]);
+            if (this.sliceIndex.isFence(indexRecIndex)) {
+                this.sliceIndex.append(slotIdx, indexRecIndex, indexBuffer, position);
+                fence = true;
             }
-            this.indexSliceMap.put(key, data);
-        }finally {
-            readWriteLock.writeLock().unlock();
+            position += this.getIndexRecSize();
         }
+        this.setIndexRecCount(slotIdx, indexBuffer, indexRecCount + count);
+        if (fence && checkpoint) this.checkpoint(slotIdx);
     }
 
-    private K getKey(ByteBuffer indexBuffer, int i) {
-        return null;
+    //key从source的keyOffset处拷贝编码后的字节
+    private void putIndexRecord(ByteBuffer indexBuffer, int position, ByteBuffer source, int keyOffset, short slotIdx, long dataPosition, int indexRecIndex) {
+        int keyLength = this.ringBuffer.getCodec().fixedKeyLength();
+        for (int b = 0; b < keyLength; b++) {
+            indexBuffer.put(position + b, source.get(keyOffset + b));
+        }
+        indexBuffer.putShort(position + keyLength, slotIdx);
+        indexBuffer.putLong(position + keyLength + 2, dataPosition);
+        indexBuffer.putInt(position + keyLength + 10, indexRecIndex);
+        this.summary.add(slotIdx, indexBuffer, position, indexRecIndex);
     }
 
-    private void incrIndexRecCountHeader(ByteBuffer indexBuffer) {
+    private void addSecondaryKey(short slotIdx, int indexRecIndex, K key, V data) {
+        if (null == this.secondaryIndex) return;
+        this.secondaryIndex.add(slotIdx, indexRecIndex, this.secondaryKeys.secondaryKey(key, data));
+    }
+
+    //从frame（key length | key | data length | data）中解码出key和data再提取二级key
+    private void addSecondaryKey(short slotIdx, int indexRecIndex, ByteBuffer frame, int offset) {
+        if (null == this.secondaryIndex) return;
+        IRingBufferCodec<K, V> codec = this.ringBuffer.getCodec();
+        K key = this.frameKeys.get();
+        V data = this.frameValues.get();
+        int keyLength = frame.get(offset);
+        codec.decodeKey(frame, offset + 1, key);
+        codec.decodeData(frame, offset + 1 + keyLength + 4, frame.getInt(offset + 1 + keyLength), data);
+        this.secondaryIndex.add(slotIdx, indexRecIndex, this.secondaryKeys.secondaryKey(key, data));
+    }
+
+    /**
+     * slot被重新使用之前清空它的索引：fence表、header count和checkpoint置0
+     */
+    public void resetSlotIndex(short slotIdx) {
+        this.sliceIndex.reset(slotIdx);
+        this.summary.reset(slotIdx);
+        if (null != this.secondaryIndex) this.secondaryIndex.reset(slotIdx);
+        this.setIndexRecCount(slotIdx, this.indexRecordBuffers.get(slotIdx), 0);
+        this.checkpoint(slotIdx);
+    }
+
+    /**
+     * 回写时截断slot尾部的索引：只保留前count条索引记录，丢掉之后的fence，再重新checkpoint
+     * 先改count，读者按count截断fence数，不会读到被丢掉的记录
+     */
+    public void truncate(short slotIdx, int count) {
+        ByteBuffer indexBuffer = this.indexRecordBuffers.get(slotIdx);
+        this.setIndexRecCount(slotIdx, indexBuffer, count);
+        this.sliceIndex.truncate(slotIdx, this.sliceIndex.fenceCountOf(count));
+        if (0 == count) {
+            this.summary.reset(slotIdx);
+        } else {
+            this.summary.truncate(slotIdx, indexBuffer, this.recordOffset(count));
+        }
+        if (null != this.secondaryIndex) this.secondaryIndex.truncate(slotIdx, count);
+        this.checkpoint(slotIdx);
+    }
 
+    /**
+     * 把当前的count记为checkpoint，watermark是最后一条索引记录对应frame的结束位置
+     * 只能由slot的写者调用，或者写者已经停止（close、解除映射）
+     */
+    public void checkpoint(short slotIdx) {
+        if (this.ringBuffer.isReadOnly()) return;
+        MappedByteBuffer indexBuffer = this.indexRecordBuffers.get(slotIdx);
+        int count = this.getIndexRecCount(indexBuffer);
+        MappedRingBufferSlot<K, V> slot = this.ringBuffer.getSlotList().get(slotIdx);
+        long watermark = slot.getDataStart();
+        if (count > 0) {
+            watermark = this.frameEnd(slot.getRegions(), this.getDataPosition(slotIdx, count));
+        }
+        indexBuffer.putInt(CHECKPOINT_COUNT_OFFSET, count);
+        indexBuffer.putLong(WATERMARK_OFFSET, watermark);
+        indexBuffer.putInt(CRC_OFFSET, this.headerCrc(slotIdx, indexBuffer, count));
     }
 
-    private int nextIndexPosition(short slotIdx) {
-        return 0;
+    //crc覆盖header中除count和crc之外的字段，以及最后一条checkpoint的索引记录
+    private int headerCrc(short slotIdx, ByteBuffer indexBuffer, int checkpointCount) {
+        CRC32 crc = this.checkpointCrcs[slotIdx];
+        crc.reset();
+        for (int i = 0; i < INDEX_HEADER_SIZE; i++) {
+            if (i >= COUNT_OFFSET && i < COUNT_OFFSET + 4) continue;
+            if (i >= CRC_OFFSET && i < CRC_OFFSET + 4) continue;
+            crc.update(indexBuffer.get(i));
+        }
+        if (checkpointCount > 0) {
+            int offset = this.recordOffset(checkpointCount);
+            for (int i = 0; i < this.getIndexRecSize(); i++) {
+                crc.update(indexBuffer.get(offset + i));
+            }
+        }
+        return (int) crc.getValue();
     }
 
+    //dataPosition所在frame（普通记录或者整个block）的结束位置
+    private long frameEnd(MappedRingBufferRegions regions, long dataPosition) {
+        long framePosition = framePositionOf(dataPosition);
+        return framePosition + MappedRingBufferSlot.frameLength(regions.region(framePosition), regions.offset(framePosition));
+    }
+
+    // index record: key + slot index(2 bytes)+ position(8 bytes) + index_rec_idx(4 bytes)，返回下一条记录的位置
+    private int putIndexRecord(ByteBuffer indexBuffer, int position, K key, short slotIdx, long dataPosition, int indexRecIndex) {
+        IRingBufferCodec<K, V> codec = this.ringBuffer.getCodec();
+        codec.encodeKey(key, indexBuffer, position);
+        this.summary.add(slotIdx, indexBuffer, position, indexRecIndex);
+        position += codec.fixedKeyLength();
+        indexBuffer.putShort(position, slotIdx);
+        position += 2;
+        indexBuffer.putLong(position, dataPosition);
+        position += 8;
+        indexBuffer.putInt(position, indexRecIndex);
+        position += 4;
+        return position;
+    }
 
     /**
-     * 有索引文件，直接根据文件构建索引；
-     * 没有，创建索引文件，导入索引
-     * true 表示导入索引成功
+     * 根据key查找记录：先定位slot和slice，再到该slot的索引buffer中对定长索引记录二分查找
+     * 返回值高16位为slotIdx，低48位为索引记录的序号（见slotOf、positionOf），找不到返回-1
+     * 数据的位置用getDataPosition取，压缩block中的记录位置要64位，和slotIdx放不进一个long
+     *
+     * @param key
+     * @return
+     */
+    public long search(K key) {
+        return this.locate(key, true);
+    }
+
+    /**
+     * 第一条key>=参数key的记录
+     * 返回值高16位为slotIdx，低48位为索引记录的序号（从1开始），没有返回-1
+     */
+    public long lowerBound(K key) {
+        return this.locate(key, false);
+    }
+
+    private long locate(K key, boolean exact) {
+        //环中最老和最新的slot可能是空的（刚切换过去、或者正在被重新使用），中间的slot都有数据
+        int low = this.firstNonEmpty();
+        if (-1 == low) return -1;
+        int high = this.ringBuffer.liveSlotCount() - 1;
+        while (high > low && 0 == this.sliceIndex.getFenceCount(this.ringBuffer.slotIdxAt(high))) high--;
+
+        //保序编码时key只编码一次，否则每次比较都解码到probe中
+        ByteBuffer encoded = null;
+        K probe = null;
+        if (this.ringBuffer.isOrderedKey()) {
+            encoded = this.searchKeyBuffer.get();
+            this.ringBuffer.getCodec().encodeKey(key, encoded, 0);
+        } else {
+            probe = this.ringBuffer.getCodec().newRingBufferKey();
+        }
+
+        //最后一个第一条key<=key的slot
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            short midSlotIdx = this.ringBuffer.slotIdxAt(mid);
+            if (this.compare(this.sliceIndex.getFenceKeys(midSlotIdx), 0, key, encoded, probe) <= 0) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (-1 == found) {
+            if (exact) return -1;
+            return toAddress(this.ringBuffer.slotIdxAt(this.firstNonEmpty()), 1);
+        }
+
+        short slotIdx = this.ringBuffer.slotIdxAt(found);
+        MappedRingBufferSlot<K, V> slot = this.ringBuffer.getSlotList().get(slotIdx);
+        if (this.skipSlot(slot, key, exact, encoded)) {
+            //摘要已经说明这个slot里没有，不碰它的索引页，懒映射模式下也不用映射
+            this.ringBuffer.getMetrics().recordSummarySkip();
+            if (exact) return -1;
+        } else {
+            //懒映射模式下先pin住slot，保证二分查找期间索引buffer不会被解除映射
+            long address;
+            slot.pin();
+            try {
+                address = this.locateInSlot(key, exact, slotIdx, encoded, probe);
+            } finally {
+                slot.unpin();
+            }
+            if (-1 != address || exact) return address;
+        }
+        //比本slot所有记录都大，就是下一个非空slot的第一条记录
+        for (int i = found + 1; i < this.ringBuffer.liveSlotCount(); i++) {
+            short next = this.ringBuffer.slotIdxAt(i);
+            if (this.sliceIndex.getFenceCount(next) > 0) return toAddress(next, 1);
+        }
+        return -1;
+    }
+
+    /**
+     * key比slot的maxKey大（maxKey在索引记录之前更新，不会比读者能看到的记录小），
+     * 或者精确查找时Bloom filter里没有，就可以跳过这个slot
+     */
+    private boolean skipSlot(MappedRingBufferSlot<K, V> slot, K key, boolean exact, ByteBuffer encoded) {
+        K maxKey = slot.getMaxKey();
+        if (null != maxKey && ((Comparable) key).compareTo(maxKey) > 0) return true;
+        if (!exact || !this.summary.hasBloomFilter()) return false;
+        if (null == encoded) {
+            encoded = this.searchKeyBuffer.get();
+            this.ringBuffer.getCodec().encodeKey(key, encoded, 0);
+        }
+        return !this.summary.mightContain(slot.getSlotIdx(), encoded, 0);
+    }
+
+    private long locateInSlot(K key, boolean exact, short slotIdx, ByteBuffer encoded, K probe) {
+        ByteBuffer indexBuffer = this.indexRecordBuffers.get(slotIdx);
+        int count = this.getIndexRecCount(indexBuffer);
+        //fence可能比header count先写入，只看count之内的
+        int fenceCount = Math.min(this.sliceIndex.getFenceCount(slotIdx), this.sliceIndex.fenceCountOf(count));
+
+        //最后一个<=key的fence
+        int fenceLow = 0;
+        int fenceHigh = fenceCount - 1;
+        int fence = 0;
+        while (fenceLow <= fenceHigh) {
+            int mid = (fenceLow + fenceHigh) >>> 1;
+            if (this.compare(this.sliceIndex.getFenceKeys(slotIdx), this.sliceIndex.fenceKeyOffset(mid), key, encoded, probe) <= 0) {
+                fence = mid;
+                fenceLow = mid + 1;
+            } else {
+                fenceHigh = mid - 1;
+            }
+        }
+
+        //fence所在的slice内二分
+        int low = this.sliceIndex.fenceRecIndex(fence);
+        int high = fence + 1 < fenceCount ? this.sliceIndex.fenceRecIndex(fence + 1) - 1 : count;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = this.compare(indexBuffer, this.recordOffset(mid), key, encoded, probe);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return toAddress(slotIdx, mid);
+            }
+        }
+        if (exact) return -1;
+        //low是本slot中第一条比key大的记录
+        return low <= count ? toAddress(slotIdx, low) : -1;
+    }
+
+    //source中offset处编码后的key和要找的key比较；有encoded时直接比较字节，否则解码到probe再用Comparable比较
+    private int compare(ByteBuffer source, int offset, K key, ByteBuffer encoded, K probe) {
+        if (null != encoded) {
+            return MappedByteBufferUtil.compareUnsigned(source, offset, encoded, 0, encoded.capacity());
+        }
+        this.ringBuffer.getCodec().decodeKey(source, offset, probe);
+        return ((Comparable) probe).compareTo(key);
+    }
+
+    //环中从最老开始第一个有数据的slot的位置，没有返回-1
+    private int firstNonEmpty() {
+        int live = this.ringBuffer.liveSlotCount();
+        for (int i = 0; i < live; i++) {
+            if (this.sliceIndex.getFenceCount(this.ringBuffer.slotIdxAt(i)) > 0) return i;
+        }
+        return -1;
+    }
+
+    private void decodeFenceKey(short slotIdx, int fenceNo, K key) {
+        this.ringBuffer.getCodec().decodeKey(this.sliceIndex.getFenceKeys(slotIdx), this.sliceIndex.fenceKeyOffset(fenceNo), key);
+    }
+
+    //第indexRecIndex条索引记录对应的数据在slot中的位置（可能是blockAddress），懒映射模式下调用方需要pin住slot
+    public long getDataPosition(short slotIdx, int indexRecIndex) {
+        return this.indexRecordBuffers.get(slotIdx).getLong(this.recordOffset(indexRecIndex) + this.ringBuffer.getCodec().fixedKeyLength() + 2);
+    }
+
+    //把第indexRecIndex条索引记录的key解码到key中
+    public void decodeKey(short slotIdx, int indexRecIndex, K key) {
+        this.ringBuffer.getCodec().decodeKey(this.indexRecordBuffers.get(slotIdx), this.recordOffset(indexRecIndex), key);
+    }
+
+    //slot中的记录数，读堆上的副本，不需要pin
+    public int getRecordCount(short slotIdx) {
+        return this.recordCounts.get(slotIdx);
+    }
+
+    public int getIndexRecCount(short slotIdx) {
+        return this.getIndexRecCount(this.indexRecordBuffers.get(slotIdx));
+    }
+
+    public MappedRingBufferSliceIndex getSliceIndex() {
+        return this.sliceIndex;
+    }
+
+    static long toAddress(short slotIdx, long position) {
+        return ((long) slotIdx << 48) | (position & POSITION_MASK);
+    }
+
+    /**
+     * 压缩block中记录的data position：最高位是1，block的位置左移24位，低24位是记录在block中的位置
+     * block的位置最大2^39（512GB），block最大MAX_BLOCK_SIZE
+     */
+    static long blockAddress(long blockPosition, int offset) {
+        return BLOCK_FLAG | blockPosition << BLOCK_OFFSET_BITS | offset;
+    }
+
+    static boolean isBlockAddress(long dataPosition) {
+        return dataPosition < 0;
+    }
+
+    //data position所在frame在slot中的位置，压缩block中的记录就是block的位置
+    static long framePositionOf(long dataPosition) {
+        return isBlockAddress(dataPosition) ? (dataPosition & ~BLOCK_FLAG) >>> BLOCK_OFFSET_BITS : dataPosition;
+    }
+
+    static int blockOffsetOf(long dataPosition) {
+        return (int) (dataPosition & (MAX_BLOCK_SIZE - 1));
+    }
+
+    static short slotOf(long address) {
+        return (short) (address >>> 48);
+    }
+
+    static long positionOf(long address) {
+        return address & POSITION_MASK;
+    }
+
+
+
+    /**
+     * 有索引文件并且校验通过，直接根据文件构建索引，返回watermark，slot只需要从watermark开始扫描数据文件；
+     * 没有或者校验失败，新建下一代索引文件，返回数据的起始位置，slot从头扫描
+     * 最后删掉这个slot其他代的索引文件
      *
      * @param slotIdx
+     * @param regions slot的数据文件，用来校验checkpoint
      * @return
      */
-    public boolean buildIndex(short slotIdx) throws IOException {
-        //fileNamePattern : this.indexBufferNamePrefix + "index-%d.%d", slotIdx, index
-        String fileNamePattern = this.indexBufferNamePrefix + "index-" + slotIdx + ".";
-        File dir = new File(this.indexBufferDir);
-        String slotFileName = null;
-        //查找当前slot有效索引
-        int index = 0;
-        for (String name : dir.list()) {
-            if (name.startsWith(fileNamePattern)) {
-                int temp = Integer.valueOf(name.substring(name.lastIndexOf(".")+1));
-                if (temp > index) {//难道包含了slotIdx的索引文件不是唯一的吗？
-                    index = temp;
-                    slotFileName = name;
+    public long buildIndex(short slotIdx, MappedRingBufferRegions regions) throws IOException {
+        int newest = this.newestGeneration(slotIdx);
+        boolean summaryClean = this.summary.map(slotIdx, this.summaryName(slotIdx), false);
+        boolean secondaryClean = null != this.secondaryIndex && this.secondaryIndex.map(slotIdx, this.secondaryIndexName(slotIdx), false);
+
+        //之前已经有索引文件，校验最新的一代
+        if (-1 != newest) {
+            indexBufferIdx[slotIdx] = newest;
+            String slotFileName = this.currentIndexBufferName(slotIdx);
+            MappedByteBuffer indexByteBuffer = this.newByteBuffer(slotFileName, this.indexBufferSize);
+            if (this.isValid(slotIdx, indexByteBuffer, regions)) {
+                //checkpoint之后的索引记录不一定完整，从watermark开始重新扫描
+                int checkpointCount = indexByteBuffer.getInt(CHECKPOINT_COUNT_OFFSET);
+                this.setIndexRecCount(slotIdx, indexByteBuffer, checkpointCount);
+                indexRecordBuffers.set(slotIdx, indexByteBuffer);
+                this.buildMemIndex(slotIdx);
+                //上次没有正常关闭，摘要按checkpoint之前的索引记录重建，之后的记录扫描数据文件时加入
+                if (!summaryClean) {
+                    for (int num = 1; num <= checkpointCount; num++) {
+                        this.summary.add(slotIdx, indexByteBuffer, this.recordOffset(num), num);
+                    }
+                } else if (checkpointCount > 0) {
+                    this.summary.truncate(slotIdx, indexByteBuffer, this.recordOffset(checkpointCount));
+                }
+                if (secondaryClean) {
+                    this.secondaryIndex.truncate(slotIdx, checkpointCount);
+                } else if (null != this.secondaryIndex) {
+                    this.rebuildSecondaryIndex(slotIdx, regions, checkpointCount);
                 }
+                this.deleteStaleGenerations(slotIdx);
+                return indexByteBuffer.getLong(WATERMARK_OFFSET);
             }
+            MappedByteBufferUtil.unmap(indexByteBuffer);
+        }
+        if (-1 != newest || regions.getLastPosition() > regions.getHeaderSize()) {
+            this.ringBuffer.getMetrics().recordIndexRebuild();
         }
 
-        //之前已经有索引文件
-        if (slotFileName != null) {
-            indexBufferIdx.add(slotIdx, index);//难道不是相等吗？一个slot会有多个index文件？
-            slotFileName = this.getIndexBufferName(slotIdx);
-            MappedByteBuffer indexByteBuffer = this.newByteBuffer(slotFileName, this.indexBufferSize);
-            System.out.println("index buffer success " + slotFileName);
-            indexRecordBufferList.add(slotIdx, indexByteBuffer);
-            this.buildMemIndex(slotIdx);
-            return true;
-        } else {
-            //之前没有索引文件，会从数据文件重新开始构建索引记录
-            indexBufferIdx.add(slotIdx, 0);
-            this.createIndexFile(slotIdx);
+        //之前没有索引文件或者校验失败，新建下一代，从数据文件重新开始构建索引记录，摘要也跟着重建
+        if (summaryClean) this.summary.reset(slotIdx);
+        if (null != this.secondaryIndex) this.secondaryIndex.reset(slotIdx);
+        indexBufferIdx[slotIdx] = newest + 1;
+        this.createIndexFile(slotIdx);
+        this.deleteStaleGenerations(slotIdx);
+        return regions.getHeaderSize();
+    }
+
+    /**
+     * 二级索引上次没有正常关闭（或者参数变了）：清空后解码checkpoint之前的记录重新提取二级key，
+     * 之后的记录扫描数据文件时加入；同一个压缩block中的记录只解压一次
+     */
+    private void rebuildSecondaryIndex(short slotIdx, MappedRingBufferRegions regions, int checkpointCount) {
+        this.secondaryIndex.reset(slotIdx);
+        ByteBuffer block = null;
+        long blockPosition = -1;
+        for (int num = 1; num <= checkpointCount; num++) {
+            long dataPosition = this.getDataPosition(slotIdx, num);
+            long framePosition = framePositionOf(dataPosition);
+            if (isBlockAddress(dataPosition)) {
+                if (framePosition != blockPosition) {
+                    block = MappedRingBufferBlockCache.decode(regions.region(framePosition), regions.offset(framePosition), this.ringBuffer.getCompressor());
+                    blockPosition = framePosition;
+                }
+                this.addSecondaryKey(slotIdx, num, block, blockOffsetOf(dataPosition));
+            } else {
+                this.addSecondaryKey(slotIdx, num, regions.region(framePosition), regions.offset(framePosition));
+            }
+        }
+    }
+
+    /**
+     * 只读模式：映射writer进程当前代的索引文件，记录数和fence表在follow中同步
+     */
+    public void followIndex(short slotIdx) throws IOException {
+        int newest = this.newestGeneration(slotIdx);
+        if (-1 == newest) {
+            throw new IllegalStateException("index file of slot " + slotIdx + " does not exist, open the writer first");
+        }
+        indexBufferIdx[slotIdx] = newest;
+        indexRecordBuffers.set(slotIdx, this.newByteBuffer(this.currentIndexBufferName(slotIdx), this.indexBufferSize));
+        this.summary.map(slotIdx, this.summaryName(slotIdx), true);
+        if (null != this.secondaryIndex) this.secondaryIndex.map(slotIdx, this.secondaryIndexName(slotIdx), true);
+    }
+
+    //close时force摘要并标成正常关闭
+    public void closeSummary(short slotIdx) {
+        this.summary.close(slotIdx, this.ringBuffer.isReadOnly());
+    }
+
+    //close时force二级索引并标成正常关闭
+    public void closeSecondaryIndex(short slotIdx) throws IOException {
+        if (null == this.secondaryIndex) return;
+        this.secondaryIndex.close(slotIdx, this.secondaryIndexName(slotIdx), this.ringBuffer.isReadOnly());
+    }
+
+    /**
+     * slot中二级key等于secondaryKey的记录的索引序号，按主key递增；调用方需要pin住slot
+     * 只看header count之内的记录，不会返回写了一半或者已经被回写丢掉的记录
+     */
+    public int[] findSecondary(short slotIdx, long secondaryKey) {
+        return this.secondaryIndex.find(slotIdx, secondaryKey, this.getIndexRecCount(slotIdx));
+    }
+
+    public boolean hasSecondaryIndex() {
+        return null != this.secondaryIndex;
+    }
+
+    /**
+     * 只读模式下跟上writer进程：读header中的count，给count之内新增的索引记录补上fence
+     * reset表示slot被writer清空、回写或者重新使用过，fence表从头重建
+     *
+     * @return 同步后的记录数
+     */
+    public int follow(short slotIdx, boolean reset) {
+        ByteBuffer indexBuffer = this.indexRecordBuffers.get(slotIdx);
+        int count = this.getIndexRecCount(indexBuffer);
+        //count之后再读索引记录
+        MappedByteBufferUtil.loadFence();
+        int known = reset ? 0 : this.recordCounts.get(slotIdx);
+        if (reset) {
+            this.sliceIndex.reset(slotIdx);
+        } else if (count < known) {
+            this.sliceIndex.truncate(slotIdx, this.sliceIndex.fenceCountOf(count));
+        }
+        for (int num = this.sliceIndex.fenceRecIndex(this.sliceIndex.fenceCountOf(known)); num <= count; num += this.indexSliceSize) {
+            this.sliceIndex.append(slotIdx, num, indexBuffer, this.recordOffset(num));
+        }
+        this.recordCounts.set(slotIdx, count);
+        return count;
+    }
+
+    //fileNamePattern : this.indexBufferNamePrefix + "index-%d.%d", slotIdx, index，没有索引文件返回-1
+    private int newestGeneration(short slotIdx) {
+        int newest = -1;
+        for (String name : this.listIndexFiles(slotIdx)) {
+            newest = Math.max(newest, Integer.valueOf(name.substring(name.lastIndexOf(".") + 1)));
+        }
+        return newest;
+    }
+
+    //校验索引文件的header、crc，以及最后一条checkpoint的索引记录是否和数据文件中的frame对得上
+    private boolean isValid(short slotIdx, ByteBuffer indexBuffer, MappedRingBufferRegions regions) {
+        int keyLength = this.ringBuffer.getCodec().fixedKeyLength();
+        if (INDEX_MAGIC != indexBuffer.getInt(0) || INDEX_VERSION != indexBuffer.getInt(4)
+                || keyLength != indexBuffer.getInt(KEY_LENGTH_OFFSET)) {
+            return false;
+        }
+        int checkpointCount = indexBuffer.getInt(CHECKPOINT_COUNT_OFFSET);
+        long watermark = indexBuffer.getLong(WATERMARK_OFFSET);
+        int dataStart = regions.getHeaderSize();
+        if (checkpointCount < 0 || this.indexBytes(checkpointCount) > indexBuffer.capacity()) return false;
+        if (watermark < dataStart || watermark > regions.getLastPosition()) return false;
+        if (indexBuffer.getInt(CRC_OFFSET) != this.headerCrc(slotIdx, indexBuffer, checkpointCount)) return false;
+        if (0 == checkpointCount) return dataStart == watermark;
+
+        int offset = this.recordOffset(checkpointCount);
+        long dataPosition = indexBuffer.getLong(offset + keyLength + 2);
+        long framePosition = framePositionOf(dataPosition);
+        if (slotIdx != indexBuffer.getShort(offset + keyLength) || checkpointCount != indexBuffer.getInt(offset + keyLength + 10)) return false;
+        if (framePosition < dataStart || framePosition >= watermark) return false;
+        ByteBuffer dataBuffer = regions.region(framePosition);
+        int dataOffset = regions.offset(framePosition);
+        if (isBlockAddress(dataPosition)) {
+            //checkpoint的记录在压缩block中，解压后比较
+            if (!MappedRingBufferBlockCache.isBlock(dataBuffer, dataOffset)) return false;
+            dataBuffer = MappedRingBufferBlockCache.decode(dataBuffer, dataOffset, this.ringBuffer.getCompressor());
+            dataOffset = blockOffsetOf(dataPosition);
+            if (dataOffset + 1 + keyLength > dataBuffer.limit()) return false;
+        }
+        if (keyLength != dataBuffer.get(dataOffset)) return false;
+        if (0 != MappedByteBufferUtil.compareUnsigned(indexBuffer, offset, dataBuffer, dataOffset + 1, keyLength)) return false;
+        if (watermark != this.frameEnd(regions, dataPosition)) return false;
+        return !this.ringBuffer.isVerifyIndexOnLoad() || this.verifyRecords(slotIdx, indexBuffer, checkpointCount, watermark);
+    }
+
+    //逐条检查checkpoint之前的索引记录：序号连续、slot正确、数据位置递增（同一个block中按block内的位置递增），只读索引文件
+    private boolean verifyRecords(short slotIdx, ByteBuffer indexBuffer, int checkpointCount, long watermark) {
+        int keyLength = this.ringBuffer.getCodec().fixedKeyLength();
+        long previous = 0;
+        int previousOffset = -1;
+        for (int i = 1; i <= checkpointCount; i++) {
+            int offset = this.recordOffset(i);
+            long dataPosition = indexBuffer.getLong(offset + keyLength + 2);
+            long framePosition = framePositionOf(dataPosition);
+            int blockOffset = isBlockAddress(dataPosition) ? blockOffsetOf(dataPosition) : -1;
+            if (slotIdx != indexBuffer.getShort(offset + keyLength) || i != indexBuffer.getInt(offset + keyLength + 10)) return false;
+            if (framePosition < previous || framePosition >= watermark) return false;
+            if (framePosition == previous && (-1 == blockOffset || blockOffset <= previousOffset)) return false;
+            previous = framePosition;
+            previousOffset = blockOffset;
+        }
+        return true;
+    }
+
+    private List<String> listIndexFiles(short slotIdx) {
+        String fileNamePattern = this.indexBufferNamePrefix + "index-" + slotIdx + ".";
+        List<String> names = new ArrayList<>();
+        for (String name : new File(this.indexBufferDir).list()) {
+            if (name.startsWith(fileNamePattern)) names.add(name);
+        }
+        return names;
+    }
+
+    //删掉这个slot不是当前代的索引文件
+    private void deleteStaleGenerations(short slotIdx) {
+        String current = new File(this.currentIndexBufferName(slotIdx)).getName();
+        for (String name : this.listIndexFiles(slotIdx)) {
+            if (!name.equals(current)) new File(this.indexBufferDir, name).delete();
         }
-        return false;
     }
 
     //创建索引文件
     private void createIndexFile(short slotIdx) throws IOException {
-        MappedByteBuffer indexByteBuffer = this.newByteBuffer(this.getIndexBufferName(slotIdx), this.indexBufferSize);
-        indexByteBuffer.putInt(0);//0表示索引记录数为0个
-        this.indexRecordBufferList.add(slotIdx, indexByteBuffer);//当前slot使用的哪个index buffer
+        MappedByteBuffer indexByteBuffer = this.newByteBuffer(this.currentIndexBufferName(slotIdx), this.indexBufferSize);
+        indexByteBuffer.putInt(0, INDEX_MAGIC);
+        indexByteBuffer.putInt(4, INDEX_VERSION);
+        indexByteBuffer.putInt(KEY_LENGTH_OFFSET, this.ringBuffer.getCodec().fixedKeyLength());
+        this.setIndexRecCount(slotIdx, indexByteBuffer, 0);//0表示索引记录数为0个
+        this.indexRecordBuffers.set(slotIdx, indexByteBuffer);//当前slot使用的哪个index buffer
+        this.checkpoint(slotIdx);
     }
 
     private MappedByteBuffer newByteBuffer(String indexBufferName, int indexBufferSize) throws IOException {
+        boolean readOnly = this.ringBuffer.isReadOnly();
         File file = new File(indexBufferName);
-        if (!file.exists()) file.createNewFile();
+        if (!readOnly && !file.exists()) file.createNewFile();
         RandomAccessFile raFile = null;
         FileChannel chanel = null;
         try {
-            raFile = new RandomAccessFile(indexBufferName, "rw");
+            raFile = new RandomAccessFile(indexBufferName, readOnly ? "r" : "rw");
             chanel = raFile.getChannel();
-            MappedByteBuffer indexByteBuffer = chanel.map(FileChannel.MapMode.READ_WRITE, 0, indexBufferSize);
-            System.out.println("newByteBuffer success " + indexBufferName);
+            MappedByteBuffer indexByteBuffer = chanel.map(readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE, 0, indexBufferSize);
             return indexByteBuffer;
         } finally {
             chanel.close();
@@ -168,125 +806,120 @@ public class MappedRingBufferMemoryIndex<K, V> {
         }
     }
 
-    private String getIndexBufferName(short slotIdx) {
-        int index = indexBufferIdx.get(slotIdx);//一个slot多个index文件
-        ++index;
-        indexBufferIdx.set(slotIdx, index);
-        return String.format(this.indexBufferDir + "/" + this.indexBufferNamePrefix + "index-%d.%d", slotIdx, index);
+    //懒映射模式下slot被重新访问时，映射当前代的索引文件
+    public void mapIndex(short slotIdx) throws IOException {
+        if (null != this.indexRecordBuffers.get(slotIdx)) return;
+        this.indexRecordBuffers.set(slotIdx, this.newByteBuffer(this.currentIndexBufferName(slotIdx), this.indexBufferSize));
+        if (null != this.secondaryIndex) this.secondaryIndex.map(slotIdx, this.secondaryIndexName(slotIdx), false);
+    }
+
+    //懒映射模式下slot被淘汰时解除索引的映射，调用方保证没有读者在使用
+    public void unmapIndex(short slotIdx) {
+        MappedByteBuffer indexBuffer = this.indexRecordBuffers.getAndSet(slotIdx, null);
+        if (null == indexBuffer) return;
+        indexBuffer.force();
+        MappedByteBufferUtil.unmap(indexBuffer);
+        if (null != this.secondaryIndex) this.secondaryIndex.unmap(slotIdx);
+    }
+
+    private String summaryName(short slotIdx) {
+        return this.indexBufferDir + "/" + this.indexBufferNamePrefix + "summary-" + slotIdx;
+    }
+
+    private String secondaryIndexName(short slotIdx) {
+        return this.indexBufferDir + "/" + this.indexBufferNamePrefix + "secondary-" + slotIdx;
+    }
+
+    private String currentIndexBufferName(short slotIdx) {
+        return String.format(this.indexBufferDir + "/" + this.indexBufferNamePrefix + "index-%d.%d", slotIdx, indexBufferIdx[slotIdx]);
     }
 
     /**
-     * 构建跳表索引
-     * 规则：插入每个连续空间的第一个、最后一个
+     * 构建内存索引
+     * 规则：每个slice的第一条索引记录的key拷贝到fence表中
      *
      * @param slotIdx
      */
     private void buildMemIndex(short slotIdx) {
-        MappedByteBuffer indexByteBuffer = this.indexRecordBufferList.get(slotIdx);
+        MappedByteBuffer indexByteBuffer = this.indexRecordBuffers.get(slotIdx);
         int total = this.getIndexRecCount(indexByteBuffer);
-        //表示没有数据
-        if (0 == total) {
-            indexByteBuffer.position(4);
-            return;
-        }
-        //indexByteBuffer存所有数据，heap中只存每隔slice的数据
-        for (int num = this.indexSliceSize; num < total; num += this.indexSliceSize) {
-            put2MemIndex(indexByteBuffer, num);
-        }
-
-        //确保第一条数据也放到heap中
-        if (total > 1) {
-            put2MemIndex(indexByteBuffer, 1);
+        this.sliceIndex.reset(slotIdx);
+        //indexByteBuffer存所有数据，fence表中只存每隔slice的key
+        for (int num = 1; num <= total; num += this.indexSliceSize) {
+            this.sliceIndex.append(slotIdx, num, indexByteBuffer, this.recordOffset(num));
         }
-        //确保第后一条数据也放到heap中
-        put2MemIndex(indexByteBuffer, total);
 
         //移动position到最后的位置
-        indexByteBuffer.position(4 + total * this.getIndexRecSize());
-    }
-
-    //挑出的数据，存到heap中，也就是indexSliceMap中
-    private void put2MemIndex(MappedByteBuffer indexByteBuffer, int index) {
-        K key = this.ringBuffer.getFactory().newRingBufferKey();//一个空的key，等待填充
-        MappedRingBufferIndexData data = new MappedRingBufferIndexData();
-        this.readFromSlice(indexByteBuffer, index, key, data);
-        this.indexSliceMap.put(key, data);
+        indexByteBuffer.position(this.recordOffset(total + 1));
     }
 
     /**
-     * 从分片读？
+     * 索引文件中有多少条数据
      *
      * @param indexByteBuffer
-     * @param from
-     * @param key
-     * @param data
+     * @return
      */
-    private void readFromSlice(MappedByteBuffer indexByteBuffer, int from, K key, MappedRingBufferIndexData data) {
-        //索引文件中有多少条数据
-        int total = this.getIndexRecCount(indexByteBuffer);
-        if (from > total || from < 1) {
-            throw new IllegalArgumentException("from illegal " + from);
-        }
+    private int getIndexRecCount(ByteBuffer indexByteBuffer) {
+        return indexByteBuffer.getInt(COUNT_OFFSET);
+    }
 
-        //=======填充key=========
-        int fixLen = this.ringBuffer.getFactory().fixedKeyLength();
-        byte[] keyBuf = new byte[fixLen];
-        // index records count(4 bytes) | [key + slot index(2 bytes)+ position(4 bytes)] | ........
-        int temp = 4 + this.getIndexRecSize() * (from - 1);//什么意思？计算key的位置？
-        for (int i = 0; i < fixLen; i++) {
-            byte b = indexByteBuffer.get(temp);
-            temp += 1;
-            keyBuf[i] = b;
-        }
-        this.ringBuffer.getFactory().decodeKey(keyBuf, key);//填充key
-        //=======填充key=======
+    //count之前的索引记录先于count对其他进程可见
+    private void setIndexRecCount(short slotIdx, ByteBuffer indexByteBuffer, int count) {
+        MappedByteBufferUtil.storeFence();
+        indexByteBuffer.putInt(COUNT_OFFSET, count);
+        this.recordCounts.lazySet(slotIdx, count);
+    }
+
+    //第indexRecIndex条索引记录在索引buffer中的位置
+    private int recordOffset(int indexRecIndex) {
+        return INDEX_HEADER_SIZE + this.getIndexRecSize() * (indexRecIndex - 1);
+    }
+
+    public MappedByteBuffer getIndexRecordBuffer(short slotIdx) {
+        return this.indexRecordBuffers.get(slotIdx);
+    }
 
-        //=======填充value======================
-        //这里temp不需要先加个key length ?
-        short slotIndex = indexByteBuffer.getShort(temp);
-        temp += 2;
+    //索引buffer中已经写入的最后位置
+    public int getIndexEndPosition(short slotIdx) {
+        return this.recordOffset(this.getIndexRecCount(this.indexRecordBuffers.get(slotIdx)) + 1);
+    }
 
-        int position = indexByteBuffer.getInt(temp);
-        temp += 4;
+    //header加上count条索引记录的字节数，用long计算，索引文件接近2GB时不会溢出
+    private long indexBytes(long count) {
+        return INDEX_HEADER_SIZE + this.getIndexRecSize() * count;
+    }
 
-        //index所在的
-        int indexRecIdx = indexByteBuffer.getInt(temp);
-        temp += 4;
+    //slot的索引文件还能不能再放count条索引记录
+    public boolean hasRoom(short slotIdx, int count) {
+        return count <= this.getIndexRoom(slotIdx);
+    }
 
-        //
-        data.setSlotIndex(slotIndex);
-        data.setIndexRecIndex(indexRecIdx);
-        data.setPosition(position);
-        //=======填充value======================
+    //slot的索引文件还能再放几条索引记录
+    public int getIndexRoom(short slotIdx) {
+        return this.maxIndexRecords - this.getIndexRecCount(slotIdx);
+    }
 
-        if (data.getIndexRecIndex() != from) {
-            throw new IllegalStateException("from not equal indexRecIndex");
-        }
+    public int getMaxIndexRecords() {
+        return this.maxIndexRecords;
     }
 
-    /**
-     * 索引文件中有多少条数据
-     *
-     * @param indexByteBuffer
-     * @return
-     */
-    private int getIndexRecCount(ByteBuffer indexByteBuffer) {
-        return indexByteBuffer.getInt(0);
+    //slot的索引文件已经用了的比例，读堆上的记录数，不需要pin
+    public double getIndexBufferFill(short slotIdx) {
+        return (double) this.indexBytes(this.getRecordCount(slotIdx)) / this.indexBufferSize;
     }
 
     //一条索引的长度
     public int getIndexRecSize() {
         //key length + slot index + position + index_rec_idx（该索引所在index的id）
-        return this.ringBuffer.getFactory().fixedKeyLength() + 2 + 4 + 4;
+        return this.ringBuffer.getCodec().fixedKeyLength() + 2 + 8 + 4;
     }
 
+    //slot中最后一条索引记录的key，直接从索引记录解码
     public K getMaxKey(short slotIdx) {
-        MappedByteBuffer indexByteBuffer = this.indexRecordBufferList.get(slotIdx);
-        int total = this.getIndexRecCount(indexByteBuffer);
+        int total = this.getIndexRecCount(slotIdx);
         if (0 == total) return null;
-        K key = this.ringBuffer.getFactory().newRingBufferKey();//一个空的key，等待填充
-        MappedRingBufferIndexData data = new MappedRingBufferIndexData();
-        this.readFromSlice(indexByteBuffer, total, key, data);
+        K key = this.ringBuffer.getCodec().newRingBufferKey();//一个空的key，等待填充
+        this.decodeKey(slotIdx, total, key);
         return key;
     }
 }
@@ -0,0 +1,315 @@
+package com.luo.store;
+
+import lombok.Getter;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Created by luohui on 17/7/4.
+ * ring的运行指标：写路径上只有LongAdder和直方图的原子加，不加锁也不分配对象
+ * 延迟统计需要两次System.nanoTime()，MappedRingBuffer.setLatencyMetrics(false)可以关掉，计数器一直开着
+ * 状态类的指标（写slot的填充比例等）在读取时现算，不占写路径
+ */
+public class MappedRingBufferMetrics implements MappedRingBufferMXBean {
+    private final MappedRingBuffer<?, ?> ringBuffer;
+    private final boolean latencyEnabled;
+    private final LongAdder recordsWritten = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder slotRollovers = new LongAdder();
+    private final LongAdder overrides = new LongAdder();
+    private final LongAdder rejectedPuts = new LongAdder();
+    private final LongAdder checksumFailures = new LongAdder();
+    private final LongAdder droppedSlots = new LongAdder();
+    private final LongAdder scannedRecords = new LongAdder();
+    private final LongAdder summarySkips = new LongAdder();
+    private final LongAdder truncatedBytes = new LongAdder();
+    private final LongAdder indexRebuilds = new LongAdder();
+    private final LongAdder missingSlotFiles = new LongAdder();
+    private final MappedRingBufferLatencyHistogram putLatency = new MappedRingBufferLatencyHistogram();
+    private final MappedRingBufferLatencyHistogram getLatency = new MappedRingBufferLatencyHistogram();
+    private final MappedRingBufferLatencyHistogram scanLatency = new MappedRingBufferLatencyHistogram();
+    private ObjectName objectName;
+
+    public MappedRingBufferMetrics(MappedRingBuffer<?, ?> ringBuffer, boolean latencyEnabled) {
+        this.ringBuffer = ringBuffer;
+        this.latencyEnabled = latencyEnabled;
+    }
+
+    //计时开始，关掉延迟统计时返回0
+    public long startNanos() {
+        return this.latencyEnabled ? System.nanoTime() : 0;
+    }
+
+    public void recordPut(long startNanos) {
+        if (this.latencyEnabled) this.putLatency.record(System.nanoTime() - startNanos);
+    }
+
+    public void recordGet(long startNanos) {
+        if (this.latencyEnabled) this.getLatency.record(System.nanoTime() - startNanos);
+    }
+
+    public void recordScan(long startNanos, long records) {
+        this.scannedRecords.add(records);
+        if (this.latencyEnabled) this.scanLatency.record(System.nanoTime() - startNanos);
+    }
+
+    public void recordSummarySkip() {
+        this.summarySkips.increment();
+    }
+
+    public void recordWrite(int records, long bytes) {
+        this.recordsWritten.add(records);
+        this.bytesWritten.add(bytes);
+    }
+
+    public void recordRollover() {
+        this.slotRollovers.increment();
+    }
+
+    public void recordOverride() {
+        this.overrides.increment();
+    }
+
+    public void recordRejectedPut() {
+        this.rejectedPuts.increment();
+    }
+
+    public void recordChecksumFailure() {
+        this.checksumFailures.increment();
+    }
+
+    public void recordDroppedSlot() {
+        this.droppedSlots.increment();
+    }
+
+    public void recordTruncate(long bytes) {
+        this.truncatedBytes.add(bytes);
+    }
+
+    public void recordIndexRebuild() {
+        this.indexRebuilds.increment();
+    }
+
+    public void recordMissingSlotFile() {
+        this.missingSlotFiles.increment();
+    }
+
+    //所有属性的一份拷贝
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * 注册MXBean，同一个目录和前缀的ring在一个进程里只能打开一个（slot文件有锁），名字不会冲突
+     * 只读打开的ring名字后面多一个mode=readOnly，和同一进程里的writer区分开
+     */
+    public void register(String dataFileDir, String dataFileNamePrefix, boolean readOnly) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            String name = new File(dataFileDir).getCanonicalPath() + File.separator + dataFileNamePrefix;
+            ObjectName objectName = new ObjectName("com.luo.store:type=MappedRingBuffer,name=" + ObjectName.quote(name) + (readOnly ? ",mode=readOnly" : ""));
+            server.registerMBean(this, objectName);
+            this.objectName = objectName;
+        } catch (JMException | IOException e) {
+            throw new IllegalStateException("register MXBean failed, ring " + dataFileDir + "/" + dataFileNamePrefix, e);
+        }
+    }
+
+    public void unregister() {
+        if (null == this.objectName) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.objectName);
+        } catch (JMException e) {
+            throw new IllegalStateException("unregister MXBean failed " + this.objectName, e);
+        } finally {
+            this.objectName = null;
+        }
+    }
+
+    public ObjectName getObjectName() {
+        return this.objectName;
+    }
+
+    @Override
+    public long getRecordsWritten() {
+        return this.recordsWritten.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return this.bytesWritten.sum();
+    }
+
+    @Override
+    public long getSlotRollovers() {
+        return this.slotRollovers.sum();
+    }
+
+    @Override
+    public long getOverrides() {
+        return this.overrides.sum();
+    }
+
+    @Override
+    public long getRejectedPuts() {
+        return this.rejectedPuts.sum();
+    }
+
+    @Override
+    public long getChecksumFailures() {
+        return this.checksumFailures.sum();
+    }
+
+    @Override
+    public long getDroppedSlots() {
+        return this.droppedSlots.sum();
+    }
+
+    @Override
+    public long getScannedRecords() {
+        return this.scannedRecords.sum();
+    }
+
+    @Override
+    public long getSummarySkips() {
+        return this.summarySkips.sum();
+    }
+
+    @Override
+    public long getRecoveredRecords() {
+        long records = 0;
+        for (MappedRingBufferSlot<?, ?> slot : this.ringBuffer.getSlotList()) {
+            records += slot.getRecoveredRecords();
+        }
+        return records;
+    }
+
+    @Override
+    public long getTruncatedBytes() {
+        return this.truncatedBytes.sum();
+    }
+
+    @Override
+    public long getIndexRebuilds() {
+        return this.indexRebuilds.sum();
+    }
+
+    @Override
+    public long getMissingSlotFiles() {
+        return this.missingSlotFiles.sum();
+    }
+
+    @Override
+    public long[] getSlotLoadMillis() {
+        long[] millis = this.ringBuffer.getSlotLoadMillis();
+        return null == millis ? new long[0] : millis.clone();
+    }
+
+    @Override
+    public MappedRingBufferLatencyHistogram.Snapshot getPutLatency() {
+        return this.putLatency.snapshot();
+    }
+
+    @Override
+    public MappedRingBufferLatencyHistogram.Snapshot getGetLatency() {
+        return this.getLatency.snapshot();
+    }
+
+    @Override
+    public MappedRingBufferLatencyHistogram.Snapshot getScanLatency() {
+        return this.scanLatency.snapshot();
+    }
+
+    @Override
+    public int getCurrentSlotIdx() {
+        return this.ringBuffer.getCurrentSlotIdx();
+    }
+
+    @Override
+    public double getCurrentSlotFill() {
+        MappedRingBufferSlot<?, ?> slot = this.ringBuffer.getCurrentSlot();
+        return (double) (slot.getPublishedPosition() - slot.getDataStart()) / (slot.getFileSize() - slot.getDataStart());
+    }
+
+    @Override
+    public double getIndexBufferFill() {
+        return this.ringBuffer.getMemoryIndexer().getIndexBufferFill((short) this.ringBuffer.getCurrentSlotIdx());
+    }
+
+    @Override
+    public long getSliceIndexFences() {
+        MappedRingBufferSliceIndex sliceIndex = this.ringBuffer.getMemoryIndexer().getSliceIndex();
+        long fences = 0;
+        for (short slotIdx = 0; slotIdx < this.ringBuffer.getDataFileCount(); slotIdx++) {
+            fences += sliceIndex.getFenceCount(slotIdx);
+        }
+        return fences;
+    }
+
+    @Override
+    public long[] getRecordsPerSlot() {
+        long[] records = new long[this.ringBuffer.getDataFileCount()];
+        for (short slotIdx = 0; slotIdx < records.length; slotIdx++) {
+            records[slotIdx] = this.ringBuffer.getMemoryIndexer().getRecordCount(slotIdx);
+        }
+        return records;
+    }
+
+    //某一时刻所有属性的拷贝
+    @Getter
+    public static class Snapshot implements MappedRingBufferMXBean {
+        private final long recordsWritten;
+        private final long bytesWritten;
+        private final long slotRollovers;
+        private final long overrides;
+        private final long rejectedPuts;
+        private final long checksumFailures;
+        private final long droppedSlots;
+        private final long scannedRecords;
+        private final long summarySkips;
+        private final long recoveredRecords;
+        private final long truncatedBytes;
+        private final long indexRebuilds;
+        private final long missingSlotFiles;
+        private final long[] slotLoadMillis;
+        private final MappedRingBufferLatencyHistogram.Snapshot putLatency;
+        private final MappedRingBufferLatencyHistogram.Snapshot getLatency;
+        private final MappedRingBufferLatencyHistogram.Snapshot scanLatency;
+        private final int currentSlotIdx;
+        private final double currentSlotFill;
+        private final double indexBufferFill;
+        private final long sliceIndexFences;
+        private final long[] recordsPerSlot;
+
+        private Snapshot(MappedRingBufferMXBean source) {
+            this.recordsWritten = source.getRecordsWritten();
+            this.bytesWritten = source.getBytesWritten();
+            this.slotRollovers = source.getSlotRollovers();
+            this.overrides = source.getOverrides();
+            this.rejectedPuts = source.getRejectedPuts();
+            this.checksumFailures = source.getChecksumFailures();
+            this.droppedSlots = source.getDroppedSlots();
+            this.scannedRecords = source.getScannedRecords();
+            this.summarySkips = source.getSummarySkips();
+            this.recoveredRecords = source.getRecoveredRecords();
+            this.truncatedBytes = source.getTruncatedBytes();
+            this.indexRebuilds = source.getIndexRebuilds();
+            this.missingSlotFiles = source.getMissingSlotFiles();
+            this.slotLoadMillis = source.getSlotLoadMillis();
+            this.putLatency = source.getPutLatency();
+            this.getLatency = source.getGetLatency();
+            this.scanLatency = source.getScanLatency();
+            this.currentSlotIdx = source.getCurrentSlotIdx();
+            this.currentSlotFill = source.getCurrentSlotFill();
+            this.indexBufferFill = source.getIndexBufferFill();
+            this.sliceIndexFences = source.getSliceIndexFences();
+            this.recordsPerSlot = source.getRecordsPerSlot();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.luo.store;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Created by luohui on 17/7/4.
+ * 复制的follower端：从source读MappedRingBufferShipper发来的chunk，数据直接读进follower的slot文件的mmap中同一个位置，
+ * 再给其中完整的frame建索引（key从frame拷贝，不解码data）并发布；chunk头的格式见MappedRingBufferShipper
+ * follower的slot数、数据文件大小和region大小必须和leader一样，压缩的block要配置同样的compressor；
+ * follower只接收复制的数据，不要再put
+ * <p>
+ * 按chunk的slot index、代数和offset跟随leader：
+ * 接着当前slot收到的位置写；leader切换到下一个slot时follower也切换，slot的代数和leader一样；
+ * offset比已经收到的位置小说明leader回写过，follower回写到同一个位置（可能是之前的slot）；
+ * 对不上（follower落后太多、leader的slot被重新使用过）抛IllegalStateException，follower要清空后从头同步
+ */
+public class MappedRingBufferReceiver<K, V> {
+    private final MappedRingBuffer<K, V> ringBuffer;
+    private final ByteBuffer header = ByteBuffer.allocate(MappedRingBufferShipper.CHUNK_HEADER_SIZE);
+    private long received;//当前slot已经收到的位置，可能停在frame中间
+
+    public MappedRingBufferReceiver(MappedRingBuffer<K, V> ringBuffer) {
+        this.ringBuffer = ringBuffer;
+        this.received = ringBuffer.getCurrentSlot().getPublishedPosition();
+    }
+
+    /**
+     * leader断开重连后从这里继续发，见MappedRingBufferShipper(ringBuffer, position)：
+     * 当前slot已经发布的位置，没发布的半个frame会重新发；follower还没有数据时是0，从leader最老的数据开始
+     */
+    public long position() {
+        if (0 == this.ringBuffer.size()) return 0;
+        MappedRingBufferSlot<K, V> current = this.ringBuffer.getCurrentSlot();
+        return MappedRingBufferMemoryIndex.toAddress(current.getSlotIdx(), current.getPublishedPosition());
+    }
+
+    /**
+     * 读一个chunk并发布其中完整的frame
+     *
+     * @return source在chunk边界结束时返回false
+     */
+    public boolean receive(ReadableByteChannel source) throws IOException {
+        this.header.clear();
+        while (this.header.hasRemaining()) {
+            if (-1 == source.read(this.header)) {
+                if (0 == this.header.position()) return false;
+                throw new EOFException("source closed in the middle of a chunk header");
+            }
+        }
+        this.header.flip();
+        if (MappedRingBufferShipper.CHUNK_MAGIC != this.header.getInt(0)) {
+            throw new IllegalStateException("not a ring buffer chunk, magic " + this.header.getInt(0));
+        }
+        short slotCount = this.header.getShort(4);
+        short slotIdx = this.header.getShort(6);
+        long dataFileSize = this.header.getLong(8);
+        long regionSize = this.header.getLong(16);
+        long generation = this.header.getLong(24);
+        long offset = this.header.getLong(32);
+        int length = this.header.getInt(40);
+        if (slotCount != this.ringBuffer.getDataFileCount() || dataFileSize != this.ringBuffer.getDataFileSize()
+                || regionSize != this.ringBuffer.getSlotRegionSize()) {
+            throw new IllegalStateException("leader has " + slotCount + " slots of " + dataFileSize + " bytes in regions of " + regionSize
+                    + ", follower must be configured the same");
+        }
+        if (length < 0 || offset + length > dataFileSize) {
+            throw new IllegalStateException("chunk [" + offset + ", " + (offset + length) + ") is out of slot " + slotIdx);
+        }
+
+        MappedRingBufferSlot<K, V> slot = this.locate(slotIdx, generation, offset);
+        read(source, slot.getRegions(), offset, length);
+        this.received = offset + length;
+        slot.publishReceived(this.received);
+        return true;
+    }
+
+    //按chunk的slot index、代数和offset找到要写的slot，需要时跟着leader切换slot或者回写
+    private MappedRingBufferSlot<K, V> locate(short slotIdx, long generation, long offset) {
+        MappedRingBufferSlot<K, V> current = this.ringBuffer.getCurrentSlot();
+        MappedRingBufferSlot<K, V> slot = this.ringBuffer.getSlotList().get(slotIdx);
+        if (slot == current && slot.getGeneration() == generation) {
+            if (offset > this.received) throw this.outOfSync(slotIdx, offset, "data before it was never received");
+            if (offset < this.received) this.rewind(slot, offset);
+            return slot;
+        }
+        if (0 != generation && slot.getGeneration() == generation) {
+            //leader回写到了之前的slot
+            this.rewind(slot, offset);
+            return slot;
+        }
+        if (offset == slot.getDataStart()) {
+            boolean next = slotIdx == this.ringBuffer.nextWriteSlotIdx() && this.received == current.getPublishedPosition();
+            if (next || 0 == this.ringBuffer.size()) {
+                this.ringBuffer.followSlot(slotIdx, generation);
+                this.received = offset;
+                return slot;
+            }
+        }
+        throw this.outOfSync(slotIdx, offset, "slot does not follow the current slot " + current.getSlotIdx());
+    }
+
+    /**
+     * leader回写过：follower丢掉slot中offset之后的数据，offset必须是一个frame的开始（回写的位置总是记录或者block的开始）
+     * offset之后只有还没发布的半个frame时只改收到的位置
+     */
+    private void rewind(MappedRingBufferSlot<K, V> slot, long offset) {
+        short slotIdx = slot.getSlotIdx();
+        if (offset < slot.getPublishedPosition()) {
+            MappedRingBufferMemoryIndex<K, V> memoryIndex = this.ringBuffer.getMemoryIndexer();
+            int count = memoryIndex.getRecordCount(slotIdx);
+            int low = 1;
+            slot.pin();
+            try {
+                //第一条frame在offset之后的记录
+                int high = count;
+                while (low <= high) {
+                    int mid = (low + high) >>> 1;
+                    if (MappedRingBufferMemoryIndex.framePositionOf(memoryIndex.getDataPosition(slotIdx, mid)) < offset) {
+                        low = mid + 1;
+                    } else {
+                        high = mid - 1;
+                    }
+                }
+                if (low > count || offset != MappedRingBufferMemoryIndex.framePositionOf(memoryIndex.getDataPosition(slotIdx, low))) {
+                    throw this.outOfSync(slotIdx, offset, "it is not the start of a frame");
+                }
+            } finally {
+                slot.unpin();
+            }
+            this.ringBuffer.rewindTo(slotIdx, low);
+        } else if (slot != this.ringBuffer.getCurrentSlot() || offset > this.received) {
+            throw this.outOfSync(slotIdx, offset, "it is beyond the published data");
+        }
+        this.received = offset;
+    }
+
+    private IllegalStateException outOfSync(short slotIdx, long offset, String reason) {
+        return new IllegalStateException("follower is out of sync at slot " + slotIdx + " offset " + offset + ", " + reason
+                + ", truncate the follower and ship from the oldest slot");
+    }
+
+    //数据直接读进slot的mmap中，跨region时分段读
+    private static void read(ReadableByteChannel source, MappedRingBufferRegions regions, long position, long length) throws IOException {
+        long end = position + length;
+        while (position < end) {
+            ByteBuffer target = regions.region(position).duplicate();
+            int offset = regions.offset(position);
+            target.limit((int) Math.min(target.capacity(), offset + end - position));
+            target.position(offset);
+            while (target.hasRemaining()) {
+                if (-1 == source.read(target)) throw new EOFException("source closed in the middle of a chunk");
+            }
+            position += target.limit() - offset;
+        }
+    }
+}
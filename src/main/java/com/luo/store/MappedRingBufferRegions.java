@@ -0,0 +1,170 @@
+package com.luo.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Created by luohui on 17/7/4.
+ * 一个slot的数据文件按regionSize映射成多个region，每个region是一个MappedByteBuffer，slot中的position是long
+ * <p>
+ * 文件不超过regionSize时只有一个region，和原来的格式完全一样：header是4字节的int last position，数据从4开始；
+ * 多个region时header是8字节的long last position，数据从8开始
+ * 一条记录不会跨region：当前region剩下的空间放不下时从下一个region的开头写，剩下的空间第一个字节写0
+ * （key length不会是0），顺序读的时候遇到0就跳到下一个region
+ * <p>
+ * 只读打开时（MappedRingBuffer.setReadOnly）所有region映射成READ_ONLY，last position由writer进程更新
+ */
+public class MappedRingBufferRegions {
+    private final static byte PADDING = 0;
+    private final static int SINGLE_HEADER_SIZE = 4;
+    private final static int MULTI_HEADER_SIZE = 8;
+    private final MappedByteBuffer[] regions;
+    private final long regionSize;
+    private final long capacity;
+    private final int headerSize;
+
+    private MappedRingBufferRegions(MappedByteBuffer[] regions, long regionSize, long capacity) {
+        this.regions = regions;
+        this.regionSize = regionSize;
+        this.capacity = capacity;
+        this.headerSize = headerSize(capacity, regionSize);
+    }
+
+    //capacity字节的slot文件按regionSize映射，只读打开时mode是READ_ONLY
+    public static MappedRingBufferRegions map(FileChannel fc, long capacity, long regionSize, FileChannel.MapMode mode) throws IOException {
+        long size = capacity <= regionSize ? capacity : regionSize;
+        int count = (int) ((capacity + size - 1) / size);
+        MappedByteBuffer[] regions = new MappedByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            long from = i * size;
+            regions[i] = fc.map(mode, from, Math.min(size, capacity - from));
+        }
+        return new MappedRingBufferRegions(regions, size, capacity);
+    }
+
+    //header的长度，也就是第一条记录的位置
+    public static int headerSize(long capacity, long regionSize) {
+        return capacity <= regionSize ? SINGLE_HEADER_SIZE : MULTI_HEADER_SIZE;
+    }
+
+    public int getHeaderSize() {
+        return this.headerSize;
+    }
+
+    public long getCapacity() {
+        return this.capacity;
+    }
+
+    public int getRegionCount() {
+        return this.regions.length;
+    }
+
+    public long getLastPosition() {
+        return this.regions.length == 1 ? this.regions[0].getInt(0) : this.regions[0].getLong(0);
+    }
+
+    //之前写入的记录先于last position对其他进程可见
+    public void putLastPosition(long position) {
+        MappedByteBufferUtil.storeFence();
+        if (this.regions.length == 1) {
+            this.regions[0].putInt(0, (int) position);
+        } else {
+            this.regions[0].putLong(0, position);
+        }
+    }
+
+    public int regionIndex(long position) {
+        return (int) (position / this.regionSize);
+    }
+
+    //position所在的region
+    public MappedByteBuffer region(long position) {
+        return this.regions[(int) (position / this.regionSize)];
+    }
+
+    //position在所在region中的位置
+    public int offset(long position) {
+        return (int) (position % this.regionSize);
+    }
+
+    public MappedByteBuffer getRegion(int regionIdx) {
+        return this.regions[regionIdx];
+    }
+
+    /**
+     * 从position开始写一条frameLength长的记录，返回记录实际的位置：
+     * 当前region放得下就是position，否则是下一个region的开头；slot放不下返回-1
+     */
+    public long framePosition(long position, int frameLength) {
+        if (position + frameLength <= this.regionEnd(position)) return position;
+        long next = (position / this.regionSize + 1) * this.regionSize;
+        return next < this.capacity && next + frameLength <= this.regionEnd(next) ? next : -1;
+    }
+
+    private long regionEnd(long position) {
+        return Math.min((position / this.regionSize + 1) * this.regionSize, this.capacity);
+    }
+
+    //记录跳到了下一个region，在原来的位置写上填充标记
+    public void pad(long position, long framePosition) {
+        if (framePosition != position && position < this.regionEnd(position)) {
+            this.region(position).put(this.offset(position), PADDING);
+        }
+    }
+
+    //顺序读时跳过region尾部的填充，position必须小于last position
+    public long skipPadding(long position) {
+        if (PADDING != this.region(position).get(this.offset(position))) return position;
+        return (position / this.regionSize + 1) * this.regionSize;
+    }
+
+    //放得下的最长记录
+    public int maxFrameLength() {
+        return (int) Math.min(this.regionSize, this.capacity) - this.headerSize;
+    }
+
+    //每个region一个duplicate，计算checksum时用，不改动region的position
+    public ByteBuffer[] duplicates() {
+        ByteBuffer[] views = new ByteBuffer[this.regions.length];
+        for (int i = 0; i < this.regions.length; i++) {
+            views[i] = this.regions[i].duplicate();
+        }
+        return views;
+    }
+
+    //把[from, to)这段脏数据刷到磁盘
+    public void force(long from, long to) {
+        while (from < to) {
+            long end = Math.min(this.regionEnd(from), to);
+            MappedByteBufferUtil.force(this.region(from), this.offset(from), this.offset(from) + (int) (end - from));
+            from = end;
+        }
+    }
+
+    public void force() {
+        for (MappedByteBuffer region : this.regions) {
+            region.force();
+        }
+    }
+
+    /**
+     * [from, to)中每页读一个字节，只把页映射进来，不弄脏页（不会让整个slot都要刷盘）
+     *
+     * @return 读到的字节之和，调用方要用掉它，否则读可能被JIT优化掉
+     */
+    public int preTouch(long from, long to, int pageSize) {
+        int sum = 0;
+        for (long i = from; i < Math.min(to, this.capacity); i += pageSize) {
+            sum += this.region(i).get(this.offset(i));
+        }
+        return sum;
+    }
+
+    public void unmap() {
+        for (MappedByteBuffer region : this.regions) {
+            MappedByteBufferUtil.unmap(region);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.luo.store;
+
+import lombok.Data;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by luohui on 17/7/4.
+ * 保留策略，按整个slot丢弃最老的数据，两个条件任意一个满足就丢掉最老的slot；全部为0表示不主动丢弃
+ * 写slot永远不会被丢弃。writer每次切换slot时检查一次，也可以调用MappedRingBuffer.applyRetention()
+ * <p>
+ * 按key保留见MappedRingBuffer.truncateBefore(key)
+ */
+@Data
+public class MappedRingBufferRetentionPolicy {
+    private long maxBytes = 0;//丢掉最老的slot后剩下的数据仍然不少于maxBytes就丢掉它
+    private long maxAgeMillis = 0;//slot中最新的记录早于maxAgeMillis之前就丢掉它，时间戳见IRingBufferTimestamp
+
+    public static MappedRingBufferRetentionPolicy never() {
+        return new MappedRingBufferRetentionPolicy();
+    }
+
+    public static MappedRingBufferRetentionPolicy maxBytes(long bytes) {
+        MappedRingBufferRetentionPolicy policy = new MappedRingBufferRetentionPolicy();
+        policy.setMaxBytes(bytes);
+        return policy;
+    }
+
+    public static MappedRingBufferRetentionPolicy maxAge(long duration, TimeUnit unit) {
+        MappedRingBufferRetentionPolicy policy = new MappedRingBufferRetentionPolicy();
+        policy.setMaxAgeMillis(unit.toMillis(duration));
+        return policy;
+    }
+
+    public boolean isNever() {
+        return this.maxBytes <= 0 && this.maxAgeMillis <= 0;
+    }
+}
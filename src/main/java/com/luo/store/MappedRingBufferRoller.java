@@ -0,0 +1,117 @@
+package com.luo.store;
+
+import lombok.Getter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Created by luohui on 17/7/4.
+ * 后台切换slot的线程：当前slot写过rollerThresholdPercent之后，提前准备好下一个slot
+ * （重置header和索引，只读触碰开头rollerPreTouchBytes的页），writer写满切换时只需要换一下currentSlotIdx
+ * <p>
+ * writer切换时下一个slot还没准备好（写得太快或者roller正在准备），就由writer等待/自己准备，
+ * 这种情况记在rolloverWaits和rolloverWaitNanos里，持续不为0说明阈值太高
+ * <p>
+ * 环写满之后下一个slot就是最老的slot，roller准备它时会提前丢弃它，所以开启roller后环中最多少保留一部分slot的数据
+ */
+public class MappedRingBufferRoller<K, V> implements Runnable {
+    private final static long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private final MappedRingBuffer<K, V> ringBuffer;
+    private final int thresholdPercent;
+    private volatile short preparedSlotIdx = -1;//已经准备好的slot，准备时roller pin住它，writer切换过去后unpin
+    private volatile boolean running = true;
+    private Thread thread;
+
+    @Getter
+    private final AtomicLong rollovers = new AtomicLong();//writer切换slot的次数
+    @Getter
+    private final AtomicLong rolloverWaits = new AtomicLong();//切换时下一个slot还没准备好的次数
+    @Getter
+    private final AtomicLong rolloverWaitNanos = new AtomicLong();//切换时等待准备的总耗时
+    @Getter
+    private final AtomicLong prepares = new AtomicLong();//roller提前准备好的slot数
+
+    public MappedRingBufferRoller(MappedRingBuffer<K, V> ringBuffer, int thresholdPercent) {
+        this.ringBuffer = ringBuffer;
+        this.thresholdPercent = thresholdPercent;
+    }
+
+    public void start() {
+        this.thread = new Thread(this, "mappedRingBuffer-roller-" + this.ringBuffer.getDataFileNamePrefix());
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    @Override
+    public void run() {
+        while (this.running) {
+            MappedRingBufferSlot<K, V> current = this.ringBuffer.getCurrentSlot();
+            short next = this.ringBuffer.nextWriteSlotIdx();
+            if (next != this.preparedSlotIdx && this.isOverThreshold(current)) {
+                //环已经写满时下一个slot就是最老的slot，还在被读，先丢弃它才能准备
+                this.ringBuffer.releaseOldestSlot(next);
+                if (this.prepare(next)) this.prepares.incrementAndGet();
+            }
+            LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+    }
+
+    private boolean isOverThreshold(MappedRingBufferSlot<K, V> slot) {
+        long capacity = this.ringBuffer.getDataFileSize();
+        return slot.getPublishedPosition() * 100L >= capacity * this.thresholdPercent;
+    }
+
+    /**
+     * writer切换到slotIdx之前调用，slotIdx还没准备好的话等roller准备完或者自己准备
+     */
+    public void awaitPrepared(short slotIdx) {
+        this.rollovers.incrementAndGet();
+        if (this.preparedSlotIdx != slotIdx) {
+            long start = System.nanoTime();
+            this.prepare(slotIdx);
+            this.rolloverWaits.incrementAndGet();
+            this.rolloverWaitNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * writer已经切换到slotIdx（并且pin住了它）之后调用，放掉roller准备时加的pin
+     * 必须在currentSlotIdx更新之后，否则roller会把刚切换过去的slot再准备一次
+     */
+    public void rolled(short slotIdx) {
+        this.releasePrepared(slotIdx);
+    }
+
+    //准备slotIdx，返回false表示已经准备过、它已经是写slot或者还有数据（代数不为0）
+    private synchronized boolean prepare(short slotIdx) {
+        if (this.preparedSlotIdx == slotIdx || this.ringBuffer.getCurrentSlotIdx() == slotIdx) return false;
+        if (0 != this.ringBuffer.getSlotList().get(slotIdx).getGeneration()) return false;
+        if (-1 != this.preparedSlotIdx) {
+            //上一个准备好的slot没被用上，放掉它的pin
+            this.ringBuffer.getSlotList().get(this.preparedSlotIdx).unpin();
+        }
+        MappedRingBufferSlot<K, V> slot = this.ringBuffer.getSlotList().get(slotIdx);
+        slot.pin();
+        slot.prepare();
+        this.preparedSlotIdx = slotIdx;
+        return true;
+    }
+
+    private synchronized void releasePrepared(short slotIdx) {
+        if (this.preparedSlotIdx != slotIdx) return;
+        this.ringBuffer.getSlotList().get(slotIdx).unpin();
+        this.preparedSlotIdx = -1;
+    }
+
+    public void close() throws InterruptedException {
+        this.running = false;
+        if (null != this.thread) {
+            LockSupport.unpark(this.thread);
+            this.thread.join();
+        }
+        short prepared = this.preparedSlotIdx;
+        if (-1 != prepared) this.releasePrepared(prepared);
+    }
+}
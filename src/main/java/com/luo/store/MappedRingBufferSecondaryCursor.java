@@ -0,0 +1,160 @@
+package com.luo.store;
+
+import java.nio.ByteBuffer;
+import java.util.ConcurrentModificationException;
+
+/**
+ * Created by luohui on 17/7/4.
+ * 遍历二级key等于secondaryKey的所有记录的cursor，按主key的顺序：从最老的slot开始，按环的顺序逐个slot在二级索引中查出
+ * 命中的索引序号（slot内按主key递增），再按索引记录中的data position读取记录，不扫描数据文件
+ * 和MappedRingBufferCursor一样只用一个key和一个value对象，value在调用value()时才解码；
+ * 懒映射模式下pin住当前所在的slot；只读模式下slot被writer进程修改过时抛ConcurrentModificationException，rawValue()返回堆上的拷贝
+ */
+public class MappedRingBufferSecondaryCursor<K, V> implements IRingBufferCursor<K, V> {
+    private final MappedRingBuffer<K, V> ringBuffer;
+    private final MappedRingBufferMemoryIndex<K, V> memoryIndex;
+    private final IRingBufferCodec<K, V> codec;
+    private final long secondaryKey;
+    private final K key;
+    private V value;
+    private boolean valueDecoded = false;
+    private boolean done = false;
+    private MappedRingBufferSlot<K, V> pinnedSlot;
+    private MappedRingBufferRegions pinnedRegions;
+
+    private short slotIdx;
+    private int[] matches;//当前slot中命中的索引序号
+    private int matchIndex;//下一个要读的命中
+    private ByteBuffer dataBuffer;//记录所在的region或者解压后的block
+    private int dataPosition;
+    private int dataLength;
+    private final long startNanos;
+    private long scanned = 0;
+    private boolean closed = false;
+
+    public MappedRingBufferSecondaryCursor(MappedRingBuffer<K, V> ringBuffer, long secondaryKey) {
+        this.ringBuffer = ringBuffer;
+        this.memoryIndex = ringBuffer.getMemoryIndexer();
+        this.codec = ringBuffer.getCodec();
+        this.secondaryKey = secondaryKey;
+        this.key = this.codec.newRingBufferKey();
+        this.startNanos = ringBuffer.getMetrics().startNanos();
+        this.slotIdx = ringBuffer.oldestSlotIdx();
+        this.pinSlot(this.slotIdx);
+        this.matches = this.memoryIndex.findSecondary(this.slotIdx, secondaryKey);
+    }
+
+    @Override
+    public boolean next() {
+        if (this.done) return false;
+        boolean found;
+        try {
+            found = this.nextRecord();
+        } catch (RuntimeException e) {
+            //只读模式下writer进程改写到一半的索引记录或者长度字段可能越界
+            this.checkSynced();
+            throw e;
+        }
+        if (found) {
+            this.checkSynced();
+            this.scanned++;
+        }
+        if (!found) this.close();
+        this.valueDecoded = false;
+        return found;
+    }
+
+    private boolean nextRecord() {
+        while (this.matchIndex >= this.matches.length) {
+            short next = this.ringBuffer.nextSlotIdx(this.slotIdx);
+            if (-1 == next) return false;
+            this.slotIdx = next;
+            this.pinSlot(this.slotIdx);
+            this.matches = this.memoryIndex.findSecondary(this.slotIdx, this.secondaryKey);
+            this.matchIndex = 0;
+        }
+        int indexRecIndex = this.matches[this.matchIndex++];
+        MappedRingBufferRegions regions = this.pinnedRegions;
+        this.memoryIndex.decodeKey(this.slotIdx, indexRecIndex, this.key);
+        long recordPosition = this.memoryIndex.getDataPosition(this.slotIdx, indexRecIndex);
+        ByteBuffer buffer;
+        int offset;
+        if (MappedRingBufferMemoryIndex.isBlockAddress(recordPosition)) {
+            buffer = this.ringBuffer.getBlockCache().get(this.pinnedSlot, regions, MappedRingBufferMemoryIndex.framePositionOf(recordPosition));
+            offset = MappedRingBufferMemoryIndex.blockOffsetOf(recordPosition);
+        } else {
+            this.pinnedSlot.checkFrame(regions, recordPosition);
+            buffer = regions.region(recordPosition);
+            offset = regions.offset(recordPosition);
+        }
+        int keyLen = buffer.get(offset);
+        this.dataBuffer = buffer;
+        this.dataLength = buffer.getInt(offset + 1 + keyLen);
+        this.dataPosition = offset + 1 + keyLen + 4;
+        return true;
+    }
+
+    //pin住slotIdx对应的slot并放掉之前pin住的slot
+    private void pinSlot(short slotIdx) {
+        MappedRingBufferSlot<K, V> slot = this.ringBuffer.getSlotList().get(slotIdx);
+        if (slot == this.pinnedSlot) return;
+        MappedRingBufferRegions regions = slot.pin();
+        if (null != this.pinnedSlot) this.pinnedSlot.unpin();
+        this.pinnedSlot = slot;
+        this.pinnedRegions = regions;
+    }
+
+    @Override
+    public void close() {
+        this.done = true;
+        if (!this.closed) {
+            this.closed = true;
+            this.ringBuffer.getMetrics().recordScan(this.startNanos, this.scanned);
+        }
+        if (null != this.pinnedSlot) {
+            this.pinnedSlot.unpin();
+            this.pinnedSlot = null;
+            this.pinnedRegions = null;
+        }
+    }
+
+    //只读模式下刚读到的记录所在的slot被writer进程修改过，结束遍历
+    private void checkSynced() {
+        if (!this.ringBuffer.isReadOnly() || this.ringBuffer.isSlotSynced(this.slotIdx)) return;
+        this.close();
+        throw new ConcurrentModificationException("slot " + this.slotIdx + " was changed by the writer process, refresh and reopen the cursor");
+    }
+
+    @Override
+    public K key() {
+        return this.key;
+    }
+
+    @Override
+    public V value() {
+        if (!this.valueDecoded) {
+            if (null == this.value) this.value = this.codec.newRingBufferData();
+            try {
+                this.codec.decodeData(this.dataBuffer, this.dataPosition, this.dataLength, this.value);
+            } catch (RuntimeException e) {
+                this.checkSynced();
+                throw e;
+            }
+            this.checkSynced();
+            this.valueDecoded = true;
+        }
+        return this.value;
+    }
+
+    @Override
+    public ByteBuffer rawValue() {
+        ByteBuffer view = this.dataBuffer.asReadOnlyBuffer();
+        view.position(this.dataPosition);
+        view.limit(this.dataPosition + this.dataLength);
+        if (!this.ringBuffer.isReadOnly()) return view;
+        ByteBuffer copy = ByteBuffer.allocate(this.dataLength);
+        copy.put(view).flip();
+        this.checkSynced();
+        return copy.asReadOnlyBuffer();
+    }
+}
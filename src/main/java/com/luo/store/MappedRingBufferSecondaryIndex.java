@@ -0,0 +1,209 @@
+package com.luo.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Created by luohui on 17/7/4.
+ * 二级索引：每个slot一个文件（前缀 + "secondary-" + slotIdx），和索引文件放在一起，见IRingBufferSecondaryKey
+ * / magic(4) | version(4) | epoch(4) | count(4) | state(4) | bucket count(4) | reserved(8) | [bucket] | ...... | [entry] | ......
+ * 第n个entry对应第n条索引记录：secondary key(8) | prev(4)，prev是同一个bucket中上一个entry的序号，0表示没有
+ * bucket是 epoch(4) | head(4)，用一个long写入；epoch和header中的不一样时bucket是空的
+ * <p>
+ * 查询时从bucket的head沿prev往前走，只收集序号不超过索引count、二级key相同的entry，代价和命中数加上bucket中的冲突数成正比
+ * slot被清空或者重新使用时只把header的epoch加1，所有bucket同时失效，O(1)；
+ * 回写截断时修复被截掉的entry所在bucket的head，代价和截掉的entry数成正比
+ * <p>
+ * 和slot摘要一样不单独force：close时force之后state写成CLEAN，load时先改成DIRTY；
+ * 不是CLEAN时从数据文件解码记录重新提取二级key重建；懒映射模式下跟着索引映射和解除映射
+ */
+public class MappedRingBufferSecondaryIndex {
+    private final static int MAGIC = 0x52425358;//"RBSX"
+    private final static int VERSION = 1;
+    private final static int EPOCH_OFFSET = 8;
+    private final static int COUNT_OFFSET = 12;
+    private final static int STATE_OFFSET = 16;
+    private final static int BUCKET_COUNT_OFFSET = 20;
+    private final static int HEADER_SIZE = 32;
+    private final static int ENTRY_SIZE = 12;
+    private final static int DIRTY = 0;
+    private final static int CLEAN = 1;
+    private final static int[] EMPTY = new int[0];
+    private final int bucketCount;
+    private final int entriesOffset;
+    private final int fileSize;
+    private final AtomicReferenceArray<MappedByteBuffer> buffers;
+
+    /**
+     * @param bucketCount 每个slot的bucket数，2的幂
+     * @param maxRecords  每个slot最多的记录数，和索引文件能放的索引记录数一样
+     */
+    public MappedRingBufferSecondaryIndex(int slotCount, int bucketCount, int maxRecords) {
+        this.bucketCount = bucketCount;
+        this.entriesOffset = HEADER_SIZE + bucketCount * 8;
+        long fileSize = this.entriesOffset + (long) maxRecords * ENTRY_SIZE;
+        if (fileSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("secondary index of a slot must be smaller than 2GB, records " + maxRecords);
+        }
+        this.fileSize = (int) fileSize;
+        this.buffers = new AtomicReferenceArray<>(slotCount);
+    }
+
+    /**
+     * 映射slot的二级索引文件：上次正常关闭、参数也一样时返回true，之后标成DIRTY；
+     * 参数不一样时重新初始化，返回false时调用方要重建
+     * 只读模式下文件不存在或者参数不一样时不映射，这个slot查不到记录
+     */
+    public boolean map(short slotIdx, String fileName, boolean readOnly) throws IOException {
+        File file = new File(fileName);
+        if (readOnly && (!file.exists() || file.length() < this.fileSize)) return false;
+        MappedByteBuffer buffer = this.mapFile(file, readOnly);
+        boolean matched = MAGIC == buffer.getInt(0) && VERSION == buffer.getInt(4) && this.bucketCount == buffer.getInt(BUCKET_COUNT_OFFSET);
+        if (readOnly) {
+            if (matched) this.buffers.set(slotIdx, buffer);
+            else MappedByteBufferUtil.unmap(buffer);
+            return matched;
+        }
+        boolean clean = matched && CLEAN == buffer.getInt(STATE_OFFSET);
+        if (!matched) {
+            //参数变了，原来的bucket都不能用
+            for (int offset = HEADER_SIZE; offset < this.entriesOffset; offset += 8) {
+                buffer.putLong(offset, 0);
+            }
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(EPOCH_OFFSET, 0);
+            buffer.putInt(COUNT_OFFSET, 0);
+            buffer.putInt(BUCKET_COUNT_OFFSET, this.bucketCount);
+        }
+        buffer.putInt(STATE_OFFSET, DIRTY);
+        this.buffers.set(slotIdx, buffer);
+        return clean;
+    }
+
+    private MappedByteBuffer mapFile(File file, boolean readOnly) throws IOException {
+        try (RandomAccessFile raFile = new RandomAccessFile(file, readOnly ? "r" : "rw")) {
+            return raFile.getChannel().map(readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE, 0, this.fileSize);
+        }
+    }
+
+    /**
+     * 第indexRecIndex条记录的二级key：先写entry，再更新bucket的head，读者沿着head走到的entry都是完整的
+     */
+    public void add(short slotIdx, int indexRecIndex, long secondaryKey) {
+        MappedByteBuffer buffer = this.buffers.get(slotIdx);
+        if (null == buffer) return;
+        int epoch = buffer.getInt(EPOCH_OFFSET);
+        int bucket = this.bucketOffset(secondaryKey);
+        int entry = this.entryOffset(indexRecIndex);
+        buffer.putLong(entry, secondaryKey);
+        buffer.putInt(entry + 8, this.head(buffer, bucket, epoch));
+        buffer.putInt(COUNT_OFFSET, indexRecIndex);
+        buffer.putLong(bucket, (long) epoch << 32 | indexRecIndex);
+    }
+
+    /**
+     * slot中二级key等于secondaryKey、序号不超过count的记录的索引序号，按序号（也就是主key）递增
+     */
+    public int[] find(short slotIdx, long secondaryKey, int count) {
+        MappedByteBuffer buffer = this.buffers.get(slotIdx);
+        if (null == buffer) return EMPTY;
+        int[] matches = EMPTY;
+        int found = 0;
+        int entry = this.head(buffer, this.bucketOffset(secondaryKey), buffer.getInt(EPOCH_OFFSET));
+        while (entry > 0) {
+            int offset = this.entryOffset(entry);
+            int prev = buffer.getInt(offset + 8);
+            if (entry <= count && buffer.getLong(offset) == secondaryKey) {
+                if (found == matches.length) matches = Arrays.copyOf(matches, Math.max(8, found * 2));
+                matches[found++] = entry;
+            }
+            //只读进程可能读到正在被writer重置的链，prev一定比entry小
+            if (prev >= entry) break;
+            entry = prev;
+        }
+        int[] ascending = new int[found];
+        for (int i = 0; i < found; i++) {
+            ascending[i] = matches[found - 1 - i];
+        }
+        return ascending;
+    }
+
+    /**
+     * 回写时只保留前count条：被截掉的entry所在的bucket，head退回到不超过count的entry
+     */
+    public void truncate(short slotIdx, int count) {
+        MappedByteBuffer buffer = this.buffers.get(slotIdx);
+        if (null == buffer) return;
+        if (0 == count) {
+            this.reset(slotIdx);
+            return;
+        }
+        int epoch = buffer.getInt(EPOCH_OFFSET);
+        int old = buffer.getInt(COUNT_OFFSET);
+        for (int entry = old; entry > count; entry--) {
+            int bucket = this.bucketOffset(buffer.getLong(this.entryOffset(entry)));
+            int head = this.head(buffer, bucket, epoch);
+            if (head <= count) continue;
+            while (head > count) {
+                head = buffer.getInt(this.entryOffset(head) + 8);
+            }
+            buffer.putLong(bucket, (long) epoch << 32 | head);
+        }
+        if (old > count) buffer.putInt(COUNT_OFFSET, count);
+    }
+
+    //slot被清空或者重新使用：epoch加1，所有bucket同时失效
+    public void reset(short slotIdx) {
+        MappedByteBuffer buffer = this.buffers.get(slotIdx);
+        if (null == buffer) return;
+        buffer.putInt(COUNT_OFFSET, 0);
+        buffer.putInt(EPOCH_OFFSET, buffer.getInt(EPOCH_OFFSET) + 1);
+    }
+
+    //懒映射模式下跟着索引解除映射
+    public void unmap(short slotIdx) {
+        MappedByteBuffer buffer = this.buffers.getAndSet(slotIdx, null);
+        if (null == buffer) return;
+        buffer.force();
+        MappedByteBufferUtil.unmap(buffer);
+    }
+
+    /**
+     * force之后再标成CLEAN，下次load时可以直接用；懒映射模式下已经解除映射（解除前force过）的slot重新映射一下打标记
+     * 只读模式下只解除映射
+     */
+    public void close(short slotIdx, String fileName, boolean readOnly) throws IOException {
+        MappedByteBuffer buffer = this.buffers.getAndSet(slotIdx, null);
+        if (readOnly) {
+            MappedByteBufferUtil.unmap(buffer);
+            return;
+        }
+        if (null == buffer) {
+            if (!new File(fileName).exists()) return;
+            buffer = this.mapFile(new File(fileName), false);
+        }
+        buffer.force();
+        buffer.putInt(STATE_OFFSET, CLEAN);
+        buffer.force();
+        MappedByteBufferUtil.unmap(buffer);
+    }
+
+    private int head(MappedByteBuffer buffer, int bucket, int epoch) {
+        long value = buffer.getLong(bucket);
+        return (int) (value >>> 32) == epoch ? (int) value : 0;
+    }
+
+    private int bucketOffset(long secondaryKey) {
+        return HEADER_SIZE + ((int) MappedRingBufferSlotSummary.mix(secondaryKey) & (this.bucketCount - 1)) * 8;
+    }
+
+    private int entryOffset(int indexRecIndex) {
+        return this.entriesOffset + (indexRecIndex - 1) * ENTRY_SIZE;
+    }
+}
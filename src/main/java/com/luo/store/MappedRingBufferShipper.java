@@ -0,0 +1,139 @@
+package com.luo.store;
+
+import lombok.Getter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Created by luohui on 17/7/4.
+ * 复制的leader端：把slot文件中已经发布的原始字节（frame、压缩block和region尾部的填充）原样发给follower，
+ * 不解码也不重新编码；数据用FileChannel.transferTo从slot文件直接写到target，target是socket时不经过用户态
+ * 和writer在同一个进程中，像tailer一样跟随writer切换slot和回写，follower端见MappedRingBufferReceiver
+ * <p>
+ * 每段数据前是一个chunk头
+ * / magic(4) | slot count(2) | slot index(2) | data file size(8) | region size(8) | generation(8) | offset(8) | length(4) | [length字节的原始数据]
+ * 表示slot从offset开始的数据，follower的slot文件布局必须和leader一样，数据才能原样放到同一个位置；
+ * chunk可以在frame中间结束，follower只发布完整的frame
+ * <p>
+ * 位置是slot index + offset（见MappedRingBufferMemoryIndex.toAddress），取follower的MappedRingBufferReceiver.position()，
+ * 断开重连后从这里继续；0表示从最老的数据开始。writer回写到已经发过的位置时，从回写位置重新发，follower跟着回写
+ * slot被writer重新使用（代数变了）时位置已经不存在，抛IllegalStateException，follower要清空后从头同步
+ */
+public class MappedRingBufferShipper<K, V> {
+    final static int CHUNK_MAGIC = 0x52425348;//"RBSH"
+    final static int CHUNK_HEADER_SIZE = 44;
+    private final MappedRingBuffer<K, V> ringBuffer;
+    private final ByteBuffer header = ByteBuffer.allocate(CHUNK_HEADER_SIZE);
+    @Getter
+    private short slotIdx;
+    @Getter
+    private long offset;//下一个要发的字节在slot中的位置
+    private long generation;//所在slot的代数
+    private int seenRewinds;//已经跟随过的回写次数
+
+    public MappedRingBufferShipper(MappedRingBuffer<K, V> ringBuffer, long position) {
+        this.ringBuffer = ringBuffer;
+        this.seenRewinds = ringBuffer.getRewinds();
+        if (0 == MappedRingBufferMemoryIndex.positionOf(position)) {
+            this.slotIdx = ringBuffer.oldestSlotIdx();
+            this.offset = ringBuffer.getSlotList().get(this.slotIdx).getDataStart();
+        } else {
+            this.slotIdx = MappedRingBufferMemoryIndex.slotOf(position);
+            this.offset = MappedRingBufferMemoryIndex.positionOf(position);
+        }
+        this.generation = ringBuffer.getSlotList().get(this.slotIdx).getGeneration();
+        if (0 == this.generation) {
+            throw new IllegalStateException("slot " + this.slotIdx + " of position " + position + " has been dropped, resync the follower from the oldest slot");
+        }
+    }
+
+    //已经发出去的位置，slot index + offset
+    public long position() {
+        return MappedRingBufferMemoryIndex.toAddress(this.slotIdx, this.offset);
+    }
+
+    /**
+     * 把position之后已经发布的数据发一个chunk到target，最多maxBytes字节的数据；没有新数据返回0
+     * target要是阻塞模式的channel
+     *
+     * @return 发出去的数据字节数，不含chunk头
+     */
+    public long ship(WritableByteChannel target, long maxBytes) throws IOException {
+        if (maxBytes <= 0) throw new IllegalArgumentException("maxBytes must be positive");
+        int rewinds = this.ringBuffer.getRewinds();
+        if (rewinds != this.seenRewinds) {
+            this.seenRewinds = rewinds;
+            this.followRewind(this.ringBuffer.getRewindAddress());
+        }
+        while (true) {
+            //先读current slot（volatile），再读slot发布的位置
+            int currentSlotIdx = this.ringBuffer.getCurrentSlotIdx();
+            MappedRingBufferSlot<K, V> slot = this.ringBuffer.getSlotList().get(this.slotIdx);
+            long published = slot.getPublishedPosition();
+            if (slot.getGeneration() != this.generation || this.offset > published) {
+                //writer正在回写，等回写完成后再跟着回退
+                if (this.ringBuffer.getRewindsStarted() != this.seenRewinds) return 0;
+                throw new IllegalStateException("slot " + this.slotIdx + " was reused by the writer, resync the follower from the oldest slot");
+            }
+            if (this.offset < published) {
+                long length = Math.min(published - this.offset, Math.min(maxBytes, Integer.MAX_VALUE));
+                this.writeHeader(target, length);
+                transfer(slot.getFc(), this.offset, length, target);
+                //发送的过程中slot被丢弃了，follower收到的数据不可信
+                if (slot.getGeneration() != this.generation) {
+                    throw new IllegalStateException("slot " + this.slotIdx + " was reused by the writer while shipping");
+                }
+                this.offset += length;
+                return length;
+            }
+            //旧slot的数据已经发完，并且所有领取了空间的记录都已经发布，才切换到下一个slot
+            if (currentSlotIdx == this.slotIdx || !slot.isPublishComplete()) return 0;
+            short next = this.ringBuffer.nextSlotIdx(this.slotIdx);
+            if (-1 == next) return 0;
+            this.slotIdx = next;
+            this.offset = this.ringBuffer.getSlotList().get(next).getDataStart();
+            this.generation = this.ringBuffer.getSlotList().get(next).getGeneration();
+        }
+    }
+
+    //已经发过回写位置的话退回到回写位置，follower收到回写位置的chunk时跟着回写
+    private void followRewind(long rewindAddress) {
+        short rewindSlotIdx = MappedRingBufferMemoryIndex.slotOf(rewindAddress);
+        long rewindPosition = MappedRingBufferMemoryIndex.positionOf(rewindAddress);
+        int order = this.ringBuffer.ringOrder(this.slotIdx) - this.ringBuffer.ringOrder(rewindSlotIdx);
+        if (order > 0 || (0 == order && this.offset > rewindPosition)) {
+            this.slotIdx = rewindSlotIdx;
+            this.offset = rewindPosition;
+            this.generation = this.ringBuffer.getSlotList().get(rewindSlotIdx).getGeneration();
+        }
+    }
+
+    private void writeHeader(WritableByteChannel target, long length) throws IOException {
+        this.header.clear();
+        this.header.putInt(CHUNK_MAGIC);
+        this.header.putShort(this.ringBuffer.getDataFileCount());
+        this.header.putShort(this.slotIdx);
+        this.header.putLong(this.ringBuffer.getDataFileSize());
+        this.header.putLong(this.ringBuffer.getSlotRegionSize());
+        this.header.putLong(this.generation);
+        this.header.putLong(this.offset);
+        this.header.putInt((int) length);
+        this.header.flip();
+        while (this.header.hasRemaining()) {
+            target.write(this.header);
+        }
+    }
+
+    //transferTo一次不一定发完，循环到发完为止
+    private static void transfer(FileChannel fc, long position, long length, WritableByteChannel target) throws IOException {
+        long done = 0;
+        while (done < length) {
+            long n = fc.transferTo(position + done, length - done, target);
+            if (0 == n) Thread.yield();
+            done += n;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.luo.store;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Created by luohui on 17/7/4.
+ * 稀疏索引：每个slot一张定长的fence表，放在堆外，按顺序存第1、1+slice、1+2*slice...条索引记录的key（编码后的字节）
+ * 同一个slot的索引记录按key递增追加，fence表也是有序的，查找时二分
+ * <p>
+ * 每个slot同时只有一个写者（writer，或者按领取顺序发布的生产者），先写key再lazySet fence数，
+ * 追加不加锁也不分配对象，读者读到的fence数之内的key一定是完整的
+ */
+public class MappedRingBufferSliceIndex {
+    private final int keyLength;
+    private final int sliceSize;
+    private final int maxFences;
+    private final ByteBuffer[] fenceKeys;
+    private final AtomicIntegerArray fenceCounts;
+
+    public MappedRingBufferSliceIndex(int slotCount, int keyLength, int sliceSize, int maxIndexRecords) {
+        this.keyLength = keyLength;
+        this.sliceSize = sliceSize;
+        this.maxFences = maxIndexRecords / sliceSize + 1;
+        this.fenceKeys = new ByteBuffer[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            this.fenceKeys[i] = ByteBuffer.allocateDirect(this.maxFences * keyLength);
+        }
+        this.fenceCounts = new AtomicIntegerArray(slotCount);
+    }
+
+    //第indexRecIndex条索引记录是不是fence
+    public boolean isFence(int indexRecIndex) {
+        return 0 == (indexRecIndex - 1) % this.sliceSize;
+    }
+
+    //第fenceNo个fence对应的索引记录序号
+    public int fenceRecIndex(int fenceNo) {
+        return 1 + fenceNo * this.sliceSize;
+    }
+
+    //前count条索引记录中有几个fence
+    public int fenceCountOf(int indexRecCount) {
+        return 0 == indexRecCount ? 0 : (indexRecCount - 1) / this.sliceSize + 1;
+    }
+
+    /**
+     * 追加一个fence，key从索引buffer的keyOffset处拷贝，不重新编码
+     */
+    public void append(short slotIdx, int indexRecIndex, ByteBuffer indexBuffer, int keyOffset) {
+        int fenceNo = (indexRecIndex - 1) / this.sliceSize;
+        if (fenceNo >= this.maxFences) {
+            throw new IllegalStateException("slice index of slot " + slotIdx + " is full");
+        }
+        ByteBuffer keys = this.fenceKeys[slotIdx];
+        int offset = fenceNo * this.keyLength;
+        for (int i = 0; i < this.keyLength; i++) {
+            keys.put(offset + i, indexBuffer.get(keyOffset + i));
+        }
+        this.fenceCounts.lazySet(slotIdx, fenceNo + 1);
+    }
+
+    public int getFenceCount(short slotIdx) {
+        return this.fenceCounts.get(slotIdx);
+    }
+
+    //fence表，第fenceNo个key在fenceNo * keyLength处
+    public ByteBuffer getFenceKeys(short slotIdx) {
+        return this.fenceKeys[slotIdx];
+    }
+
+    public int fenceKeyOffset(int fenceNo) {
+        return fenceNo * this.keyLength;
+    }
+
+    public void reset(short slotIdx) {
+        this.fenceCounts.set(slotIdx, 0);
+    }
+
+    //回写时丢掉尾部的fence，只保留前fenceCount个
+    public void truncate(short slotIdx, int fenceCount) {
+        this.fenceCounts.set(slotIdx, fenceCount);
+    }
+
+    //堆外占用的字节数
+    public long offHeapBytes() {
+        return (long) this.fenceKeys.length * this.maxFences * this.keyLength;
+    }
+}
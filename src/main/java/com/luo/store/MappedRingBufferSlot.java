@@ -1,13 +1,20 @@
 package com.luo.store;
 
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Created by luohui on 17/7/4.
@@ -15,6 +22,9 @@ import java.nio.channels.FileLock;
  * / last position(4 bytes) | key length(1 byte) | key (N bytes) | data length(4 bytes) | data(N bytes) | checkSum(4 bytes) | ......
  * last position每次写数据均更新，帮助从文件恢复时准确定位Buffer的position
  * key length是固定的
+ * checkSum覆盖key length到data的所有字节，算法见MappedRingBufferChecksum
+ * 数据文件超过regionSize时分成多个region映射，last position是8字节的long，见MappedRingBufferRegions
+ * 压缩模式下一段连续的记录压缩成一个block frame，和普通记录混在一起，见MappedRingBufferBlockCache
  * <p>
  * 索引分2部分（1、heap中包含部分索引数据，2、direct buffer中包含全部的索引数据）
  * 每个slot对应一个索引index（全部的索引数据都在direct buffer中）
@@ -28,6 +38,16 @@ import java.nio.channels.FileLock;
  * <p>
  * Index数据结构
  * / index records count(4 bytes) | [key + slot index(2 bytes)+ position(4 bytes)] | ........
+ * <p>
+ * 懒映射模式：只有写slot和最近读过的几个slot保持映射，其他slot在访问时通过pin()映射，
+ * 被MappedRingBufferSlotCache淘汰时解除数据和索引的映射
+ * <p>
+ * 多生产者模式：每个生产者对writeClaim做CAS，领取[position, position+frameLength)这段空间并保证key递增，
+ * 各自并行写入记录，然后按领取的顺序依次发布（写索引、更新last position），所以header和索引里不会出现空洞；
+ * 乱序的key回写之前先封住slot，等领取的记录都发布完（见MappedRingBuffer.overrideConcurrent）
+ * <p>
+ * 只读模式：数据文件用"r"打开、映射成READ_ONLY，不加锁（writer进程持有排它锁），
+ * 索引、发布位置和maxKey由MappedRingBuffer.refresh调用follow按writer进程的header同步
  */
 @Data
 public class MappedRingBufferSlot<K, V> {
@@ -35,14 +55,41 @@ public class MappedRingBufferSlot<K, V> {
     private String fileName;
     private long fileSize;
     private short slotIdx;
-    private MappedByteBuffer dataByteBuffer = null;
-    private final static int DATA_INIT_POS_IN_BUFFER = 4;
+    private MappedRingBufferRegions regions = null;
+    private final int dataStart;//第一条记录的位置，也就是header的长度
+    private long writePosition;//单个writer下一条记录的位置
+    public final static int CLAIM_SLOT_FULL = -1;//slot放不下，需要切换到下一个slot
+    public final static int CLAIM_OUT_OF_ORDER = -2;//key不大于已经领取的最大key，需要走覆盖逻辑
+    private final static int INDEX_REBUILD_BATCH = 1024;
+    private final static int PAGE_SIZE = 4096;
     private RandomAccessFile raFile = null;
     private FileChannel fc = null;
     private FileLock fl = null;
     private MappedRingBufferMemoryIndex<K, V> memoryIndex;
     private MappedRingBuffer<K, V> ringBuffer;
-    private K maxKey = null;
+    private volatile K maxKey = null;
+    private ByteBuffer[] checksumViews = null;//计算checksum用的视图（每个region一个），避免改动region的position
+    //多生产者模式下使用
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private final AtomicReference<WriteClaim> writeClaim;
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private final AtomicLong publishedPosition;
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private ThreadLocal<ByteBuffer[]> threadChecksumViews;//多生产者和读者各自的checksum视图
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private int pins = 0;//懒映射模式下正在使用这个slot的读者/writer数
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private int preTouchSum;//prepare触碰读到的字节之和，只是为了让读不被优化掉
+    private int recoveredRecords;//load时从数据文件扫描恢复的记录数
+    private volatile long generation = 0;//slot的代数，0表示空闲，由MappedRingBuffer维护和持久化
+    private volatile long newestTimestamp = 0;//slot中最新记录的时间戳，writer切换走时设置，按时间保留时使用
+    @Setter(AccessLevel.NONE)
+    private volatile int blockEpoch = 0;//slot被清空或者回写时加1，之前缓存的解压block不再使用
 
     public MappedRingBufferSlot(String fileDir, String fileName, long fileSize, short slotIdx, MappedRingBufferMemoryIndex<K, V> memoryIndex, MappedRingBuffer<K, V> ringBuffer) {
         this.fileDir = fileDir;
@@ -51,159 +98,674 @@ public class MappedRingBufferSlot<K, V> {
         this.slotIdx = slotIdx;
         this.memoryIndex = memoryIndex;
         this.ringBuffer = ringBuffer;
+        this.dataStart = MappedRingBufferRegions.headerSize(fileSize, ringBuffer.getSlotRegionSize());
+        this.writePosition = this.dataStart;
+        this.writeClaim = new AtomicReference<>(new WriteClaim(null, this.dataStart, false, 0));
+        this.publishedPosition = new AtomicLong(this.dataStart);
+    }
+
+    /**
+     * writer切换到这个slot之前由roller调用（没有roller时由writer自己调用）：
+     * 重置header和索引，再在rollerPreTouchBytes之内每页读一个字节，让缺页发生在roller线程上，而不是writer切换slot之后的第一批写入上；
+     * 只读不写，不会把整个slot的页都弄脏，索引文件按和数据文件同样的比例触碰
+     * 调用方需要pin住slot
+     */
+    public void prepare() {
+        MappedRingBufferRegions regions = this.regions;
+        this.ringBuffer.beginSlotChange(this.slotIdx);
+        try {
+            regions.putLastPosition(this.dataStart);
+            this.memoryIndex.resetSlotIndex(this.slotIdx);
+        } finally {
+            this.ringBuffer.endSlotChange(this.slotIdx);
+        }
+        this.rewound(this.dataStart);
+        long window = this.ringBuffer.getRollerPreTouchBytes();
+        if (0 == window) return;
+        int sum = regions.preTouch(this.dataStart, this.dataStart + window, PAGE_SIZE);
+        MappedByteBuffer indexBuffer = this.memoryIndex.getIndexRecordBuffer(this.slotIdx);
+        long indexWindow = (long) ((double) indexBuffer.capacity() * Math.min(window, regions.getCapacity()) / regions.getCapacity());
+        sum += preTouch(indexBuffer, MappedRingBufferMemoryIndex.INDEX_HEADER_SIZE, indexWindow);
+        this.preTouchSum = sum;
+    }
+
+    //每页读一个字节，返回读到的字节之和
+    private static int preTouch(MappedByteBuffer buffer, int from, long to) {
+        int sum = 0;
+        for (int i = from; i < Math.min(to, buffer.capacity()); i += PAGE_SIZE) {
+            sum += buffer.get(i);
+        }
+        return sum;
     }
 
     //一条数据占用字节数：1(key length) + 4(data length) + 16(key) + 1000(data) + 4(checksum) = 1025
-    public int nextDataPosition(int length0, int length1) {
-        int total = 1 + 4 + length0 + length1 + 4;
-        int oldPosition = this.dataByteBuffer.position();
-        int newPosition = oldPosition + total;
-        if (newPosition > this.dataByteBuffer.limit()) {
+    //slot或者它的索引文件放不下时返回-1，writer切换到下一个slot，不会先写了数据再发现索引放不下
+    public long nextDataPosition(int length0, int length1) {
+        if (!this.memoryIndex.hasRoom(this.slotIdx, 1)) return -1;
+        int total = frameLength(length0, length1);
+        long position = this.regions.framePosition(this.writePosition, total);
+        if (-1 == position) {
             return -1;
         }
-        this.dataByteBuffer.position(newPosition);
-        this.dataByteBuffer.putInt(0, newPosition);
-        return oldPosition;//why?
+        this.regions.pad(this.writePosition, position);
+        this.writePosition = position + total;
+        return position;
+    }
+
+    static int frameLength(int keyLength, int dataLength) {
+        return 1 + 4 + keyLength + dataLength + 4;
+    }
+
+    //offset处frame的长度，普通记录或者压缩block
+    static int frameLength(ByteBuffer buffer, int offset) {
+        if (MappedRingBufferBlockCache.isBlock(buffer, offset)) return MappedRingBufferBlockCache.frameLength(buffer, offset);
+        int keyLength = buffer.get(offset);
+        return frameLength(keyLength, buffer.getInt(offset + 1 + keyLength));
+    }
+
+    //offset处frame的长度，长度字段超出limit或者不合法时返回-1，校验可能损坏的数据时使用
+    static long checkedFrameLength(ByteBuffer buffer, int offset, int limit) {
+        if (MappedRingBufferBlockCache.isBlock(buffer, offset)) {
+            if (offset + MappedRingBufferBlockCache.BLOCK_HEADER_SIZE > limit) return -1;
+            int storedLength = buffer.getInt(offset + 6);
+            return storedLength < 0 ? -1 : MappedRingBufferBlockCache.BLOCK_HEADER_SIZE + 4L + storedLength;
+        }
+        int keyLength = buffer.get(offset);
+        if (keyLength <= 0 || offset + 1 + keyLength + 4 > limit) return -1;
+        int dataLength = buffer.getInt(offset + 1 + keyLength);
+        return dataLength < 0 ? -1 : 1 + 4 + 4L + keyLength + dataLength;
+    }
+
+    /**
+     * 多生产者模式：CAS领取一段frameLength长的空间
+     *
+     * 领取时连同索引记录一起领取，索引文件放不下已经领取的记录数加1时和数据放不下一样处理
+     *
+     * @return 领取到的起始位置（记录跨region时实际写在下一个region的开头，见writeDataConcurrent）；
+     * CLAIM_SLOT_FULL表示slot已满（此后slot被封住，不再接受更小的记录）；CLAIM_OUT_OF_ORDER表示key不大于已经领取的最大key
+     */
+    public long claimDataPosition(K key, int frameLength) {
+        while (true) {
+            WriteClaim current = this.writeClaim.get();
+            if (current.sealed) return CLAIM_SLOT_FULL;
+            if (null != current.key && ((Comparable) key).compareTo(current.key) <= 0) return CLAIM_OUT_OF_ORDER;
+            long framePosition = this.regions.framePosition(current.position, frameLength);
+            if (-1 == framePosition || current.records >= this.memoryIndex.getMaxIndexRecords()) {
+                //封住slot，防止后面更小的记录塞进剩余空间，破坏slot间key的顺序
+                if (this.writeClaim.compareAndSet(current, new WriteClaim(current.key, current.position, true, current.records))) {
+                    return CLAIM_SLOT_FULL;
+                }
+                continue;
+            }
+            if (this.writeClaim.compareAndSet(current, new WriteClaim(key, framePosition + frameLength, false, current.records + 1))) {
+                return current.position;
+            }
+        }
+    }
+
+    //多生产者回写之前封住slot，之后不再有新的领取，已经领取的记录照常发布
+    void sealClaims() {
+        while (true) {
+            WriteClaim current = this.writeClaim.get();
+            if (current.sealed || this.writeClaim.compareAndSet(current, new WriteClaim(current.key, current.position, true, current.records))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 封住之后没有回写：重新打开slot，从发布的位置继续领取，调用方保证领取的记录都已经发布
+     * lastKey是环中最大的key，之后领取的key必须大于它
+     */
+    void reopenClaims(K lastKey) {
+        this.writeClaim.set(new WriteClaim(lastKey, this.publishedPosition.get(), false, this.memoryIndex.getIndexRecCount(this.slotIdx)));
+    }
+
+    public boolean isClaimSealed() {
+        return this.writeClaim.get().sealed;
+    }
+
+    //已经领取过的最大key
+    public K getClaimedKey() {
+        return (K) this.writeClaim.get().key;
+    }
+
+    /**
+     * 多生产者模式：在领取到的位置上写入记录，然后按领取顺序发布
+     */
+    public void writeDataConcurrent(long claimed, K key, V data, int dataLength) {
+        long position = this.regions.framePosition(claimed, frameLength(this.ringBuffer.getCodec().fixedKeyLength(), dataLength));
+        this.regions.pad(claimed, position);
+        long end = this.writeFrame(position, key, data, dataLength, this.threadChecksumViews.get());
+
+        //等前面领取的记录都发布完，保证header和索引中没有空洞
+        while (this.publishedPosition.get() != claimed) {
+            Thread.yield();
+        }
+        this.maxKey = key;
+        this.memoryIndex.writeIndexData(slotIdx, key, data, position);
+        this.regions.putLastPosition(end);
+        this.publishedPosition.set(end);
+        this.ringBuffer.getMetrics().recordWrite(1, end - claimed);
+    }
+
+    //已经发布的last position，同一进程内的读者通过它读取，保证能看到完整的记录
+    public long getPublishedPosition() {
+        return this.publishedPosition.get();
+    }
+
+    //多生产者模式下slot被封住后，还要等所有领取了空间的记录都发布完，slot才算写完
+    public boolean isPublishComplete() {
+        WriteClaim claim = this.writeClaim.get();
+        return !claim.sealed || this.publishedPosition.get() == claim.position;
     }
 
     public void clean() {
-        this.dataByteBuffer.clear();
-        this.dataByteBuffer.putInt(DATA_INIT_POS_IN_BUFFER);//缺省的newPosition，第一个就是4
+        this.clean(null);
+    }
+
+    //lastKey是上一个slot领取过的最大key，多生产者模式下新slot的key必须大于它
+    public void clean(K lastKey) {
+        this.blockEpoch++;
+        this.writePosition = this.dataStart;
+        this.regions.putLastPosition(this.dataStart);//缺省的newPosition，第一个就是header之后
 //        this.memoryIndex.removeSlotIndex(this.slotIdx,this.maxKey);
         this.maxKey = null;
+        this.publishedPosition.set(this.dataStart);
+        this.writeClaim.set(new WriteClaim(lastKey, this.dataStart, false, 0));
+        this.rewound(this.dataStart);
+    }
+
+    //写位置往回移之后通知flusher，之后重新写入的数据即使没超过旧的刷盘位置也要刷
+    private void rewound(long position) {
+        MappedRingBufferFlusher<K, V> flusher = this.ringBuffer.getFlusher();
+        if (null != flusher) flusher.rewound(this.slotIdx, position, this.memoryIndex.getIndexEndPosition(this.slotIdx));
+    }
+
+    /**
+     * 回写：丢掉第indexRecIndex条及之后的记录，last position、发布位置和索引都回退到这条记录之前，
+     * 之后的写入从这里开始。只能由writer调用，懒映射模式下调用方需要pin住slot
+     * 记录在压缩block中间时整个block都丢掉，返回block中这条记录之前的记录frame，由writer重新写入
+     *
+     * @return block中要重新写入的记录，不在block中间返回null
+     */
+    public ByteBuffer rewind(int indexRecIndex) {
+        long position = 1 == indexRecIndex ? this.dataStart : this.memoryIndex.getDataPosition(this.slotIdx, indexRecIndex);
+        ByteBuffer prefix = null;
+        if (MappedRingBufferMemoryIndex.isBlockAddress(position)) {
+            int blockOffset = MappedRingBufferMemoryIndex.blockOffsetOf(position);
+            position = MappedRingBufferMemoryIndex.framePositionOf(position);
+            if (blockOffset > 0) {
+                prefix = this.ringBuffer.getBlockCache().get(this, this.regions, position);
+                prefix.limit(blockOffset);
+                //block中这条记录之前的记录也要从索引中去掉
+                for (int offset = 0; offset < blockOffset; offset += frameLength(prefix, offset)) {
+                    indexRecIndex--;
+                }
+            }
+        }
+        this.blockEpoch++;
+        //先回退header和发布位置，读者不会再读到被丢掉的记录
+        this.regions.putLastPosition(position);
+        this.publishedPosition.set(position);
+        this.memoryIndex.truncate(this.slotIdx, indexRecIndex - 1);
+        this.writePosition = position;
+        K lastKey = null;
+        if (indexRecIndex > 1) {
+            lastKey = this.ringBuffer.getCodec().newRingBufferKey();
+            this.memoryIndex.decodeKey(this.slotIdx, indexRecIndex - 1, lastKey);
+        }
+        this.maxKey = lastKey;
+        this.writeClaim.set(new WriteClaim(lastKey, position, false, indexRecIndex - 1));
+        this.rewound(position);
+        return prefix;
     }
 
     //一条数据占用字节数：1(key length) + 4(data length) + 16(key) + 1000(data) + 4(checksum) = 1025
-    public void writeData(int oldPosition, K key, byte[] keyBuffer, byte[] dataBuffer) {
-        int temp = oldPosition;
-        this.dataByteBuffer.put(temp, (byte) keyBuffer.length);
-        temp++;
+    public void writeData(long oldPosition, K key, V data, int dataLength) {
+        long newPosition = this.writeFrame(oldPosition, key, data, dataLength, this.checksumViews);
+
+        this.maxKey = key;//maxKey应该是currentKey
+        //begin write index
+        this.memoryIndex.writeIndexData(slotIdx, key, data, oldPosition);
+        //记录和索引都写完后再更新last position，读者不会读到写了一半的记录
+        this.regions.putLastPosition(newPosition);
+        this.publishedPosition.lazySet(newPosition);
+        this.ringBuffer.getMetrics().recordWrite(1, newPosition - oldPosition);
+    }
+
+    /**
+     * 批量写入[from, to)中能放进本slot（以及它的索引文件）的记录：一次性预留空间，写完所有记录后只更新一次header，
+     * 索引也一次性追加
+     *
+     * @return 实际写入的记录条数，0表示本slot已经放不下下一条记录
+     */
+    public int writeBatch(K[] keys, V[] values, int[] dataLengths, int from, int to) {
+        int keyLength = this.ringBuffer.getCodec().fixedKeyLength();
+        long[] positions = new long[to - from];
+        long newPosition = this.writePosition;
+        int end = from;
+        int indexRoom = this.memoryIndex.getIndexRoom(this.slotIdx);
+        while (end < to && end - from < indexRoom) {
+            int total = frameLength(keyLength, dataLengths[end]);
+            long position = this.regions.framePosition(newPosition, total);
+            if (-1 == position) break;
+            positions[end - from] = position;
+            newPosition = position + total;
+            end++;
+        }
+        if (end == from) return 0;
 
-        for (int i = 0; i < keyBuffer.length; i++) {
-            this.dataByteBuffer.put(temp, keyBuffer[i]);//这里不能直接使用put(keyBuffer)，是因为nextDataPosition里已经position到newPosition了
-            temp += 1;
+        long position = this.writePosition;
+        this.ringBuffer.getMetrics().recordWrite(end - from, newPosition - position);
+        for (int i = from; i < end; i++) {
+            this.regions.pad(position, positions[i - from]);
+            position = this.writeFrame(positions[i - from], keys[i], values[i], dataLengths[i], this.checksumViews);
         }
+        this.writePosition = newPosition;
+        //所有记录都写完后再更新last position
+        this.regions.putLastPosition(newPosition);
+        this.publishedPosition.lazySet(newPosition);
+
+        this.maxKey = keys[end - 1];
+        this.memoryIndex.writeIndexData(slotIdx, keys, values, positions, from, end);
+        return end - from;
+    }
+
+    /**
+     * 压缩模式下writer写入一个block：stored是压缩后（或者原样）的字节，frames是block解压后的记录frame，
+     * offsets[i]是第i条记录在frames中的位置。block、索引都写完后再更新last position
+     *
+     * @return false表示slot（或者它的索引文件）放不下这个block
+     */
+    public boolean writeBlock(byte compressorId, byte[] stored, int storedLength, ByteBuffer frames, int[] offsets, int count, K lastKey) {
+        int total = MappedRingBufferBlockCache.blockFrameLength(storedLength);
+        long position = this.regions.framePosition(this.writePosition, total);
+        if (-1 == position || !this.memoryIndex.hasRoom(this.slotIdx, count)) return false;
+        this.regions.pad(this.writePosition, position);
+        this.ringBuffer.getMetrics().recordWrite(count, position + total - this.writePosition);
+        int regionIdx = this.regions.regionIndex(position);
+        ByteBuffer buffer = this.regions.getRegion(regionIdx);
+        ByteBuffer view = this.checksumViews[regionIdx];
+        int offset = this.regions.offset(position);
+        buffer.put(offset, MappedRingBufferBlockCache.BLOCK_MARKER);
+        buffer.put(offset + 1, compressorId);
+        buffer.putInt(offset + 2, frames.remaining());
+        buffer.putInt(offset + 6, storedLength);
+        view.limit(view.capacity());
+        view.position(offset + MappedRingBufferBlockCache.BLOCK_HEADER_SIZE);
+        view.put(stored, 0, storedLength);
+        buffer.putInt(offset + total - 4, this.ringBuffer.getChecksum().checksum(view, offset, total - 4));
+
+        this.writePosition = position + total;
+        this.maxKey = lastKey;
+        this.memoryIndex.writeIndexDataFromBlock(this.slotIdx, frames, offsets, count, position, true);
+        this.regions.putLastPosition(this.writePosition);
+        this.publishedPosition.lazySet(this.writePosition);
+        return true;
+    }
 
-        this.dataByteBuffer.putInt(temp, dataBuffer.length);
+    //key和data直接编码到position所在region的mmap buffer中，返回下一条记录的位置
+    private long writeFrame(long position, K key, V data, int dataLength, ByteBuffer[] checksumViews) {
+        IRingBufferCodec<K, V> codec = this.ringBuffer.getCodec();
+        int regionIdx = this.regions.regionIndex(position);
+        ByteBuffer buffer = this.regions.getRegion(regionIdx);
+        ByteBuffer checksumView = checksumViews[regionIdx];
+        int start = this.regions.offset(position);
+        int temp = start;
+        buffer.put(temp, (byte) codec.fixedKeyLength());
+        temp++;
+
+        codec.encodeKey(key, buffer, temp);
+        temp += codec.fixedKeyLength();
+
+        buffer.putInt(temp, dataLength);
         temp += 4;
 
-        for (int i = 0; i < dataBuffer.length; i++) {
-            this.dataByteBuffer.put(temp, dataBuffer[i]);//这里不能直接使用put(keyBuffer)，是因为nextDataPosition里已经position到newPosition了
-            temp += 1;
+        codec.encodeData(data, buffer, temp);
+        temp += dataLength;
+
+        //直接在mmap的内存上计算，不拷贝、不分配
+        int checkSum = this.ringBuffer.getChecksum().checksum(checksumView, start, temp - start);
+        buffer.putInt(temp, checkSum);
+        temp += 4;
+        return position + (temp - start);
+    }
+
+    /**
+     * 读取position处记录的data部分，返回只读的slice，直接指向mmap的内存，不做拷贝；
+     * 压缩block中的记录指向解压后的block
+     *
+     * @param position 记录在slot中的位置
+     * @return
+     */
+    public ByteBuffer readData(long position) {
+        ByteBuffer region;
+        int offset;
+        if (MappedRingBufferMemoryIndex.isBlockAddress(position)) {
+            //压缩block中的记录，从解压后的block中读
+            region = this.ringBuffer.getBlockCache().get(this, this.regions, MappedRingBufferMemoryIndex.framePositionOf(position));
+            offset = MappedRingBufferMemoryIndex.blockOffsetOf(position);
+        } else {
+            this.checkFrame(this.regions, position);
+            region = this.regions.region(position);
+            offset = this.regions.offset(position);
         }
+        int keyLen = region.get(offset);
+        int dataPos = offset + 1 + keyLen;
+        int dataLen = region.getInt(dataPos);
+        ByteBuffer buffer = region.asReadOnlyBuffer();
+        buffer.limit(dataPos + 4 + dataLen);
+        buffer.position(dataPos + 4);
+        return buffer.slice();
+    }
 
-        java.util.zip.CRC32 crc32 = new java.util.zip.CRC32();
-        crc32.update(dataBuffer, 0, dataBuffer.length);
-        int checkSum = (int) crc32.getValue();
-        this.dataByteBuffer.putInt(temp, checkSum);
-        //end
+    /**
+     * verifyChecksumOnRead打开时，读之前校验position处的frame（普通记录或者压缩block），损坏抛IllegalStateException
+     * 调用方需要pin住slot
+     */
+    public void checkFrame(MappedRingBufferRegions regions, long position) {
+        if (!this.ringBuffer.isVerifyChecksumOnRead()) return;
+        ByteBuffer view = this.threadChecksumViews.get()[regions.regionIndex(position)];
+        if (!this.ringBuffer.getChecksum().verify(view, regions.offset(position), view.capacity())) {
+            this.ringBuffer.getMetrics().recordChecksumFailure();
+            throw new IllegalStateException("checksum mismatch, slot " + this.slotIdx + " position " + position);
+        }
+    }
 
-        this.maxKey = key;//maxKey应该是currentKey
-        //begin write index
-        MappedRingBufferIndexData index = new MappedRingBufferIndexData(this.getSlotIdx(), oldPosition);
-        this.memoryIndex.writeIndexData(slotIdx, key, index);
+    /**
+     * 只读模式下跟上writer进程写入的数据：按writer的header同步索引、发布位置和maxKey
+     * reset表示slot被writer清空、回写或者重新使用过，之前缓存的解压block也不再使用
+     */
+    void follow(boolean reset) {
+        if (reset) this.blockEpoch++;
+        long lastPosition = this.regions.getLastPosition();
+        int known = this.memoryIndex.getRecordCount(this.slotIdx);
+        int count = this.memoryIndex.follow(this.slotIdx, reset);
+        if (reset || count != known) this.maxKey = this.memoryIndex.getMaxKey(this.slotIdx);
+        this.writePosition = lastPosition;
+        this.publishedPosition.set(lastPosition);
     }
 
     public K load() {
         try {
             this.loadData();
         } catch (IOException e) {
-            e.printStackTrace();
+            //不能当成空slot继续，否则这个slot的数据会被当成不存在，之后还会被覆盖
+            throw new IllegalStateException("load slot " + this.slotIdx + " failed, file " + this.fileDir + "/" + this.fileName, e);
         }
         return this.maxKey;
     }
 
     private void loadData() throws IOException {
         File file = new File(this.fileDir + "/" + this.fileName);
+        boolean readOnly = this.ringBuffer.isReadOnly();
         boolean createNewFile = false;
         if (!file.exists()) {
-            System.out.println("slot file [" + file.getName() + "] is missing");
+            if (readOnly) throw new IllegalStateException("slot file " + file + " does not exist, open the writer first");
+            this.ringBuffer.getMetrics().recordMissingSlotFile();
             file.createNewFile();
             createNewFile = true;
         }
 
-        raFile = new RandomAccessFile(file, "rw");
+        raFile = new RandomAccessFile(file, readOnly ? "r" : "rw");
         fc = raFile.getChannel();
+        if (readOnly) {
+            //只读映射不能扩展文件，writer进程打开过的slot文件都是fileSize大小
+            if (fc.size() != this.fileSize) {
+                throw new IllegalStateException("file size " + fc.size() + " of " + file + " is not " + this.fileSize);
+            }
+            this.mapData();
+            this.memoryIndex.followIndex(this.slotIdx);
+            return;
+        }
         fl = fc.lock();
         if (fl == null) {
-            System.out.println("");
             throw new IllegalStateException("file is used by other process !");
         }
         if (fc.size() > 0 && fc.size() > this.fileSize) {
             throw new IllegalStateException("file size is larger than confiured");
         }
 
-        long capacity = fc.size() > this.fileSize ? fc.size() : this.fileSize;
-        this.dataByteBuffer = fc.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        this.mapData();
         if (createNewFile) {
-            this.dataByteBuffer.putInt(DATA_INIT_POS_IN_BUFFER);
-        } else {
-            int lastPos = this.dataByteBuffer.getInt(0);
-            this.dataByteBuffer.position(lastPos);
+            this.regions.putLastPosition(this.dataStart);
+            this.writePosition = this.dataStart;
         }
 
         //构建索引
         this.buildIndex();
-        System.out.println("load file end ");
+        this.publishedPosition.set(this.writePosition);
+        this.writeClaim.set(new WriteClaim(this.maxKey, this.writePosition, false, this.memoryIndex.getIndexRecCount(this.slotIdx)));
     }
 
-    private void buildIndex() throws IOException {
-        if(!this.tryBuildIndexFromIndexFile()){
-            this.buildIndexFromDataFile();
+    //映射数据文件，写的位置恢复到last position
+    private void mapData() throws IOException {
+        long capacity = fc.size() > this.fileSize ? fc.size() : this.fileSize;
+        final MappedRingBufferRegions mapped = MappedRingBufferRegions.map(fc, capacity, this.ringBuffer.getSlotRegionSize(),
+                this.ringBuffer.isReadOnly() ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE);
+        long lastPos = mapped.getLastPosition();
+        this.writePosition = lastPos < this.dataStart ? this.dataStart : lastPos;
+        this.checksumViews = mapped.duplicates();
+        this.threadChecksumViews = new ThreadLocal<ByteBuffer[]>() {
+            @Override
+            protected ByteBuffer[] initialValue() {
+                return mapped.duplicates();
+            }
+        };
+        this.regions = mapped;
+    }
+
+    /**
+     * 读之前pin住slot：懒映射模式下没有映射的话先映射数据和索引，pin住期间不会被LRU解除映射
+     * 非懒映射模式下slot一直是映射的，直接返回
+     */
+    public MappedRingBufferRegions pin() {
+        if (!this.ringBuffer.isLazyMapping()) return this.regions;
+        MappedRingBufferRegions regions;
+        synchronized (this) {
+            if (null == this.regions) {
+                try {
+                    this.mapData();
+                    this.memoryIndex.mapIndex(this.slotIdx);
+                } catch (IOException e) {
+                    throw new IllegalStateException("map slot " + this.slotIdx + " failed", e);
+                }
+            }
+            this.pins++;
+            regions = this.regions;
+        }
+        this.ringBuffer.getSlotCache().touch(this);
+        return regions;
+    }
+
+    //已经映射才pin住，返回false表示没有映射
+    public synchronized boolean pinIfMapped() {
+        if (!this.ringBuffer.isLazyMapping()) return true;
+        if (null == this.regions) return false;
+        this.pins++;
+        return true;
+    }
+
+    public void unpin() {
+        if (!this.ringBuffer.isLazyMapping()) return;
+        synchronized (this) {
+            this.pins--;
         }
     }
 
     /**
-     * 从数据文件建立索引和跳表数据
+     * 没有被pin住时解除数据和索引的映射，解除前先force，返回true表示已经不再映射
+     */
+    public synchronized boolean unmapIfUnpinned() {
+        if (this.pins > 0) return false;
+        MappedRingBufferRegions regions = this.regions;
+        if (null == regions) return true;
+        this.memoryIndex.checkpoint(this.slotIdx);
+        this.regions = null;
+        this.checksumViews = null;
+        this.threadChecksumViews = null;
+        regions.force();
+        regions.unmap();
+        this.memoryIndex.unmapIndex(this.slotIdx);
+        return true;
+    }
+
+    public void close() throws IOException {
+        if (null != this.regions) this.memoryIndex.checkpoint(this.slotIdx);
+        if (this.ringBuffer.isLazyMapping()) {
+            this.unmapIfUnpinned();
+        }
+        this.memoryIndex.closeSummary(this.slotIdx);
+        this.memoryIndex.closeSecondaryIndex(this.slotIdx);
+        if (null != this.fl && this.fl.isValid()) this.fl.release();
+        if (null != this.fc) this.fc.close();
+        if (null != this.raFile) this.raFile.close();
+    }
+
+    //索引文件校验通过时只扫描watermark之后的数据，重启耗时只和没有checkpoint的数据量有关
+    private void buildIndex() throws IOException {
+        long watermark = this.memoryIndex.buildIndex(this.slotIdx, this.regions);
+        this.buildIndexFromDataFile(watermark);
+        this.memoryIndex.checkpoint(this.slotIdx);
+        this.maxKey = this.memoryIndex.getMaxKey(this.slotIdx);
+    }
+
+    /**
+     * 从数据文件的from位置开始建立索引
      *
      */
-    private void buildIndexFromDataFile() {
-        int lastPos = this.dataByteBuffer.getInt(0);
-        int position = 4;
+    private void buildIndexFromDataFile(long from) {
+        MappedRingBufferRegions regions = this.regions;
+        MappedRingBufferChecksum checksum = this.ringBuffer.isVerifyChecksumOnRecovery() ? this.ringBuffer.getChecksum() : MappedRingBufferChecksum.NONE;
+        long lastPos = regions.getLastPosition();
+        long position = from;
         int count = 0;
-        K firstKey = null;
-        K lastKey = null;
+        //攒够一批再写索引；索引中的key直接从frame拷贝，不解码成对象
+        long[] positions = new long[INDEX_REBUILD_BATCH];
+        int[] blockOffsets = new int[INDEX_REBUILD_BATCH];
+        int batched = 0;
         while (position<lastPos){
-            int beginPos = position;
-            //填充key
-            int keyLen = this.dataByteBuffer.get(position);
-            position+=1;
-            byte[] keyBuf = new byte[keyLen];
-            for (int n = 0; n < keyLen; n++) {
-                byte b = this.getDataByteBuffer().get(position);
-                position+=1;
-                keyBuf[n]=b;
+            //跳过region尾部的填充
+            position = regions.skipPadding(position);
+            ByteBuffer region = regions.region(position);
+            int offset = regions.offset(position);
+            ByteBuffer view = this.checksumViews[regions.regionIndex(position)];
+            if (!checksum.verify(view, offset, (int) Math.min(view.capacity(), offset + lastPos - position))) {
+                //损坏的记录（比如没写完就掉电）和它之后的数据都丢掉，slot截断到这里
+                this.ringBuffer.getMetrics().recordChecksumFailure();
+                this.ringBuffer.getMetrics().recordTruncate(lastPos - position);
+                lastPos = position;
+                regions.putLastPosition(lastPos);
+                break;
+            }
+            if (MappedRingBufferBlockCache.isBlock(region, offset)) {
+                //压缩block：解压后逐条建索引，前面攒下的普通记录先写掉保持索引顺序
+                this.memoryIndex.writeIndexDataFromFrames(slotIdx, regions, positions, batched);
+                batched = 0;
+                ByteBuffer block = MappedRingBufferBlockCache.decode(region, offset, this.ringBuffer.getCompressor());
+                int blockCount = 0;
+                for (int blockOffset = 0; blockOffset < block.limit(); blockOffset += frameLength(block, blockOffset)) {
+                    if (blockCount == blockOffsets.length) blockOffsets = Arrays.copyOf(blockOffsets, blockCount * 2);
+                    blockOffsets[blockCount++] = blockOffset;
+                }
+                this.memoryIndex.writeIndexDataFromBlock(slotIdx, block, blockOffsets, blockCount, position, false);
+                count += blockCount;
+                position += frameLength(region, offset);
+                continue;
+            }
+            //跳过key、data和checksum
+            positions[batched] = position;
+            position += frameLength(region, offset);
+            if (++batched == INDEX_REBUILD_BATCH) {
+                this.memoryIndex.writeIndexDataFromFrames(slotIdx, regions, positions, batched);
+                batched = 0;
             }
-            K key = this.ringBuffer.getFactory().newRingBufferKey();
-            this.ringBuffer.getFactory().decodeKey(keyBuf,key);
-            if(null == firstKey) firstKey = key;
-            lastKey = key;
-
-            //填充data
-            int dataLen = this.dataByteBuffer.getInt(position);
-            position+=4;
-            position+=dataLen;
-
-            //checksum
-            position+=4;
-            MappedRingBufferIndexData data = new MappedRingBufferIndexData(slotIdx,beginPos);
-            this.maxKey = key;
-            this.memoryIndex.writeIndexData(slotIdx,key, data);
             ++count;
-            if(position>=lastPos){
-                break;
+        }
+        this.memoryIndex.writeIndexDataFromFrames(slotIdx, regions, positions, batched);
+        this.recoveredRecords = count;
+        this.writePosition = lastPos;
+    }
+
+    /**
+     * 复制模式下follower收到leader的原始字节后调用：[writePosition, received)中完整的frame建索引，
+     * key直接从frame拷贝、不解码data，再更新last position发布；最后不完整的frame等下一段数据补齐
+     * 只能由MappedRingBufferReceiver调用
+     *
+     * @return 发布的记录数
+     */
+    int publishReceived(long received) {
+        MappedRingBufferRegions regions = this.regions;
+        long position = this.writePosition;
+        long end = position;
+        long[] positions = new long[INDEX_REBUILD_BATCH];
+        int[] blockOffsets = new int[INDEX_REBUILD_BATCH];
+        int batched = 0;
+        int count = 0;
+        while (position < received) {
+            //跳过region尾部的填充，下一个region的frame可能还没收到
+            position = regions.skipPadding(position);
+            if (position >= received) break;
+            ByteBuffer region = regions.region(position);
+            int offset = regions.offset(position);
+            long frameLength = checkedFrameLength(region, offset, (int) Math.min(region.capacity(), offset + received - position));
+            if (-1 == frameLength || position + frameLength > received) break;
+            if (MappedRingBufferBlockCache.isBlock(region, offset)) {
+                this.memoryIndex.writeIndexDataFromFrames(slotIdx, regions, positions, batched);
+                batched = 0;
+                ByteBuffer block = MappedRingBufferBlockCache.decode(region, offset, this.ringBuffer.getCompressor());
+                int blockCount = 0;
+                for (int blockOffset = 0; blockOffset < block.limit(); blockOffset += frameLength(block, blockOffset)) {
+                    if (blockCount == blockOffsets.length) blockOffsets = Arrays.copyOf(blockOffsets, blockCount * 2);
+                    blockOffsets[blockCount++] = blockOffset;
+                }
+                this.checkIndexRoom(blockCount);
+                this.memoryIndex.writeIndexDataFromBlock(slotIdx, block, blockOffsets, blockCount, position, true);
+                count += blockCount;
+            } else {
+                this.checkIndexRoom(batched + 1);
+                positions[batched] = position;
+                if (++batched == INDEX_REBUILD_BATCH) {
+                    this.memoryIndex.writeIndexDataFromFrames(slotIdx, regions, positions, batched);
+                    batched = 0;
+                }
+                count++;
             }
+            position += frameLength;
+            end = position;
         }
-        System.out.println("buildIndex, slotIndex "+slotIdx+" count "+count+" firstKey "+firstKey+" lastKey "+lastKey);
-        this.dataByteBuffer.position(lastPos);
+        this.memoryIndex.writeIndexDataFromFrames(slotIdx, regions, positions, batched);
+        if (0 == count) return 0;
+        this.ringBuffer.getMetrics().recordWrite(count, end - this.writePosition);
+        this.writePosition = end;
+        this.maxKey = this.memoryIndex.getMaxKey(this.slotIdx);
+        //索引都写完后再更新last position
+        this.regions.putLastPosition(end);
+        this.publishedPosition.lazySet(end);
+        this.writeClaim.set(new WriteClaim(this.maxKey, end, false, this.memoryIndex.getIndexRecCount(this.slotIdx)));
+        return count;
     }
 
-    //根据上次的索引文件构建跳表数据
-    private boolean tryBuildIndexFromIndexFile() throws IOException {
-        if(memoryIndex.buildIndex(slotIdx)){
-            this.maxKey = this.memoryIndex.getMaxKey(this.slotIdx);
-            return true;
+    //follower的索引文件比leader的小时放不下leader一个slot的记录
+    private void checkIndexRoom(int count) {
+        if (!this.memoryIndex.hasRoom(this.slotIdx, count)) {
+            throw new IllegalStateException("index file of slot " + this.slotIdx + " is full, indexFileSize of the follower must be the same as the leader");
+        }
+    }
+
+    //多生产者领取到的状态：已领取的最大key、下一条记录的位置和slot中已经领取的记录数（包括已经发布的）
+    private static final class WriteClaim {
+        private final Object key;
+        private final long position;
+        private final boolean sealed;
+        private final int records;
+
+        private WriteClaim(Object key, long position, boolean sealed, int records) {
+            this.key = key;
+            this.position = position;
+            this.sealed = sealed;
+            this.records = records;
         }
-        return false;
     }
 }
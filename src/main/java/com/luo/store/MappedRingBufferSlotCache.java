@@ -0,0 +1,47 @@
+package com.luo.store;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Created by luohui on 17/7/4.
+ * 懒映射模式下已经映射的slot的LRU：写slot之外最多保留capacity个最近读过的slot，
+ * 超出的slot在没有读者pin住时解除数据和索引的映射，下次访问时再映射
+ */
+public class MappedRingBufferSlotCache<K, V> {
+    private final MappedRingBuffer<K, V> ringBuffer;
+    private final int capacity;
+    private final LinkedHashMap<Short, MappedRingBufferSlot<K, V>> mappedSlots = new LinkedHashMap<>(16, 0.75f, true);
+
+    public MappedRingBufferSlotCache(MappedRingBuffer<K, V> ringBuffer, int capacity) {
+        this.ringBuffer = ringBuffer;
+        this.capacity = capacity;
+    }
+
+    //slot刚被访问过，放到LRU的最新端，并淘汰超出的slot
+    public synchronized void touch(MappedRingBufferSlot<K, V> slot) {
+        this.mappedSlots.put(slot.getSlotIdx(), slot);
+        this.evict();
+    }
+
+    public synchronized void remove(MappedRingBufferSlot<K, V> slot) {
+        this.mappedSlots.remove(slot.getSlotIdx());
+    }
+
+    public synchronized int size() {
+        return this.mappedSlots.size();
+    }
+
+    private void evict() {
+        MappedRingBufferSlot<K, V> current = this.ringBuffer.getCurrentSlot();
+        int readSlots = this.mappedSlots.size() - (this.mappedSlots.containsKey(current.getSlotIdx()) ? 1 : 0);
+        Iterator<MappedRingBufferSlot<K, V>> iterator = this.mappedSlots.values().iterator();
+        while (readSlots > this.capacity && iterator.hasNext()) {
+            MappedRingBufferSlot<K, V> slot = iterator.next();
+            //写slot一直被writer pin住；正在被读的slot也跳过，等下次淘汰
+            if (slot == current || !slot.unmapIfUnpinned()) continue;
+            iterator.remove();
+            readSlots--;
+        }
+    }
+}
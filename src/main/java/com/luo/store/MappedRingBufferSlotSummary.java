@@ -0,0 +1,191 @@
+package com.luo.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Created by luohui on 17/7/4.
+ * slot摘要：每个slot一个摘要文件（前缀 + "summary-" + slotIdx），和索引文件放在一起
+ * / magic(4) | version(4) | key length(4) | hash count(4) | bloom bits(8) | state(4) | reserved(4) | min key | max key | bloom filter(long数组) |
+ * min/max是slot中第一条和最后一条记录编码后的key，Bloom filter覆盖slot中写过的所有编码后的key，都随索引记录的追加更新
+ * 回写时只回退max，不从Bloom filter中删除（多出来的位只会让查找多走一次索引），slot被清空或者重新使用时Bloom filter整个清零
+ * <p>
+ * 文件不单独force：close时force之后state写成CLEAN，load时先改成DIRTY；
+ * load时不是CLEAN（上次没有正常关闭）或者参数变了，Bloom filter按索引记录重建
+ * 摘要文件一直映射着（懒映射模式下也是），查找时不用映射slot就能跳过它；每个slot只有一个写者，置位不加锁，
+ * 只读进程读到的long不会是写了一半的
+ */
+public class MappedRingBufferSlotSummary {
+    private final static int MAGIC = 0x52425355;//"RBSU"
+    private final static int VERSION = 1;
+    private final static int KEY_LENGTH_OFFSET = 8;
+    private final static int HASH_COUNT_OFFSET = 12;
+    private final static int BLOOM_BITS_OFFSET = 16;
+    private final static int STATE_OFFSET = 24;
+    private final static int HEADER_SIZE = 32;
+    private final static int DIRTY = 0;
+    private final static int CLEAN = 1;
+    private final static int MAX_HASH_COUNT = 16;
+    private final int keyLength;
+    private final long bloomBits;//0表示没有Bloom filter，只有min/max
+    private final int hashCount;
+    private final int bloomOffset;
+    private final int fileSize;
+    private final AtomicReferenceArray<MappedByteBuffer> buffers;
+
+    /**
+     * @param bloomBitsPerKey 每个key的Bloom filter位数，0表示不要Bloom filter；10位大约1%的误判
+     * @param keysPerSlot     每个slot按多少个key分配Bloom filter
+     */
+    public MappedRingBufferSlotSummary(int slotCount, int keyLength, int bloomBitsPerKey, long keysPerSlot) {
+        this.keyLength = keyLength;
+        this.bloomBits = 0 == bloomBitsPerKey ? 0 : (keysPerSlot * bloomBitsPerKey + 63) / 64 * 64;
+        //k = bits/key * ln2时误判率最低
+        this.hashCount = Math.max(1, Math.min(MAX_HASH_COUNT, (int) Math.round(bloomBitsPerKey * Math.log(2))));
+        this.bloomOffset = (HEADER_SIZE + 2 * keyLength + 7) / 8 * 8;
+        long fileSize = this.bloomOffset + this.bloomBits / 8;
+        if (fileSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("bloom filter of a slot must be smaller than 2GB, bits " + this.bloomBits);
+        }
+        this.fileSize = (int) fileSize;
+        this.buffers = new AtomicReferenceArray<>(slotCount);
+    }
+
+    /**
+     * 映射slot的摘要文件：上次正常关闭、参数也一样时返回true，Bloom filter可以直接用，之后标成DIRTY；
+     * 否则重新初始化并返回false，调用方按索引记录重建
+     * 只读模式下文件不存在或者参数不一样时不使用摘要，查找不跳过这个slot
+     */
+    public boolean map(short slotIdx, String fileName, boolean readOnly) throws IOException {
+        File file = new File(fileName);
+        if (readOnly && (!file.exists() || file.length() < this.fileSize)) return false;
+        try (RandomAccessFile raFile = new RandomAccessFile(file, readOnly ? "r" : "rw")) {
+            MappedByteBuffer buffer = raFile.getChannel().map(readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE, 0, this.fileSize);
+            boolean matched = MAGIC == buffer.getInt(0) && VERSION == buffer.getInt(4)
+                    && this.keyLength == buffer.getInt(KEY_LENGTH_OFFSET) && this.hashCount == buffer.getInt(HASH_COUNT_OFFSET)
+                    && this.bloomBits == buffer.getLong(BLOOM_BITS_OFFSET);
+            if (readOnly) {
+                if (matched) this.buffers.set(slotIdx, buffer);
+                else MappedByteBufferUtil.unmap(buffer);
+                return matched;
+            }
+            boolean clean = matched && CLEAN == buffer.getInt(STATE_OFFSET);
+            if (!matched) {
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+                buffer.putInt(KEY_LENGTH_OFFSET, this.keyLength);
+                buffer.putInt(HASH_COUNT_OFFSET, this.hashCount);
+                buffer.putLong(BLOOM_BITS_OFFSET, this.bloomBits);
+            }
+            buffer.putInt(STATE_OFFSET, DIRTY);
+            this.buffers.set(slotIdx, buffer);
+            if (!clean) this.reset(slotIdx);
+            return clean;
+        }
+    }
+
+    /**
+     * 追加一条记录：source中keyOffset处是编码后的key，indexRecIndex是它的索引序号
+     */
+    public void add(short slotIdx, ByteBuffer source, int keyOffset, int indexRecIndex) {
+        MappedByteBuffer buffer = this.buffers.get(slotIdx);
+        if (null == buffer) return;
+        if (1 == indexRecIndex) this.copyKey(source, keyOffset, buffer, HEADER_SIZE);
+        this.copyKey(source, keyOffset, buffer, HEADER_SIZE + this.keyLength);
+        if (0 == this.bloomBits) return;
+        long hash = hash(source, keyOffset, this.keyLength);
+        for (int i = 0; i < this.hashCount; i++) {
+            long bit = this.bitOf(hash, i);
+            int offset = this.bloomOffset + (int) (bit >>> 6) * 8;
+            long word = buffer.getLong(offset);
+            long mask = 1L << bit;
+            if (0 == (word & mask)) buffer.putLong(offset, word | mask);
+        }
+    }
+
+    /**
+     * slot的Bloom filter里有没有encoded中keyOffset处的key，false表示一定没有
+     * 没有摘要或者没有Bloom filter时返回true
+     */
+    public boolean mightContain(short slotIdx, ByteBuffer encoded, int keyOffset) {
+        MappedByteBuffer buffer = this.buffers.get(slotIdx);
+        if (null == buffer || 0 == this.bloomBits) return true;
+        long hash = hash(encoded, keyOffset, this.keyLength);
+        for (int i = 0; i < this.hashCount; i++) {
+            long bit = this.bitOf(hash, i);
+            if (0 == (buffer.getLong(this.bloomOffset + (int) (bit >>> 6) * 8) & (1L << bit))) return false;
+        }
+        return true;
+    }
+
+    public boolean hasBloomFilter() {
+        return this.bloomBits > 0;
+    }
+
+    //回写后max回退到source中keyOffset处的key
+    public void truncate(short slotIdx, ByteBuffer source, int keyOffset) {
+        MappedByteBuffer buffer = this.buffers.get(slotIdx);
+        if (null != buffer) this.copyKey(source, keyOffset, buffer, HEADER_SIZE + this.keyLength);
+    }
+
+    //slot被清空或者重新使用：Bloom filter清零，min/max在第一条记录写入时覆盖
+    public void reset(short slotIdx) {
+        MappedByteBuffer buffer = this.buffers.get(slotIdx);
+        if (null == buffer) return;
+        for (int offset = this.bloomOffset; offset < this.fileSize; offset += 8) {
+            if (0 != buffer.getLong(offset)) buffer.putLong(offset, 0);
+        }
+    }
+
+    //force之后再标成CLEAN，下次load时Bloom filter可以直接用；只读模式下只解除映射
+    public void close(short slotIdx, boolean readOnly) {
+        MappedByteBuffer buffer = this.buffers.getAndSet(slotIdx, null);
+        if (null == buffer) return;
+        if (!readOnly) {
+            buffer.force();
+            buffer.putInt(STATE_OFFSET, CLEAN);
+            buffer.force();
+        }
+        MappedByteBufferUtil.unmap(buffer);
+    }
+
+    private void copyKey(ByteBuffer source, int keyOffset, ByteBuffer target, int targetOffset) {
+        for (int i = 0; i < this.keyLength; i++) {
+            target.put(targetOffset + i, source.get(keyOffset + i));
+        }
+    }
+
+    //double hashing：第i个位置是h1 + i * h2
+    private long bitOf(long hash, int i) {
+        long combined = (int) hash + (long) i * (int) (hash >>> 32);
+        return (combined & Long.MAX_VALUE) % this.bloomBits;
+    }
+
+    //编码后的key的64位hash，每次处理8个字节
+    static long hash(ByteBuffer source, int offset, int length) {
+        long hash = 0x9E3779B97F4A7C15L ^ length;
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            hash = Long.rotateLeft(hash ^ mix(source.getLong(offset + i)), 27) * 0x9E3779B97F4A7C15L;
+        }
+        long tail = 0;
+        for (; i < length; i++) {
+            tail = tail << 8 | (source.get(offset + i) & 0xFF);
+        }
+        return mix(hash ^ mix(tail));
+    }
+
+    static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xFF51AFD7ED558CCDL;
+        value ^= value >>> 33;
+        value *= 0xC4CEB9FE1A85EC53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
@@ -0,0 +1,346 @@
+package com.luo.store;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Created by luohui on 17/7/4.
+ * 跟随writer顺序消费记录的tailer，每个消费者有自己的名字和消费位置
+ * 消费位置(slot index + position)持久化在一个很小的mmap文件里，commit()时写入，重启后从这里继续
+ * <p>
+ * Offset文件数据结构
+ * / 旧格式的位置(16 bytes) | format(4 bytes) | 旧格式的block offset(4 bytes) | commit记录A(32 bytes) | commit记录B(32 bytes) |
+ * commit记录
+ * / 序号(8 bytes) | slot index(高16位) + position(低48位)(8 bytes) | slot的代数(8 bytes) | block offset(4 bytes) | CRC32(4 bytes) |
+ * position指向压缩block时，block offset是下一条要读的记录在解压后的block中的位置
+ * commit()把序号加1，轮流写A和B，只覆盖较旧的那条；打开时取CRC正确、序号最大的一条，
+ * 写到一半崩溃的记录CRC对不上，退回到上一次commit，不会出现位置、代数和block offset对不上的情况
+ * forceOnCommit（默认打开）时commit()把写的那条记录force到磁盘再返回，机器掉电或者操作系统崩溃后也不会丢；
+ * 关掉后commit只写mmap，只保证进程崩溃后不丢，操作系统崩溃时可能退回到更早的commit
+ * 没有有效的commit记录表示还没有消费过，从最老的slot开始
+ * format 2的offset文件是 slot index(高16位) + position(低48位) | slot的代数 | format | block offset，
+ * 更早的offset文件没有format，是slot index(高32位) + position(低32位)，打开时都转换成新格式
+ * <p>
+ * slot写满后writer切换到下一个slot，tailer读完旧slot发布的全部数据后跟着切换；
+ * 如果tailer所在的slot被writer重新使用（slot的代数变了），tailer的位置已经不存在了，isLapped()返回true
+ * writer回写（overrideData）时，已经读过回写位置的tailer退回到回写位置，重新读覆盖后的记录；
+ * 两次next()之间发生多次回写时只跟随最后一次
+ * 懒映射模式下tailer pin住正在读的slot，close()时unpin
+ */
+public class MappedRingBufferTailer<K, V> implements Closeable {
+    private final static int FORMAT_OFFSET = 16;
+    private final static int OFFSET_FORMAT = 3;
+    private final static int LEGACY_FORMAT = 2;
+    private final static int LEGACY_BLOCK_OFFSET_OFFSET = 20;
+    private final static int COMMIT_OFFSET = 24;
+    private final static int COMMIT_SIZE = 32;
+    private final static int COMMIT_CRC_OFFSET = 28;
+    private final static int OFFSET_FILE_SIZE = COMMIT_OFFSET + 2 * COMMIT_SIZE;
+    private final MappedRingBuffer<K, V> ringBuffer;
+    private final IRingBufferCodec<K, V> codec;
+    @Getter
+    private final String name;
+    @Getter
+    @Setter
+    private MappedRingBufferWaitStrategy waitStrategy = MappedRingBufferWaitStrategy.PARK;
+    @Getter
+    @Setter
+    private long parkNanos = TimeUnit.MICROSECONDS.toNanos(50);
+    @Getter
+    @Setter
+    private boolean forceOnCommit = true;//commit时把写的记录force到磁盘
+    private RandomAccessFile raFile;
+    private FileChannel fc;
+    private MappedByteBuffer offsetBuffer;
+    private final ByteBuffer commitRecord = ByteBuffer.allocate(COMMIT_SIZE);
+    private final CRC32 crc = new CRC32();
+    private long commitSequence;//最近一次commit的序号
+
+    @Getter
+    private short slotIdx;
+    @Getter
+    private long position;//下一条要读的记录（或者所在block）
+    @Getter
+    private int blockOffset;//下一条要读的记录在block中的位置
+    private ByteBuffer block;//正在读的解压后的block
+    @Getter
+    private boolean lapped = false;
+    private int seenRewinds;//已经跟随过的回写次数
+    private long generation;//所在slot的代数
+    private final K key;
+    private V value;
+    private boolean valueDecoded = false;
+    private ByteBuffer dataBuffer;//记录所在的region
+    private int dataPosition;//data在region中的位置
+    private int dataLength;
+    private ByteBuffer valueView;
+    private ByteBuffer valueViewSource;
+    private MappedRingBufferSlot<K, V> pinnedSlot;
+    private MappedRingBufferRegions pinnedRegions;
+
+    public MappedRingBufferTailer(MappedRingBuffer<K, V> ringBuffer, String name) throws IOException {
+        this.ringBuffer = ringBuffer;
+        this.codec = ringBuffer.getCodec();
+        this.name = name;
+        this.key = this.codec.newRingBufferKey();
+        this.seenRewinds = ringBuffer.getRewinds();
+
+        File file = new File(ringBuffer.getDataFileDir() + "/" + ringBuffer.getDataFileNamePrefix() + "consumer-" + name);
+        this.raFile = new RandomAccessFile(file, "rw");
+        this.fc = this.raFile.getChannel();
+        this.offsetBuffer = this.fc.map(FileChannel.MapMode.READ_WRITE, 0, OFFSET_FILE_SIZE);
+        int format = this.offsetBuffer.getInt(FORMAT_OFFSET);
+        long offset;
+        long generation;
+        if (OFFSET_FORMAT == format) {
+            int latest = this.latestCommit();
+            offset = -1 == latest ? 0 : this.offsetBuffer.getLong(latest + 8);
+            generation = -1 == latest ? 0 : this.offsetBuffer.getLong(latest + 16);
+            this.blockOffset = -1 == latest ? 0 : this.offsetBuffer.getInt(latest + 24);
+            this.commitSequence = -1 == latest ? 0 : this.offsetBuffer.getLong(latest);
+        } else {
+            offset = this.offsetBuffer.getLong(0);
+            generation = this.offsetBuffer.getLong(8);
+            if (LEGACY_FORMAT == format) {
+                this.blockOffset = this.offsetBuffer.getInt(LEGACY_BLOCK_OFFSET_OFFSET);
+            } else if (0 != offset) {
+                //最早的格式position只有32位，也没有代数
+                offset = MappedRingBufferMemoryIndex.toAddress((short) (offset >>> 32), offset & 0xFFFFFFFFL);
+                generation = 0;
+            }
+        }
+        if (0 == MappedRingBufferMemoryIndex.positionOf(offset)) {
+            this.seekOldest();
+        } else {
+            this.slotIdx = MappedRingBufferMemoryIndex.slotOf(offset);
+            this.position = MappedRingBufferMemoryIndex.positionOf(offset);
+            //旧的offset文件没有代数，认为还是当前这一代
+            this.generation = 0 == generation ? this.generationOf(this.slotIdx) : generation;
+        }
+        if (OFFSET_FORMAT != format) {
+            //先写好commit记录再改format，转换到一半崩溃时下次还按旧格式读
+            if (0 != MappedRingBufferMemoryIndex.positionOf(offset)) this.commit();
+            this.offsetBuffer.putInt(FORMAT_OFFSET, OFFSET_FORMAT);
+            if (this.forceOnCommit) this.offsetBuffer.force();
+        }
+    }
+
+    //CRC正确、序号最大的commit记录在offset文件中的位置，没有时返回-1
+    private int latestCommit() {
+        int latest = -1;
+        for (int i = 0; i < 2; i++) {
+            int at = COMMIT_OFFSET + i * COMMIT_SIZE;
+            ByteBuffer record = this.offsetBuffer.duplicate();
+            record.position(at).limit(at + COMMIT_CRC_OFFSET);
+            this.crc.reset();
+            this.crc.update(record);
+            if ((int) this.crc.getValue() != this.offsetBuffer.getInt(at + COMMIT_CRC_OFFSET)) continue;
+            long sequence = this.offsetBuffer.getLong(at);
+            if (0 != sequence && (-1 == latest || sequence > this.offsetBuffer.getLong(latest))) latest = at;
+        }
+        return latest;
+    }
+
+    //从最老的数据开始消费
+    public void seekOldest() {
+        this.slotIdx = this.ringBuffer.oldestSlotIdx();
+        this.position = this.ringBuffer.getSlotList().get(this.slotIdx).getDataStart();
+        this.blockOffset = 0;
+        this.block = null;
+        this.generation = this.generationOf(this.slotIdx);
+        this.lapped = false;
+    }
+
+    private long generationOf(short slotIdx) {
+        return this.ringBuffer.getSlotList().get(slotIdx).getGeneration();
+    }
+
+    /**
+     * 读取下一条记录，没有新数据立即返回false
+     */
+    public boolean next() {
+        if (this.lapped) return false;
+        int rewinds = this.ringBuffer.getRewinds();
+        if (rewinds != this.seenRewinds) {
+            this.seenRewinds = rewinds;
+            this.followRewind(this.ringBuffer.getRewindAddress());
+        }
+        while (true) {
+            //先读current slot（volatile），再读slot发布的位置
+            int currentSlotIdx = this.ringBuffer.getCurrentSlotIdx();
+            MappedRingBufferSlot<K, V> slot = this.ringBuffer.getSlotList().get(this.slotIdx);
+            long published = slot.getPublishedPosition();
+            if (slot.getGeneration() != this.generation || this.position > published) {
+                //writer正在回写，等回写完成后再跟着回退
+                if (this.ringBuffer.getRewindsStarted() != this.seenRewinds) return false;
+                //slot已经被丢弃或者重新使用
+                this.lapped = true;
+                return false;
+            }
+            if (this.position < published) {
+                this.readRecord(this.pinSlot(slot));
+                //读的过程中slot被丢弃了，读到的记录不可信
+                if (slot.getGeneration() != this.generation) {
+                    this.lapped = true;
+                    return false;
+                }
+                return true;
+            }
+            //旧slot的数据已经读完，并且所有领取了空间的记录都已经发布，才切换到下一个slot
+            if (currentSlotIdx == this.slotIdx || !slot.isPublishComplete()) return false;
+            short next = this.ringBuffer.nextSlotIdx(this.slotIdx);
+            if (-1 == next) return false;
+            this.slotIdx = next;
+            this.position = this.ringBuffer.getSlotList().get(next).getDataStart();
+            this.blockOffset = 0;
+            this.block = null;
+            this.generation = this.generationOf(next);
+        }
+    }
+
+    /**
+     * 按waitStrategy等待下一条记录，超时返回false
+     */
+    public boolean next(long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!this.next()) {
+            if (this.lapped || System.nanoTime() - deadline >= 0) return false;
+            this.waitStrategy.idle(this.parkNanos);
+        }
+        return true;
+    }
+
+    /**
+     * 已经读过回写位置的话退回到回写位置；回写位置上的block可能被换掉了，缓存的block不再使用
+     * 压缩模式下回写到block中间时，block中之前的记录会重新写入，已经读过它们的tailer会再读到一次
+     */
+    private void followRewind(long rewindAddress) {
+        short rewindSlotIdx = MappedRingBufferMemoryIndex.slotOf(rewindAddress);
+        long rewindPosition = MappedRingBufferMemoryIndex.positionOf(rewindAddress);
+        int order = this.ringBuffer.ringOrder(this.slotIdx) - this.ringBuffer.ringOrder(rewindSlotIdx);
+        this.block = null;
+        if (order > 0 || (0 == order && (this.position > rewindPosition || (this.position == rewindPosition && this.blockOffset > 0)))) {
+            this.slotIdx = rewindSlotIdx;
+            this.position = rewindPosition;
+            this.blockOffset = 0;
+            this.generation = this.generationOf(rewindSlotIdx);
+        }
+    }
+
+    //pin住正在读的slot并放掉之前pin住的slot
+
+    private MappedRingBufferRegions pinSlot(MappedRingBufferSlot<K, V> slot) {
+        if (slot != this.pinnedSlot) {
+            MappedRingBufferRegions regions = slot.pin();
+            if (null != this.pinnedSlot) this.pinnedSlot.unpin();
+            this.pinnedSlot = slot;
+            this.pinnedRegions = regions;
+        }
+        return this.pinnedRegions;
+    }
+
+    //position之前已经确认小于发布的位置，先跳过region尾部的填充；压缩block解压后逐条读，读完再跳过整个block
+    private void readRecord(MappedRingBufferRegions regions) {
+        this.position = regions.skipPadding(this.position);
+        ByteBuffer buffer = regions.region(this.position);
+        int offset = regions.offset(this.position);
+        int frameLength = MappedRingBufferSlot.frameLength(buffer, offset);
+        if (!MappedRingBufferBlockCache.isBlock(buffer, offset)) {
+            this.pinnedSlot.checkFrame(regions, this.position);
+            this.readFrame(buffer, offset);
+            this.position += frameLength;
+            return;
+        }
+        if (null == this.block) this.block = this.ringBuffer.getBlockCache().get(this.pinnedSlot, regions, this.position);
+        this.readFrame(this.block, this.blockOffset);
+        this.blockOffset += MappedRingBufferSlot.frameLength(this.block, this.blockOffset);
+        if (this.blockOffset >= this.block.limit()) {
+            this.position += frameLength;
+            this.blockOffset = 0;
+            this.block = null;
+        }
+    }
+
+    private void readFrame(ByteBuffer buffer, int offset) {
+        int keyLen = buffer.get(offset);
+        this.codec.decodeKey(buffer, offset + 1, this.key);
+        this.dataBuffer = buffer;
+        this.dataLength = buffer.getInt(offset + 1 + keyLen);
+        this.dataPosition = offset + 1 + keyLen + 4;
+        this.valueDecoded = false;
+    }
+
+    /**
+     * 持久化当前位置：已经读过的记录重启后不会再读到；覆盖较旧的那条commit记录，上一次commit一直是完整的
+     * forceOnCommit时返回前记录已经落盘
+     */
+    public void commit() {
+        long sequence = this.commitSequence + 1;
+        ByteBuffer record = this.commitRecord;
+        record.clear();
+        record.putLong(sequence);
+        record.putLong(MappedRingBufferMemoryIndex.toAddress(this.slotIdx, this.position));
+        record.putLong(this.generation);
+        record.putInt(this.blockOffset);
+        record.flip();
+        this.crc.reset();
+        this.crc.update(record);
+        record.limit(COMMIT_SIZE);
+        record.putInt(COMMIT_CRC_OFFSET, (int) this.crc.getValue());
+        record.position(0);
+        int at = COMMIT_OFFSET + (int) (sequence & 1) * COMMIT_SIZE;
+        ByteBuffer target = this.offsetBuffer.duplicate();
+        target.position(at);
+        target.put(record);
+        if (this.forceOnCommit) MappedByteBufferUtil.force(this.offsetBuffer, at, at + COMMIT_SIZE);
+        this.commitSequence = sequence;
+    }
+
+    public K key() {
+        return this.key;
+    }
+
+    public V value() {
+        if (!this.valueDecoded) {
+            if (null == this.value) this.value = this.codec.newRingBufferData();
+            this.codec.decodeData(this.dataBuffer, this.dataPosition, this.dataLength, this.value);
+            this.valueDecoded = true;
+        }
+        return this.value;
+    }
+
+    //当前记录的data，只读、不拷贝
+    public ByteBuffer rawValue() {
+        if (this.valueViewSource != this.dataBuffer) {
+            this.valueView = this.dataBuffer.asReadOnlyBuffer();
+            this.valueViewSource = this.dataBuffer;
+        }
+        this.valueView.clear();
+        this.valueView.position(this.dataPosition);
+        this.valueView.limit(this.dataPosition + this.dataLength);
+        return this.valueView;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (null != this.pinnedSlot) {
+            this.pinnedSlot.unpin();
+            this.pinnedSlot = null;
+            this.pinnedRegions = null;
+        }
+        MappedByteBufferUtil.unmap(this.offsetBuffer);
+        this.offsetBuffer = null;
+        this.fc.close();
+        this.raFile.close();
+    }
+}
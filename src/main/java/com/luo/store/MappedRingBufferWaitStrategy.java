@@ -0,0 +1,29 @@
+package com.luo.store;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Created by luohui on 17/7/4.
+ * tailer等待新数据时的策略：延迟从低到高，CPU占用从高到低
+ */
+public enum MappedRingBufferWaitStrategy {
+    BUSY_SPIN {
+        @Override
+        void idle(long parkNanos) {
+        }
+    },
+    YIELD {
+        @Override
+        void idle(long parkNanos) {
+            Thread.yield();
+        }
+    },
+    PARK {
+        @Override
+        void idle(long parkNanos) {
+            LockSupport.parkNanos(parkNanos);
+        }
+    };
+
+    abstract void idle(long parkNanos);
+}
@@ -1,6 +1,8 @@
 package com.luo.store;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Created by luohui on 17/7/4.
@@ -12,8 +14,8 @@ public class RingBufferData {
     public RingBufferData(int n) {
         StringBuffer sb = new StringBuffer(1000);
         sb.append(n);
-        int num = 1000;
-        while (--num > 0) {
+        int num = 1000 - sb.length();//固定1000个字节
+        while (num-- > 0) {
             sb.append("A");
         }
         data = sb.toString();
@@ -26,4 +28,53 @@ public class RingBufferData {
     public static void ringBufferDecode(byte[] bytes, RingBufferData data) throws UnsupportedEncodingException {
         data.data = new String(bytes,"utf-8");
     }
+
+    //utf-8编码后的字节数，不做编码
+    public static int ringBufferLength(RingBufferData data) {
+        int length = 0;
+        for (int i = 0; i < data.data.length(); i++) {
+            char c = data.data.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    //直接按utf-8写到target的offset处
+    public static void ringBufferEncode(RingBufferData data, ByteBuffer target, int offset) {
+        for (int i = 0; i < data.data.length(); i++) {
+            char c = data.data.charAt(i);
+            if (c < 0x80) {
+                target.put(offset++, (byte) c);
+            } else if (c < 0x800) {
+                target.put(offset++, (byte) (0xC0 | (c >> 6)));
+                target.put(offset++, (byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c)) {
+                int cp = Character.toCodePoint(c, data.data.charAt(++i));
+                target.put(offset++, (byte) (0xF0 | (cp >> 18)));
+                target.put(offset++, (byte) (0x80 | ((cp >> 12) & 0x3F)));
+                target.put(offset++, (byte) (0x80 | ((cp >> 6) & 0x3F)));
+                target.put(offset++, (byte) (0x80 | (cp & 0x3F)));
+            } else {
+                target.put(offset++, (byte) (0xE0 | (c >> 12)));
+                target.put(offset++, (byte) (0x80 | ((c >> 6) & 0x3F)));
+                target.put(offset++, (byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    public static void ringBufferDecode(ByteBuffer source, int offset, int length, RingBufferData data) {
+        ByteBuffer view = source.duplicate();
+        view.limit(offset + length);
+        view.position(offset);
+        data.data = StandardCharsets.UTF_8.decode(view).toString();
+    }
 }
@@ -0,0 +1,101 @@
+package com.luo.store;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+/**
+ * Created by luohui on 17/7/4.
+ * 把只实现了IRingBufferFactory的老工厂适配成IRingBufferCodec
+ * 仍然会为每条记录分配byte[]，dataLength编码出的数组暂存在当前线程里，给紧接着的encodeData用
+ */
+public class RingBufferFactoryCodec<K, V> implements IRingBufferCodec<K, V> {
+    private final IRingBufferFactory<K, V> factory;
+    private final ThreadLocal<Encoded<V>> lastEncoded = new ThreadLocal<Encoded<V>>() {
+        @Override
+        protected Encoded<V> initialValue() {
+            return new Encoded<>();
+        }
+    };
+
+    public RingBufferFactoryCodec(IRingBufferFactory<K, V> factory) {
+        this.factory = factory;
+    }
+
+    @Override
+    public K newRingBufferKey() {
+        return this.factory.newRingBufferKey();
+    }
+
+    @Override
+    public V newRingBufferData() {
+        return this.factory.newRingBufferData();
+    }
+
+    @Override
+    public int fixedKeyLength() {
+        return this.factory.fixedKeyLength();
+    }
+
+    @Override
+    public int dataLength(V data) {
+        Encoded<V> encoded = this.lastEncoded.get();
+        encoded.bytes = this.encode(data);
+        encoded.data = data;
+        return encoded.bytes.length;
+    }
+
+    @Override
+    public void encodeKey(K key, ByteBuffer target, int offset) {
+        put(target, offset, this.factory.encodeKey(key));
+    }
+
+    @Override
+    public void encodeData(V data, ByteBuffer target, int offset) {
+        Encoded<V> encoded = this.lastEncoded.get();
+        byte[] bytes = encoded.data == data ? encoded.bytes : this.encode(data);
+        encoded.data = null;
+        encoded.bytes = null;
+        put(target, offset, bytes);
+    }
+
+    @Override
+    public void decodeKey(ByteBuffer source, int offset, K key) {
+        this.factory.decodeKey(get(source, offset, this.factory.fixedKeyLength()), key);
+    }
+
+    @Override
+    public void decodeData(ByteBuffer source, int offset, int length, V data) {
+        try {
+            this.factory.decodeData(get(source, offset, length), data);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private byte[] encode(V data) {
+        try {
+            return this.factory.encodeData(data);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void put(ByteBuffer target, int offset, byte[] bytes) {
+        ByteBuffer view = target.duplicate();
+        view.position(offset);
+        view.put(bytes);
+    }
+
+    private static byte[] get(ByteBuffer source, int offset, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = source.duplicate();
+        view.position(offset);
+        view.get(bytes);
+        return bytes;
+    }
+
+    private static class Encoded<V> {
+        private V data;
+        private byte[] bytes;
+    }
+}
@@ -4,6 +4,8 @@ import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
+import java.nio.ByteBuffer;
+
 /**
  * Created by luohui on 17/7/4.
  * 16个字节
@@ -18,12 +20,27 @@ public class RingBufferKey implements Comparable<RingBufferKey> {
 
     @Override
     public int compareTo(RingBufferKey other) {
+        //不能用减法，Integer.MIN_VALUE - 1会溢出成正数
         if (this.getChangeId() != other.getChangeId())
-            return this.getChangeId() - other.getChangeId();
+            return Integer.compare(this.getChangeId(), other.getChangeId());
         if (this.getLogIndex() != other.getLogIndex())
-            return this.getLogIndex() - other.getLogIndex();
-        if (this.getLogPosition() == other.getLogPosition())
-            return 0;
-        return this.getLogPosition() > other.getLogPosition() ? 1 : -1;
+            return Integer.compare(this.getLogIndex(), other.getLogIndex());
+        return Long.compare(this.getLogPosition(), other.getLogPosition());
+    }
+
+    /**
+     * 保序编码：翻转符号位后按big-endian写入，编码后的16个字节按无符号字典序比较和compareTo一致
+     * 配合IRingBufferOrderedKey使用
+     */
+    public static void ringBufferEncode(RingBufferKey key, ByteBuffer target, int offset) {
+        target.putInt(offset, key.changeId ^ Integer.MIN_VALUE);
+        target.putInt(offset + 4, key.logIndex ^ Integer.MIN_VALUE);
+        target.putLong(offset + 8, key.logPosition ^ Long.MIN_VALUE);
+    }
+
+    public static void ringBufferDecode(ByteBuffer source, int offset, RingBufferKey key) {
+        key.changeId = source.getInt(offset) ^ Integer.MIN_VALUE;
+        key.logIndex = source.getInt(offset + 4) ^ Integer.MIN_VALUE;
+        key.logPosition = source.getLong(offset + 8) ^ Long.MIN_VALUE;
     }
 }
@@ -1,12 +1,44 @@
 package com.luo.store;
 
 import com.google.common.base.Preconditions;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 /**
  * Created by luohui on 17/7/4.
@@ -18,65 +50,190 @@ public class MappedRingBufferTest {
     @Before
     public void before() {
         mappedRingBuffer = new MappedRingBuffer<>();
-        factory = new IRingBufferFactory<RingBufferKey, RingBufferData>() {
-            @Override
-            public RingBufferKey newRingBufferKey() {
-                return new RingBufferKey();
-            }
+        factory = new TestCodec();
+        long start = System.currentTimeMillis();
+        this.initialize();
+        long end = System.currentTimeMillis();
+        System.out.println("load " + (end - start));
+    }
 
-            @Override
-            public RingBufferData newRingBufferData() {
-                return new RingBufferData(0);
-            }
+    //只实现了老接口的工厂，走RingBufferFactoryCodec适配
+    static class TestFactory implements IRingBufferFactory<RingBufferKey, RingBufferData> {
+        @Override
+        public RingBufferKey newRingBufferKey() {
+            return new RingBufferKey();
+        }
 
-            @Override
-            public int fixedKeyLength() {
-                return 16;
-            }
+        @Override
+        public RingBufferData newRingBufferData() {
+            return new RingBufferData(0);
+        }
 
-            @Override
-            public byte[] encodeKey(RingBufferKey key) {
-                ByteBuffer byteBuffer = ByteBuffer.allocate(this.fixedKeyLength());
-                byteBuffer.putInt(key.changeId);
-                byteBuffer.putInt(key.logIndex);
-                byteBuffer.putLong(key.logPosition);
-                return byteBuffer.array();
-            }
+        @Override
+        public int fixedKeyLength() {
+            return 16;
+        }
 
-            @Override
-            public byte[] encodeData(RingBufferData data) throws UnsupportedEncodingException {
-                return RingBufferData.ringBufferEncode(data);
-            }
+        @Override
+        public byte[] encodeKey(RingBufferKey key) {
+            ByteBuffer byteBuffer = ByteBuffer.allocate(this.fixedKeyLength());
+            byteBuffer.putInt(key.changeId);
+            byteBuffer.putInt(key.logIndex);
+            byteBuffer.putLong(key.logPosition);
+            return byteBuffer.array();
+        }
 
-            @Override
-            public void decodeKey(byte[] bytes, RingBufferKey key) {
-                ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
-                key.setChangeId(byteBuffer.getInt());
-                key.setLogIndex(byteBuffer.getInt());
-                key.setLogPosition(byteBuffer.getLong());
-            }
+        @Override
+        public byte[] encodeData(RingBufferData data) throws UnsupportedEncodingException {
+            return RingBufferData.ringBufferEncode(data);
+        }
 
-            @Override
-            public void decodeData(byte[] bytes, RingBufferData data) throws UnsupportedEncodingException {
-                RingBufferData.ringBufferDecode(bytes, data);
-            }
-        };
-        long start = System.currentTimeMillis();
-        this.initialize();
-        long end = System.currentTimeMillis();
-        System.out.println("load " + (end - start));
+        @Override
+        public void decodeKey(byte[] bytes, RingBufferKey key) {
+            ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+            key.setChangeId(byteBuffer.getInt());
+            key.setLogIndex(byteBuffer.getInt());
+            key.setLogPosition(byteBuffer.getLong());
+        }
+
+        @Override
+        public void decodeData(byte[] bytes, RingBufferData data) throws UnsupportedEncodingException {
+            RingBufferData.ringBufferDecode(bytes, data);
+        }
+    }
+
+    //直接在mmap的buffer上编解码，不分配byte[]
+    static class TestCodec extends TestFactory implements IRingBufferCodec<RingBufferKey, RingBufferData> {
+        @Override
+        public int dataLength(RingBufferData data) {
+            return RingBufferData.ringBufferLength(data);
+        }
+
+        @Override
+        public void encodeKey(RingBufferKey key, ByteBuffer target, int offset) {
+            target.putInt(offset, key.changeId);
+            target.putInt(offset + 4, key.logIndex);
+            target.putLong(offset + 8, key.logPosition);
+        }
+
+        @Override
+        public void encodeData(RingBufferData data, ByteBuffer target, int offset) {
+            RingBufferData.ringBufferEncode(data, target, offset);
+        }
+
+        @Override
+        public void decodeKey(ByteBuffer source, int offset, RingBufferKey key) {
+            key.setChangeId(source.getInt(offset));
+            key.setLogIndex(source.getInt(offset + 4));
+            key.setLogPosition(source.getLong(offset + 8));
+        }
+
+        @Override
+        public void decodeData(ByteBuffer source, int offset, int length, RingBufferData data) {
+            RingBufferData.ringBufferDecode(source, offset, length, data);
+        }
+    }
+
+    //保序编码的key，索引直接比较字节
+    static class TestOrderedCodec extends TestCodec implements IRingBufferOrderedKey {
+        @Override
+        public byte[] encodeKey(RingBufferKey key) {
+            ByteBuffer byteBuffer = ByteBuffer.allocate(this.fixedKeyLength());
+            RingBufferKey.ringBufferEncode(key, byteBuffer, 0);
+            return byteBuffer.array();
+        }
+
+        @Override
+        public void decodeKey(byte[] bytes, RingBufferKey key) {
+            RingBufferKey.ringBufferDecode(ByteBuffer.wrap(bytes), 0, key);
+        }
+
+        @Override
+        public void encodeKey(RingBufferKey key, ByteBuffer target, int offset) {
+            RingBufferKey.ringBufferEncode(key, target, offset);
+        }
+
+        @Override
+        public void decodeKey(ByteBuffer source, int offset, RingBufferKey key) {
+            RingBufferKey.ringBufferDecode(source, offset, key);
+        }
+    }
+
+    //按changeId % 7建二级索引
+    static class TestSecondaryCodec extends TestCodec implements IRingBufferSecondaryKey<RingBufferKey, RingBufferData> {
+        @Override
+        public long secondaryKey(RingBufferKey key, RingBufferData data) {
+            return key.changeId % 7;
+        }
+    }
+
+    //二级key等于secondaryKey的记录，检查按主key递增，返回条数
+    private int checkSecondary(long secondaryKey, int max) {
+        IRingBufferCursor<RingBufferKey, RingBufferData> cursor = mappedRingBuffer.secondaryCursor(secondaryKey);
+        int expected = (int) secondaryKey;
+        int count = 0;
+        while (cursor.next()) {
+            if (0 == expected) expected = 7;
+            Preconditions.checkArgument(cursor.key().equals(new RingBufferKey(expected, expected, expected)), "key " + cursor.key() + " expected " + expected);
+            Preconditions.checkArgument(cursor.rawValue().remaining() == 1000);
+            expected += 7;
+            count++;
+        }
+        cursor.close();
+        Preconditions.checkArgument(expected > max && expected - 7 <= max, "last " + (expected - 7) + " max " + max);
+        return count;
     }
 
     private void initialize() {
         mappedRingBuffer.setFactory(factory);
-        mappedRingBuffer.setDataFileCount((short)10);
+        mappedRingBuffer.setDataFileCount((short)11);
         mappedRingBuffer.setDataFileDir("ringBufferData");
         mappedRingBuffer.setDataFileNamePrefix("ringBufferData");
-        mappedRingBuffer.setDataFileSize(100*1024*1024L);//100M
+        mappedRingBuffer.setDataFileSize(1000*1000L);//每个slot放975条记录
         mappedRingBuffer.load();
     }
 
-    @Test
+    //和leader一样配置的follower，放在另一个目录
+    private MappedRingBuffer<RingBufferKey, RingBufferData> openFollower() {
+        MappedRingBuffer<RingBufferKey, RingBufferData> follower = new MappedRingBuffer<>();
+        follower.setFactory(factory);
+        follower.setDataFileCount((short) 11);
+        follower.setDataFileDir("ringBufferFollower");
+        follower.setDataFileNamePrefix("ringBufferData");
+        follower.setDataFileSize(1000 * 1000L);
+        follower.load();
+        return follower;
+    }
+
+    //follower和leader的数据一样
+    private void checkFollower(MappedRingBuffer<RingBufferKey, RingBufferData> follower, int from, int to) {
+        Preconditions.checkArgument(follower.size() == mappedRingBuffer.size(), "size " + follower.size());
+        Preconditions.checkArgument(follower.lastKey().equals(mappedRingBuffer.lastKey()));
+        Preconditions.checkArgument(follower.getCurrentSlotIdx() == mappedRingBuffer.getCurrentSlotIdx());
+        for (int n = from; n <= to; n++) {
+            RingBufferKey key = new RingBufferKey(n, n, n);
+            Preconditions.checkArgument(Arrays.equals(follower.getRaw(key), mappedRingBuffer.getRaw(key)), "key " + n);
+        }
+    }
+
+    @After
+    public void after() throws IOException {
+        mappedRingBuffer.close();
+        deleteDir(new File("ringBufferData"));
+    }
+
+    static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (null != files) {
+            for (File file : files) {
+                if (file.isDirectory()) deleteDir(file);
+                else file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test(expected = NoSuchElementException.class)
     public void skipListMap() {
         ConcurrentSkipListMap<Integer,Integer> map = new ConcurrentSkipListMap<>();
         System.out.println(map.firstKey());
@@ -107,4 +264,1618 @@ public class MappedRingBufferTest {
         Preconditions.checkArgument(slotPos0 ==(4 + 975*1025));
         Preconditions.checkArgument(slotPos1 ==(4 + 975*1025));
     }
+
+    @Test
+    public void get() throws UnsupportedEncodingException {
+        int total = 3000;
+        for (int n = 1; n <= total; n++) {
+            int num = n * 2;
+            this.mappedRingBuffer.put(new RingBufferKey(num, num, num), new RingBufferData(num));
+        }
+
+        //每个slice的边界、slice中间、slot边界两侧都要能查到
+        for (int n = 1; n <= total; n++) {
+            int num = n * 2;
+            byte[] raw = mappedRingBuffer.getRaw(new RingBufferKey(num, num, num));
+            Preconditions.checkArgument(Arrays.equals(raw, RingBufferData.ringBufferEncode(new RingBufferData(num))), "key " + num);
+        }
+        Preconditions.checkArgument(null == mappedRingBuffer.getRaw(new RingBufferKey(1, 1, 1)));
+        Preconditions.checkArgument(null == mappedRingBuffer.getRaw(new RingBufferKey(3, 3, 3)));
+        Preconditions.checkArgument(null == mappedRingBuffer.get(new RingBufferKey(2 * total + 1, 0, 0)));
+
+        ByteBuffer buffer = mappedRingBuffer.getRawBuffer(new RingBufferKey(1000, 1000, 1000));
+        Preconditions.checkArgument(buffer.isReadOnly());
+        Preconditions.checkArgument(buffer.remaining() == 1000);
+        Preconditions.checkArgument(null != mappedRingBuffer.get(new RingBufferKey(1000, 1000, 1000)));
+    }
+
+    @Test
+    public void putAll() throws UnsupportedEncodingException {
+        int total = 3000;
+        Map<RingBufferKey, RingBufferData> batch = new LinkedHashMap<>();
+        for (int n = 1; n <= total; n++) {
+            int num = n * 2;
+            batch.put(new RingBufferKey(num, num, num), new RingBufferData(num));
+            //攒够1000条写一批，每批都会跨slot
+            if (batch.size() == 1000) {
+                this.mappedRingBuffer.putAll(batch);
+                batch.clear();
+            }
+        }
+
+        Preconditions.checkArgument(mappedRingBuffer.firstKey().equals(new RingBufferKey(2, 2, 2)));
+        Preconditions.checkArgument(mappedRingBuffer.lastKey().equals(new RingBufferKey(2 * total, 2 * total, 2 * total)));
+        Preconditions.checkArgument(mappedRingBuffer.getSlotPosition((short) 0) == (4 + 975 * 1025));
+        Preconditions.checkArgument(mappedRingBuffer.getSlotPosition((short) 2) == (4 + 975 * 1025));
+        Preconditions.checkArgument(mappedRingBuffer.getSlotPosition((short) 3) == (4 + (total - 3 * 975) * 1025));
+        for (int n = 1; n <= total; n++) {
+            int num = n * 2;
+            byte[] raw = mappedRingBuffer.getRaw(new RingBufferKey(num, num, num));
+            Preconditions.checkArgument(Arrays.equals(raw, RingBufferData.ringBufferEncode(new RingBufferData(num))), "key " + num);
+        }
+    }
+
+    @Test
+    public void factoryCodecAdapter() throws IOException {
+        mappedRingBuffer.close();
+        deleteDir(new File("ringBufferData"));
+        mappedRingBuffer = new MappedRingBuffer<>();
+        factory = new TestFactory();
+        this.initialize();
+        Preconditions.checkArgument(mappedRingBuffer.getCodec() instanceof RingBufferFactoryCodec);
+
+        for (int n = 1; n <= 1000; n++) {
+            this.mappedRingBuffer.put(new RingBufferKey(n, n, n), new RingBufferData(n));
+        }
+        Preconditions.checkArgument(mappedRingBuffer.getSlotPosition((short) 0) == (4 + 975 * 1025));
+        //两种编码方式写出的字节完全一样
+        ByteBuffer target = ByteBuffer.allocate(1000);
+        new TestCodec().encodeData(new RingBufferData(977), target, 0);
+        Preconditions.checkArgument(target.equals(mappedRingBuffer.getRawBuffer(new RingBufferKey(977, 977, 977))));
+        Preconditions.checkArgument(Arrays.equals(mappedRingBuffer.getRaw(new RingBufferKey(977, 977, 977)), RingBufferData.ringBufferEncode(new RingBufferData(977))));
+    }
+
+    @Test
+    public void utf8Codec() throws UnsupportedEncodingException {
+        RingBufferData data = new RingBufferData(1);
+        RingBufferData.ringBufferDecode("环形缓冲\uD83D\uDE00é".getBytes("utf-8"), data);
+        byte[] expected = RingBufferData.ringBufferEncode(data);
+        Preconditions.checkArgument(RingBufferData.ringBufferLength(data) == expected.length);
+        ByteBuffer target = ByteBuffer.allocate(expected.length + 3);
+        RingBufferData.ringBufferEncode(data, target, 3);
+        target.position(3);
+        Preconditions.checkArgument(target.slice().equals(ByteBuffer.wrap(expected)));
+    }
+
+    @Test
+    public void multiProducerPut() throws Exception {
+        mappedRingBuffer.close();
+        deleteDir(new File("ringBufferData"));
+        mappedRingBuffer = new MappedRingBuffer<>();
+        mappedRingBuffer.setMultiProducer(true);
+        this.initialize();
+
+        final AtomicInteger sequence = new AtomicInteger();
+        int threads = 4;
+        final int perThread = 1000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    //取key和领取空间在putNext的锁内一起做，编码、写入和发布在锁外并行
+                    Supplier<RingBufferKey> nextKey = new Supplier<RingBufferKey>() {
+                        @Override
+                        public RingBufferKey get() {
+                            int num = sequence.incrementAndGet();
+                            return new RingBufferKey(num, num, num);
+                        }
+                    };
+                    for (int n = 0; n < perThread; n++) {
+                        mappedRingBuffer.putNext(nextKey, new RingBufferData(n));
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) future.get();
+        executor.shutdown();
+
+        //每个slot中的记录都是连续的、key递增，header正好指向最后一条记录之后，并且都能查到
+        int records = 0;
+        RingBufferKey previous = null;
+        RingBufferKey key = new RingBufferKey();
+        for (int slotIdx = 0; slotIdx <= mappedRingBuffer.getCurrentSlotIdx(); slotIdx++) {
+            ByteBuffer buffer = mappedRingBuffer.getSlotList().get(slotIdx).getRegions().getRegion(0);
+            int lastPos = buffer.getInt(0);
+            int position = 4;
+            while (position < lastPos) {
+                mappedRingBuffer.getCodec().decodeKey(buffer, position + 1, key);
+                Preconditions.checkArgument(null == previous || key.compareTo(previous) > 0);
+                Preconditions.checkArgument(buffer.getInt(position + 17) == 1000);
+                Preconditions.checkArgument(null != mappedRingBuffer.getRawBuffer(key), "key " + key);
+                previous = new RingBufferKey(key.changeId, key.logIndex, key.logPosition);
+                position += 1025;
+                records++;
+            }
+            Preconditions.checkArgument(position == lastPos);
+        }
+        Preconditions.checkArgument(mappedRingBuffer.getCurrentSlotIdx() >= 1);
+        Preconditions.checkArgument(records == threads * perThread, "records " + records);
+        Preconditions.checkArgument(mappedRingBuffer.size() == threads * perThread);
+        Preconditions.checkArgument(mappedRingBuffer.lastKey().equals(previous));
+
+        //cursor从1开始连续递增，没有缺的记录
+        IRingBufferCursor<RingBufferKey, RingBufferData> cursor = mappedRingBuffer.cursor(null, null, false);
+        int expected = 1;
+        while (cursor.next()) {
+            Preconditions.checkArgument(cursor.key().equals(new RingBufferKey(expected, expected, expected)), "key " + cursor.key() + " expected " + expected);
+            expected++;
+        }
+        cursor.close();
+        Preconditions.checkArgument(expected == threads * perThread + 1, "expected " + expected);
+    }
+
+    @Test
+    public void multiProducerOverride() throws Exception {
+        mappedRingBuffer.close();
+        deleteDir(new File("ringBufferData"));
+        mappedRingBuffer = new MappedRingBuffer<>();
+        mappedRingBuffer.setMultiProducer(true);
+        this.initialize();
+        int total = 3000;
+        for (int n = 1; n <= total; n++) {
+            mappedRingBuffer.put(new RingBufferKey(n, n, n), new RingBufferData(n));
+        }
+
+        //乱序的key和单生产者一样回写，不会被丢掉
+        mappedRingBuffer.put(new RingBufferKey(2000, 2000, 2000), new RingBufferData(20000));
+        Preconditions.checkArgument(mappedRingBuffer.getMetrics().getOverrides() == 1);
+        Preconditions.checkArgument(mappedRingBuffer.getCurrentSlotIdx() == 2);
+        Preconditions.checkArgument(mappedRingBuffer.size() == 2000);
+        Preconditions.checkArgument(mappedRingBuffer.lastKey().equals(new RingBufferKey(2000, 2000, 2000)));
+        Preconditions.checkArgument(Arrays.equals(mappedRingBuffer.getRaw(new RingBufferKey(2000, 2000, 2000)), RingBufferData.ringBufferEncode(new RingBufferData(20000))));
+        Preconditions.checkArgument(null == mappedRingBuffer.getRaw(new RingBufferKey(2001, 2001, 2001)));
+
+        //跨slot回写后上游重发整个窗口，之后继续追加
+        mappedRingBuffer.put(new RingBufferKey(1500, 1500, 1500), new RingBufferData(15000));
+        Preconditions.checkArgument(mappedRingBuffer.getCurrentSlotIdx() == 1);
+        for (int n = 1501; n <= total; n++) {
+            mappedRingBuffer.put(new RingBufferKey(n, n, n), new RingBufferData(n));
+        }
+        Preconditions.checkArgument(mappedRingBuffer.size() == total);
+        Preconditions.checkArgument(Arrays.equals(mappedRingBuffer.getRaw(new RingBufferKey(1500, 1500, 1500)), RingBufferData.ringBufferEncode(new RingBufferData(15000))));
+        for (int n = 1501; n <= total; n++) {
+            Preconditions.checkArgument(Arrays.equals(mappedRingBuffer.getRaw(new RingBufferKey(n, n, n)), RingBufferData.ringBufferEncode(new RingBufferData(n))), "key " + n);
+        }
+
+        //生产者不加锁并发追加：取key和领取的顺序不一致时抢输的put被拒绝，不会回写掉其他生产者已经写入的记录
+        final AtomicInteger sequence = new AtomicInteger(total);
+        final Set<Integer> accepted = ConcurrentHashMap.newKeySet();
+        final AtomicInteger rejected = new AtomicInteger();
+        final int threads = 4;
+        final int perThread = 1500;
+        long overrides = mappedRingBuffer.getMetrics().getOverrides();
+        ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (int n = 0; n < perThread; n++) {
+                        int num = sequence.incrementAndGet();
+                        try {
+                            mappedRingBuffer.put(new RingBufferKey(num, num, num), new RingBufferData(num));
+                            accepted.add(num);
+                        } catch (IllegalStateException e) {
+                            rejected.incrementAndGet();
+                        }
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) future.get(60, TimeUnit.SECONDS);
+        Preconditions.checkArgument(accepted.size() + rejected.get() == threads * perThread);
+        Preconditions.checkArgument(mappedRingBuffer.getMetrics().getRejectedPuts() == rejected.get());
+        //存下来的都是写入成功的key；领取前停顿太久、key已经不大于别人发布的key时会被当成重发回写，只有这时才会少记录
+        int survived = 0;
+        IRingBufferCursor<RingBufferKey, RingBufferData> cursor = mappedRingBuffer.cursor(new RingBufferKey(total + 1, 0, 0), null, false);
+        while (cursor.next()) {
+            Preconditions.checkArgument(accepted.contains(cursor.key().changeId), "key " + cursor.key());
+            survived++;
+        }
+        cursor.close();
+        Preconditions.checkArgument(survived == accepted.size() || mappedRingBuffer.getMetrics().getOverrides() > overrides,
+                "survived " + survived + " of " + accepted.size());
+        Preconditions.checkArgument(mappedRingBuffer.size() == total + survived);
+
+        //生产者并发追加，同时有一个线程不停重发最近的一段：回写等领取的记录发布完再截断，不会死锁，数据始终有序
+        futures.clear();
+        for (int t = 0; t < threads; t++) {
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (int n = 0; n < perThread; n++) {
+                        int num = sequence.incrementAndGet();
+                        try {
+                            mappedRingBuffer.put(new RingBufferKey(num, num, num), new RingBufferData(num));
+                        } catch (IllegalStateException e) {
+                            //抢输了领取
+                        }
+                    }
+                }
+            }));
+        }
+        futures.add(executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                for (int n = 0; n < 20; n++) {
+                    int num = sequence.get() - 50;
+                    mappedRingBuffer.put(new RingBufferKey(num, num, num), new RingBufferData(num));
+                    Thread.yield();
+                }
+            }
+        }));
+        for (Future<?> future : futures) future.get(60, TimeUnit.SECONDS);
+        executor.shutdown();
+        //重发的key都不大于已经发布的key，一定是回写
+        Preconditions.checkArgument(mappedRingBuffer.getMetrics().getOverrides() >= overrides + 20);
+
+        cursor = mappedRingBuffer.cursor(null, null, false);
+        RingBufferKey previous = null;
+        long count = 0;
+        while (cursor.next()) {
+            Preconditions.checkArgument(null == previous || cursor.key().compareTo(previous) > 0, "key " + cursor.key() + " after " + previous);
+            previous = new RingBufferKey(cursor.key().changeId, cursor.key().logIndex, cursor.key().logPosition);
+            count++;
+        }
+        cursor.close();
+        Preconditions.checkArgument(count == mappedRingBuffer.size());
+        Preconditions.checkArgument(previous.equals(mappedRingBuffer.lastKey()));
+
+        //重发一个完整的窗口之后，窗口中的记录一条不少
+        int last = sequence.get();
+        for (int n = last - 500; n <= last; n++) {
+            mappedRingBuffer.put(new RingBufferKey(n, n, n), new RingBufferData(n));
+        }
+        for (int n = last - 500; n <= last; n++) {
+            Preconditions.checkArgument(Arrays.equals(mappedRingBuffer.getRaw(new RingBufferKey(n, n, n)), RingBufferData.ringBufferEncode(new RingBufferData(n))), "key " + n);
+        }
+        Preconditions.checkArgument(mappedRingBuffer.lastKey().equals(new RingBufferKey(last, last, last)));
+    }
+
+    @Test
+    public void putAsync() throws Exception {
+        CompletableFuture<Void> never = mappedRingBuffer.putAsync(new RingBufferKey(1, 1, 1), new RingBufferData(1));
+        Preconditions.checkArgument(never.isDone());
+
+        for (MappedRingBufferFlushPolicy policy : Arrays.asList(MappedRingBufferFlushPolicy.everyRecords(100),
+                MappedRingBufferFlushPolicy.everyBytes(64 * 1024), MappedRingBufferFlushPolicy.everyMillis(5))) {
+            mappedRingBuffer.close();
+            deleteDir(new File("ringBufferData"));
+            mappedRingBuffer = new MappedRingBuffer<>();
+            mappedRingBuffer.setFlushPolicy(policy);
+            this.initialize();
+
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int n = 1; n <= 1500; n++) {
+                futures.add(mappedRingBuffer.putAsync(new RingBufferKey(n, n, n), new RingBufferData(n)));
+            }
+            //最后不满一组的记录在close时刷掉
+            futures.get(0).get(5, TimeUnit.SECONDS);
+            mappedRingBuffer.close();
+            for (CompletableFuture<Void> future : futures) {
+                Preconditions.checkArgument(future.isDone() && !future.isCompletedExceptionally());
+            }
+            mappedRingBuffer = new MappedRingBuffer<>();
+            this.initialize();
+        }
+    }
+
+    @Test
+    public void putAsyncAfterRewind() throws Exception {
+        mappedRingBuffer.close();
+        deleteDir(new File("ringBufferData"));
+        mappedRingBuffer = new MappedRingBuffer<>();
+        //按时间组提交，最后不满一组的记录也会刷掉
+        mappedRingBuffer.setFlushPolicy(MappedRingBufferFlushPolicy.everyMillis(5));
+        this.initialize();
+        MappedRingBufferFlusher<RingBufferKey, RingBufferData> flusher = mappedRingBuffer.getFlusher();
+        short slotIdx = 0;
+        CompletableFuture<Void> last = null;
+        for (int n = 1; n <= 100; n++) {
+            last = mappedRingBuffer.putAsync(new RingBufferKey(n, n, n), new RingBufferData(n));
+        }
+        last.get(5, TimeUnit.SECONDS);
+        long oldForced = mappedRingBuffer.getSlotList().get(slotIdx).getRegions().getLastPosition();
+        Preconditions.checkArgument(flusher.getForcedDataPosition(slotIdx) == oldForced);
+
+        //回写到第50条，刷盘位置跟着降到回写位置，重新写过旧的刷盘位置之后也要从回写位置开始刷
+        mappedRingBuffer.put(new RingBufferKey(50, 50, 50), new RingBufferData(50));
+        long rewindPosition = 4 + 49 * 1025;
+        Preconditions.checkArgument(flusher.getForcedDataPosition(slotIdx) <= rewindPosition, "forced " + flusher.getForcedDataPosition(slotIdx));
+        Preconditions.checkArgument(flusher.getForcedIndexPosition(slotIdx) <= mappedRingBuffer.getMemoryIndexer().getIndexEndPosition(slotIdx));
+        for (int n = 51; n <= 200; n++) {
+            last = mappedRingBuffer.putAsync(new RingBufferKey(n, n, n), new RingBufferData(n));
+        }
+        last.get(5, TimeUnit.SECONDS);
+        long lastPos = mappedRingBuffer.getSlotList().get(slotIdx).getRegions().getLastPosition();
+        Preconditions.checkArgument(lastPos > oldForced && flusher.getForcedDataPosition(slotIdx) == lastPos);
+        Preconditions.checkArgument(flusher.getForcedIndexPosition(slotIdx) == mappedRingBuffer.getMemoryIndexer().getIndexEndPosition(slotIdx));
+    }
+
+    @Test
+    public void cursor() {
+        int total = 3000;
+        for (int n = 1; n <= total; n++) {
+            int num = n * 2;
+            this.mappedRingBuffer.put(new RingBufferKey(num, num, num), new RingBufferData(num));
+        }
+
+        //跨越多个slot正向扫描[1001, 5001)，也就是1002...5000
+        IRingBufferCursor<RingBufferKey, RingBufferData> cursor = mappedRingBuffer.cursor(new RingBufferKey(1001, 0, 0), new RingBufferKey(5001, 0, 0), false);
+        RingBufferKey holder = cursor.key();
+        int expected = 1002;
+        while (cursor.next()) {
+            Preconditions.checkArgument(cursor.key() == holder);
+            Preconditions.checkArgument(cursor.key().equals(new RingBufferKey(expected, expected, expected)), "key " + cursor.key());
+            Preconditions.checkArgument(cursor.rawValue().remaining() == 1000);
+            Preconditions.checkArgument(cursor.rawValue().get(cursor.rawValue().position()) == String.valueOf(expected).charAt(0));
+            expected += 2;
+        }
+        Preconditions.checkArgument(expected == 5002);
+
+        //反向扫描[1000, 5000)，也就是4998...1000
+        cursor = mappedRingBuffer.cursor(new RingBufferKey(1000, 1000, 1000), new RingBufferKey(5000, 5000, 5000), true);
+        expected = 4998;
+        while (cursor.next()) {
+            Preconditions.checkArgument(cursor.key().equals(new RingBufferKey(expected, expected, expected)), "key " + cursor.key());
+            expected -= 2;
+        }
+        Preconditions.checkArgument(expected == 998);
+
+        //不限范围
+        int count = 0;
+        cursor = mappedRingBuffer.cursor(null, null, false);
+        while (cursor.next()) count++;
+        Preconditions.checkArgument(count == total);
+        count = 0;
+        cursor = mappedRingBuffer.cursor(null, null, true);
+        while (cursor.next()) count++;
+        Preconditions.checkArgument(count == total);
+        Preconditions.checkArgument(!mappedRingBuffer.cursor(new RingBufferKey(2 * total + 1, 0, 0), null, false).next());
+
+        RingBufferKey nextKey = new RingBufferKey();
+        Preconditions.checkArgument(null != mappedRingBuffer.next(new RingBufferKey(1950, 1950, 1950), nextKey));
+        Preconditions.checkArgument(nextKey.equals(new RingBufferKey(1952, 1952, 1952)));
+        RingBufferKey previousKey = new RingBufferKey();
+        Preconditions.checkArgument(null != mappedRingBuffer.previous(new RingBufferKey(1952, 1952, 1952), previousKey));
+        Preconditions.checkArgument(previousKey.equals(new RingBufferKey(1950, 1950, 1950)));
+        Preconditions.checkArgument(null == mappedRingBuffer.next(new RingBufferKey(2 * total, 2 * total, 2 * total), nextKey));
+        Preconditions.checkArgument(null == mappedRingBuffer.previous(new RingBufferKey(2, 2, 2), previousKey));
+    }
+
+    @Test
+    public void tailer() throws Exception {
+        final int total = 3000;
+        MappedRingBufferTailer<RingBufferKey, RingBufferData> tailer = mappedRingBuffer.tailer("consumer1");
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int n = 1; n <= total; n++) {
+                    mappedRingBuffer.put(new RingBufferKey(n, n, n), new RingBufferData(n));
+                }
+            }
+        });
+        writer.start();
+
+        //边写边读，跟着writer跨越slot
+        for (int n = 1; n <= 1500; n++) {
+            Preconditions.checkArgument(tailer.next(5, TimeUnit.SECONDS), "timeout at " + n);
+            Preconditions.checkArgument(tailer.key().equals(new RingBufferKey(n, n, n)), "key " + tailer.key());
+            Preconditions.checkArgument(tailer.rawValue().remaining() == 1000);
+        }
+        tailer.commit();
+        tailer.next(5, TimeUnit.SECONDS);//读了但是没有commit
+        tailer.close();
+        writer.join();
+
+        //重启后从commit的位置继续
+        tailer = mappedRingBuffer.tailer("consumer1");
+        for (int n = 1501; n <= total; n++) {
+            Preconditions.checkArgument(tailer.next(), "missing " + n);
+            Preconditions.checkArgument(tailer.key().equals(new RingBufferKey(n, n, n)), "key " + tailer.key());
+        }
+        Preconditions.checkArgument(!tailer.next());
+        Preconditions.checkArgument(!tailer.next(10, TimeUnit.MILLISECONDS));
+        Preconditions.checkArgument(!tailer.isLapped());
+        tailer.close();
+
+        //其他消费者各自独立，从头开始
+        MappedRingBufferTailer<RingBufferKey, RingBufferData> other = mappedRingBuffer.tailer("consumer2");
+        other.setWaitStrategy(MappedRingBufferWaitStrategy.BUSY_SPIN);
+        Preconditions.checkArgument(other.next(1, TimeUnit.SECONDS));
+        Preconditions.checkArgument(other.key().equals(new RingBufferKey(1, 1, 1)));
+        Preconditions.checkArgument(other.value() != null);
+        //不force的commit只写mmap，同一台机器上重新打开照样能读到
+        other.setForceOnCommit(false);
+        other.commit();
+        other.close();
+        other = mappedRingBuffer.tailer("consumer2");
+        Preconditions.checkArgument(other.next() && other.key().equals(new RingBufferKey(2, 2, 2)));
+        other.close();
+    }
+
+    @Test
+    public void tailerTornCommit() throws Exception {
+        for (int n = 1; n <= 3000; n++) {
+            mappedRingBuffer.put(new RingBufferKey(n, n, n), new RingBufferData(n));
+        }
+        MappedRingBufferTailer<RingBufferKey, RingBufferData> tailer = mappedRingBuffer.tailer("consumer1");
+        for (int n = 1; n <= 1000; n++) {
+            Preconditions.checkArgument(tailer.next());
+        }
+        tailer.commit();
+        for (int n = 1001; n <= 2000; n++) {
+            Preconditions.checkArgument(tailer.next());
+        }
+        tailer.commit();
+        tailer.close();
+
+        //第二次commit写到一半崩溃（记录A的位置坏了），CRC对不上，退回到第一次commit
+        File file = new File("ringBufferData/" + mappedRingBuffer.getDataFileNamePrefix() + "consumer-consumer1");
+        try (RandomAccessFile raFile = new RandomAccessFile(file, "rw")) {
+            raFile.seek(24 + 8);
+            raFile.writeLong(0x7FFFL);
+        }
+        tailer = mappedRingBuffer.tailer("consumer1");
+        Preconditions.checkArgument(tailer.next() && tailer.key().equals(new RingBufferKey(1001, 1001, 1001)), "key " + tailer.key());
+        tailer.close();
+
+        //format 2的offset文件转换成commit记录
+        RingBufferKey expected = new RingBufferKey(1501, 1501, 1501);
+        long address = mappedRingBuffer.getMemoryIndexer().lowerBound(expected);
+        short slotIdx = MappedRingBufferMemoryIndex.slotOf(address);
+        long position = MappedRingBufferMemoryIndex.framePositionOf(mappedRingBuffer.getMemoryIndexer()
+                .getDataPosition(slotIdx, (int) MappedRingBufferMemoryIndex.positionOf(address)));
+        try (RandomAccessFile raFile = new RandomAccessFile(file, "rw")) {
+            raFile.setLength(0);
+            raFile.writeLong(MappedRingBufferMemoryIndex.toAddress(slotIdx, position));
+            raFile.writeLong(mappedRingBuffer.getSlotList().get(slotIdx).getGeneration());
+            raFile.writeInt(2);
+            raFile.writeInt(0);
+        }
+        tailer = mappedRingBuffer.tailer("consumer1");
+        tailer.close();
+        tailer = mappedRingBuffer.tailer("consumer1");
+        Preconditions.checkArgument(tailer.next() && tailer.key().equals(expected), "key " + tailer.key());
+        tailer.close();
+    }
+
+    @Test
+    public void slotLoadFailure() throws IOException {
+        for (int n = 1; n <= 1000; n++) {
+            this.mappedRingBuffer.put(new RingBufferKey(n, n, n), new RingBufferData(n));
+        }
+        mappedRingBuffer.close();
+        //slot3的数据文件打不开，load失败，不会当成空slot
+        File slotFile = new File("ringBufferData", "ringBufferData3");
+        Preconditions.checkArgument(slotFile.delete() && slotFile.mkdir());
+        mappedRingBuffer = new MappedRingBuffer<>();
+        boolean failed = false;
+        try {
+            this.initialize();
+        } catch (IllegalStateException e) {
+            failed = null != e.getCause() && e.getCause().getMessage().contains("slot 3");
+        }
+        Preconditions.checkArgument(failed);
+        Preconditions.checkArgument(slotFile.delete());
+        mappedRingBuffer = new MappedRingBuffer<>();
+        this.initialize();
+        Preconditions.checkArgument(mappedRingBuffer.size() == 1000);
+    }
+
+    @Test
+    public void parallelLoad() throws IOException {
+        int total = 3000;
+        for (int n = 1; n <= total; n++) {
+            this.mappedRingBuffer.put(new RingBufferKey(n, n, n), new RingBufferData(n));
+        }
+        mappedRingBuffer.close();
+        //没有索引文件，所有slot都要从数据文件并发重建索引
+        for (File file : new File("ringBufferData").listFiles()) {
+            if (file.getName().contains("index-")) file.delete();
+        }
+
+        mappedRingBuffer = new MappedRingBuffer<>();
+        mappedRingBuffer.setLoadExecutor(ForkJoinPool.commonPool());
+        this.initialize();
+        Preconditions.checkArgument(mappedRingBuffer.getCurrentSlotIdx() == 3);
+        Preconditions.checkArgument(mappedRingBuffer.getSlotLoadMillis().length == 11);
+        Preconditions.checkArgument(mappedRingBuffer.firstKey().equals(new RingBufferKey(1, 1, 1)));
+        Preconditions.checkArgument(mappedRingBuffer.lastKey().equals(new RingBufferKey(total, total, total)));
+        for (int n = 1; n <= total; n++) {
+            Preconditions.checkArgument(null != mappedRingBuffer.getRawBuffer(new RingBufferKey(n, n, n)), "key " + n);
+        }
+        this.mappedRingBuffer.put(new RingBufferKey(total + 1, total + 1, total + 1), new RingBufferData(total + 1));
+        Preconditions.checkArgument(mappedRingBuffer.lastKey().equals(new RingBufferKey(total + 1, total + 1, total + 1)));
+    }
+
+    @Test
+    public void lazyMapping() throws IOException {
+        int total = 3000;
+        for (int n = 1; n <= total; n++) {
+            this.mappedRingBuffer.put(new RingBufferKey(n, n, n), new RingBufferData(n));
+        }
+        mappedRingBuffer.close();
+
+        mappedRingBuffer = new MappedRingBuffer<>();
+        mappedRingBuffer.setLazyMapping(true);
+        mappedRingBuffer.setMaxMappedSlots(1);
+        this.initialize();
+        Preconditions.checkArgument(mappedRingBuffer.getSlotCache().size() <= 1);
+        for (int n = 1; n <= total; n++) {
+            ByteBuffer data = mappedRingBuffer.getRawBuffer(new RingBufferKey(n, n, n));
+            Preconditions.checkArgument(null != data && data.remaining() == 1000, "key " + n);
+            //写slot之外最多保持1个slot的映射
+            Preconditions.checkArgument(mappedRingBuffer.getSlotCache().size() <= 2);
+        }
+        int count = 0;
+        IRingBufferCursor<RingBufferKey, RingBufferData> cursor = mappedRingBuffer.cursor(null, null, false);
+        while (cursor.next()) {
+            count++;
+            Preconditions.checkArgument(cursor.key().equals(new RingBufferKey(count, count, count)), "key " + cursor.key());
+        }
+        Preconditions.checkArgument(count == total);
+        int mapped = 0;
+        for (MappedRingBufferSlot<RingBufferKey, RingBufferData> slot : mappedRingBuffer.getSlotList()) {
+            if (null != slot.getRegions()) mapped++;
+        }
+        Preconditions.checkArgument(mapped <= 2, "mapped " + mapped);
+
+        //写满当前slot切换到下一个slot
+        for (int n = total + 1; n <= 2 * total; n++) {
+            this.mappedRingBuffer.put(new RingBufferKey(n, n, n), new RingBufferData(n));
+        }
+        Preconditions.checkArgument(mappedRingBuffer.getCurrentSlotIdx() == 6);
+        Preconditions.checkArgument(Arrays.equals(mappedRingBuffer.getRaw(new RingBufferKey(1, 1, 1)), RingBufferData.ringBufferEncode(new RingBufferData(1))));
+        Preconditions.checkArgument(mappedRingBuffer.lastKey().equals(new RingBufferKey(2 * total, 2 * total, 2 * total)));
+    }
+
+    @Test
+    public void backgroundRoller() throws Exception {
+        mappedRingBuffer.close();
+        deleteDir(new File("ringBufferData"));
+        mappedRingBuffer = new MappedRingBuffer<>();
+        mappedRingBuffer.setBackgroundRoller(true);
+        mappedRingBuffer.setRollerThresholdPercent(50);
+        this.initialize();
+        MappedRingBufferRoller<RingBufferKey, RingBufferData> roller = mappedRingBuffer.getRoller();
+
+        //写过一半后等roller准备好slot1，切换时不需要等待
+        int n = 1;
+        for (; n <= 600; n++) {
+            this.mappedRingBuffer.put(new RingBufferKey(n, n, n), new RingBufferData(n));
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (roller.getPrepares().get() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        Preconditions.checkArgument(roller.getPrepares().get() == 1);
+        for (; n <= 1000; n++) {
+            this.mappedRingBuffer.put(new RingBufferKey(n, n, n), new RingBufferData(n));
+        }
+        Preconditions.checkArgument(mappedRingBuffer.getCurrentSlotIdx() == 1);
+        Preconditions.checkArgument(roller.getRollovers().get() == 1);
+        Preconditions.checkArgument(roller.getRolloverWaits().get() == 0);
+
+        //写得快的时候不管roller有没有准备好，数据都是完整的
+        int total = 5000;
+        for (; n <= total; n++) {
+            this.mappedRingBuffer.put(new RingBufferKey(n, n, n), new RingBufferData(n));
+        }
+        Preconditions.checkArgument(mappedRingBuffer.getCurrentSlotIdx() == 5);
+        Preconditions.checkArgument(roller.getRollovers().get() == 5);
+        Preconditions.checkArgument(roller.getRolloverWaits().get() + roller.getPrepares().get() >= 5);
+        for (n = 1; n <= total; n++) {
+            Preconditions.checkArgument(null != mappedRingBuffer.getRawBuffer(new RingBufferKey(n, n, n)), "key " + n);
+        }
+        Preconditions.checkArgument(mappedRingBuffer.lastKey().equals(new RingBufferKey(total, total, total)));
+    }
+
+    @Test
+    public void sliceIndex() throws IOException {
+        mappedRingBuffer.close();
+        deleteDir(new File("ringBufferData"));
+        mappedRingBuffer = new MappedRingBuffer<>();
+        mappedRingBuffer.setIndexSliceSize(7);
+        this.initialize();
+        int total = 3000;
+        for (int n = 1; n <= total; n++) {
+            int num = n * 2;
+            this.mappedRingBuffer.put(new RingBufferKey(num, num, num), new RingBufferData(num));
+        }
+        //每个slot 975条记录，fence是第1、8、15...条
+        MappedRingBufferSliceIndex sliceIndex = mappedRingBuffer.getMemoryIndexer().getSliceIndex();
+        Preconditions.checkArgument(sliceIndex.getFenceCount((short) 0) == (975 - 1) / 7 + 1);
+        Preconditions.checkArgument(sliceIndex.getFenceCount((short) 3) == (3000 - 3 * 975 - 1) / 7 + 1);
+        Preconditions.checkArgument(sliceIndex.getFenceCount((short) 4) == 0);
+
+        for (int n = 1; n <= 2 * total + 1; n++) {
+            ByteBuffer data = mappedRingBuffer.getRawBuffer(new RingBufferKey(n, n, n));
+            Preconditions.checkArgument((n % 2 == 0 && n <= 2 * total) == (null != data), "key " + n);
+        }
+        Preconditions.checkArgument(mappedRingBuffer.firstKey().equals(new RingBufferKey(2, 2, 2)));
+        Preconditions.checkArgument(mappedRingBuffer.lastKey().equals(new RingBufferKey(2 * total, 2 * total, 2 * total)));
+
+        //slot之间的空隙：slot0最后一条是1950，slot1第一条是1952
+        RingBufferKey nextKey = new RingBufferKey();
+        Preconditions.checkArgument(null != mappedRingBuffer.next(new RingBufferKey(1950, 1950, 1951), nextKey));
+        Preconditions.checkArgument(nextKey.equals(new RingBufferKey(1952, 1952, 1952)));
+        Preconditions.checkArgument(null != mappedRingBuffer.next(new RingBufferKey(0, 0, 0), nextKey));
+        Preconditions.checkArgument(nextKey.equals(new RingBufferKey(2, 2, 2)));
+    }
+
+    @Test
+    public void extremeKeys() throws IOException {
+        //按compareTo递增，相邻的key相减会溢出
+        RingBufferKey[] keys = {
+                new RingBufferKey(Integer.MIN_VALUE, 0, 0),
+                new RingBufferKey(Integer.MIN_VALUE, Integer.MAX_VALUE, Long.MIN_VALUE),
+                new RingBufferKey(-1, Integer.MIN_VALUE, Long.MAX_VALUE),
+                new RingBufferKey(0, 0, 0),
+                new RingBufferKey(1, -1, 0),
+                new RingBufferKey(1, Integer.MAX_VALUE, Long.MIN_VALUE),
+                new RingBufferKey(Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MIN_VALUE),
+                new RingBufferKey(Integer.MAX_VALUE, Integer.MAX_VALUE, Long.MAX_VALUE),
+        };
+        Preconditions.checkArgument(new RingBufferKey(Integer.MIN_VALUE, 0, 0).compareTo(new RingBufferKey(1, 0, 0)) < 0);
+        Preconditions.checkArgument(new RingBufferKey(1, 0, 0).compareTo(new RingBufferKey(Integer.MIN_VALUE, 0, 0)) > 0);
+        Preconditions.checkArgument(new RingBufferKey(0, Integer.MAX_VALUE, 0).compareTo(new RingBufferKey(0, -1, 0)) > 0);
+        for (int i = 1; i < keys.length; i++) {
+            Preconditions.checkArgument(keys[i - 1].compareTo(keys[i]) < 0, "key " + keys[i - 1] + " < " + keys[i]);
+            Preconditions.checkArgument(keys[i].compareTo(keys[i - 1]) > 0, "key " + keys[i] + " > " + keys[i - 1]);
+        }
+
+        //compareTo比较的索引和按字节比较的索引都要保持顺序
+        for (IRingBufferFactory<RingBufferKey, RingBufferData> codec : Arrays.asList(new TestCodec(), new TestOrderedCodec())) {
+            mappedRingBuffer.close();
+            deleteDir(new File("ringBufferData"));
+            factory = codec;
+            mappedRingBuffer = new MappedRingBuffer<>();
+            this.initialize();
+            for (int i = 0; i < keys.length; i++) {
+                mappedRingBuffer.put(keys[i], new RingBufferData(i));
+            }
+            Preconditions.checkArgument(mappedRingBuffer.size() == keys.length);
+            for (RingBufferKey key : keys) {
+                Preconditions.checkArgument(null != mappedRingBuffer.getRawBuffer(key), "key " + key);
+            }
+            IRingBufferCursor<RingBufferKey, RingBufferData> cursor = mappedRingBuffer.cursor(null, null, false);
+            int expected = 0;
+            while (cursor.next()) {
+                Preconditions.checkArgument(cursor.key().equals(keys[expected]), "key " + cursor.key());
+                expected++;
+            }
+            cursor.close();
+            Preconditions.checkArgument(expected == keys.length);
+
+            //回写到(1, -1, 0)：丢掉它和之后的记录
+            mappedRingBuffer.put(keys[4], new RingBufferData(4));
+            Preconditions.checkArgument(mappedRingBuffer.size() == 5);
+            Preconditions.checkArgument(mappedRingBuffer.lastKey().equals(keys[4]));
+            Preconditions.checkArgument(null == mappedRingBuffer.getRawBuffer(keys[5]));
+            Preconditions.checkArgument(null != mappedRingBuffer.getRawBuffer(keys[0]));
+        }
+    }
+
+    @Test
+    public void orderedKey() throws IOException {
+        mappedRingBuffer.close();
+        deleteDir(new File("ringBufferData"));
+        factory = new TestOrderedCodec();
+        mappedRingBuffer = new MappedRingBuffer<>();
+        this.initialize();
+        Preconditions.checkArgument(mappedRingBuffer.isOrderedKey());
+
+        //有符号的key跨过0，按字节比较也要保持顺序
+        int from = -1500;
+        int to = 1500;
+        for (int n = from; n < to; n++) {
+            this.mappedRingBuffer.put(new RingBufferKey(n, n, n), new RingBufferData(n));
+        }
+        ByteBuffer a = ByteBuffer.allocate(16);
+        ByteBuffer b = ByteBuffer.allocate(16);
+        RingBufferKey.ringBufferEncode(new RingBufferKey(-1, 5, Long.MAX_VALUE), a, 0);
+        RingBufferKey.ringBufferEncode(new RingBufferKey(0, -5, Long.MIN_VALUE), b, 0);
+        Preconditions.checkArgument(MappedByteBufferUtil.compareUnsigned(a, 0, b, 0, 16) < 0);
+
+        for (int pass = 0; pass < 2; pass++) {
+            for (int n = from; n < to; n++) {
+                Preconditions.checkArgument(null != mappedRingBuffer.getRawBuffer(new RingBufferKey(n, n, n)), "key " + n);
+            }
+            Preconditions.checkArgument(null == mappedRingBuffer.getRawBuffer(new RingBufferKey(0, 0, 1)));
+            Preconditions.checkArgument(mappedRingBuffer.firstKey().equals(new RingBufferKey(from, from, from)));
+            RingBufferKey nextKey = new RingBufferKey();
+            Preconditions.checkArgument(null != mappedRingBuffer.next(new RingBufferKey(-1, -1, 0), nextKey));
+            Preconditions.checkArgument(nextKey.equals(new RingBufferKey(0, 0, 0)));
+
+            //删掉索引文件重启，恢复时索引直接从frame拷贝key
+            mappedRingBuffer.close();
+            for (File file : new File("ringBufferData").listFiles()) {
+                if (file.getName().contains("index-")) file.delete();
+            }
+            mappedRingBuffer = new MappedRingBuffer<>();
+            this.initialize();
+            Preconditions.checkArgument(mappedRingBuffer.lastKey().equals(new RingBufferKey(to - 1, to - 1, to - 1)));
+        }
+    }
+
+    @Test
+    public void indexCheckpoint() throws IOException {
+        int total = 3000;
+        for (int n = 1; n <= total; n++) {
+            this.mappedRingBuffer.put(new RingBufferKey(n, n, n), new RingBufferData(n));
+        }
+        mappedRingBuffer.close();
+
+        //正常关闭后重启，索引文件都校验通过，不需要扫描数据文件
+        mappedRingBuffer = new MappedRingBuffer<>();
+        mappedRingBuffer.setVerifyIndexOnLoad(true);
+        this.initialize();
+        for (MappedRingBufferSlot<RingBufferKey, RingBufferData> slot : mappedRingBuffer.getSlotList()) {
+            Preconditions.checkArgument(slot.getRecoveredRecords() == 0, "slot " + slot.getSlotIdx());
+        }
+        for (int n = 1; n <= total; n++) {
+            Preconditions.checkArgument(null != mappedRingBuffer.getRawBuffer(new RingBufferKey(n, n, n)), "key " + n);
+        }
+        mappedRingBuffer.close();
+
+        //slot0的索引文件被破坏，slot2有一份旧的代
+        File dir = new File("ringBufferData");
+        File index0 = new File(dir, "ringBufferDataindex-0.0");
+        File index2 = new File(dir, "ringBufferDataindex-2.0");
+        Preconditions.checkArgument(index0.exists() && index2.exists());
+        RandomAccessFile raFile = new RandomAccessFile(index0, "rw");
+        raFile.seek(24);
+        int crc = raFile.readInt();
+        raFile.seek(24);
+        raFile.writeInt(crc + 1);
+        raFile.close();
+        Files.copy(index2.toPath(), new File(dir, "ringBufferDataindex-2.1").toPath());
+
+        mappedRingBuffer = new MappedRingBuffer<>();
+        this.initialize();
+        Preconditions.checkArgument(mappedRingBuffer.getSlotList().get(0).getRecoveredRecords() == 975);
+        Preconditions.checkArgument(mappedRingBuffer.getSlotList().get(2).getRecoveredRecords() == 0);
+        Preconditions.checkArgument(!index0.exists() && new File(dir, "ringBufferDataindex-0.1").exists());
+        Preconditions.checkArgument(!index2.exists() && new File(dir, "ringBufferDataindex-2.1").exists());
+        for (int n = 1; n <= total; n++) {
+            Preconditions.checkArgument(null != mappedRingBuffer.getRawBuffer(new RingBufferKey(n, n, n)), "key " + n);
+        }
+        Preconditions.checkArgument(mappedRingBuffer.lastKey().equals(new RingBufferKey(total, total, total)));
+    }
+
+    @Test
+    public void overrideData() throws IOException {
+        int total = 3000;
+        for (int n = 1; n <= total; n++) {
+            this.mappedRingBuffer.put(new RingBufferKey(n, n, n), new RingBufferData(n));
+        }
+        MappedRingBufferTailer<RingBufferKey, RingBufferData> tailer = mappedRingBuffer.tailer("consumer1");
+        for (int n = 1; n <= total; n++) {
+            Preconditions.checkArgument(tailer.next(), "missing " + n);
+        }
+
+        //回写到slot2中间，slot3清空，tailer退回到回写位置
+        mappedRingBuffer.put(new RingBufferKey(2000, 2000, 2000), new RingBufferData(20000));
+        Preconditions.checkArgument(mappedRingBuffer.getCurrentSlotIdx() == 2);
+        Preconditions.checkArgument(mappedRingBuffer.lastKey().equals(new RingBufferKey(2000, 2000, 2000)));
+        Preconditions.checkArgument(Arrays.equals(mappedRingBuffer.getRaw(new RingBufferKey(2000, 2000, 2000)), RingBufferData.ringBufferEncode(new RingBufferData(20000))));
+        Preconditions.checkArgument(null == mappedRingBuffer.getRaw(new RingBufferKey(2001, 2001, 2001)));
+        Preconditions.checkArgument(null == mappedRingBuffer.getRaw(new RingBufferKey(3000, 3000, 3000)));
+        Preconditions.checkArgument(mappedRingBuffer.getSlotList().get(3).getPublishedPosition() == 4);
+        Preconditions.checkArgument(tailer.next() && tailer.key().equals(new RingBufferKey(2000, 2000, 2000)));
+        Preconditions.checkArgument(!tailer.next() && !tailer.isLapped());
+        tailer.close();
+
+        //跨slot回写，然后上游重发整个窗口
+        mappedRingBuffer.put(new RingBufferKey(1500, 1500, 1500), new RingBufferData(15000));
+        Preconditions.checkArgument(mappedRingBuffer.getCurrentSlotIdx() == 1);
+        Preconditions.checkArgument(mappedRingBuffer.getSlotList().get(2).getPublishedPosition() == 4);
+        for (int n = 1501; n <= total; n++) {
+            this.mappedRingBuffer.put(new RingBufferKey(n, n, n), new RingBufferData(n));
+        }
+        Preconditions.checkArgument(mappedRingBuffer.getCurrentSlotIdx() == 3);
+        Preconditions.checkArgument(Arrays.equals(mappedRingBuffer.getRaw(new RingBufferKey(1500, 1500, 1500)), RingBufferData.ringBufferEncode(new RingBufferData(15000))));
+        for (int n = 1501; n <= total; n++) {
+            Preconditions.checkArgument(Arrays.equals(mappedRingBuffer.getRaw(new RingBufferKey(n, n, n)), RingBufferData.ringBufferEncode(new RingBufferData(n))), "key " + n);
+        }
+
+        //回写到最老的slot，重启后仍然生效
+        mappedRingBuffer.put(new RingBufferKey(10, 10, 10), new RingBufferData(10));
+        mappedRingBuffer.close();
+        mappedRingBuffer = new MappedRingBuffer<>();
+        this.initialize();
+        Preconditions.checkArgument(mappedRingBuffer.getCurrentSlotIdx() == 0);
+        Preconditions.checkArgument(mappedRingBuffer.lastKey().equals(new RingBufferKey(10, 10, 10)));
+        Preconditions.checkArgument(null != mappedRingBuffer.getRaw(new RingBufferKey(9, 9, 9)));
+        Preconditions.checkArgument(null == mappedRingBuffer.getRaw(new RingBufferKey(11, 11, 11)));
+        mappedRingBuffer.put(new RingBufferKey(11, 11, 11), new RingBufferData(11));
+        Preconditions.checkArgument(mappedRingBuffer.lastKey().equals(new RingBufferKey(11, 11, 11)));
+    }
+
+    @Test
+    public void retention() throws IOException {
+        int total = 3000;
+        for (int n = 1; n <= total; n++) {
+            this.mappedRingBuffer.put(new RingBufferKey(n, n, n), new RingBufferData(n));
+        }
+        Preconditions.checkArgument(mappedRingBuffer.size() == total);
+
+        //按key保留：slot0的key都小于1000，整个丢掉
+        mappedRingBuffer.truncateBefore(new RingBufferKey(1000, 1000, 1000));
+        Preconditions.checkArgument(mappedRingBuffer.getOldestSlotIdx() == 1);
+        Preconditions.checkArgument(mappedRingBuffer.firstKey().equals(new RingBufferKey(976, 976, 976)));
+        Preconditions.checkArgument(mappedRingBuffer.size() == total - 975);
+        Preconditions.checkArgument(null == mappedRingBuffer.getRaw(new RingBufferKey(1, 1, 1)));
+
+        //按大小保留：丢掉slot1后剩下1050条记录，仍然不少于1000条记录的大小
+        mappedRingBuffer.setRetentionPolicy(MappedRingBufferRetentionPolicy.maxBytes(1000 * 1025L));
+        mappedRingBuffer.applyRetention();
+        Preconditions.checkArgument(mappedRingBuffer.getOldestSlotIdx() == 2);
+        Preconditions.checkArgument(mappedRingBuffer.firstKey().equals(new RingBufferKey(1951, 1951, 1951)));
+        Preconditions.checkArgument(mappedRingBuffer.size() == 1050);
+
+        //按时间保留：slot2在设置策略之前就写完了，没有时间戳，切换slot时被丢掉
+        mappedRingBuffer.setRetentionPolicy(MappedRingBufferRetentionPolicy.maxAge(1, TimeUnit.HOURS));
+        for (int n = total + 1; n <= 3901; n++) {
+            this.mappedRingBuffer.put(new RingBufferKey(n, n, n), new RingBufferData(n));
+        }
+        Preconditions.checkArgument(mappedRingBuffer.getCurrentSlotIdx() == 4);
+        Preconditions.checkArgument(mappedRingBuffer.getOldestSlotIdx() == 3);
+        Preconditions.checkArgument(mappedRingBuffer.getSlotList().get(3).getNewestTimestamp() > 0);
+        Preconditions.checkArgument(mappedRingBuffer.size() == 976);
+
+        //清空后从最老的slot重新开始写
+        mappedRingBuffer.truncate();
+        Preconditions.checkArgument(mappedRingBuffer.size() == 0);
+        Preconditions.checkArgument(null == mappedRingBuffer.firstKey() && null == mappedRingBuffer.lastKey());
+        Preconditions.checkArgument(mappedRingBuffer.getCurrentSlotIdx() == 3);
+        mappedRingBuffer.put(new RingBufferKey(1, 1, 1), new RingBufferData(1));
+        Preconditions.checkArgument(mappedRingBuffer.size() == 1);
+        mappedRingBuffer.close();
+
+        mappedRingBuffer = new MappedRingBuffer<>();
+        this.initialize();
+        Preconditions.checkArgument(mappedRingBuffer.getCurrentSlotIdx() == 3 && mappedRingBuffer.getOldestSlotIdx() == 3);
+        Preconditions.checkArgument(mappedRingBuffer.size() == 1);
+        Preconditions.checkArgument(mappedRingBuffer.firstKey().equals(new RingBufferKey(1, 1, 1)));
+    }
+
+    @Test
+    public void wrapAround() throws IOException {
+        this.mappedRingBuffer.put(new RingBufferKey(1, 1, 1), new RingBufferData(1));
+        MappedRingBufferTailer<RingBufferKey, RingBufferData> tailer = mappedRingBuffer.tailer("consumer1");
+        Preconditions.checkArgument(tailer.next());
+        tailer.commit();
+
+        //11个slot每个975条，写到第16个slot时环已经转了一圈多
+        int total = 15000;
+        for (int n = 2; n <= total; n++) {
+            this.mappedRingBuffer.put(new RingBufferKey(n, n, n), new RingBufferData(n));
+        }
+        int first = 5 * 975 + 1;
+        Preconditions.checkArgument(mappedRingBuffer.getCurrentSlotIdx() == 4);
+        Preconditions.checkArgument(mappedRingBuffer.getOldestSlotIdx() == 5);
+        Preconditions.checkArgument(mappedRingBuffer.getCurrentSlot().getGeneration() == 16);
+        Preconditions.checkArgument(mappedRingBuffer.size() == total - first + 1);
+        Preconditions.checkArgument(mappedRingBuffer.firstKey().equals(new RingBufferKey(first, first, first)));
+        Preconditions.checkArgument(null == mappedRingBuffer.getRaw(new RingBufferKey(first - 1, first - 1, first - 1)));
+        for (int n = first; n <= total; n += 97) {
+            Preconditions.checkArgument(Arrays.equals(mappedRingBuffer.getRaw(new RingBufferKey(n, n, n)), RingBufferData.ringBufferEncode(new RingBufferData(n))), "key " + n);
+        }
+
+        //slot0被复用过，tailer的位置已经不存在了
+        Preconditions.checkArgument(!tailer.next() && tailer.isLapped());
+        tailer.close();
+
+        //跨过环尾的遍历仍然按key递增
+        IRingBufferCursor<RingBufferKey, RingBufferData> cursor = mappedRingBuffer.cursor(null, null, false);
+        int expected = first;
+        while (cursor.next()) {
+            Preconditions.checkArgument(cursor.key().equals(new RingBufferKey(expected, expected, expected)), "key " + cursor.key());
+            expected++;
+        }
+        cursor.close();
+        Preconditions.checkArgument(expected == total + 1);
+        mappedRingBuffer.close();
+
+        //重启后按代数恢复最老的slot和写slot，继续写
+        mappedRingBuffer = new MappedRingBuffer<>();
+        this.initialize();
+        Preconditions.checkArgument(mappedRingBuffer.getCurrentSlotIdx() == 4 && mappedRingBuffer.getOldestSlotIdx() == 5);
+        Preconditions.checkArgument(mappedRingBuffer.size() == total - first + 1);
+        tailer = mappedRingBuffer.tailer("consumer1");
+        Preconditions.checkArgument(!tailer.next() && tailer.isLapped());
+        tailer.seekOldest();
+        Preconditions.checkArgument(tailer.next() && tailer.key().equals(new RingBufferKey(first, first, first)));
+        tailer.close();
+        for (int n = total + 1; n <= total + 1000; n++) {
+            this.mappedRingBuffer.put(new RingBufferKey(n, n, n), new RingBufferData(n));
+        }
+        Preconditions.checkArgument(mappedRingBuffer.getCurrentSlotIdx() == 5 && mappedRingBuffer.getOldestSlotIdx() == 6);
+        Preconditions.checkArgument(mappedRingBuffer.lastKey().equals(new RingBufferKey(total + 1000, total + 1000, total + 1000)));
+    }
+
+    @Test
+    public void largeSlot() throws IOException {
+        //64KB一个region，每个slot分成16个region，每个region放63条记录，最后一个region放16条
+        mappedRingBuffer.close();
+        deleteDir(new File("ringBufferData"));
+        mappedRingBuffer = new MappedRingBuffer<>();
+        mappedRingBuffer.setSlotRegionSize(64 * 1024);
+        this.initialize();
+        int perSlot = 15 * 63 + 16;
+        int total = 3000;
+        for (int n = 1; n <= total; n++) {
+            this.mappedRingBuffer.put(new RingBufferKey(n, n, n), new RingBufferData(n));
+        }
+        MappedRingBufferSlot<RingBufferKey, RingBufferData> slot0 = mappedRingBuffer.getSlotList().get(0);
+        Preconditions.checkArgument(slot0.getRegions().getRegionCount() == 16);
+        Preconditions.checkArgument(slot0.getDataStart() == 8);
+        Preconditions.checkArgument(slot0.getRegions().getLastPosition() == 15 * 64 * 1024 + 16 * 1025);
+        Preconditions.checkArgument(mappedRingBuffer.getCurrentSlotIdx() == total / perSlot);
+        for (int n = 1; n <= total; n++) {
+            Preconditions.checkArgument(Arrays.equals(mappedRingBuffer.getRaw(new RingBufferKey(n, n, n)), RingBufferData.ringBufferEncode(new RingBufferData(n))), "key " + n);
+        }
+
+        //遍历和tailer跳过region尾部的填充
+        IRingBufferCursor<RingBufferKey, RingBufferData> cursor = mappedRingBuffer.cursor(null, null, false);
+        int expected = 1;
+        while (cursor.next()) {
+            Preconditions.checkArgument(cursor.key().equals(new RingBufferKey(expected, expected, expected)), "key " + cursor.key());
+            Preconditions.checkArgument(cursor.rawValue().remaining() == 1000);
+            expected++;
+        }
+        cursor.close();
+        Preconditions.checkArgument(expected == total + 1);
+        cursor = mappedRingBuffer.cursor(null, null, true);
+        while (cursor.next()) {
+            expected--;
+            Preconditions.checkArgument(cursor.key().equals(new RingBufferKey(expected, expected, expected)), "key " + cursor.key());
+        }
+        cursor.close();
+        Preconditions.checkArgument(expected == 1);
+        MappedRingBufferTailer<RingBufferKey, RingBufferData> tailer = mappedRingBuffer.tailer("consumer1");
+        for (int n = 1; n <= total; n++) {
+            Preconditions.checkArgument(tailer.next() && tailer.key().equals(new RingBufferKey(n, n, n)), "key " + n);
+        }
+        Preconditions.checkArgument(!tailer.next());
+        tailer.commit();
+        tailer.close();
+        mappedRingBuffer.close();
+
+        //没有索引文件，从数据文件重建索引时同样跳过填充
+        for (File file : new File("ringBufferData").listFiles()) {
+            if (file.getName().contains("index-")) file.delete();
+        }
+        mappedRingBuffer = new MappedRingBuffer<>();
+        mappedRingBuffer.setSlotRegionSize(64 * 1024);
+        this.initialize();
+        Preconditions.checkArgument(mappedRingBuffer.size() == total);
+        Preconditions.checkArgument(mappedRingBuffer.lastKey().equals(new RingBufferKey(total, total, total)));
+        for (int n = 1; n <= total; n += 7) {
+            Preconditions.checkArgument(Arrays.equals(mappedRingBuffer.getRaw(new RingBufferKey(n, n, n)), RingBufferData.ringBufferEncode(new RingBufferData(n))), "key " + n);
+        }
+        mappedRingBuffer.put(new RingBufferKey(100, 100, 100), new RingBufferData(100));
+        Preconditions.checkArgument(mappedRingBuffer.getCurrentSlotIdx() == 0 && mappedRingBuffer.size() == 100);
+        for (int n = 101; n <= total; n++) {
+            this.mappedRingBuffer.put(new RingBufferKey(n, n, n), new RingBufferData(n));
+        }
+        Preconditions.checkArgument(mappedRingBuffer.getCurrentSlotIdx() == total / perSlot);
+        Preconditions.checkArgument(Arrays.equals(mappedRingBuffer.getRaw(new RingBufferKey(total, total, total)), RingBufferData.ringBufferEncode(new RingBufferData(total))));
+    }
+
+    @Test
+    public void largeSlotIndexSize() throws IOException {
+        //12GB的slot，dataFileSize / 5超过了int，默认的索引文件取2GB；文件都是稀疏的，只占用写过的页
+        mappedRingBuffer.close();
+        deleteDir(new File("ringBufferData"));
+        mappedRingBuffer = new MappedRingBuffer<>();
+        mappedRingBuffer.setFactory(factory);
+        mappedRingBuffer.setDataFileCount((short) 2);
+        mappedRingBuffer.setDataFileDir("ringBufferData");
+        mappedRingBuffer.setDataFileNamePrefix("ringBufferData");
+        mappedRingBuffer.setDataFileSize(12L << 30);
+        Preconditions.checkArgument(mappedRingBuffer.indexBufferSize() == Integer.MAX_VALUE);
+        mappedRingBuffer.load();
+        Preconditions.checkArgument(mappedRingBuffer.getSlotList().get(0).getRegions().getRegionCount() == 12);
+        for (File file : new File("ringBufferData").listFiles()) {
+            if (file.getName().contains("index-")) Preconditions.checkArgument(file.length() == Integer.MAX_VALUE, file + " " + file.length());
+        }
+        for (int n = 1; n <= 100; n++) {
+            this.mappedRingBuffer.put(new RingBufferKey(n, n, n), new RingBufferData(n));
+        }
+        //索引文件接近2GB时剩余空间的计算不会溢出
+        MappedRingBufferMemoryIndex<RingBufferKey, RingBufferData> memoryIndex = mappedRingBuffer.getMemoryIndexer();
+        int maxRecords = (Integer.MAX_VALUE - MappedRingBufferMemoryIndex.INDEX_HEADER_SIZE) / memoryIndex.getIndexRecSize();
+        Preconditions.checkArgument(memoryIndex.hasRoom((short) 0, maxRecords - 100));
+        Preconditions.checkArgument(!memoryIndex.hasRoom((short) 0, maxRecords - 99));
+        Preconditions.checkArgument(!memoryIndex.hasRoom((short) 0, Integer.MAX_VALUE));
+        Preconditions.checkArgument(memoryIndex.getIndexBufferFill((short) 0) < 0.001);
+        mappedRingBuffer.close();
+
+        //重新打开时校验checkpoint，索引文件不用重建
+        mappedRingBuffer = new MappedRingBuffer<>();
+        mappedRingBuffer.setFactory(factory);
+        mappedRingBuffer.setDataFileCount((short) 2);
+        mappedRingBuffer.setDataFileDir("ringBufferData");
+        mappedRingBuffer.setDataFileNamePrefix("ringBufferData");
+        mappedRingBuffer.setDataFileSize(12L << 30);
+        mappedRingBuffer.load();
+        Preconditions.checkArgument(mappedRingBuffer.getMetrics().getIndexRebuilds() == 0);
+        Preconditions.checkArgument(mappedRingBuffer.size() == 100);
+        for (int n = 1; n <= 100; n++) {
+            Preconditions.checkArgument(Arrays.equals(mappedRingBuffer.getRaw(new RingBufferKey(n, n, n)), RingBufferData.ringBufferEncode(new RingBufferData(n))), "key " + n);
+        }
+
+        //单个索引文件最大2GB，显式设置更大的值load时拒绝
+        MappedRingBuffer<RingBufferKey, RingBufferData> tooLarge = new MappedRingBuffer<>();
+        tooLarge.setFactory(factory);
+        tooLarge.setDataFileSize(12L << 30);
+        tooLarge.setIndexFileSize(3L << 30);
+        try {
+            tooLarge.load();
+            throw new IllegalStateException("indexFileSize larger than 2GB should be rejected");
+        } catch (IllegalArgumentException e) {
+            Preconditions.checkArgument(e.getMessage().contains("indexFileSize"));
+        }
+    }
+
+    @Test
+    public void indexFullFirst() throws Exception {
+        //索引文件只放得下50条记录，数据文件能放975条，索引先写满，put、putAll和多生产者都要切换到下一个slot
+        int perSlot = 50;
+        int indexFileSize = MappedRingBufferMemoryIndex.INDEX_HEADER_SIZE + perSlot * 30;
+        for (int mode = 0; mode < 3; mode++) {
+            mappedRingBuffer.close();
+            deleteDir(new File("ringBufferData"));
+            mappedRingBuffer = new MappedRingBuffer<>();
+            mappedRingBuffer.setIndexFileSize(indexFileSize);
+            mappedRingBuffer.setMultiProducer(2 == mode);
+            this.initialize();
+            int total = 420;
+            if (1 == mode) {
+                Map<RingBufferKey, RingBufferData> batch = new LinkedHashMap<>();
+                for (int n = 1; n <= total; n++) {
+                    batch.put(new RingBufferKey(n, n, n), new RingBufferData(n));
+                    if (batch.size() == 120) {
+                        mappedRingBuffer.putAll(batch);
+                        batch.clear();
+                    }
+                }
+                mappedRingBuffer.putAll(batch);
+            } else {
+                for (int n = 1; n <= total; n++) {
+                    mappedRingBuffer.put(new RingBufferKey(n, n, n), new RingBufferData(n));
+                }
+            }
+            Preconditions.checkArgument(mappedRingBuffer.getCurrentSlotIdx() == total / perSlot, "mode " + mode + " slot " + mappedRingBuffer.getCurrentSlotIdx());
+            for (short slotIdx = 0; slotIdx < total / perSlot; slotIdx++) {
+                MappedRingBufferSlot<RingBufferKey, RingBufferData> slot = mappedRingBuffer.getSlotList().get(slotIdx);
+                Preconditions.checkArgument(mappedRingBuffer.getMemoryIndexer().getRecordCount(slotIdx) == perSlot);
+                Preconditions.checkArgument(slot.getRegions().getLastPosition() == 4 + perSlot * 1025, "mode " + mode + " slot " + slotIdx);
+            }
+            Preconditions.checkArgument(mappedRingBuffer.size() == total);
+            for (int n = 1; n <= total; n++) {
+                Preconditions.checkArgument(Arrays.equals(mappedRingBuffer.getRaw(new RingBufferKey(n, n, n)), RingBufferData.ringBufferEncode(new RingBufferData(n))), "mode " + mode + " key " + n);
+            }
+
+            //重新打开后继续写，索引和数据对得上
+            mappedRingBuffer.close();
+            mappedRingBuffer = new MappedRingBuffer<>();
+            mappedRingBuffer.setIndexFileSize(indexFileSize);
+            mappedRingBuffer.setMultiProducer(2 == mode);
+            this.initialize();
+            Preconditions.checkArgument(mappedRingBuffer.getMetrics().getIndexRebuilds() == 0);
+            for (int n = total + 1; n <= total + perSlot; n++) {
+                mappedRingBuffer.put(new RingBufferKey(n, n, n), new RingBufferData(n));
+            }
+            Preconditions.checkArgument(mappedRingBuffer.size() == total + perSlot);
+            Preconditions.checkArgument(mappedRingBuffer.getCurrentSlotIdx() == (total + perSlot) / perSlot);
+            Preconditions.checkArgument(mappedRingBuffer.lastKey().equals(new RingBufferKey(total + perSlot, total + perSlot, total + perSlot)));
+        }
+
+        //索引文件连一条索引记录都放不下时load拒绝
+        MappedRingBuffer<RingBufferKey, RingBufferData> tooSmall = new MappedRingBuffer<>();
+        tooSmall.setFactory(factory);
+        tooSmall.setDataFileDir("ringBufferData");
+        tooSmall.setIndexFileSize(MappedRingBufferMemoryIndex.INDEX_HEADER_SIZE + 29);
+        try {
+            tooSmall.load();
+            throw new IllegalStateException("index file without room for a record should be rejected");
+        } catch (IllegalArgumentException e) {
+            Preconditions.checkArgument(e.getMessage().contains("indexFileSize"));
+        }
+    }
+
+    @Test
+    public void compression() throws IOException {
+        mappedRingBuffer.close();
+        deleteDir(new File("ringBufferData"));
+        mappedRingBuffer = new MappedRingBuffer<>();
+        mappedRingBuffer.setCompressor(new MappedRingBufferDeflateCompressor());
+        //一个slot能放的记录数受索引文件大小限制
+        mappedRingBuffer.setIndexFileSize(1000 * 1000L);
+        this.initialize();
+        int total = 20000;
+        for (int n = 1; n <= total; n++) {
+            this.mappedRingBuffer.put(new RingBufferKey(n, n, n), new RingBufferData(n));
+        }
+        //64KB的block放63条记录，最后一个block还没写入slot，读不到
+        int written = total / 63 * 63;
+        Preconditions.checkArgument(mappedRingBuffer.size() == written);
+        Preconditions.checkArgument(mappedRingBuffer.lastKey().equals(new RingBufferKey(total, total, total)));
+        Preconditions.checkArgument(null == mappedRingBuffer.getRaw(new RingBufferKey(total, total, total)));
+        mappedRingBuffer.flushBlock();
+        Preconditions.checkArgument(mappedRingBuffer.size() == total);
+        Preconditions.checkArgument(mappedRingBuffer.getCurrentSlotIdx() == 0);
+        Preconditions.checkArgument(mappedRingBuffer.getSlotPosition(0) < total * 1025 / 10);
+        for (int n = 1; n <= total; n += 13) {
+            Preconditions.checkArgument(Arrays.equals(mappedRingBuffer.getRaw(new RingBufferKey(n, n, n)), RingBufferData.ringBufferEncode(new RingBufferData(n))), "key " + n);
+        }
+        IRingBufferCursor<RingBufferKey, RingBufferData> cursor = mappedRingBuffer.cursor(new RingBufferKey(100, 100, 100), null, false);
+        int expected = 100;
+        while (cursor.next()) {
+            Preconditions.checkArgument(cursor.key().equals(new RingBufferKey(expected, expected, expected)), "key " + cursor.key());
+            Preconditions.checkArgument(cursor.rawValue().remaining() == 1000);
+            expected++;
+        }
+        cursor.close();
+        Preconditions.checkArgument(expected == total + 1);
+        cursor = mappedRingBuffer.cursor(null, new RingBufferKey(10001, 10001, 10001), true);
+        Preconditions.checkArgument(cursor.next() && cursor.key().equals(new RingBufferKey(10000, 10000, 10000)));
+        Preconditions.checkArgument(cursor.next() && cursor.key().equals(new RingBufferKey(9999, 9999, 9999)));
+        cursor.close();
+
+        //tailer停在block中间，重新打开后从下一条继续
+        MappedRingBufferTailer<RingBufferKey, RingBufferData> tailer = mappedRingBuffer.tailer("consumer1");
+        for (int n = 1; n <= 100; n++) {
+            Preconditions.checkArgument(tailer.next() && tailer.key().equals(new RingBufferKey(n, n, n)), "key " + n);
+        }
+        tailer.commit();
+        tailer.close();
+        tailer = mappedRingBuffer.tailer("consumer1");
+        Preconditions.checkArgument(tailer.next() && tailer.key().equals(new RingBufferKey(101, 101, 101)));
+        tailer.close();
+
+        //回写到block中间，block中之前的记录和新记录一起重新写成block
+        mappedRingBuffer.put(new RingBufferKey(5000, 5000, 5000), new RingBufferData(50000));
+        Preconditions.checkArgument(mappedRingBuffer.lastKey().equals(new RingBufferKey(5000, 5000, 5000)));
+        mappedRingBuffer.flushBlock();
+        Preconditions.checkArgument(mappedRingBuffer.size() == 5000);
+        Preconditions.checkArgument(Arrays.equals(mappedRingBuffer.getRaw(new RingBufferKey(5000, 5000, 5000)), RingBufferData.ringBufferEncode(new RingBufferData(50000))));
+        Preconditions.checkArgument(Arrays.equals(mappedRingBuffer.getRaw(new RingBufferKey(4999, 4999, 4999)), RingBufferData.ringBufferEncode(new RingBufferData(4999))));
+        Preconditions.checkArgument(null == mappedRingBuffer.getRaw(new RingBufferKey(5001, 5001, 5001)));
+        mappedRingBuffer.close();
+
+        //没有索引文件，从数据文件解压block重建索引
+        for (File file : new File("ringBufferData").listFiles()) {
+            if (file.getName().contains("index-")) file.delete();
+        }
+        mappedRingBuffer = new MappedRingBuffer<>();
+        mappedRingBuffer.setCompressor(new MappedRingBufferDeflateCompressor());
+        mappedRingBuffer.setIndexFileSize(1000 * 1000L);
+        this.initialize();
+        Preconditions.checkArgument(mappedRingBuffer.size() == 5000);
+        Preconditions.checkArgument(mappedRingBuffer.lastKey().equals(new RingBufferKey(5000, 5000, 5000)));
+        Preconditions.checkArgument(Arrays.equals(mappedRingBuffer.getRaw(new RingBufferKey(5000, 5000, 5000)), RingBufferData.ringBufferEncode(new RingBufferData(50000))));
+        cursor = mappedRingBuffer.cursor(null, null, false);
+        expected = 1;
+        while (cursor.next()) {
+            Preconditions.checkArgument(cursor.key().equals(new RingBufferKey(expected, expected, expected)), "key " + cursor.key());
+            expected++;
+        }
+        cursor.close();
+        Preconditions.checkArgument(expected == 5001);
+    }
+
+    @Test
+    public void checksum() throws IOException {
+        byte[] check = "123456789".getBytes();
+        ByteBuffer direct = ByteBuffer.allocateDirect(check.length);
+        direct.put(check);
+        Preconditions.checkArgument(MappedRingBufferChecksum.CRC32C.checksum(check, 0, check.length) == 0xE3069283);
+        Preconditions.checkArgument(MappedRingBufferChecksum.CRC32C.checksum(direct.duplicate(), 0, check.length) == 0xE3069283);
+        Preconditions.checkArgument(MappedRingBufferChecksum.CRC32.checksum(direct.duplicate(), 0, check.length) == 0xCBF43926);
+        //完整的frame：key length | key | data length | data | checksum，每种算法都能校验通过
+        for (MappedRingBufferChecksum algorithm : MappedRingBufferChecksum.values()) {
+            ByteBuffer frame = ByteBuffer.allocateDirect(64);
+            frame.put((byte) 16).putLong(1).putLong(2).putInt(check.length).put(check);
+            frame.putInt(frame.position(), algorithm.checksum(frame.duplicate(), 0, frame.position()));
+            Preconditions.checkArgument(algorithm.verify(frame.duplicate(), 0, frame.capacity()), algorithm.name());
+            frame.put(20, (byte) 0);
+            Preconditions.checkArgument(MappedRingBufferChecksum.NONE == algorithm || !algorithm.verify(frame.duplicate(), 0, frame.capacity()), algorithm.name());
+        }
+
+        mappedRingBuffer.close();
+        deleteDir(new File("ringBufferData"));
+        mappedRingBuffer = new MappedRingBuffer<>();
+        mappedRingBuffer.setChecksum(MappedRingBufferChecksum.CRC32C);
+        mappedRingBuffer.setVerifyChecksumOnRead(true);
+        mappedRingBuffer.setVerifyChecksumOnRecovery(true);
+        this.initialize();
+        int total = 1000;
+        for (int n = 1; n <= total; n++) {
+            this.mappedRingBuffer.put(new RingBufferKey(n, n, n), new RingBufferData(n));
+        }
+        for (int n = 1; n <= total; n++) {
+            Preconditions.checkArgument(Arrays.equals(mappedRingBuffer.getRaw(new RingBufferKey(n, n, n)), RingBufferData.ringBufferEncode(new RingBufferData(n))), "key " + n);
+        }
+
+        //改掉slot0中第10条记录data中的一个字节，读的时候发现
+        File dir = new File("ringBufferData");
+        RandomAccessFile raFile = new RandomAccessFile(new File(dir, "ringBufferData0"), "rw");
+        raFile.seek(4 + 9 * 1025 + 100);
+        int value = raFile.read();
+        raFile.seek(4 + 9 * 1025 + 100);
+        raFile.write(value + 1);
+        raFile.close();
+        boolean detected = false;
+        try {
+            mappedRingBuffer.getRaw(new RingBufferKey(10, 10, 10));
+        } catch (IllegalStateException e) {
+            detected = true;
+        }
+        Preconditions.checkArgument(detected);
+        detected = false;
+        IRingBufferCursor<RingBufferKey, RingBufferData> cursor = mappedRingBuffer.cursor(new RingBufferKey(5, 5, 5), null, false);
+        try {
+            while (cursor.next()) {
+                Preconditions.checkArgument(((Comparable) cursor.key()).compareTo(new RingBufferKey(10, 10, 10)) < 0);
+            }
+        } catch (IllegalStateException e) {
+            detected = true;
+        }
+        cursor.close();
+        Preconditions.checkArgument(detected);
+        Preconditions.checkArgument(null != mappedRingBuffer.getRaw(new RingBufferKey(11, 11, 11)));
+        mappedRingBuffer.close();
+
+        //slot1第20条记录损坏，没有索引文件时从数据文件恢复，截断到第19条
+        raFile = new RandomAccessFile(new File(dir, "ringBufferData1"), "rw");
+        raFile.seek(4 + 19 * 1025 + 10);
+        value = raFile.read();
+        raFile.seek(4 + 19 * 1025 + 10);
+        raFile.write(value + 1);
+        raFile.close();
+        for (File file : dir.listFiles()) {
+            if (file.getName().startsWith("ringBufferDataindex-1.")) file.delete();
+        }
+        mappedRingBuffer = new MappedRingBuffer<>();
+        mappedRingBuffer.setChecksum(MappedRingBufferChecksum.CRC32C);
+        mappedRingBuffer.setVerifyChecksumOnRecovery(true);
+        this.initialize();
+        Preconditions.checkArgument(mappedRingBuffer.getSlotList().get(1).getRecoveredRecords() == 19);
+        Preconditions.checkArgument(mappedRingBuffer.size() == 975 + 19);
+        Preconditions.checkArgument(mappedRingBuffer.lastKey().equals(new RingBufferKey(994, 994, 994)));
+        Preconditions.checkArgument(null == mappedRingBuffer.getRaw(new RingBufferKey(995, 995, 995)));
+        //截断后接着写
+        this.mappedRingBuffer.put(new RingBufferKey(995, 995, 995), new RingBufferData(995));
+        Preconditions.checkArgument(Arrays.equals(mappedRingBuffer.getRaw(new RingBufferKey(995, 995, 995)), RingBufferData.ringBufferEncode(new RingBufferData(995))));
+    }
+
+    @Test
+    public void metrics() throws Exception {
+        int total = 2000;
+        for (int n = 1; n <= total; n++) {
+            this.mappedRingBuffer.put(new RingBufferKey(n, n, n), new RingBufferData(n));
+        }
+        for (int n = 1; n <= 100; n++) {
+            Preconditions.checkArgument(null != mappedRingBuffer.getRawBuffer(new RingBufferKey(n, n, n)));
+        }
+        IRingBufferCursor<RingBufferKey, RingBufferData> cursor = mappedRingBuffer.cursor(new RingBufferKey(1001, 1001, 1001), null, false);
+        while (cursor.next()) {
+        }
+        //回写丢掉1901以后的记录
+        this.mappedRingBuffer.put(new RingBufferKey(1901, 1901, 1901), new RingBufferData(1));
+
+        MappedRingBufferMetrics.Snapshot snapshot = mappedRingBuffer.getMetrics().snapshot();
+        Preconditions.checkArgument(snapshot.getRecordsWritten() == total + 1);
+        Preconditions.checkArgument(snapshot.getBytesWritten() == (total + 1) * 1025L);
+        Preconditions.checkArgument(snapshot.getSlotRollovers() == 2);
+        Preconditions.checkArgument(snapshot.getOverrides() == 1);
+        Preconditions.checkArgument(snapshot.getChecksumFailures() == 0);
+        Preconditions.checkArgument(snapshot.getScannedRecords() == 1000);
+        Preconditions.checkArgument(snapshot.getPutLatency().getCount() == total + 1);
+        Preconditions.checkArgument(snapshot.getPutLatency().getP50Nanos() <= snapshot.getPutLatency().getP99Nanos());
+        Preconditions.checkArgument(snapshot.getPutLatency().getP99Nanos() <= snapshot.getPutLatency().getMaxNanos());
+        Preconditions.checkArgument(snapshot.getGetLatency().getCount() == 100);
+        Preconditions.checkArgument(snapshot.getScanLatency().getCount() == 1);
+        //回写后写slot退回slot1
+        Preconditions.checkArgument(snapshot.getCurrentSlotIdx() == 1);
+        Preconditions.checkArgument(snapshot.getRecordsPerSlot()[0] == 975 && snapshot.getRecordsPerSlot()[1] == 926 && snapshot.getRecordsPerSlot()[2] == 0);
+        Preconditions.checkArgument(snapshot.getCurrentSlotFill() > 0.9 && snapshot.getCurrentSlotFill() < 1);
+        Preconditions.checkArgument(snapshot.getIndexBufferFill() > 0.1 && snapshot.getIndexBufferFill() < 0.2);
+        Preconditions.checkArgument(snapshot.getSliceIndexFences() == 4 + 4);
+        Preconditions.checkArgument(snapshot.getSlotLoadMillis().length == 11);
+
+        //同样的属性通过JMX读取
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = mappedRingBuffer.getMetrics().getObjectName();
+        Preconditions.checkArgument(server.isRegistered(objectName));
+        Preconditions.checkArgument((Long) server.getAttribute(objectName, "RecordsWritten") == total + 1);
+        CompositeData putLatency = (CompositeData) server.getAttribute(objectName, "PutLatency");
+        Preconditions.checkArgument((Long) putLatency.get("count") == total + 1);
+        mappedRingBuffer.close();
+        Preconditions.checkArgument(!server.isRegistered(objectName));
+
+        //重启时从数据文件恢复的情况
+        for (File file : new File("ringBufferData").listFiles()) {
+            if (file.getName().startsWith("ringBufferDataindex-1.")) file.delete();
+        }
+        mappedRingBuffer = new MappedRingBuffer<>();
+        this.initialize();
+        snapshot = mappedRingBuffer.getMetrics().snapshot();
+        Preconditions.checkArgument(snapshot.getIndexRebuilds() == 1);
+        Preconditions.checkArgument(snapshot.getRecoveredRecords() == 926);
+        Preconditions.checkArgument(snapshot.getRecordsWritten() == 0);
+    }
+
+    @Test
+    public void readOnly() throws IOException {
+        for (int n = 1; n <= 1000; n++) {
+            this.mappedRingBuffer.put(new RingBufferKey(n, n, n), new RingBufferData(n));
+        }
+        //同一目录的只读打开，不加锁，和writer共享映射的文件
+        MappedRingBuffer<RingBufferKey, RingBufferData> reader = new MappedRingBuffer<>();
+        reader.setFactory(factory);
+        reader.setDataFileCount((short) 11);
+        reader.setDataFileDir("ringBufferData");
+        reader.setDataFileNamePrefix("ringBufferData");
+        reader.setDataFileSize(1000 * 1000L);
+        reader.setReadOnly(true);
+        reader.load();
+        try {
+            Preconditions.checkArgument(reader.size() == 1000);
+            Preconditions.checkArgument(reader.firstKey().equals(new RingBufferKey(1, 1, 1)));
+            Preconditions.checkArgument(reader.lastKey().equals(new RingBufferKey(1000, 1000, 1000)));
+            Preconditions.checkArgument(Arrays.equals(reader.getRaw(new RingBufferKey(500, 500, 500)), RingBufferData.ringBufferEncode(new RingBufferData(500))));
+            try {
+                reader.put(new RingBufferKey(1001, 1001, 1001), new RingBufferData(1001));
+                Preconditions.checkArgument(false);
+            } catch (IllegalStateException e) {
+                //只读打开不能写
+            }
+
+            //writer继续追加，refresh之后才能看到
+            for (int n = 1001; n <= 1500; n++) {
+                this.mappedRingBuffer.put(new RingBufferKey(n, n, n), new RingBufferData(n));
+            }
+            Preconditions.checkArgument(reader.size() == 1000);
+            reader.refresh();
+            Preconditions.checkArgument(reader.size() == 1500);
+            Preconditions.checkArgument(reader.lastKey().equals(new RingBufferKey(1500, 1500, 1500)));
+            int count = 0;
+            IRingBufferCursor<RingBufferKey, RingBufferData> cursor = reader.cursor(new RingBufferKey(900, 900, 900), null, false);
+            while (cursor.next()) {
+                count++;
+                ByteBuffer raw = cursor.rawValue();
+                byte[] bytes = new byte[raw.remaining()];
+                raw.get(bytes);
+                Preconditions.checkArgument(Arrays.equals(bytes, RingBufferData.ringBufferEncode(new RingBufferData(cursor.key().getChangeId()))));
+            }
+            Preconditions.checkArgument(count == 601);
+
+            //writer回写slot1，只读的cursor遇到被改过的slot要失败，refresh之后读到新的记录
+            cursor = reader.cursor(new RingBufferKey(1000, 1000, 1000), null, false);
+            Preconditions.checkArgument(cursor.next());
+            this.mappedRingBuffer.put(new RingBufferKey(1201, 1201, 1201), new RingBufferData(7));
+            try {
+                cursor.next();
+                Preconditions.checkArgument(false);
+            } catch (ConcurrentModificationException e) {
+                //slot1被writer修改过
+            }
+            Preconditions.checkArgument(Arrays.equals(reader.getRaw(new RingBufferKey(1201, 1201, 1201)), RingBufferData.ringBufferEncode(new RingBufferData(7))));
+            Preconditions.checkArgument(reader.size() == 1201);
+            Preconditions.checkArgument(null == reader.getRaw(new RingBufferKey(1300, 1300, 1300)));
+
+            //writer写满整个环，最老的slot被重新使用
+            for (int n = 1202; n <= 12000; n++) {
+                this.mappedRingBuffer.put(new RingBufferKey(n, n, n), new RingBufferData(n));
+            }
+            reader.refresh();
+            Preconditions.checkArgument(reader.getCurrentSlotIdx() == mappedRingBuffer.getCurrentSlotIdx());
+            Preconditions.checkArgument(reader.firstKey().equals(mappedRingBuffer.firstKey()));
+            Preconditions.checkArgument(reader.size() == mappedRingBuffer.size());
+            Preconditions.checkArgument(null == reader.getRaw(new RingBufferKey(1, 1, 1)));
+            for (int n = 12000; n > 12000 - 3000; n -= 7) {
+                Preconditions.checkArgument(Arrays.equals(reader.getRaw(new RingBufferKey(n, n, n)), RingBufferData.ringBufferEncode(new RingBufferData(n))), "key " + n);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void slotSummary() throws IOException {
+        mappedRingBuffer.close();
+        deleteDir(new File("ringBufferData"));
+        mappedRingBuffer = new MappedRingBuffer<>();
+        mappedRingBuffer.setBloomFilterBitsPerKey(10);
+        this.initialize();
+        int total = 3000;
+        for (int n = 1; n <= total; n++) {
+            int num = n * 2;
+            this.mappedRingBuffer.put(new RingBufferKey(num, num, num), new RingBufferData(num));
+        }
+        Preconditions.checkArgument(new File("ringBufferData", "ringBufferDatasummary-0").exists());
+
+        //不存在的key几乎都靠Bloom filter跳过，存在的key一定能查到
+        for (int n = 1; n <= total; n++) {
+            Preconditions.checkArgument(null == mappedRingBuffer.getRaw(new RingBufferKey(2 * n - 1, 2 * n - 1, 2 * n - 1)));
+            Preconditions.checkArgument(null != mappedRingBuffer.getRaw(new RingBufferKey(2 * n, 2 * n, 2 * n)), "key " + 2 * n);
+        }
+        Preconditions.checkArgument(mappedRingBuffer.getMetrics().getSummarySkips() > total * 95 / 100);
+        //比所有key都大，靠maxKey跳过
+        long skips = mappedRingBuffer.getMetrics().getSummarySkips();
+        Preconditions.checkArgument(null == mappedRingBuffer.getRaw(new RingBufferKey(2 * total + 1, 0, 0)));
+        Preconditions.checkArgument(mappedRingBuffer.getMetrics().getSummarySkips() == skips + 1);
+        //范围查找跳过slot后从下一个slot开始
+        IRingBufferCursor<RingBufferKey, RingBufferData> cursor = mappedRingBuffer.cursor(new RingBufferKey(1951, 0, 0), null, false);
+        Preconditions.checkArgument(cursor.next() && cursor.key().equals(new RingBufferKey(1952, 1952, 1952)));
+        cursor.close();
+
+        //回写之后被丢掉的key查不到，新写的key查得到
+        this.mappedRingBuffer.put(new RingBufferKey(2001, 2001, 2001), new RingBufferData(1));
+        Preconditions.checkArgument(null == mappedRingBuffer.getRaw(new RingBufferKey(2002, 2002, 2002)));
+        Preconditions.checkArgument(null != mappedRingBuffer.getRaw(new RingBufferKey(2001, 2001, 2001)));
+        Preconditions.checkArgument(null != mappedRingBuffer.getRaw(new RingBufferKey(2000, 2000, 2000)));
+
+        //正常关闭后直接用摘要文件；删掉一个摘要文件后按索引重建
+        mappedRingBuffer.close();
+        new File("ringBufferData", "ringBufferDatasummary-1").delete();
+        mappedRingBuffer = new MappedRingBuffer<>();
+        mappedRingBuffer.setBloomFilterBitsPerKey(10);
+        this.initialize();
+        for (int n = 1; n <= 1000; n++) {
+            Preconditions.checkArgument(null != mappedRingBuffer.getRaw(new RingBufferKey(2 * n, 2 * n, 2 * n)), "key " + 2 * n);
+            Preconditions.checkArgument(null == mappedRingBuffer.getRaw(new RingBufferKey(2 * n - 1, 2 * n - 1, 2 * n - 1)) || 2001 == 2 * n - 1);
+        }
+        Preconditions.checkArgument(mappedRingBuffer.getMetrics().getSummarySkips() > 1000 * 95 / 100);
+    }
+
+    @Test
+    public void secondaryIndex() throws IOException {
+        mappedRingBuffer.close();
+        deleteDir(new File("ringBufferData"));
+        mappedRingBuffer = new MappedRingBuffer<>();
+        factory = new TestSecondaryCodec();
+        this.initialize();
+        int total = 3000;
+        for (int n = 1; n <= 2000; n++) {
+            this.mappedRingBuffer.put(new RingBufferKey(n, n, n), new RingBufferData(n));
+        }
+        Map<RingBufferKey, RingBufferData> batch = new LinkedHashMap<>();
+        for (int n = 2001; n <= total; n++) {
+            batch.put(new RingBufferKey(n, n, n), new RingBufferData(n));
+        }
+        this.mappedRingBuffer.putAll(batch);
+        Preconditions.checkArgument(new File("ringBufferData", "ringBufferDatasecondary-0").exists());
+        int sum = 0;
+        for (int k = 0; k < 7; k++) {
+            sum += this.checkSecondary(k, total);
+        }
+        Preconditions.checkArgument(sum == total);
+        Preconditions.checkArgument(!mappedRingBuffer.secondaryCursor(7).next());
+
+        //回写之后被丢掉的记录查不到，新写的记录查得到
+        mappedRingBuffer.put(new RingBufferKey(2000, 2000, 2000), new RingBufferData(20000));
+        Preconditions.checkArgument(this.checkSecondary(5, 2000) == 286);
+        mappedRingBuffer.put(new RingBufferKey(2001, 2001, 2001), new RingBufferData(2001));
+        this.checkSecondary(6, 2001);
+        this.checkSecondary(0, 2001);
+
+        //正常关闭后直接用二级索引文件
+        mappedRingBuffer.close();
+        mappedRingBuffer = new MappedRingBuffer<>();
+        this.initialize();
+        this.checkSecondary(6, 2001);
+        this.checkSecondary(3, 2001);
+
+        //删掉一个二级索引文件：按索引记录从数据文件解码重建
+        mappedRingBuffer.close();
+        new File("ringBufferData", "ringBufferDatasecondary-1").delete();
+        mappedRingBuffer = new MappedRingBuffer<>();
+        this.initialize();
+        this.checkSecondary(2, 2001);
+
+        //索引文件也都删掉：扫描数据文件时重建
+        mappedRingBuffer.close();
+        new File("ringBufferData", "ringBufferDatasecondary-1").delete();
+        for (File file : new File("ringBufferData").listFiles()) {
+            if (file.getName().contains("index-")) file.delete();
+        }
+        mappedRingBuffer = new MappedRingBuffer<>();
+        this.initialize();
+        for (int k = 0; k < 7; k++) {
+            this.checkSecondary(k, 2001);
+        }
+        //换环之后最老的slot被重新使用，O(1)清空
+        for (int n = 2002; n <= 11 * 975 + 10; n++) {
+            this.mappedRingBuffer.put(new RingBufferKey(n, n, n), new RingBufferData(n));
+        }
+        IRingBufferCursor<RingBufferKey, RingBufferData> cursor = mappedRingBuffer.secondaryCursor(4);
+        Preconditions.checkArgument(cursor.next() && cursor.key().getChangeId() > 975);
+        cursor.close();
+    }
+
+    @Test
+    public void logShipping() throws Exception {
+        for (int n = 1; n <= 3000; n++) {
+            this.mappedRingBuffer.put(new RingBufferKey(n, n, n), new RingBufferData(n));
+        }
+        MappedRingBuffer<RingBufferKey, RingBufferData> follower = this.openFollower();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            //loopback socket：follower在另一个线程接收，transferTo直接把slot文件发到socket
+            ServerSocketChannel server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            SocketChannel client = SocketChannel.open(server.getLocalAddress());
+            final SocketChannel accepted = server.accept();
+            final MappedRingBufferReceiver<RingBufferKey, RingBufferData> receiver = follower.receiver();
+            Preconditions.checkArgument(0 == receiver.position());
+            Future<Integer> received = executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    int chunks = 0;
+                    while (receiver.receive(accepted)) chunks++;
+                    return chunks;
+                }
+            });
+            MappedRingBufferShipper<RingBufferKey, RingBufferData> shipper = mappedRingBuffer.shipper(receiver.position());
+            int shipped = 0;
+            while (shipper.ship(client, 256 * 1024) > 0) shipped++;
+            client.close();
+            Preconditions.checkArgument(received.get() == shipped);
+            accepted.close();
+            server.close();
+            this.checkFollower(follower, 1, 3000);
+            Preconditions.checkArgument(receiver.position() == shipper.position());
+
+            //in-process pipe：leader回写到之前的slot再继续写，每个chunk只有5000字节，frame会被切开
+            mappedRingBuffer.put(new RingBufferKey(2000, 2000, 2000), new RingBufferData(20000));
+            for (int n = 2001; n <= 4000; n++) {
+                this.mappedRingBuffer.put(new RingBufferKey(n, n, n), new RingBufferData(n));
+            }
+            Pipe pipe = Pipe.open();
+            while (shipper.ship(pipe.sink(), 5000) > 0) {
+                Preconditions.checkArgument(receiver.receive(pipe.source()));
+            }
+            this.checkFollower(follower, 1, 4000);
+            Preconditions.checkArgument(Arrays.equals(follower.getRaw(new RingBufferKey(2000, 2000, 2000)), RingBufferData.ringBufferEncode(new RingBufferData(20000))));
+
+            //follower重启后从它发布的位置继续，leader的环写满后follower跟着丢掉最老的slot
+            follower.close();
+            follower = this.openFollower();
+            MappedRingBufferReceiver<RingBufferKey, RingBufferData> reopened = follower.receiver();
+            for (int n = 4001; n <= 11000; n++) {
+                this.mappedRingBuffer.put(new RingBufferKey(n, n, n), new RingBufferData(n));
+            }
+            shipper = mappedRingBuffer.shipper(reopened.position());
+            while (shipper.ship(pipe.sink(), 16 * 1024) > 0) {
+                Preconditions.checkArgument(reopened.receive(pipe.source()));
+            }
+            Preconditions.checkArgument(follower.firstKey().equals(mappedRingBuffer.firstKey()));
+            this.checkFollower(follower, 4001, 11000);
+            pipe.sink().close();
+            Preconditions.checkArgument(!reopened.receive(pipe.source()));
+        } finally {
+            executor.shutdown();
+            follower.close();
+            deleteDir(new File("ringBufferFollower"));
+        }
+    }
 }